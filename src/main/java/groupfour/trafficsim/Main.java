@@ -1,10 +1,48 @@
 package groupfour.trafficsim;
 
+import groupfour.trafficsim.batch.ScenarioRunner;
+import groupfour.trafficsim.engine.EngineServer;
+import groupfour.trafficsim.metrics.MetricsServer;
+import groupfour.trafficsim.stream.SnapshotServer;
 import groupfour.trafficsim.ui.MainWindow;
 import javafx.application.Application;
 
+import java.util.Arrays;
+
 public class Main {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws Exception {
+        // logging has to be configured before the first logger is created
+        if (Arrays.asList(args).contains("--async-logging")) {
+            Main.enableAsyncLogging();
+            args = Arrays.stream(args).filter(arg -> !arg.equals("--async-logging")).toArray(String[]::new);
+        }
+
+        MetricsServer.startIfConfigured();
+        SnapshotServer.startIfConfigured();
+
+        if (args.length > 0 && args[0].equals("sweep")) {
+            ScenarioRunner.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("engine")) {
+            EngineServer.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
         Application.launch(MainWindow.class, args);
     }
+
+    /**
+     * Switches log4j to async loggers and the async logging profile.
+     * Explicitly set system properties take precedence.
+     */
+    private static void enableAsyncLogging() {
+        System.setProperty("log4j2.contextSelector",
+                System.getProperty("log4j2.contextSelector", "org.apache.logging.log4j.core.async.AsyncLoggerContextSelector"));
+        System.setProperty("log4j2.configurationFile",
+                System.getProperty("log4j2.configurationFile", "log4j2-async.xml"));
+        System.setProperty("log4j2.enableThreadlocals",
+                System.getProperty("log4j2.enableThreadlocals", "true"));
+    }
 }
@@ -0,0 +1,50 @@
+package groupfour.trafficsim.batch;
+
+/**
+ * Statistics gathered from one scenario run.
+ *
+ * @param scenario the scenario that was run
+ * @param port the TraCI port the SUMO instance was started on
+ * @param steps the number of completed steps
+ * @param wallNanos the wall clock time spent stepping
+ * @param simulationNanos the accumulated time SUMO spent in its simulation steps
+ * @param updateNanos the accumulated time spent syncing the Java side
+ * @param injectedVehicles the number of vehicles injected by the runner, including generated demand
+ * @param meanVehicleCount the mean vehicle count over all steps
+ * @param maxVehicleCount the highest vehicle count seen in any step
+ * @param meanSpeed the mean vehicle speed over all steps and vehicles
+ * @param error the error message if the run failed, otherwise null
+ *
+ * @author 8wf92323f
+ */
+public record RunStatistics(
+        Scenario scenario,
+        int port,
+        int steps,
+        long wallNanos,
+        long simulationNanos,
+        long updateNanos,
+        long injectedVehicles,
+        double meanVehicleCount,
+        int maxVehicleCount,
+        double meanSpeed,
+        String error
+) {
+    /**
+     * @return whether the run completed without error
+     */
+    public boolean isSuccessful() {
+        return this.error == null;
+    }
+
+    /**
+     * @return the throughput of this instance in steps per second of wall clock time
+     */
+    public double stepsPerSecond() {
+        if (this.wallNanos <= 0L) {
+            return 0.0;
+        }
+
+        return this.steps / (this.wallNanos / 1_000_000_000.0);
+    }
+}
@@ -0,0 +1,23 @@
+package groupfour.trafficsim.batch;
+
+/**
+ * A single parameter combination of a sweep.
+ *
+ * @param name a human readable name used in the report
+ * @param binary the SUMO executable name
+ * @param configFile the file path of the .sumocfg file (selects network and route mix)
+ * @param steps the number of simulation steps to run
+ * @param injectionRate the mean number of vehicles injected per step on random routes
+ * @param seed the seed of all demand decisions: injection counts, routes and generated trips
+ * @param demandFile a demand file whose trips are generated in addition to the injections or null
+ *
+ * @author 8wf92323f
+ */
+public record Scenario(String name, String binary, String configFile, int steps, double injectionRate, long seed, String demandFile) {
+    /**
+     * Creates a scenario without generated demand.
+     */
+    public Scenario(String name, String binary, String configFile, int steps, double injectionRate, long seed) {
+        this(name, binary, configFile, steps, injectionRate, seed, null);
+    }
+}
@@ -0,0 +1,88 @@
+package groupfour.trafficsim.batch;
+
+import java.util.List;
+
+/**
+ * The merged result of a parameter sweep.
+ *
+ * @author 8wf92323f
+ */
+public class ScenarioReport {
+    private final List<RunStatistics> runs;
+    private final long wallNanos;
+
+    /**
+     * @param runs the statistics of all runs, in scenario order
+     * @param wallNanos the wall clock time of the whole sweep
+     */
+    public ScenarioReport(List<RunStatistics> runs, long wallNanos) {
+        this.runs = List.copyOf(runs);
+        this.wallNanos = wallNanos;
+    }
+
+    /**
+     * @return the statistics of all runs, in scenario order
+     */
+    public List<RunStatistics> getRuns() {
+        return this.runs;
+    }
+
+    /**
+     * @return the total number of steps performed by all instances
+     */
+    public long getTotalSteps() {
+        long total = 0L;
+
+        for (RunStatistics run : this.runs) {
+            total += run.steps();
+        }
+
+        return total;
+    }
+
+    /**
+     * @return the aggregate throughput of all instances in steps per second of wall clock time
+     */
+    public double getAggregateStepsPerSecond() {
+        if (this.wallNanos <= 0L) {
+            return 0.0;
+        }
+
+        return this.getTotalSteps() / (this.wallNanos / 1_000_000_000.0);
+    }
+
+    /**
+     * @return a plain text table of all runs followed by the aggregate numbers
+     */
+    public String format() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("%-24s %6s %8s %10s %10s %10s %10s %10s %8s%n",
+                "scenario", "port", "steps", "steps/s", "sim ms", "sync ms", "injected", "mean veh", "max veh"));
+
+        for (RunStatistics run : this.runs) {
+            if (!run.isSuccessful()) {
+                builder.append(String.format("%-24s %6d FAILED: %s%n", run.scenario().name(), run.port(), run.error()));
+                continue;
+            }
+
+            builder.append(String.format("%-24s %6d %8d %10.1f %10.3f %10.3f %10d %10.1f %8d%n",
+                    run.scenario().name(),
+                    run.port(),
+                    run.steps(),
+                    run.stepsPerSecond(),
+                    run.steps() == 0 ? 0.0 : run.simulationNanos() / 1_000_000.0 / run.steps(),
+                    run.steps() == 0 ? 0.0 : run.updateNanos() / 1_000_000.0 / run.steps(),
+                    run.injectedVehicles(),
+                    run.meanVehicleCount(),
+                    run.maxVehicleCount()));
+        }
+
+        builder.append(String.format("%d runs, %d steps in %.2f s, aggregate %.1f steps/s%n",
+                this.runs.size(),
+                this.getTotalSteps(),
+                this.wallNanos / 1_000_000_000.0,
+                this.getAggregateStepsPerSecond()));
+
+        return builder.toString();
+    }
+}
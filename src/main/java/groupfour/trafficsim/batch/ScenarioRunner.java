@@ -0,0 +1,240 @@
+package groupfour.trafficsim.batch;
+
+import groupfour.trafficsim.demand.DemandGenerator;
+import groupfour.trafficsim.demand.DemandModel;
+import groupfour.trafficsim.metrics.MetricsServer;
+import groupfour.trafficsim.sim.Simulation;
+import groupfour.trafficsim.sim.SumoVehicle;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs several scenarios side by side, each in its own SUMO instance.
+ * Every instance gets its own TraCI port and is driven from its own virtual thread,
+ * so the SUMO processes can occupy all CPU cores at once.
+ *
+ * @author 8wf92323f
+ */
+public class ScenarioRunner {
+    private static final Logger LOGGER = LogManager.getLogger(ScenarioRunner.class.getName());
+    public static final int DEFAULT_BASE_PORT = 9100;
+    private final int parallelism;
+    private final int basePort;
+
+    /**
+     * @param parallelism the maximum number of SUMO instances running at the same time
+     * @param basePort the first TraCI port, instance slots use basePort ... basePort + parallelism - 1
+     */
+    public ScenarioRunner(int parallelism, int basePort) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+
+        this.parallelism = parallelism;
+        this.basePort = basePort;
+    }
+
+    /**
+     * Creates a runner that keeps one SUMO instance per available CPU core busy.
+     */
+    public ScenarioRunner() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_BASE_PORT);
+    }
+
+    /**
+     * Runs all scenarios and blocks until every run has finished.
+     * Failing runs do not abort the sweep, they are listed as failed in the report.
+     *
+     * @param scenarios the scenarios to run
+     * @return the merged report
+     * @throws InterruptedException if the calling thread is interrupted whilst waiting
+     */
+    public ScenarioReport run(List<Scenario> scenarios) throws InterruptedException {
+        // each port is handed to exactly one running instance at a time
+        BlockingQueue<Integer> ports = new ArrayBlockingQueue<>(this.parallelism);
+
+        for (int i = 0; i < this.parallelism; ++i) {
+            ports.add(this.basePort + i);
+        }
+
+        List<Future<RunStatistics>> futures = new ArrayList<>();
+        long t0 = System.nanoTime();
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (Scenario scenario : scenarios) {
+                futures.add(executor.submit(() -> {
+                    int port = ports.take();
+
+                    try {
+                        return ScenarioRunner.runScenario(scenario, port);
+                    } finally {
+                        ports.add(port);
+                    }
+                }));
+            }
+        }
+
+        long wallNanos = System.nanoTime() - t0;
+        List<RunStatistics> runs = new ArrayList<>();
+
+        for (int i = 0; i < futures.size(); ++i) {
+            try {
+                runs.add(futures.get(i).get());
+            } catch (Exception exception) {
+                // runScenario catches simulation errors itself, this only happens on interruption
+                runs.add(ScenarioRunner.failed(scenarios.get(i), 0, exception));
+            }
+        }
+
+        return new ScenarioReport(runs, wallNanos);
+    }
+
+    /**
+     * Launches one SUMO instance and runs a scenario to completion on the calling thread.
+     */
+    private static RunStatistics runScenario(Scenario scenario, int port) {
+        Simulation simulation;
+
+        try {
+            simulation = new Simulation(scenario.binary(), scenario.configFile(), port);
+        } catch (Exception exception) {
+            LOGGER.error("Could not launch scenario {} on port {}", scenario.name(), port, exception);
+            return ScenarioRunner.failed(scenario, port, exception);
+        }
+
+        MetricsServer.publish(scenario.name(), simulation);
+
+        // every demand decision of the run is drawn from the scenario seed
+        Random random = new Random(scenario.seed());
+        simulation.setRandom(random);
+        int wholeInjections = (int)scenario.injectionRate();
+        double fractionalInjection = scenario.injectionRate() - wholeInjections;
+
+        int steps = 0;
+        long simulationNanos = 0L;
+        long updateNanos = 0L;
+        long injected = 0L;
+        long vehicleCountSum = 0L;
+        int maxVehicleCount = 0;
+        double speedSum = 0.0;
+        long speedSamples = 0L;
+        long t0 = System.nanoTime();
+        DemandGenerator demand = null;
+
+        try {
+            if (scenario.demandFile() != null) {
+                demand = DemandGenerator.start(simulation, DemandModel.load(Path.of(scenario.demandFile()), simulation), random.nextLong());
+            }
+
+            for (; steps < scenario.steps(); ++steps) {
+                int injections = wholeInjections + (random.nextDouble() < fractionalInjection ? 1 : 0);
+
+                if (injections > 0) {
+                    simulation.batchInjection(injections);
+                    injected += injections;
+                }
+
+                simulation.stepBlocking();
+
+                simulationNanos += simulation.getSimulationStepDuration();
+                updateNanos += simulation.getUpdateStepDuration();
+
+                int vehicleCount = simulation.getVehicles().size();
+                vehicleCountSum += vehicleCount;
+                maxVehicleCount = Math.max(maxVehicleCount, vehicleCount);
+
+                for (SumoVehicle vehicle : simulation.getVehicles()) {
+                    speedSum += vehicle.get_speed();
+                }
+
+                speedSamples += vehicleCount;
+            }
+        } catch (Exception exception) {
+            LOGGER.error("Scenario {} failed after {} steps", scenario.name(), steps, exception);
+            MetricsServer.withdraw(simulation);
+            simulation.close();
+            return ScenarioRunner.failed(scenario, port, exception);
+        }
+
+        long wallNanos = System.nanoTime() - t0;
+
+        if (demand != null) {
+            injected += demand.getGeneratedTrips();
+        }
+
+        MetricsServer.withdraw(simulation);
+        simulation.close();
+
+        return new RunStatistics(
+                scenario,
+                port,
+                steps,
+                wallNanos,
+                simulationNanos,
+                updateNanos,
+                injected,
+                steps == 0 ? 0.0 : (double)vehicleCountSum / steps,
+                maxVehicleCount,
+                speedSamples == 0L ? 0.0 : speedSum / speedSamples,
+                null
+        );
+    }
+
+    private static RunStatistics failed(Scenario scenario, int port, Exception exception) {
+        String message = exception.getMessage() != null ? exception.getMessage() : exception.getClass().getSimpleName();
+        return new RunStatistics(scenario, port, 0, 0L, 0L, 0L, 0L, 0.0, 0, 0.0, message);
+    }
+
+    /**
+     * Command line entry point for injection rate sweeps.
+     * <p>
+     * Usage: {@code sweep [--demand <demand file>] <binary> <config.sumocfg> <steps> <rate>[,<rate>...] [repetitions] [parallelism]}
+     *
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) throws InterruptedException {
+        String demandFile = null;
+
+        if (args.length >= 2 && args[0].equals("--demand")) {
+            demandFile = args[1];
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
+
+        if (args.length < 4) {
+            System.err.println("Usage: sweep [--demand <demand file>] <binary> <config.sumocfg> <steps> <rate>[,<rate>...] [repetitions] [parallelism]");
+            return;
+        }
+
+        String binary = args[0];
+        String configFile = args[1];
+        int steps = Integer.parseInt(args[2]);
+        String[] rates = args[3].split(",");
+        int repetitions = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+        int parallelism = args.length > 5 ? Integer.parseInt(args[5]) : Runtime.getRuntime().availableProcessors();
+
+        List<Scenario> scenarios = new ArrayList<>();
+
+        for (String rateString : rates) {
+            double rate = Double.parseDouble(rateString.trim());
+
+            for (int i = 0; i < repetitions; ++i) {
+                scenarios.add(new Scenario("rate=" + rate + " #" + i, binary, configFile, steps, rate, i, demandFile));
+            }
+        }
+
+        ScenarioRunner runner = new ScenarioRunner(parallelism, DEFAULT_BASE_PORT);
+        ScenarioReport report = runner.run(scenarios);
+        System.out.print(report.format());
+    }
+}
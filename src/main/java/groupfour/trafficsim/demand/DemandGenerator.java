@@ -0,0 +1,169 @@
+package groupfour.trafficsim.demand;
+
+import groupfour.trafficsim.sim.CommandQueue;
+import groupfour.trafficsim.sim.Simulation;
+import groupfour.trafficsim.sim.StepController;
+import groupfour.trafficsim.sim.StepSnapshot;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Streams the trips of a demand model into a simulation.
+ * Departures are sampled step by step as a Poisson process whose rate follows the demand profile,
+ * so only the vehicles of the current step are ever created. Each trip starts and ends on a random
+ * edge of its origin and destination zone and follows the fastest route of the road graph.
+ * The vehicles are queued and reach SUMO together with the other commands of the next step.
+ *
+ * @author 8wf92323f
+ */
+public class DemandGenerator implements StepController {
+    private static final Logger LOGGER = LogManager.getLogger(DemandGenerator.class.getName());
+    private static final int EDGE_ATTEMPTS = 4; // edge pairs tried per trip before it is dropped
+    private static final double NORMAL_APPROXIMATION_MEAN = 30.0;
+    private final Simulation simulation;
+    private final DemandModel model;
+    private final SplittableRandom random;
+    private final List<DemandModel.Flow> flows;
+    private final double[] cumulativeRates;
+    private final double tripsPerSecond;
+    private final String vehicleIdPrefix;
+    private long vehicleCount = 0L;
+    private double lastTime = Double.NaN;
+    private volatile long generatedTrips = 0L;
+    private volatile long droppedTrips = 0L;
+
+    private DemandGenerator(Simulation simulation, DemandModel model, long seed) {
+        this.simulation = simulation;
+        this.model = model;
+        this.random = new SplittableRandom(seed);
+        this.vehicleIdPrefix = simulation.createVehicleIdPrefix("demand");
+        this.flows = List.copyOf(model.getFlows());
+        this.cumulativeRates = new double[this.flows.size()];
+        double sum = 0.0;
+
+        for (int i = 0; i < this.flows.size(); ++i) {
+            sum += this.flows.get(i).tripsPerHour();
+            this.cumulativeRates[i] = sum;
+        }
+
+        this.tripsPerSecond = sum / 3600.0;
+    }
+
+    /**
+     * Starts generating the demand of a model with the next step.
+     *
+     * @param simulation the simulation receiving the vehicles
+     * @param model the demand model
+     * @param seed the seed of the departure sampling
+     * @return the running generator
+     */
+    public static DemandGenerator start(Simulation simulation, DemandModel model, long seed) {
+        DemandGenerator generator = new DemandGenerator(simulation, model, seed);
+        simulation.addStepController(generator, 0L, 0);
+        LOGGER.info("Generating {} trips per hour between zones before profile scaling", model.getTripsPerHour());
+        return generator;
+    }
+
+    /**
+     * Stops generating trips, vehicles already in the simulation keep driving.
+     */
+    public void stop() {
+        this.simulation.removeStepController(this);
+    }
+
+    @Override
+    public void onStep(StepSnapshot snapshot, CommandQueue commands) {
+        double time = snapshot.getTime();
+
+        if (Double.isNaN(this.lastTime) || this.tripsPerSecond <= 0.0) {
+            this.lastTime = time;
+            return;
+        }
+
+        double mean = this.tripsPerSecond * this.model.getProfile().getFactor(time) * Math.max(0.0, time - this.lastTime);
+        this.lastTime = time;
+        int trips = this.samplePoisson(mean);
+
+        for (int i = 0; i < trips; ++i) {
+            if (this.queueTrip(this.pickFlow())) {
+                ++this.generatedTrips;
+            } else {
+                ++this.droppedTrips;
+            }
+        }
+    }
+
+    private DemandModel.Flow pickFlow() {
+        double value = this.random.nextDouble() * this.cumulativeRates[this.cumulativeRates.length - 1];
+        int index = Arrays.binarySearch(this.cumulativeRates, value);
+        index = index >= 0 ? index + 1 : -index - 1;
+        return this.flows.get(Math.min(index, this.flows.size() - 1));
+    }
+
+    /**
+     * @return whether a route was found and the vehicle was queued
+     */
+    private boolean queueTrip(DemandModel.Flow flow) {
+        int[] origins = this.model.getZoneEdges(flow.origin());
+        int[] destinations = this.model.getZoneEdges(flow.destination());
+
+        for (int attempt = 0; attempt < EDGE_ATTEMPTS; ++attempt) {
+            int from = origins[this.random.nextInt(origins.length)];
+            int to = destinations[this.random.nextInt(destinations.length)];
+
+            if (from != to && this.simulation.queueVehicle(this.vehicleIdPrefix + this.vehicleCount, from, to)) {
+                ++this.vehicleCount;
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Draws the number of departures of a step, using the normal approximation for large means.
+     */
+    private int samplePoisson(double mean) {
+        if (mean <= 0.0) {
+            return 0;
+        }
+
+        if (mean > NORMAL_APPROXIMATION_MEAN) {
+            return (int)Math.max(0L, Math.round(mean + Math.sqrt(mean) * this.random.nextGaussian()));
+        }
+
+        double limit = Math.exp(-mean);
+        double product = this.random.nextDouble();
+        int count = 0;
+
+        while (product > limit) {
+            product *= this.random.nextDouble();
+            ++count;
+        }
+
+        return count;
+    }
+
+    /**
+     * @return the number of trips sent to the simulation
+     */
+    public long getGeneratedTrips() {
+        return this.generatedTrips;
+    }
+
+    /**
+     * @return the number of trips dropped because no route was found between their zones
+     */
+    public long getDroppedTrips() {
+        return this.droppedTrips;
+    }
+
+    @Override
+    public String getName() {
+        return "Demand";
+    }
+}
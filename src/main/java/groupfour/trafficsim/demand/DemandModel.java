@@ -0,0 +1,281 @@
+package groupfour.trafficsim.demand;
+
+import groupfour.trafficsim.sim.RoadGraph;
+import groupfour.trafficsim.sim.Simulation;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Travel demand between zones of the network.
+ * A zone is a set of drivable edges trips start or end on. Demand is given as origin-destination
+ * flows in trips per hour or as zone rates, which are split across all other zones in proportion
+ * to their number of edges. All rates are scaled by a {@link DemandProfile}.
+ * <p>
+ * Demand files are plain text, one definition per line, {@code #} starts a comment:
+ * <pre>
+ * zone &lt;name&gt; edges &lt;edge id&gt; [&lt;edge id&gt; ...]
+ * zone &lt;name&gt; area &lt;min x&gt; &lt;min y&gt; &lt;max x&gt; &lt;max y&gt;
+ * od &lt;origin&gt; &lt;destination&gt; &lt;trips per hour&gt;
+ * rate &lt;origin&gt; &lt;trips per hour&gt;
+ * profile &lt;factor&gt; [&lt;factor&gt; ...]
+ * </pre>
+ *
+ * @author 8wf92323f
+ */
+public class DemandModel {
+    private final List<String> zoneNames = new ArrayList<>();
+    private final List<int[]> zoneEdges = new ArrayList<>();
+    private final Map<String, Integer> zoneIndices = new HashMap<>();
+    private final List<Flow> flows = new ArrayList<>();
+    private DemandProfile profile = DemandProfile.constant();
+
+    /**
+     * Loads a demand file for the network of a simulation.
+     *
+     * @param file the demand file
+     * @param simulation the simulation providing edge ids and the road graph
+     * @return the demand model
+     * @throws RuntimeException if the file cannot be read or contains an invalid definition
+     */
+    public static DemandModel load(Path file, Simulation simulation) throws RuntimeException {
+        List<String> lines;
+
+        try {
+            lines = Files.readAllLines(file);
+        } catch (IOException exception) {
+            throw new RuntimeException("Could not read demand file " + file, exception);
+        }
+
+        DemandModel model = new DemandModel();
+
+        for (int i = 0; i < lines.size(); ++i) {
+            String line = lines.get(i).strip();
+            int comment = line.indexOf('#');
+
+            if (comment >= 0) {
+                line = line.substring(0, comment).strip();
+            }
+
+            if (line.isEmpty()) {
+                continue;
+            }
+
+            try {
+                model.parseLine(line.split("\\s+"), simulation);
+            } catch (RuntimeException exception) {
+                throw new RuntimeException("Invalid definition in line " + (i + 1) + " of " + file + ": " + exception.getMessage(), exception);
+            }
+        }
+
+        return model;
+    }
+
+    private void parseLine(String[] tokens, Simulation simulation) {
+        switch (tokens[0]) {
+            case "zone" -> {
+                if (tokens.length < 4) {
+                    throw new IllegalArgumentException("expected zone <name> edges|area ...");
+                }
+
+                if (tokens[2].equals("edges")) {
+                    List<Integer> edges = new ArrayList<>();
+
+                    for (int i = 3; i < tokens.length; ++i) {
+                        int edge = simulation.getEdgeIndex(tokens[i]);
+
+                        if (edge < 0) {
+                            throw new IllegalArgumentException("unknown edge " + tokens[i]);
+                        }
+
+                        edges.add(edge);
+                    }
+
+                    this.addZone(tokens[1], edges.stream().mapToInt(Integer::intValue).toArray(), simulation.getRoadGraph());
+                } else if (tokens[2].equals("area") && tokens.length == 7) {
+                    this.addZone(tokens[1], Double.parseDouble(tokens[3]), Double.parseDouble(tokens[4]),
+                            Double.parseDouble(tokens[5]), Double.parseDouble(tokens[6]), simulation.getRoadGraph());
+                } else {
+                    throw new IllegalArgumentException("expected zone <name> edges <edge id> ... or zone <name> area <min x> <min y> <max x> <max y>");
+                }
+            }
+            case "od" -> {
+                if (tokens.length != 4) {
+                    throw new IllegalArgumentException("expected od <origin> <destination> <trips per hour>");
+                }
+
+                this.addFlow(tokens[1], tokens[2], Double.parseDouble(tokens[3]));
+            }
+            case "rate" -> {
+                if (tokens.length != 3) {
+                    throw new IllegalArgumentException("expected rate <origin> <trips per hour>");
+                }
+
+                this.addRate(tokens[1], Double.parseDouble(tokens[2]));
+            }
+            case "profile" -> {
+                double[] factors = new double[tokens.length - 1];
+
+                for (int i = 0; i < factors.length; ++i) {
+                    factors[i] = Double.parseDouble(tokens[i + 1]);
+                }
+
+                this.setProfile(new DemandProfile(factors));
+            }
+            default -> throw new IllegalArgumentException("unknown definition " + tokens[0]);
+        }
+    }
+
+    /**
+     * Adds a zone consisting of the given edges, edges that cannot be driven on are left out.
+     *
+     * @param name the unique name of the zone
+     * @param edges the edge indices of the zone
+     * @param graph the road graph of the network
+     */
+    public void addZone(String name, int[] edges, RoadGraph graph) {
+        if (this.zoneIndices.containsKey(name)) {
+            throw new IllegalArgumentException("zone " + name + " is defined twice");
+        }
+
+        int[] drivable = Arrays.stream(edges).filter(graph::isDrivable).distinct().toArray();
+
+        if (drivable.length == 0) {
+            throw new IllegalArgumentException("zone " + name + " has no drivable edges");
+        }
+
+        this.zoneIndices.put(name, this.zoneNames.size());
+        this.zoneNames.add(name);
+        this.zoneEdges.add(drivable);
+    }
+
+    /**
+     * Adds a zone consisting of all edges ending within an area.
+     *
+     * @param name the unique name of the zone
+     * @param minX the left border in network coordinates
+     * @param minY the bottom border in network coordinates
+     * @param maxX the right border in network coordinates
+     * @param maxY the top border in network coordinates
+     * @param graph the road graph of the network
+     */
+    public void addZone(String name, double minX, double minY, double maxX, double maxY, RoadGraph graph) {
+        List<Integer> edges = new ArrayList<>();
+
+        for (int i = 0; i < graph.getEdgeCount(); ++i) {
+            double x = graph.getEndX(i);
+            double y = graph.getEndY(i);
+
+            if (x >= minX && x <= maxX && y >= minY && y <= maxY) {
+                edges.add(i);
+            }
+        }
+
+        this.addZone(name, edges.stream().mapToInt(Integer::intValue).toArray(), graph);
+    }
+
+    /**
+     * Adds demand between two zones.
+     *
+     * @param origin the name of the zone trips start in
+     * @param destination the name of the zone trips end in
+     * @param tripsPerHour the number of trips per hour before the profile is applied
+     */
+    public void addFlow(String origin, String destination, double tripsPerHour) {
+        if (tripsPerHour < 0.0) {
+            throw new IllegalArgumentException("trip rates must not be negative");
+        }
+
+        this.flows.add(new Flow(this.getZoneIndex(origin), this.getZoneIndex(destination), tripsPerHour));
+    }
+
+    /**
+     * Adds demand from a zone to all other zones, split in proportion to their number of edges.
+     * Only zones defined before are taken into account.
+     *
+     * @param origin the name of the zone trips start in
+     * @param tripsPerHour the number of trips per hour before the profile is applied
+     */
+    public void addRate(String origin, double tripsPerHour) {
+        int originIndex = this.getZoneIndex(origin);
+        long edgeCount = 0L;
+
+        for (int i = 0; i < this.zoneEdges.size(); ++i) {
+            if (i != originIndex) {
+                edgeCount += this.zoneEdges.get(i).length;
+            }
+        }
+
+        if (edgeCount == 0L) {
+            throw new IllegalArgumentException("zone rates need at least one other zone");
+        }
+
+        for (int i = 0; i < this.zoneEdges.size(); ++i) {
+            if (i != originIndex) {
+                this.addFlow(origin, this.zoneNames.get(i), tripsPerHour * this.zoneEdges.get(i).length / edgeCount);
+            }
+        }
+    }
+
+    private int getZoneIndex(String name) {
+        Integer index = this.zoneIndices.get(name);
+
+        if (index == null) {
+            throw new IllegalArgumentException("unknown zone " + name);
+        }
+
+        return index;
+    }
+
+    /**
+     * @param profile the profile scaling all rates over the day
+     */
+    public void setProfile(DemandProfile profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * @return the profile scaling all rates over the day
+     */
+    public DemandProfile getProfile() {
+        return this.profile;
+    }
+
+    /**
+     * @return all flows between zones
+     */
+    List<Flow> getFlows() {
+        return this.flows;
+    }
+
+    /**
+     * @param zone the index of the zone
+     * @return the drivable edge indices of the zone
+     */
+    int[] getZoneEdges(int zone) {
+        return this.zoneEdges.get(zone);
+    }
+
+    /**
+     * @return the total number of trips per hour before the profile is applied
+     */
+    public double getTripsPerHour() {
+        return this.flows.stream().mapToDouble(Flow::tripsPerHour).sum();
+    }
+
+    /**
+     * Demand between two zones.
+     *
+     * @param origin the index of the zone trips start in
+     * @param destination the index of the zone trips end in
+     * @param tripsPerHour the number of trips per hour before the profile is applied
+     */
+    record Flow(int origin, int destination, double tripsPerHour) {
+    }
+}
@@ -0,0 +1,53 @@
+package groupfour.trafficsim.demand;
+
+import java.util.Arrays;
+
+/**
+ * A time-varying factor applied to all demand rates, e.g. to model morning and evening peaks.
+ * The factors are given for equally long periods of a day and interpolated linearly in between,
+ * the profile repeats every day.
+ *
+ * @author 8wf92323f
+ */
+public class DemandProfile {
+    private static final double DAY = 24.0 * 3600.0;
+    private final double[] factors;
+
+    /**
+     * @param factors the factors of equally long periods starting at midnight, e.g. 24 hourly factors
+     */
+    public DemandProfile(double... factors) {
+        if (factors.length == 0) {
+            throw new IllegalArgumentException("a demand profile needs at least one factor");
+        }
+
+        for (double factor : factors) {
+            if (factor < 0.0) {
+                throw new IllegalArgumentException("demand factors must not be negative");
+            }
+        }
+
+        this.factors = Arrays.copyOf(factors, factors.length);
+    }
+
+    /**
+     * @return a profile keeping the rates constant all day
+     */
+    public static DemandProfile constant() {
+        return new DemandProfile(1.0);
+    }
+
+    /**
+     * @param time the simulation time in seconds
+     * @return the factor at that time
+     */
+    public double getFactor(double time) {
+        // factors are placed in the middle of their period
+        double position = (time % DAY + DAY) % DAY / DAY * this.factors.length - 0.5;
+        int index = (int)Math.floor(position);
+        double weight = position - index;
+        double current = this.factors[Math.floorMod(index, this.factors.length)];
+        double next = this.factors[Math.floorMod(index + 1, this.factors.length)];
+        return current + weight * (next - current);
+    }
+}
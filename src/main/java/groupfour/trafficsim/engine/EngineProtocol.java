@@ -0,0 +1,87 @@
+package groupfour.trafficsim.engine;
+
+/**
+ * Constants of the control connection of an engine process.
+ * <p>
+ * The engine listens on two ports: the control port and the port above it, which serves the snapshot
+ * stream described in {@link groupfour.trafficsim.stream.StreamProtocol}. A client opens one connection
+ * to each. On the control connection every message is a big-endian int with the length of the body
+ * followed by the body. A request starts with the message type and an int request id chosen by the client,
+ * strings are modified UTF-8 and paths refer to files on the machine of the engine:
+ * <ul>
+ *     <li>{@link #STEP}: performs a single step.</li>
+ *     <li>{@link #START}: starts the continuous simulation.</li>
+ *     <li>{@link #STOP}: stops the continuous simulation or a warm-up, answered right away.</li>
+ *     <li>{@link #WARM_UP}: followed by the double target time, runs the simulation up to it.</li>
+ *     <li>{@link #TRAFFIC_LIGHTS}: answered with the traffic lights and their programs.</li>
+ *     <li>{@link #VIEWPORT}: followed by the doubles minX, minY, maxX and maxY of the visible area.</li>
+ *     <li>{@link #CLEAR_VIEWPORT}: syncs all vehicles with every step again.</li>
+ *     <li>{@link #LANE_SYNC}: followed by a boolean, enables the lane based vehicle sync.</li>
+ *     <li>{@link #REROUTING}: followed by a boolean, enables dynamic rerouting.</li>
+ *     <li>{@link #SELECT_VEHICLE}: followed by a boolean and the vehicle id if it is true, selects the
+ *     vehicle whose details are sent with {@link #STATUS}.</li>
+ *     <li>{@link #TRAFFIC_LIGHT_PROGRAM}: followed by the light and program ids.</li>
+ *     <li>{@link #TRAFFIC_LIGHT_PHASE}: followed by the light id and the int phase.</li>
+ *     <li>{@link #TRAFFIC_LIGHT_DURATION}: followed by the light id and the double remaining duration.</li>
+ *     <li>{@link #TRAFFIC_LIGHT_PLAN}: followed by an int count of light and program ids and an int
+ *     count of light ids and int phases.</li>
+ *     <li>{@link #INJECT}: followed by the int number of vehicles on random routes.</li>
+ *     <li>{@link #INJECT_ROUTE}: followed by the origin and destination edge ids.</li>
+ *     <li>{@link #SAVE_STATE}: followed by the checkpoint name and path, answered with the checkpoint.</li>
+ *     <li>{@link #OPEN_STATE}: followed by a path, answered with the checkpoint.</li>
+ *     <li>{@link #LOAD_STATE}: followed by a path, loads the checkpoint.</li>
+ *     <li>{@link #DEMAND}: followed by the path of a demand file, answered with the double trips per hour.</li>
+ *     <li>{@link #STOP_DEMAND}: answered with the long number of generated trips.</li>
+ *     <li>{@link #RECORD}: followed by the directory path, the format name and the int edge interval.</li>
+ *     <li>{@link #STOP_RECORD}: answered with the long number of dropped records once all are written.</li>
+ * </ul>
+ * The engine answers every request once it has finished with {@link #DONE}, the request id, the double
+ * simulation time and the answer if the request has one, or with {@link #FAILED}, the request id and the
+ * message if it could not be carried out, e.g. because another command is still running. The time is
+ * needed because the snapshot stream leaves out the states of a warm-up. A checkpoint is answered with its
+ * name, path, double time and int vehicle count. Requests of all clients act on the same simulation.
+ * <p>
+ * Whenever a step finished the engine also sends {@link #STATUS} without a request id, a client that
+ * does not keep up only gets the newest one. It holds the double time, the longs step, sync and controller
+ * duration, the int controller count, the double mean speed, the boolean rerouting flag, the traffic lights
+ * that changed since the last status of the client and, behind a boolean, the id and details of the
+ * selected vehicle.
+ *
+ * @author 8wf92323f
+ */
+public final class EngineProtocol {
+    public static final int DEFAULT_PORT = 9600;
+
+    // requests
+    public static final byte STEP = 1;
+    public static final byte START = 2;
+    public static final byte STOP = 3;
+    public static final byte WARM_UP = 4;
+    public static final byte TRAFFIC_LIGHTS = 5;
+    public static final byte VIEWPORT = 6;
+    public static final byte CLEAR_VIEWPORT = 7;
+    public static final byte LANE_SYNC = 8;
+    public static final byte REROUTING = 9;
+    public static final byte SELECT_VEHICLE = 10;
+    public static final byte TRAFFIC_LIGHT_PROGRAM = 11;
+    public static final byte TRAFFIC_LIGHT_PHASE = 12;
+    public static final byte TRAFFIC_LIGHT_DURATION = 13;
+    public static final byte TRAFFIC_LIGHT_PLAN = 14;
+    public static final byte INJECT = 15;
+    public static final byte INJECT_ROUTE = 16;
+    public static final byte SAVE_STATE = 17;
+    public static final byte OPEN_STATE = 18;
+    public static final byte LOAD_STATE = 19;
+    public static final byte DEMAND = 20;
+    public static final byte STOP_DEMAND = 21;
+    public static final byte RECORD = 22;
+    public static final byte STOP_RECORD = 23;
+
+    // replies
+    public static final byte DONE = 1;
+    public static final byte FAILED = 2;
+    public static final byte STATUS = 3;
+
+    private EngineProtocol() {
+    }
+}
@@ -0,0 +1,509 @@
+package groupfour.trafficsim.engine;
+
+import groupfour.trafficsim.demand.DemandGenerator;
+import groupfour.trafficsim.demand.DemandModel;
+import groupfour.trafficsim.export.StatisticsFormat;
+import groupfour.trafficsim.export.StatisticsRecorder;
+import groupfour.trafficsim.sim.Simulation;
+import groupfour.trafficsim.sim.SimulationCheckpoint;
+import groupfour.trafficsim.sim.VehicleDetails;
+import groupfour.trafficsim.stream.SnapshotServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * Runs a simulation without a user interface and lets clients drive it over the network,
+ * see {@link EngineProtocol} for the control connection. The vehicle states are sent to the clients
+ * through the {@link SnapshotServer} on the port above the control port.
+ * <p>
+ * The step loop runs in this process only, so a busy or slow user interface no longer delays it and the
+ * engine can run on another machine than the interface. The ports are bound to the loopback interface
+ * unless another address is given; the protocol has no authentication, any client reaching the ports
+ * can control the simulation.
+ * <p>
+ * Every client is served by a reading and a writing virtual thread. Replies are only queued by the thread
+ * that finished the request, so a client that does not read its replies never holds up the simulation.
+ * After every step each client that fetched the traffic lights is marked for a status message, which the
+ * writing thread builds once it gets to it, so a slow client skips statuses instead of queueing them up.
+ * <p>
+ * Demand generation and statistics recording run in the engine as well, they are started and stopped
+ * by any client and keep running when it disconnects.
+ *
+ * @author 8wf92323f
+ */
+public class EngineServer {
+    private static final Logger LOGGER = LogManager.getLogger(EngineServer.class.getName());
+    private final Simulation simulation;
+    private final ServerSocket serverSocket;
+    private final Set<Client> clients = ConcurrentHashMap.newKeySet();
+    private DemandGenerator demandGenerator = null;
+    private StatisticsRecorder recorder = null;
+
+    /**
+     * @param simulation the simulation to control
+     * @param address the address to bind the control port to
+     * @param port the control port
+     * @throws IOException if the port could not be bound
+     */
+    public EngineServer(Simulation simulation, InetAddress address, int port) throws IOException {
+        this.simulation = simulation;
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.bind(new InetSocketAddress(address, port));
+    }
+
+    /**
+     * Launches SUMO and serves it until the process is terminated.
+     *
+     * @param args [--bind address] [--port port] binary config.sumocfg
+     * @throws IOException if a port could not be bound
+     */
+    public static void main(String[] args) throws IOException {
+        InetAddress address = InetAddress.getLoopbackAddress();
+        int port = EngineProtocol.DEFAULT_PORT;
+
+        while (args.length >= 2 && args[0].startsWith("--")) {
+            switch (args[0]) {
+                case "--bind" -> address = InetAddress.getByName(args[1]);
+                case "--port" -> port = Integer.parseInt(args[1]);
+                default -> throw new IllegalArgumentException("Unknown option " + args[0]);
+            }
+
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
+
+        if (args.length < 2) {
+            System.err.println("Usage: engine [--bind <address>] [--port <port>] <binary> <config.sumocfg>");
+            return;
+        }
+
+        Simulation simulation = new Simulation(args[0], args[1]);
+        Runtime.getRuntime().addShutdownHook(new Thread(simulation::close, "engine-shutdown"));
+
+        SnapshotServer.start(address, port + 1);
+        SnapshotServer.publish(simulation);
+
+        EngineServer server = new EngineServer(simulation, address, port);
+        LOGGER.info("Engine listening on {}:{}", address.getHostAddress(), port);
+        server.run();
+    }
+
+    /**
+     * Accepts control connections until the server is closed, each is served by its own virtual thread.
+     */
+    public void run() {
+        this.simulation.setUpdateListener(this::onUpdate);
+
+        while (!this.serverSocket.isClosed()) {
+            try {
+                Socket socket = this.serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                LOGGER.info("Client {} connected", socket.getRemoteSocketAddress());
+                Thread.ofVirtual().name("engine-client").start(() -> this.serve(socket));
+            } catch (IOException exception) {
+                if (!this.serverSocket.isClosed()) {
+                    LOGGER.error("Could not accept a client", exception);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops accepting clients, the simulation is left running.
+     */
+    public void close() {
+        try {
+            this.serverSocket.close();
+        } catch (IOException exception) {
+            LOGGER.error("Could not close the engine server", exception);
+        }
+    }
+
+    /**
+     * Called after every step, marks all clients for a status message.
+     */
+    private void onUpdate() {
+        for (Client client : this.clients) {
+            client.requestStatus();
+        }
+    }
+
+    private void serve(Socket socket) {
+        Client client = new Client(socket, this.simulation.getTrafficLights().getTrafficLights().size());
+        Thread.ofVirtual().name("engine-client-writer").start(client::write);
+
+        try (socket) {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+            while (true) {
+                int length = input.readInt();
+                byte type = input.readByte();
+                int requestId = input.readInt();
+
+                try {
+                    this.handle(client, input, type, requestId, length);
+                } catch (RuntimeException exception) {
+                    client.fail(requestId, exception);
+                }
+            }
+        } catch (IOException exception) {
+            LOGGER.info("Client {} disconnected", socket.getRemoteSocketAddress());
+        } finally {
+            this.clients.remove(client);
+            client.close();
+        }
+    }
+
+    /**
+     * Reads the arguments of a request and carries it out. All arguments are read before anything
+     * can fail, so the next request starts at the right position.
+     */
+    private void handle(Client client, DataInputStream input, byte type, int requestId, int length) throws IOException {
+        Runnable done = () -> client.done(requestId, null);
+
+        switch (type) {
+            case EngineProtocol.STEP -> this.simulation.step(done);
+            case EngineProtocol.START -> this.simulation.startContinuous(done);
+            case EngineProtocol.STOP -> {
+                this.simulation.stopContinuous();
+                done.run();
+            }
+            case EngineProtocol.WARM_UP -> this.simulation.warmUp(input.readDouble(), done);
+            case EngineProtocol.TRAFFIC_LIGHTS -> {
+                client.done(requestId, this.simulation.getTrafficLights()::writeDefinition);
+                // statuses refer to the lights by index, so a client only gets them once it knows the lights
+                this.clients.add(client);
+                client.requestStatus();
+            }
+            case EngineProtocol.VIEWPORT -> {
+                double minX = input.readDouble();
+                double minY = input.readDouble();
+                double maxX = input.readDouble();
+                double maxY = input.readDouble();
+                this.simulation.setViewport(minX, minY, maxX, maxY);
+                done.run();
+            }
+            case EngineProtocol.CLEAR_VIEWPORT -> {
+                this.simulation.clearViewport();
+                done.run();
+            }
+            case EngineProtocol.LANE_SYNC -> {
+                this.simulation.setLaneSync(input.readBoolean());
+                done.run();
+            }
+            case EngineProtocol.REROUTING -> {
+                this.simulation.setRerouting(input.readBoolean());
+                done.run();
+            }
+            case EngineProtocol.SELECT_VEHICLE -> {
+                this.simulation.selectVehicle(input.readBoolean() ? input.readUTF() : null);
+                done.run();
+            }
+            case EngineProtocol.TRAFFIC_LIGHT_PROGRAM -> {
+                String tlsId = input.readUTF();
+                this.simulation.setTrafficLightProgram(tlsId, input.readUTF());
+                done.run();
+            }
+            case EngineProtocol.TRAFFIC_LIGHT_PHASE -> {
+                String tlsId = input.readUTF();
+                this.simulation.setTrafficLightPhase(tlsId, input.readInt());
+                done.run();
+            }
+            case EngineProtocol.TRAFFIC_LIGHT_DURATION -> {
+                String tlsId = input.readUTF();
+                this.simulation.setTrafficLightPhaseDuration(tlsId, input.readDouble());
+                done.run();
+            }
+            case EngineProtocol.TRAFFIC_LIGHT_PLAN -> {
+                Map<String, String> programs = new HashMap<>();
+                Map<String, Integer> phases = new HashMap<>();
+
+                for (int i = input.readInt(); i > 0; --i) {
+                    programs.put(input.readUTF(), input.readUTF());
+                }
+
+                for (int i = input.readInt(); i > 0; --i) {
+                    phases.put(input.readUTF(), input.readInt());
+                }
+
+                this.simulation.applyTrafficLightPlan(programs, phases);
+                done.run();
+            }
+            case EngineProtocol.INJECT -> client.answer(requestId,
+                    this.simulation.batchInjectionAsync(input.readInt()), null);
+            case EngineProtocol.INJECT_ROUTE -> {
+                String from = input.readUTF();
+                String to = input.readUTF();
+                client.answer(requestId, this.simulation.injectVehicleAsync(from, to), null);
+            }
+            case EngineProtocol.SAVE_STATE -> {
+                String name = input.readUTF();
+                Path file = Path.of(input.readUTF());
+                client.answer(requestId, this.simulation.saveCheckpoint(name, file), EngineServer::describe);
+            }
+            case EngineProtocol.OPEN_STATE -> client.answer(requestId,
+                    this.simulation.openCheckpoint(Path.of(input.readUTF())), EngineServer::describe);
+            case EngineProtocol.LOAD_STATE -> client.answer(requestId,
+                    this.simulation.openCheckpoint(Path.of(input.readUTF())).thenCompose(this.simulation::loadCheckpoint), null);
+            case EngineProtocol.DEMAND -> {
+                double tripsPerHour = this.startDemand(Path.of(input.readUTF()));
+                client.done(requestId, output -> output.writeDouble(tripsPerHour));
+            }
+            case EngineProtocol.STOP_DEMAND -> {
+                long generatedTrips = this.stopDemand();
+                client.done(requestId, output -> output.writeLong(generatedTrips));
+            }
+            case EngineProtocol.RECORD -> {
+                Path directory = Path.of(input.readUTF());
+                String format = input.readUTF();
+                int edgeInterval = input.readInt();
+                this.startRecording(directory, StatisticsFormat.valueOf(format), edgeInterval);
+                done.run();
+            }
+            case EngineProtocol.STOP_RECORD -> {
+                StatisticsRecorder recorder = this.stopRecording();
+                client.answer(requestId, recorder.stop(), directory -> output -> output.writeLong(recorder.getDroppedRecords()));
+            }
+            default -> {
+                input.skipNBytes(length - 5);
+                throw new IllegalStateException("Unknown request " + type);
+            }
+        }
+    }
+
+    private static Answer describe(SimulationCheckpoint checkpoint) {
+        return output -> {
+            output.writeUTF(checkpoint.getName());
+            output.writeUTF(checkpoint.getFile().toString());
+            output.writeDouble(checkpoint.getTime());
+            output.writeInt(checkpoint.getVehicleCount());
+        };
+    }
+
+    private synchronized double startDemand(Path file) {
+        if (this.demandGenerator != null) {
+            throw new IllegalStateException("The engine is already generating demand");
+        }
+
+        DemandModel model = DemandModel.load(file, this.simulation);
+        this.demandGenerator = DemandGenerator.start(this.simulation, model, this.simulation.getRandom().nextLong());
+        LOGGER.info("Generating {} trips/h from {}", model.getTripsPerHour(), file);
+        return model.getTripsPerHour();
+    }
+
+    private synchronized long stopDemand() {
+        if (this.demandGenerator == null) {
+            throw new IllegalStateException("The engine is not generating demand");
+        }
+
+        this.demandGenerator.stop();
+        long generatedTrips = this.demandGenerator.getGeneratedTrips();
+        this.demandGenerator = null;
+        return generatedTrips;
+    }
+
+    private synchronized void startRecording(Path directory, StatisticsFormat format, int edgeInterval) {
+        if (this.recorder != null) {
+            throw new IllegalStateException("The engine is already recording to " + this.recorder.getDirectory());
+        }
+
+        try {
+            this.recorder = StatisticsRecorder.start(this.simulation, directory, format, edgeInterval);
+        } catch (IOException exception) {
+            throw new RuntimeException("Could not create files in " + directory, exception);
+        }
+    }
+
+    private synchronized StatisticsRecorder stopRecording() {
+        if (this.recorder == null) {
+            throw new IllegalStateException("The engine is not recording");
+        }
+
+        StatisticsRecorder recorder = this.recorder;
+        this.recorder = null;
+        return recorder;
+    }
+
+    /**
+     * Writes the answer of a request behind the simulation time.
+     */
+    @FunctionalInterface
+    private interface Answer {
+        void write(DataOutputStream output) throws IOException;
+    }
+
+    /**
+     * A connected client and the replies that are waiting to be sent to it.
+     */
+    private class Client {
+        private static final byte[] CLOSE = new byte[0];
+        private static final byte[] STATUS = new byte[0]; // built by the writing thread when it is sent
+        private final Socket socket;
+        private final BlockingQueue<byte[]> messages = new LinkedBlockingQueue<>();
+        private final AtomicBoolean statusQueued = new AtomicBoolean(false);
+        private final int[] trafficLightVersions; // the light versions the client knows, only used by the writing thread
+
+        private Client(Socket socket, int trafficLightCount) {
+            this.socket = socket;
+            this.trafficLightVersions = new int[trafficLightCount];
+            Arrays.fill(this.trafficLightVersions, -1); // the first status contains all lights
+        }
+
+        /**
+         * Queues a reply, called by the reading thread and by the simulation worker once a command finished.
+         *
+         * @param answer writes the answer of the request or null if it has none
+         */
+        private void done(int requestId, Answer answer) {
+            this.messages.add(Client.encode(output -> {
+                output.writeByte(EngineProtocol.DONE);
+                output.writeInt(requestId);
+                output.writeDouble(EngineServer.this.simulation.getTime());
+
+                if (answer != null) {
+                    answer.write(output);
+                }
+            }));
+        }
+
+        private void fail(int requestId, Throwable exception) {
+            if (exception instanceof CompletionException && exception.getCause() != null) {
+                exception = exception.getCause();
+            }
+
+            LOGGER.debug("Could not carry out request {}", requestId, exception);
+            String message = exception.getMessage() != null ? exception.getMessage() : exception.toString();
+
+            this.messages.add(Client.encode(output -> {
+                output.writeByte(EngineProtocol.FAILED);
+                output.writeInt(requestId);
+                output.writeUTF(message);
+            }));
+        }
+
+        /**
+         * Replies once a request that runs in the background is finished.
+         *
+         * @param answer creates the answer from the result or null if the request has none
+         */
+        private <T> void answer(int requestId, CompletableFuture<T> future, Function<T, Answer> answer) {
+            future.whenComplete((result, exception) -> {
+                if (exception != null) {
+                    this.fail(requestId, exception);
+                } else {
+                    this.done(requestId, answer != null ? answer.apply(result) : null);
+                }
+            });
+        }
+
+        /**
+         * Queues a status message unless one is already waiting.
+         */
+        private void requestStatus() {
+            if (this.statusQueued.compareAndSet(false, true)) {
+                this.messages.add(STATUS);
+            }
+        }
+
+        private byte[] encodeStatus() {
+            Simulation simulation = EngineServer.this.simulation;
+
+            return Client.encode(output -> {
+                output.writeByte(EngineProtocol.STATUS);
+                output.writeDouble(simulation.getTime());
+                output.writeLong(simulation.getSimulationStepDuration());
+                output.writeLong(simulation.getUpdateStepDuration());
+                output.writeLong(simulation.getControllerStepDuration());
+                output.writeInt(simulation.getStepControllerCount());
+                output.writeDouble(simulation.getMeanSpeed());
+                output.writeBoolean(simulation.isRerouting());
+                simulation.getTrafficLights().writeChanges(output, this.trafficLightVersions);
+
+                VehicleDetails details = simulation.getSelectedVehicleDetails();
+                output.writeBoolean(details != null);
+
+                if (details != null) {
+                    output.writeUTF(details.getVehicleId());
+                    details.writeTo(output);
+                }
+            });
+        }
+
+        private static byte[] encode(Answer body) {
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                body.write(new DataOutputStream(bytes));
+                return bytes.toByteArray();
+            } catch (IOException exception) {
+                throw new RuntimeException(exception); // not thrown by a byte array stream
+            }
+        }
+
+        /**
+         * The loop of the writing thread, sends the queued replies until the client is closed.
+         */
+        private void write() {
+            try {
+                DataOutputStream output = new DataOutputStream(new BufferedOutputStream(this.socket.getOutputStream()));
+
+                while (true) {
+                    byte[] message = this.messages.take();
+
+                    if (message == CLOSE) {
+                        break;
+                    }
+
+                    if (message == STATUS) {
+                        // cleared first, a step finishing whilst the status is built queues the next one
+                        this.statusQueued.set(false);
+                        message = this.encodeStatus();
+                    }
+
+                    output.writeInt(message.length);
+                    output.write(message);
+
+                    if (this.messages.isEmpty()) {
+                        output.flush();
+                    }
+                }
+            } catch (IOException exception) {
+                LOGGER.debug("Could not reply to client", exception);
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            }
+
+            // a failed write also ends the reading thread
+            try {
+                this.socket.close();
+            } catch (IOException exception) {
+                LOGGER.debug("Could not close client connection", exception);
+            }
+        }
+
+        private void close() {
+            this.messages.add(CLOSE);
+        }
+    }
+}
@@ -0,0 +1,699 @@
+package groupfour.trafficsim.engine;
+
+import groupfour.trafficsim.export.StatisticsFormat;
+import groupfour.trafficsim.sim.NetworkGeometry;
+import groupfour.trafficsim.sim.SimulationCheckpoint;
+import groupfour.trafficsim.sim.SimulationEngine;
+import groupfour.trafficsim.sim.StateRecorder;
+import groupfour.trafficsim.sim.SumoVehicle;
+import groupfour.trafficsim.sim.TrafficLightSystem;
+import groupfour.trafficsim.sim.VehicleDetails;
+import groupfour.trafficsim.stream.SnapshotReader;
+import groupfour.trafficsim.stream.StreamProtocol;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A simulation running in an {@link EngineServer} process, driven through its control connection.
+ * The vehicle states arrive through the snapshot stream and are decoded on a reader thread, so the
+ * user interface only ever reads the last decoded state.
+ * <p>
+ * The traffic lights are fetched once on connect and afterwards kept up to date, together with the
+ * step durations, the mean speed and the details of the selected vehicle, by the status messages of the
+ * engine. State recorders such as the rewind and the heatmap run in this process and are fed from the
+ * stream. Checkpoints, demand files and recordings are files on the machine of the engine.
+ *
+ * @author 8wf92323f
+ */
+public class RemoteSimulation implements SimulationEngine {
+    private static final Logger LOGGER = LogManager.getLogger(RemoteSimulation.class.getName());
+    private static final int CONNECT_TIMEOUT = 10000; // ms
+    private final Socket controlSocket;
+    private final Socket streamSocket;
+    private final DataInputStream controlInput;
+    private final DataOutputStream controlOutput;
+    private final SnapshotReader reader;
+    private final NetworkGeometry networkGeometry;
+    private final TrafficLightSystem trafficLights;
+    private final Map<Integer, CompletableFuture<DataInputStream>> pendingRequests = new ConcurrentHashMap<>();
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private final CopyOnWriteArrayList<StateRecorder> recorders = new CopyOnWriteArrayList<>();
+    private volatile List<SumoVehicle> vehicles = List.of();
+    private volatile double time = 0.0;
+    private volatile long simulationStepDuration = 0L;
+    private volatile long updateStepDuration = 0L;
+    private volatile long controllerStepDuration = 0L;
+    private volatile int stepControllerCount = 0;
+    private volatile double meanSpeed = 0.0;
+    private volatile boolean rerouting = false;
+    private volatile VehicleDetails selectedVehicleDetails = null;
+    private volatile Runnable updateListener = null;
+    private volatile Executor callbackExecutor = Runnable::run;
+    private volatile boolean closed = false;
+
+    private RemoteSimulation(Socket controlSocket, Socket streamSocket) throws IOException {
+        this.controlSocket = controlSocket;
+        this.streamSocket = streamSocket;
+        this.controlInput = new DataInputStream(new BufferedInputStream(controlSocket.getInputStream()));
+        this.controlOutput = new DataOutputStream(new BufferedOutputStream(controlSocket.getOutputStream()));
+        this.reader = new SnapshotReader(streamSocket.getInputStream());
+
+        // the engine sends the network first, the vehicles can only be shown on top of it
+        streamSocket.setSoTimeout(CONNECT_TIMEOUT);
+
+        if (this.reader.readFrame() != StreamProtocol.NETWORK) {
+            throw new IOException("The engine did not send the road network");
+        }
+
+        streamSocket.setSoTimeout(0);
+        this.networkGeometry = this.reader.getNetworkGeometry();
+
+        // the engine only sends status messages once the lights are fetched, so their reply comes first
+        controlSocket.setSoTimeout(CONNECT_TIMEOUT);
+        this.trafficLights = this.fetchTrafficLights();
+        controlSocket.setSoTimeout(0);
+
+        Thread streamThread = new Thread(this::readStream, "engine-stream");
+        streamThread.setDaemon(true);
+        streamThread.start();
+
+        Thread controlThread = new Thread(this::readReplies, "engine-control");
+        controlThread.setDaemon(true);
+        controlThread.start();
+    }
+
+    /**
+     * Connects to an engine process.
+     *
+     * @param host the host the engine runs on
+     * @param port the control port of the engine, the snapshot stream is expected on the port above
+     * @return the connected simulation
+     * @throws IOException if the engine could not be reached
+     */
+    public static RemoteSimulation connect(String host, int port) throws IOException {
+        Socket controlSocket = new Socket();
+        Socket streamSocket = new Socket();
+
+        try {
+            controlSocket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+            controlSocket.setTcpNoDelay(true);
+            streamSocket.connect(new InetSocketAddress(host, port + 1), CONNECT_TIMEOUT);
+            return new RemoteSimulation(controlSocket, streamSocket);
+        } catch (IOException exception) {
+            controlSocket.close();
+            streamSocket.close();
+            throw exception;
+        }
+    }
+
+    /**
+     * Requests the traffic lights and reads the reply on the calling thread, before the control thread runs.
+     */
+    private TrafficLightSystem fetchTrafficLights() throws IOException {
+        this.send(EngineProtocol.TRAFFIC_LIGHTS, this.nextRequestId.incrementAndGet(), null);
+
+        this.controlInput.readInt();
+        byte type = this.controlInput.readByte();
+        this.controlInput.readInt();
+
+        if (type != EngineProtocol.DONE) {
+            throw new IOException("The engine did not send the traffic lights");
+        }
+
+        this.advanceTime(this.controlInput.readDouble());
+        return TrafficLightSystem.readDefinition(this.controlInput, this.networkGeometry);
+    }
+
+    /**
+     * The loop of the stream thread, publishes every decoded state and hands it to the recorders.
+     */
+    private void readStream() {
+        try {
+            while (!this.closed) {
+                byte type = this.reader.readFrame();
+
+                if (type == StreamProtocol.END) {
+                    LOGGER.info("The engine ended the simulation");
+                    break;
+                }
+
+                if (type == StreamProtocol.STATE) {
+                    // the reader replaces moved vehicles, so the copied list keeps showing this state
+                    List<SumoVehicle> vehicles = List.copyOf(this.reader.getVehicles());
+                    this.vehicles = vehicles;
+                    this.advanceTime(this.reader.getTime());
+
+                    for (StateRecorder recorder : this.recorders) {
+                        recorder.record(this.reader.getTime(), vehicles);
+                    }
+
+                    this.notifyUpdate();
+                }
+            }
+        } catch (IOException exception) {
+            if (!this.closed) {
+                LOGGER.error("Lost the snapshot stream of the engine", exception);
+            }
+        }
+
+        this.close();
+        this.notifyUpdate();
+    }
+
+    /**
+     * The loop of the control thread, completes the requests and applies the status messages.
+     */
+    private void readReplies() {
+        try {
+            DataInputStream input = this.controlInput;
+
+            while (true) {
+                int length = input.readInt();
+                byte type = input.readByte();
+
+                switch (type) {
+                    case EngineProtocol.DONE -> {
+                        CompletableFuture<DataInputStream> future = this.pendingRequests.remove(input.readInt());
+                        this.advanceTime(input.readDouble());
+                        byte[] answer = new byte[length - 1 - 4 - 8];
+                        input.readFully(answer);
+
+                        if (future != null) {
+                            future.complete(new DataInputStream(new ByteArrayInputStream(answer)));
+                        }
+                    }
+                    case EngineProtocol.FAILED -> {
+                        CompletableFuture<DataInputStream> future = this.pendingRequests.remove(input.readInt());
+                        String message = input.readUTF();
+
+                        if (future != null) {
+                            future.completeExceptionally(new RuntimeException(message));
+                        }
+                    }
+                    case EngineProtocol.STATUS -> this.readStatus(input);
+                    default -> input.skipNBytes(length - 1);
+                }
+            }
+        } catch (IOException exception) {
+            if (!this.closed) {
+                LOGGER.error("Lost the control connection to the engine", exception);
+            }
+        }
+
+        this.close();
+    }
+
+    private void readStatus(DataInputStream input) throws IOException {
+        this.advanceTime(input.readDouble());
+        this.simulationStepDuration = input.readLong();
+        this.updateStepDuration = input.readLong();
+        this.controllerStepDuration = input.readLong();
+        this.stepControllerCount = input.readInt();
+        this.meanSpeed = input.readDouble();
+        this.rerouting = input.readBoolean();
+        this.trafficLights.readChanges(input);
+
+        if (input.readBoolean()) {
+            String vehicleId = input.readUTF();
+            VehicleDetails details = this.selectedVehicleDetails;
+
+            // the selection is shared by all clients of the engine, details of another vehicle are skipped
+            if (details == null || !details.getVehicleId().equals(vehicleId)) {
+                details = new VehicleDetails(vehicleId);
+            }
+
+            details.readFrom(input);
+        }
+
+        this.notifyUpdate();
+    }
+
+    /**
+     * Replies and states arrive on different connections, a state received after a reply may be older.
+     */
+    private synchronized void advanceTime(double time) {
+        this.time = Math.max(this.time, time);
+    }
+
+    private void notifyUpdate() {
+        Runnable listener = this.updateListener;
+
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Sends a request.
+     *
+     * @param arguments writes the arguments of the request or null if it has none
+     * @return a future that completes with the answer once the engine carried out the request
+     * @throws IllegalStateException if the connection is closed
+     */
+    private CompletableFuture<DataInputStream> request(byte type, Arguments arguments) {
+        if (this.closed) {
+            throw new IllegalStateException("Connection is closed");
+        }
+
+        int requestId = this.nextRequestId.incrementAndGet();
+        CompletableFuture<DataInputStream> future = new CompletableFuture<>();
+        this.pendingRequests.put(requestId, future);
+
+        try {
+            this.send(type, requestId, arguments);
+        } catch (IOException exception) {
+            LOGGER.error("Could not send a request to the engine", exception);
+            this.close();
+        }
+
+        return future;
+    }
+
+    /**
+     * Sends a request and reads its answer.
+     *
+     * @param answer reads the answer or null if the request has none
+     */
+    private <T> CompletableFuture<T> request(byte type, Arguments arguments, Answer<T> answer) {
+        return this.request(type, arguments).thenApply(input -> {
+            try {
+                return answer != null ? answer.read(input) : null;
+            } catch (IOException exception) {
+                throw new RuntimeException(exception);
+            }
+        });
+    }
+
+    /**
+     * Sends a request, the callback is called once the engine answered it, also if it failed.
+     */
+    private void request(byte type, Arguments arguments, Runnable callback) {
+        this.request(type, arguments).whenComplete((answer, exception) -> {
+            if (exception != null && !this.closed) {
+                LOGGER.error("The engine could not carry out a request: {}", exception.getMessage());
+            }
+
+            this.callbackExecutor.execute(callback);
+        });
+    }
+
+    /**
+     * Sends a request nobody waits for, failures are only logged. Nothing is sent once the connection is closed.
+     */
+    private void command(byte type, Arguments arguments) {
+        if (this.closed) {
+            return;
+        }
+
+        this.request(type, arguments).exceptionally(exception -> {
+            LOGGER.error("The engine could not carry out a request: {}", exception.getMessage());
+            return null;
+        });
+    }
+
+    private void send(byte type, int requestId, Arguments arguments) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream bodyOutput = new DataOutputStream(body);
+        bodyOutput.writeByte(type);
+        bodyOutput.writeInt(requestId);
+
+        if (arguments != null) {
+            arguments.write(bodyOutput);
+        }
+
+        synchronized (this.controlOutput) {
+            this.controlOutput.writeInt(body.size());
+            body.writeTo(this.controlOutput);
+            this.controlOutput.flush();
+        }
+    }
+
+    private static SimulationCheckpoint readCheckpoint(DataInputStream input) throws IOException {
+        return SimulationCheckpoint.describe(input.readUTF(), Path.of(input.readUTF()), input.readDouble(), input.readInt());
+    }
+
+    @Override
+    public void step(Runnable callback) {
+        this.request(EngineProtocol.STEP, null, callback);
+    }
+
+    @Override
+    public void startContinuous(Runnable callback) {
+        this.request(EngineProtocol.START, null, callback);
+    }
+
+    @Override
+    public void stopContinuous() {
+        this.command(EngineProtocol.STOP, null);
+    }
+
+    @Override
+    public void warmUp(double targetTime, Runnable callback) {
+        this.request(EngineProtocol.WARM_UP, output -> output.writeDouble(targetTime), callback);
+    }
+
+    /**
+     * Disconnects from the engine, the simulation keeps running there.
+     * Unanswered requests fail, so the caller does not wait for them forever.
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+
+        try {
+            this.controlSocket.close();
+            this.streamSocket.close();
+        } catch (IOException exception) {
+            LOGGER.debug("Could not close the engine connection", exception);
+        }
+
+        for (Integer requestId : List.copyOf(this.pendingRequests.keySet())) {
+            CompletableFuture<DataInputStream> future = this.pendingRequests.remove(requestId);
+
+            if (future != null) {
+                future.completeExceptionally(new IllegalStateException("Connection is closed"));
+            }
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        return this.closed;
+    }
+
+    @Override
+    public void setUpdateListener(Runnable updateListener) {
+        this.updateListener = updateListener;
+    }
+
+    @Override
+    public void setCallbackExecutor(Executor callbackExecutor) {
+        this.callbackExecutor = callbackExecutor != null ? callbackExecutor : Runnable::run;
+    }
+
+    @Override
+    public double getTime() {
+        return this.time;
+    }
+
+    /**
+     * @return the vehicles of the last received state, neither the list nor the vehicles change afterwards
+     */
+    @Override
+    public Collection<SumoVehicle> getVehicles() {
+        return this.vehicles;
+    }
+
+    @Override
+    public NetworkGeometry getNetworkGeometry() {
+        return this.networkGeometry;
+    }
+
+    /**
+     * @return the traffic lights of the engine, their lanes only know their shape
+     */
+    @Override
+    public TrafficLightSystem getTrafficLights() {
+        return this.trafficLights;
+    }
+
+    @Override
+    public long getSimulationStepDuration() {
+        return this.simulationStepDuration;
+    }
+
+    @Override
+    public long getUpdateStepDuration() {
+        return this.updateStepDuration;
+    }
+
+    @Override
+    public long getControllerStepDuration() {
+        return this.controllerStepDuration;
+    }
+
+    /**
+     * @return the number of step controllers in the engine, recorders of this process are not included
+     */
+    @Override
+    public int getStepControllerCount() {
+        return this.stepControllerCount;
+    }
+
+    @Override
+    public double getMeanSpeed() {
+        return this.meanSpeed;
+    }
+
+    /**
+     * The vehicles of a state are not indexed, the lookup goes through all of them.
+     */
+    @Override
+    public SumoVehicle getVehicle(String vehicleId) {
+        for (SumoVehicle vehicle : this.vehicles) {
+            if (vehicle.get_vehId().equals(vehicleId)) {
+                return vehicle;
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public List<String> findVehicleIds(String prefix, int limit) {
+        List<String> ids = new ArrayList<>();
+
+        for (SumoVehicle vehicle : this.vehicles) {
+            if (vehicle.get_vehId().startsWith(prefix)) {
+                ids.add(vehicle.get_vehId());
+            }
+        }
+
+        ids.sort(null);
+        return ids.size() > limit ? ids.subList(0, limit) : ids;
+    }
+
+    /**
+     * The engine has a single selection, selecting a vehicle replaces the selection of other clients.
+     */
+    @Override
+    public VehicleDetails selectVehicle(String vehicleId) {
+        VehicleDetails details = vehicleId != null ? new VehicleDetails(vehicleId) : null;
+        this.selectedVehicleDetails = details;
+        this.command(EngineProtocol.SELECT_VEHICLE, output -> {
+            output.writeBoolean(vehicleId != null);
+
+            if (vehicleId != null) {
+                output.writeUTF(vehicleId);
+            }
+        });
+        return details;
+    }
+
+    /**
+     * Recorders are called on the stream thread with every received state.
+     */
+    @Override
+    public void addStateRecorder(StateRecorder recorder) {
+        this.recorders.addIfAbsent(recorder);
+    }
+
+    @Override
+    public void removeStateRecorder(StateRecorder recorder) {
+        this.recorders.remove(recorder);
+    }
+
+    @Override
+    public void setViewport(double minX, double minY, double maxX, double maxY) {
+        this.command(EngineProtocol.VIEWPORT, output -> {
+            output.writeDouble(minX);
+            output.writeDouble(minY);
+            output.writeDouble(maxX);
+            output.writeDouble(maxY);
+        });
+    }
+
+    @Override
+    public void clearViewport() {
+        this.command(EngineProtocol.CLEAR_VIEWPORT, null);
+    }
+
+    @Override
+    public void setLaneSync(boolean enabled) {
+        this.command(EngineProtocol.LANE_SYNC, output -> output.writeBoolean(enabled));
+    }
+
+    @Override
+    public void setRerouting(boolean enabled) {
+        this.rerouting = enabled; // confirmed by the next status
+        this.command(EngineProtocol.REROUTING, output -> output.writeBoolean(enabled));
+    }
+
+    @Override
+    public boolean isRerouting() {
+        return this.rerouting;
+    }
+
+    @Override
+    public void setTrafficLightProgram(String tlsId, String programId) {
+        this.command(EngineProtocol.TRAFFIC_LIGHT_PROGRAM, output -> {
+            output.writeUTF(tlsId);
+            output.writeUTF(programId);
+        });
+    }
+
+    @Override
+    public void setTrafficLightPhase(String tlsId, int phase) {
+        this.command(EngineProtocol.TRAFFIC_LIGHT_PHASE, output -> {
+            output.writeUTF(tlsId);
+            output.writeInt(phase);
+        });
+    }
+
+    @Override
+    public void setTrafficLightPhaseDuration(String tlsId, double duration) {
+        this.command(EngineProtocol.TRAFFIC_LIGHT_DURATION, output -> {
+            output.writeUTF(tlsId);
+            output.writeDouble(duration);
+        });
+    }
+
+    @Override
+    public void applyTrafficLightPlan(Map<String, String> programs, Map<String, Integer> phases) {
+        this.command(EngineProtocol.TRAFFIC_LIGHT_PLAN, output -> {
+            output.writeInt(programs.size());
+
+            for (Map.Entry<String, String> program : programs.entrySet()) {
+                output.writeUTF(program.getKey());
+                output.writeUTF(program.getValue());
+            }
+
+            output.writeInt(phases.size());
+
+            for (Map.Entry<String, Integer> phase : phases.entrySet()) {
+                output.writeUTF(phase.getKey());
+                output.writeInt(phase.getValue());
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> batchInjectionAsync(int batchSize) {
+        return this.request(EngineProtocol.INJECT, output -> output.writeInt(batchSize), (Answer<Void>)null);
+    }
+
+    @Override
+    public CompletableFuture<Void> injectVehicleAsync(String fromEdgeId, String toEdgeId) {
+        return this.request(EngineProtocol.INJECT_ROUTE, output -> {
+            output.writeUTF(fromEdgeId);
+            output.writeUTF(toEdgeId);
+        }, (Answer<Void>)null);
+    }
+
+    /**
+     * @param file the checkpoint file on the machine of the engine
+     * @return a future that completes with a description of the checkpoint
+     */
+    @Override
+    public CompletableFuture<SimulationCheckpoint> saveCheckpoint(String name, Path file) {
+        return this.request(EngineProtocol.SAVE_STATE, output -> {
+            output.writeUTF(name);
+            output.writeUTF(file.toString());
+        }, RemoteSimulation::readCheckpoint);
+    }
+
+    /**
+     * @param file the checkpoint file on the machine of the engine
+     * @return a future that completes with a description of the checkpoint
+     */
+    @Override
+    public CompletableFuture<SimulationCheckpoint> openCheckpoint(Path file) {
+        return this.request(EngineProtocol.OPEN_STATE, output -> output.writeUTF(file.toString()),
+                RemoteSimulation::readCheckpoint);
+    }
+
+    /**
+     * The engine reads the checkpoint file again, so it also picks up a file replaced in the meantime.
+     */
+    @Override
+    public CompletableFuture<Void> loadCheckpoint(SimulationCheckpoint checkpoint) {
+        return this.request(EngineProtocol.LOAD_STATE, output -> output.writeUTF(checkpoint.getFile().toString()),
+                (Answer<Void>)null);
+    }
+
+    /**
+     * Starts generating trips in the engine.
+     *
+     * @param file the demand file on the machine of the engine
+     * @return a future that completes with the trips per hour of the demand
+     */
+    public CompletableFuture<Double> startDemand(Path file) {
+        return this.request(EngineProtocol.DEMAND, output -> output.writeUTF(file.toString()), DataInputStream::readDouble);
+    }
+
+    /**
+     * @return a future that completes with the number of trips generated by the engine
+     */
+    public CompletableFuture<Long> stopDemand() {
+        return this.request(EngineProtocol.STOP_DEMAND, null, DataInputStream::readLong);
+    }
+
+    /**
+     * Starts recording statistics in the engine.
+     *
+     * @param directory the directory on the machine of the engine
+     * @param format the file format
+     * @param edgeInterval the number of steps between two edge records
+     * @return a future that completes once the files are created
+     */
+    public CompletableFuture<Void> startRecording(Path directory, StatisticsFormat format, int edgeInterval) {
+        return this.request(EngineProtocol.RECORD, output -> {
+            output.writeUTF(directory.toString());
+            output.writeUTF(format.name());
+            output.writeInt(edgeInterval);
+        }, (Answer<Void>)null);
+    }
+
+    /**
+     * @return a future that completes with the number of dropped records once all records are written
+     */
+    public CompletableFuture<Long> stopRecording() {
+        return this.request(EngineProtocol.STOP_RECORD, null, DataInputStream::readLong);
+    }
+
+    /**
+     * Writes the arguments of a request.
+     */
+    @FunctionalInterface
+    private interface Arguments {
+        void write(DataOutputStream output) throws IOException;
+    }
+
+    /**
+     * Reads the answer of a request.
+     */
+    @FunctionalInterface
+    private interface Answer<T> {
+        T read(DataInputStream input) throws IOException;
+    }
+}
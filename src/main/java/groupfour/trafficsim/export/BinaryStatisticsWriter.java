@@ -0,0 +1,156 @@
+package groupfour.trafficsim.export;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes statistics as one little-endian file per column.
+ * Step columns hold one value per step. Edge columns hold one value per edge,
+ * in the order of edges/ids.txt, for every step listed in edges/step.i64.
+ * The file extension names the value type (i32, i64, f32, f64).
+ *
+ * @author 8wf92323f
+ */
+class BinaryStatisticsWriter implements StatisticsWriter {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private final List<Column> columns = new ArrayList<>();
+    private final Column step;
+    private final Column time;
+    private final Column vehicles;
+    private final Column meanSpeed;
+    private final Column departed;
+    private final Column arrived;
+    private final Column stepNanos;
+    private final Column syncNanos;
+    private final Column controllerNanos;
+    private final Column edgeStep;
+    private final Column edgeVehicles;
+    private final Column edgeMeanSpeed;
+    private final Column edgeOccupancy;
+
+    /**
+     * @param directory the directory the files are created in
+     * @param edgeIds the ids of all edges by edge index
+     * @throws IOException if the files cannot be created
+     */
+    BinaryStatisticsWriter(Path directory, List<String> edgeIds) throws IOException {
+        Path stepDirectory = Files.createDirectories(directory.resolve("steps"));
+        Path edgeDirectory = Files.createDirectories(directory.resolve("edges"));
+        Files.write(edgeDirectory.resolve("ids.txt"), edgeIds, StandardCharsets.UTF_8);
+
+        this.step = this.open(stepDirectory.resolve("step.i64"));
+        this.time = this.open(stepDirectory.resolve("time.f64"));
+        this.vehicles = this.open(stepDirectory.resolve("vehicles.i32"));
+        this.meanSpeed = this.open(stepDirectory.resolve("mean_speed.f64"));
+        this.departed = this.open(stepDirectory.resolve("departed.i32"));
+        this.arrived = this.open(stepDirectory.resolve("arrived.i32"));
+        this.stepNanos = this.open(stepDirectory.resolve("step_ns.i64"));
+        this.syncNanos = this.open(stepDirectory.resolve("sync_ns.i64"));
+        this.controllerNanos = this.open(stepDirectory.resolve("previous_controller_ns.i64"));
+        this.edgeStep = this.open(edgeDirectory.resolve("step.i64"));
+        this.edgeVehicles = this.open(edgeDirectory.resolve("vehicles.i32"));
+        this.edgeMeanSpeed = this.open(edgeDirectory.resolve("mean_speed.f32"));
+        this.edgeOccupancy = this.open(edgeDirectory.resolve("occupancy.f32"));
+    }
+
+    private Column open(Path file) throws IOException {
+        Column column = new Column(FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE));
+        this.columns.add(column);
+        return column;
+    }
+
+    @Override
+    public void write(StepRecord record) throws IOException {
+        this.step.ensure(Long.BYTES).putLong(record.step());
+        this.time.ensure(Double.BYTES).putDouble(record.time());
+        this.vehicles.ensure(Integer.BYTES).putInt(record.vehicleCount());
+        this.meanSpeed.ensure(Double.BYTES).putDouble(record.meanSpeed());
+        this.departed.ensure(Integer.BYTES).putInt(record.departed());
+        this.arrived.ensure(Integer.BYTES).putInt(record.arrived());
+        this.stepNanos.ensure(Long.BYTES).putLong(record.stepNanos());
+        this.syncNanos.ensure(Long.BYTES).putLong(record.syncNanos());
+        this.controllerNanos.ensure(Long.BYTES).putLong(record.controllerNanos());
+
+        if (!record.hasEdges()) {
+            return;
+        }
+
+        this.edgeStep.ensure(Long.BYTES).putLong(record.step());
+
+        for (int i = 0; i < record.edgeVehicles().length; ++i) {
+            this.edgeVehicles.ensure(Integer.BYTES).putInt(record.edgeVehicles()[i]);
+            this.edgeMeanSpeed.ensure(Float.BYTES).putFloat(record.edgeMeanSpeeds()[i]);
+            this.edgeOccupancy.ensure(Float.BYTES).putFloat(record.edgeOccupancies()[i]);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+
+        for (Column column : this.columns) {
+            try {
+                column.close();
+            } catch (IOException exception) {
+                failure = exception;
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * A column file with its write buffer.
+     */
+    private static class Column implements Closeable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        private Column(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Writes the buffer out if it cannot take the given number of bytes.
+         *
+         * @param bytes the number of bytes about to be put
+         * @return the buffer
+         */
+        private ByteBuffer ensure(int bytes) throws IOException {
+            if (this.buffer.remaining() < bytes) {
+                this.flush();
+            }
+
+            return this.buffer;
+        }
+
+        private void flush() throws IOException {
+            this.buffer.flip();
+
+            while (this.buffer.hasRemaining()) {
+                this.channel.write(this.buffer);
+            }
+
+            this.buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try (this.channel) {
+                this.flush();
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package groupfour.trafficsim.export;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Writes statistics as steps.csv and edges.csv.
+ * The edge file is in long format and only lists edges with vehicles.
+ *
+ * @author 8wf92323f
+ */
+class CsvStatisticsWriter implements StatisticsWriter {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private final List<String> edgeIds;
+    private final BufferedWriter steps;
+    private final BufferedWriter edges;
+
+    /**
+     * @param directory the directory the files are created in
+     * @param edgeIds the ids of all edges by edge index
+     * @throws IOException if the files cannot be created
+     */
+    CsvStatisticsWriter(Path directory, List<String> edgeIds) throws IOException {
+        this.edgeIds = edgeIds;
+        this.steps = new BufferedWriter(Files.newBufferedWriter(directory.resolve("steps.csv"), StandardCharsets.UTF_8), BUFFER_SIZE);
+        this.edges = new BufferedWriter(Files.newBufferedWriter(directory.resolve("edges.csv"), StandardCharsets.UTF_8), BUFFER_SIZE);
+
+        this.steps.write("step,time,vehicles,mean_speed,departed,arrived,step_ns,sync_ns,previous_controller_ns\n");
+        this.edges.write("step,edge,vehicles,mean_speed,occupancy\n");
+    }
+
+    @Override
+    public void write(StepRecord record) throws IOException {
+        this.steps.write(String.format(Locale.ROOT, "%d,%.3f,%d,%.4f,%d,%d,%d,%d,%d%n",
+                record.step(), record.time(), record.vehicleCount(), record.meanSpeed(), record.departed(),
+                record.arrived(), record.stepNanos(), record.syncNanos(), record.controllerNanos()));
+
+        if (!record.hasEdges()) {
+            return;
+        }
+
+        for (int i = 0; i < record.edgeVehicles().length; ++i) {
+            if (record.edgeVehicles()[i] == 0) {
+                continue;
+            }
+
+            this.edges.write(String.format(Locale.ROOT, "%d,%s,%d,%.4f,%.4f%n",
+                    record.step(), this.edgeIds.get(i), record.edgeVehicles()[i],
+                    record.edgeMeanSpeeds()[i], record.edgeOccupancies()[i]));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (this.steps; this.edges) {
+            this.steps.flush();
+            this.edges.flush();
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package groupfour.trafficsim.export;
+
+/**
+ * The file formats statistics can be exported in.
+ *
+ * @author 8wf92323f
+ */
+public enum StatisticsFormat {
+    /**
+     * One CSV file for step statistics and one for edge statistics, meant for small runs.
+     * Edges without vehicles are left out.
+     */
+    CSV,
+    /**
+     * One little-endian binary file per column, meant for large runs.
+     * Edge columns hold one value per edge for every sampled step.
+     */
+    BINARY
+}
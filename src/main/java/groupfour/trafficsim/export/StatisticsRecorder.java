@@ -0,0 +1,196 @@
+package groupfour.trafficsim.export;
+
+import groupfour.trafficsim.sim.CommandQueue;
+import groupfour.trafficsim.sim.EdgeStatistics;
+import groupfour.trafficsim.sim.Simulation;
+import groupfour.trafficsim.sim.StepController;
+import groupfour.trafficsim.sim.StepSnapshot;
+import groupfour.trafficsim.sim.SumoEdge;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records step and edge statistics of a simulation to files.
+ * The simulation thread only copies the values of a step into a record and queues it,
+ * all formatting and file I/O happens on a separate writer thread.
+ * If the writer falls behind, records are dropped rather than slowing down the simulation,
+ * the drops are counted and logged.
+ *
+ * @author 8wf92323f
+ */
+public class StatisticsRecorder implements StepController {
+    private static final Logger LOGGER = LogManager.getLogger(StatisticsRecorder.class.getName());
+    private static final int QUEUE_CAPACITY = 4096;
+    private static final long POLL_INTERVAL = 100L; // ms
+    private final Simulation simulation;
+    private final Path directory;
+    private final int edgeInterval;
+    private final BlockingQueue<StepRecord> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final CompletableFuture<Path> finished = new CompletableFuture<>();
+    private final StatisticsWriter writer;
+    private volatile boolean stopped = false;
+    private volatile long droppedRecords = 0L; // only incremented by the simulation thread
+
+    private StatisticsRecorder(Simulation simulation, Path directory, StatisticsWriter writer, int edgeInterval) {
+        this.simulation = simulation;
+        this.directory = directory;
+        this.writer = writer;
+        this.edgeInterval = Math.max(1, edgeInterval);
+    }
+
+    /**
+     * Creates the output files and starts recording with the next step.
+     *
+     * @param simulation the simulation to record
+     * @param directory the directory the files are written to, created if necessary
+     * @param format the file format
+     * @param edgeInterval the number of steps between two edge samples
+     * @return the running recorder
+     * @throws IOException if the output files cannot be created
+     */
+    public static StatisticsRecorder start(Simulation simulation, Path directory, StatisticsFormat format,
+                                           int edgeInterval) throws IOException {
+        Files.createDirectories(directory);
+        List<String> edgeIds = simulation.getEdges().stream().map(SumoEdge::getEdgeId).toList();
+
+        StatisticsWriter writer = switch (format) {
+            case CSV -> new CsvStatisticsWriter(directory, edgeIds);
+            case BINARY -> new BinaryStatisticsWriter(directory, edgeIds);
+        };
+
+        StatisticsRecorder recorder = new StatisticsRecorder(simulation, directory, writer, edgeInterval);
+        Thread.ofPlatform().name("statistics-writer").daemon().start(recorder::runWriter);
+        simulation.getEdgeStatistics().addConsumer(recorder);
+        simulation.addStepController(recorder, 0L, 0);
+
+        LOGGER.info("Recording {} statistics to {}", format, directory);
+        return recorder;
+    }
+
+    @Override
+    public void onStep(StepSnapshot snapshot, CommandQueue commands) {
+        if (this.stopped) {
+            return;
+        }
+
+        EdgeStatistics edgeStatistics = snapshot.getEdgeStatistics();
+        int[] edgeVehicles = null;
+        float[] edgeMeanSpeeds = null;
+        float[] edgeOccupancies = null;
+
+        // the edges are subscribed at the step boundary after the recording started
+        if (snapshot.getStep() % this.edgeInterval == 0 && edgeStatistics.isActive()) {
+            int edgeCount = edgeStatistics.getEdgeCount();
+            edgeVehicles = new int[edgeCount];
+            edgeMeanSpeeds = new float[edgeCount];
+            edgeOccupancies = new float[edgeCount];
+
+            for (int i = 0; i < edgeCount; ++i) {
+                edgeVehicles[i] = edgeStatistics.getVehicleCount(i);
+                edgeMeanSpeeds[i] = (float)edgeStatistics.getMeanSpeed(i);
+                edgeOccupancies[i] = (float)edgeStatistics.getOccupancy(i);
+            }
+        }
+
+        StepRecord record = new StepRecord(
+                snapshot.getStep(),
+                snapshot.getTime(),
+                snapshot.getVehicles().size(),
+                edgeStatistics.getMeanSpeed(),
+                snapshot.getDepartedVehicleCount(),
+                snapshot.getArrivedVehicleCount(),
+                snapshot.getSimulationStepDuration(),
+                snapshot.getUpdateStepDuration(),
+                snapshot.getPreviousControllerStepDuration(),
+                edgeVehicles,
+                edgeMeanSpeeds,
+                edgeOccupancies
+        );
+
+        if (!this.queue.offer(record)) {
+            long dropped = ++this.droppedRecords;
+
+            if (dropped % 1000 == 1) {
+                LOGGER.warn("Statistics writer cannot keep up, {} records dropped so far", dropped);
+            }
+        }
+    }
+
+    /**
+     * Writes queued records until the recording is stopped and the queue is empty.
+     */
+    private void runWriter() {
+        try (this.writer) {
+            while (true) {
+                StepRecord record = this.queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+
+                if (record != null) {
+                    this.writer.write(record);
+                } else if (this.stopped) {
+                    break;
+                }
+            }
+
+            // closing the writer flushes the remaining buffers
+        } catch (IOException | InterruptedException exception) {
+            LOGGER.error("Recording statistics to {} failed", this.directory, exception);
+            this.simulation.removeStepController(this);
+            this.simulation.getEdgeStatistics().removeConsumer(this);
+            this.stopped = true;
+            this.finished.completeExceptionally(exception);
+            return;
+        }
+
+        if (this.droppedRecords > 0L) {
+            LOGGER.warn("Finished recording statistics to {}, {} records were dropped", this.directory, this.droppedRecords);
+        } else {
+            LOGGER.info("Finished recording statistics to {}", this.directory);
+        }
+
+        this.finished.complete(this.directory);
+    }
+
+    /**
+     * Stops recording without blocking the caller.
+     * Records that are still queued are written before the files are closed.
+     *
+     * @return a future that completes with the output directory once all files are closed
+     */
+    public CompletableFuture<Path> stop() {
+        if (!this.stopped) {
+            this.simulation.removeStepController(this);
+            this.simulation.getEdgeStatistics().removeConsumer(this);
+            this.stopped = true; // the writer finishes once it finds the queue empty
+        }
+
+        return this.finished;
+    }
+
+    /**
+     * @return the number of records dropped because the writer could not keep up
+     */
+    public long getDroppedRecords() {
+        return this.droppedRecords;
+    }
+
+    /**
+     * @return the directory the files are written to
+     */
+    public Path getDirectory() {
+        return this.directory;
+    }
+
+    @Override
+    public String getName() {
+        return "Statistics recorder";
+    }
+}
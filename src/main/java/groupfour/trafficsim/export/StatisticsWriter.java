@@ -0,0 +1,17 @@
+package groupfour.trafficsim.export;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Writes step records to files, only ever called from the writer thread.
+ *
+ * @author 8wf92323f
+ */
+interface StatisticsWriter extends Closeable {
+    /**
+     * @param record the statistics of a step
+     * @throws IOException if writing fails
+     */
+    void write(StepRecord record) throws IOException;
+}
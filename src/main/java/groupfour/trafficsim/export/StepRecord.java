@@ -0,0 +1,37 @@
+package groupfour.trafficsim.export;
+
+/**
+ * The statistics of a single step, handed from the simulation thread to the writer.
+ *
+ * @param step the step number
+ * @param time the simulation time in seconds
+ * @param vehicleCount the number of vehicles
+ * @param meanSpeed the mean speed of all vehicles
+ * @param departed the number of vehicles that entered the simulation
+ * @param arrived the number of vehicles that left the simulation
+ * @param stepNanos the time SUMO took to perform the step
+ * @param syncNanos the time it took to sync the Java side
+ * @param controllerNanos the time all step controllers took in the previous step
+ * @param edgeVehicles the number of vehicles per edge or null if edges were not sampled in this step
+ * @param edgeMeanSpeeds the mean speed per edge or null if edges were not sampled in this step
+ * @param edgeOccupancies the occupancy per edge in percent or null if edges were not sampled in this step
+ * @author 8wf92323f
+ */
+record StepRecord(
+        long step,
+        double time,
+        int vehicleCount,
+        double meanSpeed,
+        int departed,
+        int arrived,
+        long stepNanos,
+        long syncNanos,
+        long controllerNanos,
+        int[] edgeVehicles,
+        float[] edgeMeanSpeeds,
+        float[] edgeOccupancies
+) {
+    boolean hasEdges() {
+        return this.edgeVehicles != null;
+    }
+}
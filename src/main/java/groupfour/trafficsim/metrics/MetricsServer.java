@@ -0,0 +1,275 @@
+package groupfour.trafficsim.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import groupfour.trafficsim.sim.EdgeStatistics;
+import groupfour.trafficsim.sim.LatencyHistogram;
+import groupfour.trafficsim.sim.Simulation;
+import groupfour.trafficsim.sim.SimulationMetrics;
+import groupfour.trafficsim.sim.SumoEdge;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+
+/**
+ * A local HTTP endpoint that exposes the metrics of all published simulations
+ * in the Prometheus text exposition format under /metrics.
+ * The server is started when the system property trafficsim.metrics.port is set.
+ *
+ * @author 8wf92323f
+ */
+public class MetricsServer {
+    private static final Logger LOGGER = LogManager.getLogger(MetricsServer.class.getName());
+    public static final String PORT_PROPERTY = "trafficsim.metrics.port";
+    private static volatile MetricsServer instance;
+    private final HttpServer server;
+    private final Map<Simulation, String> simulations = new ConcurrentHashMap<>();
+
+    private MetricsServer(int port) throws IOException {
+        // only bound to the loopback interface, the endpoint is meant for local scrapers
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.server.createContext("/metrics", this::handle);
+        this.server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        this.server.start();
+    }
+
+    /**
+     * Starts the metrics server if the port system property is set.
+     * Failing to start is logged and does not stop the application.
+     */
+    public static synchronized void startIfConfigured() {
+        String port = System.getProperty(PORT_PROPERTY);
+
+        if (port == null || instance != null) {
+            return;
+        }
+
+        try {
+            instance = new MetricsServer(Integer.parseInt(port));
+            LOGGER.info("Serving metrics on http://localhost:{}/metrics", port);
+        } catch (IOException | NumberFormatException exception) {
+            LOGGER.error("Could not start the metrics server on port {}", port, exception);
+        }
+    }
+
+    /**
+     * Stops the metrics server if it is running.
+     */
+    public static synchronized void stop() {
+        if (instance != null) {
+            instance.server.stop(0);
+
+            for (Simulation simulation : instance.simulations.keySet()) {
+                simulation.getEdgeStatistics().removeConsumer(instance);
+            }
+
+            instance = null;
+        }
+    }
+
+    /**
+     * Exports the metrics of a simulation until it is withdrawn.
+     * Does nothing if no metrics server is running.
+     *
+     * @param name the value of the simulation label
+     * @param simulation the simulation
+     */
+    public static void publish(String name, Simulation simulation) {
+        MetricsServer server = instance;
+
+        if (server != null) {
+            server.simulations.put(simulation, name);
+            simulation.getEdgeStatistics().addConsumer(server);
+        }
+    }
+
+    /**
+     * Stops exporting the metrics of a simulation.
+     *
+     * @param simulation the simulation
+     */
+    public static void withdraw(Simulation simulation) {
+        MetricsServer server = instance;
+
+        if (server != null) {
+            server.simulations.remove(simulation);
+            simulation.getEdgeStatistics().removeConsumer(server);
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            byte[] body = this.format().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(body);
+            }
+        }
+    }
+
+    /**
+     * @return all metrics in the text exposition format
+     */
+    String format() {
+        StringBuilder builder = new StringBuilder(4096);
+
+        header(builder, "trafficsim_steps_total", "counter", "Completed simulation steps");
+        header(builder, "trafficsim_injected_vehicles_total", "counter", "Vehicles injected by the application");
+        header(builder, "trafficsim_traci_round_trips_total", "counter", "TraCI messages sent by the step loop and injections");
+        header(builder, "trafficsim_traci_batched_bytes_total", "counter", "Bytes sent and received in batched TraCI messages");
+        header(builder, "trafficsim_simulation_time_seconds", "gauge", "Current simulation time");
+        header(builder, "trafficsim_vehicles", "gauge", "Vehicles in the simulation");
+        header(builder, "trafficsim_mean_speed_meters_per_second", "gauge", "Mean speed of all vehicles");
+
+        for (Map.Entry<Simulation, String> entry : this.simulations.entrySet()) {
+            Simulation simulation = entry.getKey();
+            SimulationMetrics metrics = simulation.getMetrics();
+            String label = "simulation=\"" + escape(entry.getValue()) + "\"";
+
+            sample(builder, "trafficsim_steps_total", label, metrics.getSteps());
+            sample(builder, "trafficsim_injected_vehicles_total", label, metrics.getInjectedVehicles());
+            sample(builder, "trafficsim_traci_round_trips_total", label, metrics.getTraciRoundTrips());
+            sample(builder, "trafficsim_traci_batched_bytes_total", label, metrics.getBatchedTraciBytes());
+            sample(builder, "trafficsim_simulation_time_seconds", label, simulation.getTime());
+            sample(builder, "trafficsim_vehicles", label, simulation.getVehicles().size());
+
+            EdgeStatistics edgeStatistics = simulation.getEdgeStatistics();
+
+            if (edgeStatistics != null) {
+                sample(builder, "trafficsim_mean_speed_meters_per_second", label, edgeStatistics.getSummary().getMeanSpeed());
+            }
+        }
+
+        header(builder, "trafficsim_step_duration_seconds", "histogram", "Time SUMO took to perform a step");
+        this.simulations.forEach((simulation, name) ->
+                histogram(builder, "trafficsim_step_duration_seconds", name, simulation.getMetrics().getStepDurations()));
+        header(builder, "trafficsim_sync_duration_seconds", "histogram", "Time it took to sync the Java side after a step");
+        this.simulations.forEach((simulation, name) ->
+                histogram(builder, "trafficsim_sync_duration_seconds", name, simulation.getMetrics().getSyncDurations()));
+        header(builder, "trafficsim_controller_duration_seconds", "histogram", "Time all step controllers took");
+        this.simulations.forEach((simulation, name) ->
+                histogram(builder, "trafficsim_controller_duration_seconds", name, simulation.getMetrics().getControllerDurations()));
+
+        header(builder, "trafficsim_edge_vehicles", "gauge", "Vehicles on the most occupied edges");
+        header(builder, "trafficsim_edge_mean_speed_meters_per_second", "gauge", "Mean speed on the most occupied edges");
+        this.simulations.forEach((simulation, name) -> congestedEdges(builder, name, simulation));
+
+        jvm(builder);
+
+        return builder.toString();
+    }
+
+    /**
+     * Writes the edges with the most vehicles of a simulation.
+     * Only the summary published at the end of a step is read, the per-edge arrays belong to the simulation thread.
+     */
+    private static void congestedEdges(StringBuilder builder, String name, Simulation simulation) {
+        EdgeStatistics statistics = simulation.getEdgeStatistics();
+
+        if (statistics == null) {
+            return;
+        }
+
+        EdgeStatistics.Summary summary = statistics.getSummary();
+        List<SumoEdge> edges = simulation.getEdges();
+
+        for (int rank = 0; rank < summary.getCongestedEdgeCount(); ++rank) {
+            String edgeId = edges.get(summary.getCongestedEdge(rank)).getEdgeId();
+            String label = "simulation=\"" + escape(name) + "\",edge=\"" + escape(edgeId) + "\"";
+            sample(builder, "trafficsim_edge_vehicles", label, summary.getCongestedVehicleCount(rank));
+            sample(builder, "trafficsim_edge_mean_speed_meters_per_second", label, summary.getCongestedMeanSpeed(rank));
+        }
+    }
+
+    /**
+     * Writes heap and garbage collector metrics of this process.
+     */
+    private static void jvm(StringBuilder builder) {
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+
+        header(builder, "jvm_heap_used_bytes", "gauge", "Used heap memory");
+        sample(builder, "jvm_heap_used_bytes", "", heap.getUsed());
+        header(builder, "jvm_heap_committed_bytes", "gauge", "Committed heap memory");
+        sample(builder, "jvm_heap_committed_bytes", "", heap.getCommitted());
+        header(builder, "jvm_heap_max_bytes", "gauge", "Maximum heap memory");
+        sample(builder, "jvm_heap_max_bytes", "", heap.getMax());
+
+        List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+
+        header(builder, "jvm_gc_collections_total", "counter", "Garbage collections");
+        for (GarbageCollectorMXBean collector : collectors) {
+            sample(builder, "jvm_gc_collections_total", "gc=\"" + escape(collector.getName()) + "\"", collector.getCollectionCount());
+        }
+
+        header(builder, "jvm_gc_collection_seconds_total", "counter", "Time spent in garbage collections");
+        for (GarbageCollectorMXBean collector : collectors) {
+            sample(builder, "jvm_gc_collection_seconds_total", "gc=\"" + escape(collector.getName()) + "\"",
+                    collector.getCollectionTime() / 1000.0);
+        }
+    }
+
+    private static void histogram(StringBuilder builder, String metric, String name, LatencyHistogram histogram) {
+        String label = "simulation=\"" + escape(name) + "\"";
+        long cumulative = 0L;
+
+        for (int i = 0; i < LatencyHistogram.BUCKET_BOUNDS.length; ++i) {
+            cumulative += histogram.getBucketCount(i);
+            sample(builder, metric + "_bucket", label + ",le=\"" + LatencyHistogram.BUCKET_BOUNDS[i] + "\"", cumulative);
+        }
+
+        cumulative += histogram.getBucketCount(LatencyHistogram.BUCKET_BOUNDS.length);
+        sample(builder, metric + "_bucket", label + ",le=\"+Inf\"", cumulative);
+        sample(builder, metric + "_sum", label, histogram.getSum());
+        // the count is the sum of the buckets, so it matches the +Inf bucket even whilst durations are recorded
+        sample(builder, metric + "_count", label, cumulative);
+    }
+
+    private static void header(StringBuilder builder, String metric, String type, String help) {
+        builder.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+        builder.append("# TYPE ").append(metric).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder builder, String metric, String labels, long value) {
+        builder.append(metric);
+
+        if (!labels.isEmpty()) {
+            builder.append('{').append(labels).append('}');
+        }
+
+        builder.append(' ').append(value).append('\n');
+    }
+
+    private static void sample(StringBuilder builder, String metric, String labels, double value) {
+        builder.append(metric);
+
+        if (!labels.isEmpty()) {
+            builder.append('{').append(labels).append('}');
+        }
+
+        builder.append(' ').append(String.format(Locale.ROOT, "%.6f", value)).append('\n');
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
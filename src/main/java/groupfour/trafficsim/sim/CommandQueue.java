@@ -0,0 +1,158 @@
+package groupfour.trafficsim.sim;
+
+import de.tudresden.sumo.cmd.Trafficlight;
+import de.tudresden.sumo.util.SumoCommand;
+import it.polito.appeal.traci.SumoTraciConnection;
+import it.polito.appeal.traci.protocol.ResponseContainer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Collects commands that change the simulation and sends them at the next step boundary.
+ * All commands queued until then are transmitted in a single TraCI message,
+ * so a plan touching every traffic light of a city costs one round trip.
+ * SUMO applies all of them before the next step is computed.
+ * Commands may be queued from any thread.
+ *
+ * @author 8wf92323f
+ */
+public class CommandQueue {
+    private static final Logger LOGGER = LogManager.getLogger(CommandQueue.class.getName());
+    private final ConcurrentLinkedQueue<SumoCommand> pending = new ConcurrentLinkedQueue<>();
+    private final SumoTraciConnection connection;
+    private final TraciChannel channel;
+
+    /**
+     * @param connection the SUMO connection
+     * @param channel a channel for batched transmission or null to send commands one by one
+     */
+    CommandQueue(SumoTraciConnection connection, TraciChannel channel) {
+        this.connection = connection;
+        this.channel = channel;
+    }
+
+    /**
+     * Queues an arbitrary TraaS set command.
+     *
+     * @param command the command, e.g. created by {@link de.tudresden.sumo.cmd.Vehicle}
+     */
+    public void add(SumoCommand command) {
+        this.pending.add(command);
+    }
+
+    /**
+     * Switches a traffic light to another of its programs.
+     *
+     * @param tlsId the id of the traffic light system
+     * @param programId the id of the program
+     */
+    public void setTrafficLightProgram(String tlsId, String programId) {
+        this.add(Trafficlight.setProgram(tlsId, programId));
+    }
+
+    /**
+     * Jumps to a phase of the current program of a traffic light.
+     *
+     * @param tlsId the id of the traffic light system
+     * @param phase the index of the phase
+     */
+    public void setTrafficLightPhase(String tlsId, int phase) {
+        this.add(Trafficlight.setPhase(tlsId, phase));
+    }
+
+    /**
+     * Sets the remaining duration of the current phase of a traffic light.
+     *
+     * @param tlsId the id of the traffic light system
+     * @param duration the remaining duration in seconds
+     */
+    public void setTrafficLightPhaseDuration(String tlsId, double duration) {
+        this.add(Trafficlight.setPhaseDuration(tlsId, duration));
+    }
+
+    /**
+     * Overrides the signal state of a traffic light.
+     *
+     * @param tlsId the id of the traffic light system
+     * @param state the signal state string, one character per controlled link
+     */
+    public void setTrafficLightState(String tlsId, String state) {
+        this.add(Trafficlight.setRedYellowGreenState(tlsId, state));
+    }
+
+    /**
+     * Applies a coordinated plan, e.g. for a corridor or the whole city.
+     * Each traffic light switches to the given program and, if an offset is given, to the given phase.
+     *
+     * @param programs traffic light ids mapped to program ids
+     * @param phases traffic light ids mapped to the phase to start with, may be empty
+     */
+    public void applyTrafficLightPlan(Map<String, String> programs, Map<String, Integer> phases) {
+        for (Map.Entry<String, String> entry : programs.entrySet()) {
+            this.setTrafficLightProgram(entry.getKey(), entry.getValue());
+
+            Integer phase = phases.get(entry.getKey());
+
+            if (phase != null) {
+                this.setTrafficLightPhase(entry.getKey(), phase);
+            }
+        }
+    }
+
+    /**
+     * @return the number of commands waiting for the next step
+     */
+    public int size() {
+        return this.pending.size();
+    }
+
+    /**
+     * Sends all pending commands in one message.
+     * Called by the simulation right before a step is performed.
+     * Rejected commands are logged and do not abort the step.
+     *
+     * @return the number of TraCI round trips that were needed
+     * @throws Exception if the transmission fails
+     */
+    int flush() throws Exception {
+        if (this.pending.isEmpty()) {
+            return 0;
+        }
+
+        List<SumoCommand> commands = new ArrayList<>(this.pending.size());
+        SumoCommand command;
+
+        while ((command = this.pending.poll()) != null) {
+            commands.add(command);
+        }
+
+        if (this.channel == null) {
+            for (SumoCommand single : commands) {
+                try {
+                    // fallback without direct socket access, one round trip per command
+                    this.connection.do_job_set(single);
+                } catch (Exception exception) {
+                    LOGGER.error("SUMO rejected a queued command", exception);
+                }
+            }
+
+            return commands.size();
+        }
+
+        List<ResponseContainer> responses = this.channel.send(commands);
+
+        for (ResponseContainer response : responses) {
+            if (response.getStatus().result() != 0) {
+                LOGGER.error("SUMO rejected a queued command {}: {}",
+                        response.getStatus().id(), response.getStatus().description());
+            }
+        }
+
+        return 1;
+    }
+}
@@ -0,0 +1,151 @@
+package groupfour.trafficsim.sim;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Runs all registered step controllers one after another and times each of them.
+ * A controller that exceeds its time budget is reported and, if requested,
+ * skipped for a number of steps to protect the step rate.
+ *
+ * @author 8wf92323f
+ */
+public class ControllerPipeline {
+    private static final Logger LOGGER = LogManager.getLogger(ControllerPipeline.class.getName());
+    private final List<Entry> entries = new CopyOnWriteArrayList<>();
+
+    /**
+     * Registers a controller at the end of the pipeline.
+     *
+     * @param controller the controller
+     * @param budgetNanos the time a single call may take, 0 for no budget
+     * @param skipSteps the number of steps the controller is skipped after exceeding its budget, 0 to only report
+     */
+    void add(StepController controller, long budgetNanos, int skipSteps) {
+        this.entries.add(new Entry(controller, budgetNanos, skipSteps));
+    }
+
+    /**
+     * @param controller the controller to remove
+     * @return whether the controller was registered
+     */
+    boolean remove(StepController controller) {
+        return this.entries.removeIf(entry -> entry.controller == controller);
+    }
+
+    /**
+     * Calls all controllers, called on the simulation thread after each step.
+     */
+    void run(StepSnapshot snapshot, CommandQueue commands) {
+        for (Entry entry : this.entries) {
+            if (entry.skipRemaining > 0) {
+                --entry.skipRemaining;
+                ++entry.skippedCalls;
+                continue;
+            }
+
+            long t0 = System.nanoTime();
+
+            try {
+                entry.controller.onStep(snapshot, commands);
+            } catch (Exception exception) {
+                ++entry.failedCalls;
+                LOGGER.error("Step controller {} failed", entry.controller.getName(), exception);
+            }
+
+            long duration = System.nanoTime() - t0;
+            entry.record(duration);
+
+            if (entry.budgetNanos > 0L && duration > entry.budgetNanos) {
+                ++entry.overBudgetCalls;
+                entry.skipRemaining = entry.skipSteps;
+
+                LOGGER.warn("Step controller {} took {} ms, budget is {} ms{}",
+                        entry.controller.getName(),
+                        duration / 1_000_000.0,
+                        entry.budgetNanos / 1_000_000.0,
+                        entry.skipSteps > 0 ? ", skipping the next " + entry.skipSteps + " steps" : "");
+            }
+        }
+    }
+
+    /**
+     * @return the statistics of all registered controllers in execution order
+     */
+    public List<ControllerStatistics> getStatistics() {
+        return this.entries.stream().map(Entry::toStatistics).toList();
+    }
+
+    /**
+     * Timing statistics of a single controller.
+     *
+     * @param name the name of the controller
+     * @param calls the number of completed calls
+     * @param lastNanos the duration of the last call
+     * @param meanNanos the mean duration of all calls
+     * @param maxNanos the longest call
+     * @param overBudgetCalls the number of calls that exceeded the budget
+     * @param skippedCalls the number of steps the controller was skipped
+     * @param failedCalls the number of calls that threw an exception
+     */
+    public record ControllerStatistics(
+            String name,
+            long calls,
+            long lastNanos,
+            long meanNanos,
+            long maxNanos,
+            long overBudgetCalls,
+            long skippedCalls,
+            long failedCalls
+    ) {
+    }
+
+    /**
+     * A registered controller and its statistics.
+     * Only mutated on the simulation thread, read by others through volatile fields.
+     */
+    private static class Entry {
+        private final StepController controller;
+        private final long budgetNanos;
+        private final int skipSteps;
+        private int skipRemaining = 0;
+        private volatile long calls = 0L;
+        private volatile long totalNanos = 0L;
+        private volatile long lastNanos = 0L;
+        private volatile long maxNanos = 0L;
+        private volatile long overBudgetCalls = 0L;
+        private volatile long skippedCalls = 0L;
+        private volatile long failedCalls = 0L;
+
+        Entry(StepController controller, long budgetNanos, int skipSteps) {
+            this.controller = controller;
+            this.budgetNanos = budgetNanos;
+            this.skipSteps = skipSteps;
+        }
+
+        void record(long duration) {
+            ++this.calls;
+            this.totalNanos += duration;
+            this.lastNanos = duration;
+            this.maxNanos = Math.max(this.maxNanos, duration);
+        }
+
+        ControllerStatistics toStatistics() {
+            long calls = this.calls;
+
+            return new ControllerStatistics(
+                    this.controller.getName(),
+                    calls,
+                    this.lastNanos,
+                    calls == 0L ? 0L : this.totalNanos / calls,
+                    this.maxNanos,
+                    this.overBudgetCalls,
+                    this.skippedCalls,
+                    this.failedCalls
+            );
+        }
+    }
+}
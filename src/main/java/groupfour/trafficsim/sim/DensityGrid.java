@@ -0,0 +1,149 @@
+package groupfour.trafficsim.sim;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Accumulates vehicle positions into a grid over the road network.
+ * Older positions fade out with a configurable half-life, so the grid shows where traffic
+ * accumulated recently rather than only the current step.
+ * <p>
+ * Instead of decaying every cell with each step, new positions are added with a weight that
+ * grows by the inverse decay factor. A step therefore only costs O(vehicles), the cells are
+ * rescaled once the weight gets too large.
+ * <p>
+ * Neither side of the grid has more than {@link #MAX_CELLS_PER_SIDE} cells, larger areas get larger cells,
+ * so the memory of the grid and of an image made from it stays bounded.
+ *
+ * @author 8wf92323f
+ */
+public class DensityGrid implements StateRecorder {
+    public static final int MAX_CELLS_PER_SIDE = 2048;
+    private static final float RESCALE_LIMIT = 1.0e20f;
+    private final double minX;
+    private final double minY;
+    private final double cellSize;
+    private final int columns;
+    private final int rows;
+    private final float growth;
+    private final float[] cells;
+    private float weight = 1.0f;
+
+    /**
+     * @param minX the left border of the covered area in network coordinates
+     * @param minY the bottom border of the covered area in network coordinates
+     * @param maxX the right border of the covered area in network coordinates
+     * @param maxY the top border of the covered area in network coordinates
+     * @param cellSize the smallest edge length of a cell in meters, it grows if a side would exceed
+     *                 {@link #MAX_CELLS_PER_SIDE} cells
+     * @param halfLife the number of steps after which a recorded position counts half, 0 to never decay
+     */
+    public DensityGrid(double minX, double minY, double maxX, double maxY, double cellSize, double halfLife) {
+        if (cellSize <= 0.0) {
+            throw new IllegalArgumentException("Cell size must be positive");
+        }
+
+        this.minX = minX;
+        this.minY = minY;
+        this.cellSize = Math.max(cellSize, Math.max(maxX - minX, maxY - minY) / MAX_CELLS_PER_SIDE);
+        this.columns = Math.clamp((long)Math.ceil((maxX - minX) / this.cellSize), 1, MAX_CELLS_PER_SIDE);
+        this.rows = Math.clamp((long)Math.ceil((maxY - minY) / this.cellSize), 1, MAX_CELLS_PER_SIDE);
+        this.growth = halfLife > 0.0 ? (float)Math.pow(2.0, 1.0 / halfLife) : 1.0f;
+        this.cells = new float[this.columns * this.rows];
+    }
+
+    @Override
+    public synchronized void record(double time, Collection<SumoVehicle> vehicles) {
+        this.weight *= this.growth;
+
+        if (this.weight > RESCALE_LIMIT) {
+            this.rescale();
+        }
+
+        for (SumoVehicle vehicle : vehicles) {
+            int column = (int)((vehicle.get_position().x - this.minX) / this.cellSize);
+            int row = (int)((vehicle.get_position().y - this.minY) / this.cellSize);
+
+            if (column >= 0 && column < this.columns && row >= 0 && row < this.rows) {
+                this.cells[row * this.columns + column] += this.weight;
+            }
+        }
+    }
+
+    /**
+     * Folds the current weight into the cells.
+     */
+    private void rescale() {
+        float factor = 1.0f / this.weight;
+
+        for (int i = 0; i < this.cells.length; ++i) {
+            this.cells[i] *= factor;
+        }
+
+        this.weight = 1.0f;
+    }
+
+    /**
+     * Copies the densities of all cells, row by row starting at the bottom.
+     * A density is the decayed number of vehicles that were recorded in a cell.
+     * Only the plain copy holds the lock, so recording a step hardly waits for it.
+     *
+     * @param target an array with at least columns * rows elements
+     * @return the largest density
+     */
+    public float copyDensities(float[] target) {
+        float weight;
+
+        synchronized (this) {
+            System.arraycopy(this.cells, 0, target, 0, this.cells.length);
+            weight = this.weight;
+        }
+
+        float factor = 1.0f / weight;
+        float max = 0.0f;
+
+        for (int i = 0; i < this.cells.length; ++i) {
+            float density = target[i] * factor;
+            target[i] = density;
+            max = Math.max(max, density);
+        }
+
+        return max;
+    }
+
+    /**
+     * Removes all recorded positions.
+     */
+    public synchronized void clear() {
+        Arrays.fill(this.cells, 0.0f);
+        this.weight = 1.0f;
+    }
+
+    public double getMinX() {
+        return this.minX;
+    }
+
+    public double getMinY() {
+        return this.minY;
+    }
+
+    /**
+     * @return the edge length of a cell in meters, larger than requested if the area is too large
+     */
+    public double getCellSize() {
+        return this.cellSize;
+    }
+
+    public int getColumns() {
+        return this.columns;
+    }
+
+    public int getRows() {
+        return this.rows;
+    }
+
+    @Override
+    public String getName() {
+        return "Density grid";
+    }
+}
@@ -0,0 +1,329 @@
+package groupfour.trafficsim.sim;
+
+import de.tudresden.sumo.config.Constants;
+import de.tudresden.sumo.objects.SumoPrimitive;
+import de.tudresden.sumo.subscription.ResponseType;
+import de.tudresden.sumo.subscription.SubscribtionVariable;
+import de.tudresden.sumo.subscription.SubscriptionObject;
+import de.tudresden.sumo.subscription.VariableSubscription;
+import it.polito.appeal.traci.SumoTraciConnection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-edge traffic measures delivered by SUMO with every step.
+ * Every edge, including the internal junction edges, is subscribed to its vehicle count, mean speed
+ * and occupancy, network wide aggregates are derived from them and therefore stay exact no matter
+ * how often individual vehicles are synced.
+ * <p>
+ * The subscriptions only exist while a consumer uses the measures, e.g. the viewport level of detail,
+ * rerouting, a recording or the metrics endpoint. Consumers are added and removed from any thread,
+ * the subscriptions follow at the next step boundary.
+ * <p>
+ * The per-edge arrays are written during a step and may only be read on the simulation thread.
+ * Other threads read the {@link Summary} of the last completed step instead.
+ *
+ * @author 8wf92323f
+ */
+public class EdgeStatistics {
+    /**
+     * The number of most occupied edges kept in the summary.
+     */
+    public static final int CONGESTED_EDGE_COUNT = 10;
+    private final List<String> edgeIds;
+    private final Map<String, Integer> edgeIndices;
+    private final Set<Object> consumers = ConcurrentHashMap.newKeySet();
+    private volatile boolean subscribed = false;
+    private final int[] vehicleCounts;
+    private final double[] meanSpeeds;
+    private final double[] occupancies;
+    private final int[] congestedScratch = new int[CONGESTED_EDGE_COUNT];
+    private volatile Summary summary = Summary.EMPTY;
+
+    private EdgeStatistics(List<SumoEdge> edges, Map<String, Integer> edgeIndices) {
+        this.edgeIds = new ArrayList<>(edges.size());
+        this.edgeIndices = edgeIndices;
+        this.vehicleCounts = new int[edges.size()];
+        this.meanSpeeds = new double[edges.size()];
+        this.occupancies = new double[edges.size()];
+
+        for (SumoEdge edge : edges) {
+            // vehicles crossing a junction are only counted on its internal edges
+            this.edgeIds.add(edge.getEdgeId());
+        }
+    }
+
+    /**
+     * Creates the statistics of all edges, nothing is subscribed before the first consumer is registered.
+     *
+     * @param edges all edges of the network
+     * @param edgeIndices edge ids mapped to their edge index
+     * @param dispatcher the dispatcher that delivers subscription results
+     * @return the edge statistics
+     */
+    static EdgeStatistics create(List<SumoEdge> edges, Map<String, Integer> edgeIndices, SubscriptionDispatcher dispatcher) {
+        EdgeStatistics statistics = new EdgeStatistics(edges, edgeIndices);
+        dispatcher.register(ResponseType.EDGE_VARIABLE, statistics::onSubscriptionResult);
+        return statistics;
+    }
+
+    /**
+     * Registers a consumer, the edges are subscribed from the next step on.
+     * Registering the same consumer twice has no effect.
+     *
+     * @param consumer an object identifying the consumer
+     */
+    public void addConsumer(Object consumer) {
+        this.consumers.add(consumer);
+    }
+
+    /**
+     * Removes a consumer, the edges are unsubscribed at the next step boundary once no consumer is left.
+     *
+     * @param consumer the object the consumer was registered with
+     */
+    public void removeConsumer(Object consumer) {
+        this.consumers.remove(consumer);
+    }
+
+    /**
+     * @return whether the edges are subscribed and the measures of the last step are valid
+     */
+    public boolean isActive() {
+        return this.subscribed;
+    }
+
+    /**
+     * Subscribes or unsubscribes the edges if the consumers changed.
+     * Called on the simulation thread right before a step.
+     *
+     * @param connection the SUMO connection
+     * @return the number of TraCI round trips that were needed
+     * @throws Exception if an api error occurs
+     */
+    int apply(SumoTraciConnection connection) throws Exception {
+        boolean required = !this.consumers.isEmpty();
+
+        if (required == this.subscribed) {
+            return 0;
+        }
+
+        for (String edgeId : this.edgeIds) {
+            VariableSubscription subscription = new VariableSubscription(
+                    SubscribtionVariable.edge, 0.0, SubscriptionDispatcher.END_OF_SIMULATION, edgeId);
+
+            // a variable subscription without variables removes the subscription
+            if (required) {
+                subscription.addCommand(Constants.LAST_STEP_VEHICLE_NUMBER);
+                subscription.addCommand(Constants.LAST_STEP_MEAN_SPEED);
+                subscription.addCommand(Constants.LAST_STEP_OCCUPANCY);
+            }
+
+            connection.do_subscription(subscription);
+        }
+
+        if (!required) {
+            Arrays.fill(this.vehicleCounts, 0);
+            Arrays.fill(this.meanSpeeds, 0.0);
+            Arrays.fill(this.occupancies, 0.0);
+            this.summary = Summary.EMPTY;
+        }
+
+        this.subscribed = required;
+        return this.edgeIds.size();
+    }
+
+    /**
+     * Applies a subscription result, called on the simulation thread during a step.
+     */
+    private void onSubscriptionResult(SubscriptionObject result) {
+        Integer edgeIndex = this.edgeIndices.get(result.id);
+
+        if (edgeIndex == null || !(result.object instanceof SumoPrimitive primitive)) {
+            return;
+        }
+
+        switch (result.variable) {
+            case Constants.LAST_STEP_VEHICLE_NUMBER -> this.vehicleCounts[edgeIndex] = (int)primitive.val;
+            case Constants.LAST_STEP_MEAN_SPEED -> this.meanSpeeds[edgeIndex] = (double)primitive.val;
+            case Constants.LAST_STEP_OCCUPANCY -> this.occupancies[edgeIndex] = (double)primitive.val;
+            default -> {
+            }
+        }
+    }
+
+    /**
+     * Recomputes the network wide aggregates and publishes them with the most occupied edges
+     * as a new summary, called once per step after all results arrived.
+     */
+    void aggregate() {
+        if (!this.subscribed) {
+            return;
+        }
+
+        int[] congested = this.congestedScratch; // edge indices ordered by vehicle count, most occupied first
+        int congestedCount = 0;
+        int total = 0;
+        double speedSum = 0.0;
+
+        for (int i = 0; i < this.vehicleCounts.length; ++i) {
+            int count = this.vehicleCounts[i];
+            total += count;
+            // SUMO reports the speed limit as mean speed of empty edges, the weight removes them
+            speedSum += count * this.meanSpeeds[i];
+
+            if (count == 0 || (congestedCount == congested.length && count <= this.vehicleCounts[congested[congestedCount - 1]])) {
+                continue;
+            }
+
+            // insertion into the short sorted list, the least occupied edge drops out when it is full
+            int position = Math.min(congestedCount, congested.length - 1);
+
+            while (position > 0 && this.vehicleCounts[congested[position - 1]] < count) {
+                congested[position] = congested[position - 1];
+                --position;
+            }
+
+            congested[position] = i;
+            congestedCount = Math.min(congestedCount + 1, congested.length);
+        }
+
+        int[] edges = Arrays.copyOf(congested, congestedCount);
+        int[] counts = new int[congestedCount];
+        double[] speeds = new double[congestedCount];
+
+        for (int i = 0; i < congestedCount; ++i) {
+            counts[i] = this.vehicleCounts[edges[i]];
+            speeds[i] = this.meanSpeeds[edges[i]];
+        }
+
+        this.summary = new Summary(total, total == 0 ? 0.0 : speedSum / total, edges, counts, speeds);
+    }
+
+    /**
+     * @param edgeIndex the index of the edge
+     * @return the number of vehicles on the edge in the last step, only valid on the simulation thread
+     */
+    public int getVehicleCount(int edgeIndex) {
+        return this.vehicleCounts[edgeIndex];
+    }
+
+    /**
+     * @param edgeIndex the index of the edge
+     * @return the mean speed on the edge in the last step, the speed limit if the edge was empty,
+     *         only valid on the simulation thread
+     */
+    public double getMeanSpeed(int edgeIndex) {
+        return this.meanSpeeds[edgeIndex];
+    }
+
+    /**
+     * @param edgeIndex the index of the edge
+     * @return the share of the edge that was occupied by vehicles in the last step in percent,
+     *         only valid on the simulation thread
+     */
+    public double getOccupancy(int edgeIndex) {
+        return this.occupancies[edgeIndex];
+    }
+
+    /**
+     * @return the number of edges
+     */
+    public int getEdgeCount() {
+        return this.vehicleCounts.length;
+    }
+
+    /**
+     * @return the aggregates of the last completed step, safe to read from any thread,
+     *         empty while no consumer is registered
+     */
+    public Summary getSummary() {
+        return this.summary;
+    }
+
+    /**
+     * @return the number of vehicles on all edges in the last step
+     */
+    public int getTotalVehicleCount() {
+        return this.summary.getTotalVehicleCount();
+    }
+
+    /**
+     * @return the mean speed of all vehicles in the last step
+     */
+    public double getMeanSpeed() {
+        return this.summary.getMeanSpeed();
+    }
+
+    /**
+     * The network wide aggregates and the most occupied edges of one step.
+     * A summary is never changed after it was published.
+     */
+    public static final class Summary {
+        static final Summary EMPTY = new Summary(0, 0.0, new int[0], new int[0], new double[0]);
+        private final int totalVehicleCount;
+        private final double meanSpeed;
+        private final int[] congestedEdges;
+        private final int[] congestedVehicleCounts;
+        private final double[] congestedMeanSpeeds;
+
+        private Summary(int totalVehicleCount, double meanSpeed, int[] congestedEdges, int[] congestedVehicleCounts,
+                        double[] congestedMeanSpeeds) {
+            this.totalVehicleCount = totalVehicleCount;
+            this.meanSpeed = meanSpeed;
+            this.congestedEdges = congestedEdges;
+            this.congestedVehicleCounts = congestedVehicleCounts;
+            this.congestedMeanSpeeds = congestedMeanSpeeds;
+        }
+
+        /**
+         * @return the number of vehicles on all edges
+         */
+        public int getTotalVehicleCount() {
+            return this.totalVehicleCount;
+        }
+
+        /**
+         * @return the mean speed of all vehicles
+         */
+        public double getMeanSpeed() {
+            return this.meanSpeed;
+        }
+
+        /**
+         * @return the number of most occupied edges, at most {@link #CONGESTED_EDGE_COUNT}
+         */
+        public int getCongestedEdgeCount() {
+            return this.congestedEdges.length;
+        }
+
+        /**
+         * @param rank the rank of the edge, 0 for the most occupied one
+         * @return the edge index of the edge
+         */
+        public int getCongestedEdge(int rank) {
+            return this.congestedEdges[rank];
+        }
+
+        /**
+         * @param rank the rank of the edge, 0 for the most occupied one
+         * @return the number of vehicles on the edge
+         */
+        public int getCongestedVehicleCount(int rank) {
+            return this.congestedVehicleCounts[rank];
+        }
+
+        /**
+         * @param rank the rank of the edge, 0 for the most occupied one
+         * @return the mean speed on the edge
+         */
+        public double getCongestedMeanSpeed(int rank) {
+            return this.congestedMeanSpeeds[rank];
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package groupfour.trafficsim.sim;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations with fixed bucket bounds.
+ * Recording is lock-free, so it can be used on the simulation thread whilst
+ * other threads read the buckets.
+ *
+ * @author 8wf92323f
+ */
+public class LatencyHistogram {
+    /**
+     * The upper bounds of the buckets in seconds, the last bucket is unbounded.
+     */
+    public static final double[] BUCKET_BOUNDS = {
+            0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1.0
+    };
+    private static final long[] BUCKET_NANO_BOUNDS = new long[BUCKET_BOUNDS.length];
+    private final LongAdder[] buckets = new LongAdder[BUCKET_BOUNDS.length + 1];
+    private final LongAdder nanoSum = new LongAdder();
+
+    static {
+        for (int i = 0; i < BUCKET_BOUNDS.length; ++i) {
+            BUCKET_NANO_BOUNDS[i] = (long)(BUCKET_BOUNDS[i] * 1_000_000_000.0);
+        }
+    }
+
+    public LatencyHistogram() {
+        for (int i = 0; i < this.buckets.length; ++i) {
+            this.buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param nanos the duration in nanoseconds
+     */
+    public void record(long nanos) {
+        int bucket = 0;
+
+        while (bucket < BUCKET_NANO_BOUNDS.length && nanos > BUCKET_NANO_BOUNDS[bucket]) {
+            ++bucket;
+        }
+
+        this.buckets[bucket].increment();
+        this.nanoSum.add(nanos);
+    }
+
+    /**
+     * @param bucket the index of the bucket, BUCKET_BOUNDS.length for the unbounded one
+     * @return the number of durations in the bucket, not cumulative
+     */
+    public long getBucketCount(int bucket) {
+        return this.buckets[bucket].sum();
+    }
+
+    /**
+     * @return the sum of all recorded durations in seconds
+     */
+    public double getSum() {
+        return this.nanoSum.sum() / 1_000_000_000.0;
+    }
+}
@@ -0,0 +1,32 @@
+package groupfour.trafficsim.sim;
+
+/**
+ * Receives progress information whilst a simulation is being set up.
+ * All methods are called from the loading thread.
+ *
+ * @author 8wf92323f
+ */
+public interface LoadListener {
+    /**
+     * A listener that ignores all events.
+     */
+    LoadListener NONE = new LoadListener() {};
+
+    /**
+     * Called whenever the loading progress changes.
+     *
+     * @param stage a short description of the currently running stage
+     * @param progress the overall progress between 0.0 and 1.0
+     */
+    default void onProgress(String stage, double progress) {
+    }
+
+    /**
+     * Called as soon as the complete road network geometry is available,
+     * before routes and the initial simulation state are loaded.
+     *
+     * @param geometry the shapes of all lanes of the road network
+     */
+    default void onGeometryLoaded(NetworkGeometry geometry) {
+    }
+}
@@ -0,0 +1,294 @@
+package groupfour.trafficsim.sim;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The shapes of all lanes of a road network in a few flat arrays.
+ * The points of all lanes are stored one after another, a lane is addressed by its index in the
+ * lane list of the simulation and the offset of its first point. Next to the points the store keeps
+ * the distance along the lane to every point and a bounding box per lane, so renderers and spatial
+ * indices can work on the arrays directly instead of walking an object per point.
+ *
+ * @author 8wf92323f
+ */
+public class NetworkGeometry {
+    private final float[] points; // x0, y0, x1, y1, ... of all lanes
+    private final float[] cumulativeLengths; // distance along the lane to each point
+    private final int[] offsets; // index of the first point of each lane, followed by the point count
+    private final float[] bounds; // minX, minY, maxX, maxY of each lane
+    private final float[] widths;
+    private final double minX;
+    private final double minY;
+    private final double maxX;
+    private final double maxY;
+
+    private NetworkGeometry(float[] points, float[] cumulativeLengths, int[] offsets, float[] bounds, float[] widths) {
+        this.points = points;
+        this.cumulativeLengths = cumulativeLengths;
+        this.offsets = offsets;
+        this.bounds = bounds;
+        this.widths = widths;
+
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+
+        for (int lane = 0; lane < this.getLaneCount(); ++lane) {
+            if (this.getPointCount(lane) == 0) {
+                continue;
+            }
+
+            minX = Math.min(minX, bounds[4 * lane]);
+            minY = Math.min(minY, bounds[4 * lane + 1]);
+            maxX = Math.max(maxX, bounds[4 * lane + 2]);
+            maxY = Math.max(maxY, bounds[4 * lane + 3]);
+        }
+
+        boolean empty = minX > maxX;
+        this.minX = empty ? 0.0 : minX;
+        this.minY = empty ? 0.0 : minY;
+        this.maxX = empty ? 0.0 : maxX;
+        this.maxY = empty ? 0.0 : maxY;
+    }
+
+    /**
+     * Moves the shapes of all lanes into one store and attaches the lanes to it.
+     * Afterwards the lanes no longer hold geometry of their own.
+     *
+     * @param lanes all lanes of the network, their position in the list becomes their index in the store
+     * @return the geometry of the network
+     */
+    static NetworkGeometry build(List<SumoLane> lanes) {
+        int[] offsets = new int[lanes.size() + 1];
+
+        for (int i = 0; i < lanes.size(); ++i) {
+            offsets[i + 1] = offsets[i] + lanes.get(i).getPendingShape().length / 2;
+        }
+
+        float[] points = new float[2 * offsets[lanes.size()]];
+        float[] widths = new float[lanes.size()];
+
+        for (int i = 0; i < lanes.size(); ++i) {
+            float[] shape = lanes.get(i).getPendingShape();
+            System.arraycopy(shape, 0, points, 2 * offsets[i], shape.length);
+            widths[i] = (float)lanes.get(i).getLaneWidth();
+        }
+
+        NetworkGeometry geometry = NetworkGeometry.of(points, offsets, widths);
+
+        for (int i = 0; i < lanes.size(); ++i) {
+            lanes.get(i).attach(geometry, i);
+        }
+
+        return geometry;
+    }
+
+    /**
+     * Creates a store from flat arrays, e.g. received from an engine process.
+     * The arrays are used as they are and must not be modified afterwards.
+     *
+     * @param points the coordinates of all points as x0, y0, x1, y1, ...
+     * @param offsets the index of the first point of each lane, followed by the total point count
+     * @param widths the width of each lane
+     * @return the geometry of the network
+     */
+    public static NetworkGeometry of(float[] points, int[] offsets, float[] widths) {
+        int laneCount = offsets.length - 1;
+
+        if (widths.length != laneCount || points.length != 2 * offsets[laneCount]) {
+            throw new IllegalArgumentException("Lane offsets do not match the points and widths");
+        }
+
+        float[] cumulativeLengths = new float[offsets[laneCount]];
+        float[] bounds = new float[4 * laneCount];
+
+        for (int lane = 0; lane < laneCount; ++lane) {
+            float minX = Float.POSITIVE_INFINITY;
+            float minY = Float.POSITIVE_INFINITY;
+            float maxX = Float.NEGATIVE_INFINITY;
+            float maxY = Float.NEGATIVE_INFINITY;
+            double length = 0.0;
+
+            for (int point = offsets[lane]; point < offsets[lane + 1]; ++point) {
+                float x = points[2 * point];
+                float y = points[2 * point + 1];
+
+                if (point > offsets[lane]) {
+                    length += Math.hypot(x - points[2 * point - 2], y - points[2 * point - 1]);
+                }
+
+                cumulativeLengths[point] = (float)length;
+                minX = Math.min(minX, x);
+                minY = Math.min(minY, y);
+                maxX = Math.max(maxX, x);
+                maxY = Math.max(maxY, y);
+            }
+
+            bounds[4 * lane] = minX;
+            bounds[4 * lane + 1] = minY;
+            bounds[4 * lane + 2] = maxX;
+            bounds[4 * lane + 3] = maxY;
+        }
+
+        return new NetworkGeometry(points, cumulativeLengths, offsets, bounds, widths);
+    }
+
+    /**
+     * @return the number of lanes in the store
+     */
+    public int getLaneCount() {
+        return this.offsets.length - 1;
+    }
+
+    /**
+     * @param lane the index of the lane
+     * @return the number of points of the lane shape
+     */
+    public int getPointCount(int lane) {
+        return this.offsets[lane + 1] - this.offsets[lane];
+    }
+
+    /**
+     * @param lane the index of the lane
+     * @return the index of the first point of the lane in the point arrays
+     */
+    public int getFirstPoint(int lane) {
+        return this.offsets[lane];
+    }
+
+    /**
+     * @return the coordinates of all points as x0, y0, x1, y1, ..., the point i of a lane
+     *         is found at 2 * (getFirstPoint(lane) + i), must not be modified
+     */
+    public float[] getPoints() {
+        return this.points;
+    }
+
+    /**
+     * @return the distance along its lane to every point, indexed like the points, must not be modified
+     */
+    public float[] getCumulativeLengths() {
+        return this.cumulativeLengths;
+    }
+
+    /**
+     * @param lane the index of the lane
+     * @param point the index of the point within the lane
+     * @return the x coordinate of the point
+     */
+    public double getX(int lane, int point) {
+        return this.points[2 * (this.offsets[lane] + point)];
+    }
+
+    /**
+     * @param lane the index of the lane
+     * @param point the index of the point within the lane
+     * @return the y coordinate of the point
+     */
+    public double getY(int lane, int point) {
+        return this.points[2 * (this.offsets[lane] + point) + 1];
+    }
+
+    /**
+     * @param lane the index of the lane
+     * @return the length of the drawn lane shape
+     */
+    public double getShapeLength(int lane) {
+        return this.getPointCount(lane) > 0 ? this.cumulativeLengths[this.offsets[lane + 1] - 1] : 0.0;
+    }
+
+    /**
+     * @param lane the index of the lane
+     * @return the width of the lane
+     */
+    public double getWidth(int lane) {
+        return this.widths[lane];
+    }
+
+    /**
+     * @param lane the index of the lane
+     * @param minX the left border of the area
+     * @param minY the bottom border of the area
+     * @param maxX the right border of the area
+     * @param maxY the top border of the area
+     * @return whether the bounding box of the lane overlaps the area
+     */
+    public boolean intersects(int lane, double minX, double minY, double maxX, double maxY) {
+        return this.bounds[4 * lane] <= maxX && this.bounds[4 * lane + 2] >= minX
+                && this.bounds[4 * lane + 1] <= maxY && this.bounds[4 * lane + 3] >= minY;
+    }
+
+    /**
+     * Converts a distance along the lane shape into network coordinates.
+     * The segment is found with a binary search on the cumulative lengths.
+     *
+     * @param lane the index of the lane
+     * @param distance the distance along the drawn shape
+     * @param lateralOffset the offset to the left of the lane center
+     * @param target receives x, y and the heading in degrees, clockwise from north like SUMO angles
+     */
+    public void locate(int lane, double distance, double lateralOffset, double[] target) {
+        int first = this.offsets[lane];
+        int last = this.offsets[lane + 1] - 1;
+
+        if (last <= first) {
+            target[0] = last == first ? this.points[2 * first] : 0.0;
+            target[1] = last == first ? this.points[2 * first + 1] : 0.0;
+            target[2] = 0.0;
+            return;
+        }
+
+        float clamped = (float)Math.clamp(distance, 0.0, this.cumulativeLengths[last]);
+        int index = Arrays.binarySearch(this.cumulativeLengths, first, last + 1, clamped);
+        int segment = Math.clamp(index >= 0 ? index : -index - 2, first, last - 1);
+
+        double segmentLength = this.cumulativeLengths[segment + 1] - this.cumulativeLengths[segment];
+        double startX = this.points[2 * segment];
+        double startY = this.points[2 * segment + 1];
+        double dx = segmentLength > 0.0 ? (this.points[2 * segment + 2] - startX) / segmentLength : 0.0;
+        double dy = segmentLength > 0.0 ? (this.points[2 * segment + 3] - startY) / segmentLength : 0.0;
+        double along = clamped - this.cumulativeLengths[segment];
+
+        // the left normal of the direction (dx, dy) is (-dy, dx)
+        target[0] = startX + along * dx - lateralOffset * dy;
+        target[1] = startY + along * dy + lateralOffset * dx;
+        target[2] = (Math.toDegrees(Math.atan2(dx, dy)) + 360.0) % 360.0;
+    }
+
+    /**
+     * @return the smallest x coordinate of the network
+     */
+    public double getMinX() {
+        return this.minX;
+    }
+
+    /**
+     * @return the smallest y coordinate of the network
+     */
+    public double getMinY() {
+        return this.minY;
+    }
+
+    /**
+     * @return the largest x coordinate of the network
+     */
+    public double getMaxX() {
+        return this.maxX;
+    }
+
+    /**
+     * @return the largest y coordinate of the network
+     */
+    public double getMaxY() {
+        return this.maxY;
+    }
+
+    /**
+     * @return whether the network has no lane points at all
+     */
+    public boolean isEmpty() {
+        return this.points.length == 0;
+    }
+}
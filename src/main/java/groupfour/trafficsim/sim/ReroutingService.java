@@ -0,0 +1,357 @@
+package groupfour.trafficsim.sim;
+
+import de.tudresden.sumo.cmd.Vehicle;
+import de.tudresden.sumo.config.Constants;
+import de.tudresden.sumo.objects.SumoStringList;
+import it.polito.appeal.traci.SumoTraciConnection;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reroutes vehicles whose remaining route crosses edges with a changed travel time estimate.
+ * <p>
+ * The route of every vehicle is fetched once on departure and stored in an index from edges to the
+ * vehicles planning to use them. Every few steps, the edges that changed since the last run are looked
+ * up in that index, so only vehicles that are actually affected are checked. New routes are searched
+ * on the road graph with the estimated travel times and sent through the command queue, so all changes
+ * of a run reach SUMO in one batch with the next step.
+ * <p>
+ * The routes of all vehicles departing in a step and the route positions of all candidates of a run are
+ * read in one TraCI message each, so the cost in round trips does not grow with the fleet.
+ *
+ * @author 8wf92323f
+ */
+class ReroutingService implements StepController {
+    private static final Logger LOGGER = LogManager.getLogger(ReroutingService.class.getName());
+    private final Simulation simulation;
+    private final SumoTraciConnection connection;
+    private final TraciCodec codec; // null if the TraCI socket is not accessible
+    private final RoadGraph graph;
+    private final TravelTimeEstimator estimator;
+    private final int interval;
+    private final Map<String, int[]> routes = new HashMap<>();
+    private final List<Set<String>> vehiclesByEdge;
+    private final BitSet changedEdges = new BitSet();
+    private boolean initialized = false;
+    private long reroutedVehicles = 0L;
+
+    /**
+     * @param simulation the simulation
+     * @param connection the SUMO connection, only used on the simulation thread
+     * @param codec the codec of the simulation for batched reads or null to read through TraaS
+     * @param estimator the travel time estimator
+     * @param interval the number of steps between two rerouting runs
+     */
+    ReroutingService(Simulation simulation, SumoTraciConnection connection, TraciCodec codec,
+                     TravelTimeEstimator estimator, int interval) {
+        this.simulation = simulation;
+        this.connection = connection;
+        this.codec = codec;
+        this.graph = simulation.getRoadGraph();
+        this.estimator = estimator;
+        this.interval = Math.max(1, interval);
+        this.vehiclesByEdge = new ArrayList<>(this.graph.getEdgeCount());
+
+        for (int i = 0; i < this.graph.getEdgeCount(); ++i) {
+            this.vehiclesByEdge.add(null);
+        }
+    }
+
+    @Override
+    public void onStep(StepSnapshot snapshot, CommandQueue commands) {
+        if (!this.initialized) {
+            // vehicles that were already driving when the service was added are indexed like new ones
+            List<String> vehicleIds = new ArrayList<>(snapshot.getVehicles().size());
+
+            for (SumoVehicle vehicle : snapshot.getVehicles()) {
+                vehicleIds.add(vehicle.get_vehId());
+            }
+
+            this.onDeparture(vehicleIds);
+
+            // changes from before the service was added are irrelevant
+            this.estimator.drainChangedEdges(new BitSet());
+            this.initialized = true;
+            return;
+        }
+
+        for (String vehicleId : snapshot.getArrivedVehicleIds()) {
+            this.onArrival(vehicleId);
+        }
+
+        this.onDeparture(snapshot.getDepartedVehicleIds());
+
+        if (snapshot.getStep() % this.interval != 0) {
+            return;
+        }
+
+        this.estimator.drainChangedEdges(this.changedEdges);
+
+        if (this.changedEdges.isEmpty()) {
+            return;
+        }
+
+        // collect the vehicles planning to use any of the changed edges
+        Set<String> candidateSet = new HashSet<>();
+
+        for (int edge = this.changedEdges.nextSetBit(0); edge >= 0; edge = this.changedEdges.nextSetBit(edge + 1)) {
+            Set<String> vehicles = this.vehiclesByEdge.get(edge);
+
+            if (vehicles != null) {
+                candidateSet.addAll(vehicles);
+            }
+        }
+
+        List<String> candidates = new ArrayList<>(candidateSet);
+        int[] routeIndices = this.fetchRouteIndices(candidates);
+        int rerouted = 0;
+
+        for (int i = 0; i < candidates.size(); ++i) {
+            try {
+                if (this.reroute(candidates.get(i), routeIndices[i], commands)) {
+                    ++rerouted;
+                }
+            } catch (Exception exception) {
+                LOGGER.warn("Could not reroute vehicle {}", candidates.get(i), exception);
+            }
+        }
+
+        this.changedEdges.clear();
+        this.reroutedVehicles += rerouted;
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Checked {} vehicles on changed edges, rerouted {}", candidates.size(), rerouted);
+        }
+    }
+
+    /**
+     * Reads the position of each vehicle on its route, in one message if the TraCI socket is accessible.
+     *
+     * @return the route index of each vehicle, -1 if it could not be read
+     */
+    private int[] fetchRouteIndices(List<String> vehicleIds) {
+        int[] routeIndices = new int[vehicleIds.size()];
+        Arrays.fill(routeIndices, -1);
+
+        if (vehicleIds.isEmpty()) {
+            return routeIndices;
+        }
+
+        if (this.codec == null) {
+            for (int i = 0; i < routeIndices.length; ++i) {
+                try {
+                    routeIndices[i] = (int)this.connection.do_job_get(Vehicle.getRouteIndex(vehicleIds.get(i)));
+                } catch (Exception exception) {
+                    LOGGER.warn("Could not fetch the route index of vehicle {}", vehicleIds.get(i), exception);
+                }
+            }
+
+            this.simulation.getMetrics().recordRoundTrips(routeIndices.length);
+            return routeIndices;
+        }
+
+        try {
+            this.codec.begin();
+
+            for (String vehicleId : vehicleIds) {
+                this.codec.get(Constants.CMD_GET_VEHICLE_VARIABLE, Constants.VAR_ROUTE_INDEX, vehicleId);
+            }
+
+            this.codec.send();
+            this.simulation.getMetrics().recordRoundTrips(1);
+
+            for (int i = 0; i < routeIndices.length; ++i) {
+                if (this.codec.nextResult()) {
+                    routeIndices[i] = this.codec.readInt();
+                }
+            }
+        } catch (IOException exception) {
+            LOGGER.warn("Could not fetch the route indices of {} vehicles", vehicleIds.size(), exception);
+        }
+
+        return routeIndices;
+    }
+
+    /**
+     * Searches a new route from the current edge of a vehicle to its destination.
+     *
+     * @param routeIndex the index of the current edge of the vehicle in its route
+     * @return whether the vehicle got a different route
+     */
+    private boolean reroute(String vehicleId, int routeIndex, CommandQueue commands) {
+        int[] route = this.routes.get(vehicleId);
+
+        if (route == null) {
+            return false;
+        }
+
+        if (routeIndex < 0 || routeIndex >= route.length - 1) {
+            return false; // not yet departed or already on its last edge
+        }
+
+        if (!this.crossesChangedEdge(route, routeIndex)) {
+            return false; // the changed edges were already passed
+        }
+
+        IntBuffer newRoute = this.graph.findRoute(route[routeIndex], route[route.length - 1], this.estimator.getEstimates());
+
+        if (newRoute == null || this.isSameRoute(route, routeIndex, newRoute)) {
+            return false;
+        }
+
+        SumoStringList edgeIds = new SumoStringList();
+        int[] updated = new int[newRoute.limit()];
+
+        for (int i = 0; i < updated.length; ++i) {
+            updated[i] = newRoute.get(i);
+            edgeIds.add(this.simulation.getEdges().get(updated[i]).getEdgeId());
+        }
+
+        commands.add(Vehicle.setRoute(vehicleId, edgeIds));
+        this.unindex(vehicleId, route);
+        this.index(vehicleId, updated);
+        return true;
+    }
+
+    private boolean crossesChangedEdge(int[] route, int from) {
+        for (int i = from; i < route.length; ++i) {
+            if (this.changedEdges.get(route[i])) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean isSameRoute(int[] route, int from, IntBuffer newRoute) {
+        if (route.length - from != newRoute.limit()) {
+            return false;
+        }
+
+        for (int i = 0; i < newRoute.limit(); ++i) {
+            if (route[from + i] != newRoute.get(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Fetches and indexes the routes of vehicles that entered the simulation,
+     * in one message if the TraCI socket is accessible.
+     */
+    private void onDeparture(Collection<String> vehicleIds) {
+        if (vehicleIds.isEmpty()) {
+            return;
+        }
+
+        if (this.codec == null) {
+            for (String vehicleId : vehicleIds) {
+                try {
+                    this.indexRoute(vehicleId, (SumoStringList)this.connection.do_job_get(Vehicle.getRoute(vehicleId)));
+                } catch (Exception exception) {
+                    LOGGER.warn("Could not fetch the route of vehicle {}", vehicleId, exception);
+                }
+            }
+
+            this.simulation.getMetrics().recordRoundTrips(vehicleIds.size());
+            return;
+        }
+
+        try {
+            this.codec.begin();
+
+            for (String vehicleId : vehicleIds) {
+                this.codec.get(Constants.CMD_GET_VEHICLE_VARIABLE, Constants.VAR_EDGES, vehicleId);
+            }
+
+            this.codec.send();
+            this.simulation.getMetrics().recordRoundTrips(1);
+            List<String> edgeIds = new ArrayList<>();
+
+            for (String vehicleId : vehicleIds) {
+                if (this.codec.nextResult()) {
+                    edgeIds.clear();
+                    this.codec.readStringList(edgeIds);
+                    this.indexRoute(vehicleId, edgeIds);
+                }
+            }
+        } catch (IOException exception) {
+            LOGGER.warn("Could not fetch the routes of {} departed vehicles", vehicleIds.size(), exception);
+        }
+    }
+
+    private void indexRoute(String vehicleId, List<String> edgeIds) {
+        int[] route = new int[edgeIds.size()];
+
+        for (int i = 0; i < route.length; ++i) {
+            route[i] = this.simulation.getEdgeIndex(edgeIds.get(i));
+
+            if (route[i] < 0) {
+                return; // unknown edges cannot be routed on
+            }
+        }
+
+        this.index(vehicleId, route);
+    }
+
+    private void onArrival(String vehicleId) {
+        int[] route = this.routes.get(vehicleId);
+
+        if (route != null) {
+            this.unindex(vehicleId, route);
+        }
+    }
+
+    private void index(String vehicleId, int[] route) {
+        this.routes.put(vehicleId, route);
+
+        for (int edge : route) {
+            Set<String> vehicles = this.vehiclesByEdge.get(edge);
+
+            if (vehicles == null) {
+                vehicles = new HashSet<>();
+                this.vehiclesByEdge.set(edge, vehicles);
+            }
+
+            vehicles.add(vehicleId);
+        }
+    }
+
+    private void unindex(String vehicleId, int[] route) {
+        this.routes.remove(vehicleId);
+
+        for (int edge : route) {
+            Set<String> vehicles = this.vehiclesByEdge.get(edge);
+
+            if (vehicles != null) {
+                vehicles.remove(vehicleId);
+            }
+        }
+    }
+
+    /**
+     * @return the number of vehicles that got a new route since the service was added
+     */
+    long getReroutedVehicles() {
+        return this.reroutedVehicles;
+    }
+
+    @Override
+    public String getName() {
+        return "Rerouting";
+    }
+}
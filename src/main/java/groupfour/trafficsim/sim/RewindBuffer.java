@@ -0,0 +1,503 @@
+package groupfour.trafficsim.sim;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records the vehicle states of the last steps of a running simulation, so they can be looked at again
+ * without pausing SUMO.
+ * <p>
+ * Frames are written one after another into a fixed direct buffer, which is reused as a ring: once the
+ * end is reached, writing continues at the start and the oldest frames are dropped. A frame stores the
+ * positions in centimeters as variable length integers. Every few frames a keyframe stores them as they
+ * are, the frames in between only store the movement of vehicles that were already part of the previous
+ * frame, which mostly fits into a single byte. Reading a frame therefore decodes forward from the
+ * keyframe before it.
+ * <p>
+ * Vehicle ids are replaced by small codes. A code is given to the next new vehicle once no stored frame
+ * refers to it anymore, so apart from the id table all state lives outside the heap and recording a step
+ * does not allocate.
+ *
+ * @author 8wf92323f
+ */
+public class RewindBuffer implements StateRecorder {
+    private static final Logger LOGGER = LogManager.getLogger(RewindBuffer.class.getName());
+    public static final int MAX_MEGABYTES = 2047; // a direct buffer is addressed by an int
+    private static final int KEYFRAME_INTERVAL = 32;
+    private static final int FRAME_HEADER_BYTES = 8 + 5; // time, vehicle count
+    private static final int MAX_VEHICLE_BYTES = 5 + 5 + 5 + 5 + 1; // code, x, y, speed, angle
+    private static final double POSITION_SCALE = 100.0; // cm
+    private static final double SPEED_SCALE = 100.0; // cm/s
+    private static final double ANGLE_SCALE = 256.0 / 360.0;
+    private static final int CODE_SWEEP_INTERVAL = 256; // frames
+    private final ByteBuffer buffer;
+    private final int capacity;
+    private final int maxFrames;
+    private final int[] frameOffsets; // frame n is stored in slot n % maxFrames
+    private final int[] frameLengths;
+    private final double[] frameTimes;
+    private final boolean[] keyframes;
+    private long firstFrame = 0L; // the oldest stored frame
+    private long nextFrame = 0L;
+    private int writePosition = 0;
+    private boolean keyframeRequired = true;
+    private long droppedFrames = 0L;
+    private long usedBytes = 0L;
+    private final Map<String, Integer> codes = new HashMap<>();
+    private String[] vehicleIds = new String[256];
+    private long[] lastFrames = new long[256]; // the last frame a code was written to
+    private int[] lastX = new int[256];
+    private int[] lastY = new int[256];
+    private int[] freeCodes = new int[256];
+    private int freeCodeCount = 0;
+    private int usedCodeCount = 0;
+
+    /**
+     * @param megabytes the size of the buffer, between 1 and {@link #MAX_MEGABYTES}
+     */
+    public RewindBuffer(int megabytes) {
+        if (megabytes < 1 || megabytes > MAX_MEGABYTES) {
+            throw new IllegalArgumentException("Rewind buffer size must be between 1 and " + MAX_MEGABYTES + " MB");
+        }
+
+        this.capacity = megabytes * 1024 * 1024;
+        this.buffer = ByteBuffer.allocateDirect(this.capacity);
+
+        // most frames are far larger than 256 bytes, the index rather runs out when the network is empty
+        this.maxFrames = Math.clamp(this.capacity / 256, 1024, 1 << 18);
+        this.frameOffsets = new int[this.maxFrames];
+        this.frameLengths = new int[this.maxFrames];
+        this.frameTimes = new double[this.maxFrames];
+        this.keyframes = new boolean[this.maxFrames];
+    }
+
+    /**
+     * Appends a frame, dropping the oldest frames if the buffer is full.
+     *
+     * @param time the simulation time of the frame
+     * @param vehicles the vehicles to record
+     */
+    @Override
+    public synchronized void record(double time, Collection<SumoVehicle> vehicles) {
+        long maxLength = FRAME_HEADER_BYTES + (long)vehicles.size() * MAX_VEHICLE_BYTES;
+
+        if (maxLength > this.capacity) {
+            if (this.droppedFrames++ == 0L) {
+                LOGGER.warn("Rewind buffer is too small for {} vehicles, steps are not recorded", vehicles.size());
+            }
+
+            this.keyframeRequired = true;
+            return;
+        }
+
+        long frame = this.nextFrame;
+        boolean keyframe = this.keyframeRequired || frame % KEYFRAME_INTERVAL == 0L;
+        int offset = this.reserve((int)maxLength);
+        int position = offset;
+
+        this.buffer.putDouble(position, time);
+        position = this.putVarInt(position + 8, vehicles.size());
+
+        for (SumoVehicle vehicle : vehicles) {
+            int code = this.codeOf(vehicle.get_vehId());
+            int x = (int)Math.round(vehicle.get_position().x * POSITION_SCALE);
+            int y = (int)Math.round(vehicle.get_position().y * POSITION_SCALE);
+            boolean delta = !keyframe && this.lastFrames[code] == frame - 1L;
+
+            position = this.putVarInt(position, code << 1 | (delta ? 1 : 0));
+            position = this.putVarInt(position, RewindBuffer.zigZag(delta ? x - this.lastX[code] : x));
+            position = this.putVarInt(position, RewindBuffer.zigZag(delta ? y - this.lastY[code] : y));
+            position = this.putVarInt(position, (int)Math.max(0L, Math.round(vehicle.get_speed() * SPEED_SCALE)));
+            this.buffer.put(position++, (byte)Math.round(vehicle.get_angle() * ANGLE_SCALE));
+
+            this.lastFrames[code] = frame;
+            this.lastX[code] = x;
+            this.lastY[code] = y;
+        }
+
+        int slot = (int)(frame % this.maxFrames);
+        this.frameOffsets[slot] = offset;
+        this.frameLengths[slot] = position - offset;
+        this.frameTimes[slot] = time;
+        this.keyframes[slot] = keyframe;
+        this.usedBytes += position - offset;
+        this.writePosition = position;
+        this.keyframeRequired = false;
+        ++this.nextFrame;
+
+        if (frame % CODE_SWEEP_INTERVAL == 0L) {
+            this.sweepCodes();
+        }
+    }
+
+    /**
+     * Drops the oldest frames until a frame of the given length fits behind the last one.
+     *
+     * @param length the largest number of bytes the next frame may take
+     * @return the offset of the next frame
+     */
+    private int reserve(int length) {
+        if (this.nextFrame - this.firstFrame == this.maxFrames) {
+            this.dropOldestFrame();
+        }
+
+        if (this.writePosition + length > this.capacity) {
+            // the frames behind the write position are left over from the last round and the oldest ones
+            while (this.firstFrame < this.nextFrame && this.offsetOf(this.firstFrame) >= this.writePosition) {
+                this.dropOldestFrame();
+            }
+
+            this.writePosition = 0;
+        }
+
+        while (this.firstFrame < this.nextFrame && this.offsetOf(this.firstFrame) >= this.writePosition
+                && this.offsetOf(this.firstFrame) < this.writePosition + length) {
+            this.dropOldestFrame();
+        }
+
+        return this.writePosition;
+    }
+
+    private void dropOldestFrame() {
+        this.usedBytes -= this.frameLengths[(int)(this.firstFrame % this.maxFrames)];
+        ++this.firstFrame;
+    }
+
+    private int offsetOf(long frame) {
+        return this.frameOffsets[(int)(frame % this.maxFrames)];
+    }
+
+    /**
+     * @return the code of a vehicle, a new vehicle gets a free code
+     */
+    private int codeOf(String vehicleId) {
+        Integer code = this.codes.get(vehicleId);
+
+        if (code != null) {
+            return code;
+        }
+
+        int newCode;
+
+        if (this.freeCodeCount > 0) {
+            newCode = this.freeCodes[--this.freeCodeCount];
+        } else {
+            newCode = this.usedCodeCount++;
+
+            if (newCode == this.vehicleIds.length) {
+                int length = 2 * this.vehicleIds.length;
+                this.vehicleIds = Arrays.copyOf(this.vehicleIds, length);
+                this.lastFrames = Arrays.copyOf(this.lastFrames, length);
+                this.lastX = Arrays.copyOf(this.lastX, length);
+                this.lastY = Arrays.copyOf(this.lastY, length);
+                this.freeCodes = Arrays.copyOf(this.freeCodes, length);
+            }
+        }
+
+        this.codes.put(vehicleId, newCode);
+        this.vehicleIds[newCode] = vehicleId;
+        this.lastFrames[newCode] = -1L;
+        return newCode;
+    }
+
+    /**
+     * Frees the codes of all vehicles that are not part of any stored frame.
+     */
+    private void sweepCodes() {
+        for (int code = 0; code < this.usedCodeCount; ++code) {
+            if (this.vehicleIds[code] != null && this.lastFrames[code] < this.firstFrame) {
+                this.codes.remove(this.vehicleIds[code]);
+                this.vehicleIds[code] = null;
+                this.freeCodes[this.freeCodeCount++] = code;
+            }
+        }
+    }
+
+    private int putVarInt(int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            this.buffer.put(position++, (byte)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+
+        this.buffer.put(position++, (byte)value);
+        return position;
+    }
+
+    private static int zigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unZigZag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * @return the oldest frame that can be read, frames before its keyframe have been dropped,
+     *         equal to {@link #getEndFrame()} if there is none
+     */
+    public synchronized long getOldestFrame() {
+        long frame = this.firstFrame;
+
+        while (frame < this.nextFrame && !this.keyframes[(int)(frame % this.maxFrames)]) {
+            ++frame;
+        }
+
+        return frame;
+    }
+
+    /**
+     * @return the number of the frame that will be recorded next, frames are numbered from 0
+     */
+    public synchronized long getEndFrame() {
+        return this.nextFrame;
+    }
+
+    /**
+     * @param frame the number of the frame
+     * @return the simulation time of the frame or NaN if it is no longer stored
+     */
+    public synchronized double getTime(long frame) {
+        return frame >= this.firstFrame && frame < this.nextFrame ? this.frameTimes[(int)(frame % this.maxFrames)] : Double.NaN;
+    }
+
+    /**
+     * Decodes a recorded frame. Only copying the frames from the keyframe on holds the lock,
+     * so recording a step does not wait for the decoding.
+     *
+     * @param frame the number of the frame, between {@link #getOldestFrame()} and {@link #getEndFrame()}
+     * @param target receives the vehicle states, reused between calls
+     * @return whether the frame was still stored
+     */
+    public boolean read(long frame, Frame target) {
+        double time;
+        int frameCount;
+
+        synchronized (this) {
+            if (frame < this.getOldestFrame() || frame >= this.nextFrame) {
+                return false;
+            }
+
+            long keyframe = frame;
+
+            while (!this.keyframes[(int)(keyframe % this.maxFrames)]) {
+                --keyframe;
+            }
+
+            int length = 0;
+
+            for (long current = keyframe; current <= frame; ++current) {
+                length += this.frameLengths[(int)(current % this.maxFrames)];
+            }
+
+            target.prepare(length, this.usedCodeCount);
+            int position = 0;
+
+            // frames are not split at the end of the buffer, but the next frame may start at its beginning
+            for (long current = keyframe; current <= frame; ++current) {
+                int slot = (int)(current % this.maxFrames);
+                this.buffer.get(this.frameOffsets[slot], target.data, position, this.frameLengths[slot]);
+                position += this.frameLengths[slot];
+            }
+
+            // codes of vehicles in the copied frames are not given away before these frames are dropped
+            System.arraycopy(this.vehicleIds, 0, target.codeIds, 0, this.usedCodeCount);
+            time = this.frameTimes[(int)(frame % this.maxFrames)];
+            frameCount = (int)(frame - keyframe) + 1;
+        }
+
+        target.decode(frame, time, frameCount);
+        return true;
+    }
+
+    /**
+     * @return the size of the buffer in bytes
+     */
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     * @return the number of bytes taken by the stored frames
+     */
+    public synchronized long getUsedBytes() {
+        return this.usedBytes;
+    }
+
+    /**
+     * @return the number of steps that could not be recorded because the buffer is too small
+     */
+    public synchronized long getDroppedFrames() {
+        return this.droppedFrames;
+    }
+
+    /**
+     * The vehicle states of a recorded frame.
+     * A frame is meant to be reused, so looking through the recording does not allocate either.
+     * It also keeps the copied bytes and the decoding state of the last read.
+     */
+    public static class Frame {
+        private long frame = -1L;
+        private double time;
+        private int size = 0;
+        private String[] vehicleIds = new String[0];
+        private double[] x = new double[0];
+        private double[] y = new double[0];
+        private double[] speeds = new double[0];
+        private double[] angles = new double[0];
+        private byte[] data = new byte[0];
+        private String[] codeIds = new String[0];
+        private int[] decodedX = new int[0];
+        private int[] decodedY = new int[0];
+        private int readPosition;
+
+        /**
+         * Makes room for the bytes of the frames to decode and the ids of all codes.
+         */
+        private void prepare(int length, int codeCount) {
+            if (this.data.length < length) {
+                this.data = new byte[Math.max(length, 2 * this.data.length)];
+            }
+
+            if (this.codeIds.length < codeCount) {
+                int codeLength = Math.max(codeCount, 2 * this.codeIds.length);
+                this.codeIds = new String[codeLength];
+                this.decodedX = new int[codeLength];
+                this.decodedY = new int[codeLength];
+            }
+        }
+
+        /**
+         * Decodes the copied frames one after another, the positions of the last one are kept.
+         */
+        private void decode(long frame, double time, int frameCount) {
+            this.readPosition = 0;
+
+            for (int current = 0; current < frameCount; ++current) {
+                boolean last = current == frameCount - 1;
+                this.readPosition += 8; // the time, only the one of the last frame is needed
+                int size = this.getVarInt();
+
+                if (last) {
+                    this.reset(time, size);
+                }
+
+                for (int i = 0; i < size; ++i) {
+                    int header = this.getVarInt();
+                    int code = header >>> 1;
+                    boolean delta = (header & 1) != 0;
+                    int x = RewindBuffer.unZigZag(this.getVarInt()) + (delta ? this.decodedX[code] : 0);
+                    int y = RewindBuffer.unZigZag(this.getVarInt()) + (delta ? this.decodedY[code] : 0);
+                    this.decodedX[code] = x;
+                    this.decodedY[code] = y;
+
+                    int speed = this.getVarInt();
+                    int angle = this.data[this.readPosition++] & 0xFF;
+
+                    if (last) {
+                        this.vehicleIds[i] = this.codeIds[code];
+                        this.x[i] = x / POSITION_SCALE;
+                        this.y[i] = y / POSITION_SCALE;
+                        this.speeds[i] = speed / SPEED_SCALE;
+                        this.angles[i] = angle / ANGLE_SCALE;
+                    }
+                }
+            }
+
+            this.frame = frame;
+        }
+
+        private int getVarInt() {
+            int value = 0;
+
+            for (int shift = 0; ; shift += 7) {
+                byte b = this.data[this.readPosition++];
+                value |= (b & 0x7F) << shift;
+
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        }
+
+        private void reset(double time, int size) {
+            this.time = time;
+            this.size = size;
+
+            if (this.vehicleIds.length < size) {
+                int length = Math.max(size, 2 * this.vehicleIds.length);
+                this.vehicleIds = new String[length];
+                this.x = new double[length];
+                this.y = new double[length];
+                this.speeds = new double[length];
+                this.angles = new double[length];
+            }
+        }
+
+        /**
+         * @return the number of the frame in the recording
+         */
+        public long getFrame() {
+            return this.frame;
+        }
+
+        /**
+         * @return the simulation time of the frame in seconds
+         */
+        public double getTime() {
+            return this.time;
+        }
+
+        /**
+         * @return the number of vehicles in the frame
+         */
+        public int size() {
+            return this.size;
+        }
+
+        /**
+         * @param i the index of the vehicle in the frame
+         * @return the id of the vehicle
+         */
+        public String getVehicleId(int i) {
+            return this.vehicleIds[i];
+        }
+
+        /**
+         * @param i the index of the vehicle in the frame
+         * @return the x coordinate of the vehicle, rounded to centimeters
+         */
+        public double getX(int i) {
+            return this.x[i];
+        }
+
+        /**
+         * @param i the index of the vehicle in the frame
+         * @return the y coordinate of the vehicle, rounded to centimeters
+         */
+        public double getY(int i) {
+            return this.y[i];
+        }
+
+        /**
+         * @param i the index of the vehicle in the frame
+         * @return the speed of the vehicle in m/s
+         */
+        public double getSpeed(int i) {
+            return this.speeds[i];
+        }
+
+        /**
+         * @param i the index of the vehicle in the frame
+         * @return the heading of the vehicle in degrees, rounded to about 1.4 degrees
+         */
+        public double getAngle(int i) {
+            return this.angles[i];
+        }
+    }
+}
@@ -0,0 +1,426 @@
+package groupfour.trafficsim.sim;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact directed graph of the road network used to find routes without asking SUMO.
+ * Nodes are edges, referenced by their edge index, and arcs lead to the edges a vehicle can
+ * continue on. Successors are stored in compressed sparse row form: the successors of edge i are
+ * {@code successors[offsets[i]]} to {@code successors[offsets[i + 1] - 1]}.
+ * <p>
+ * Routes minimize the free flow travel time and are searched with A* using the straight line distance
+ * as estimate. It is scaled by the smallest travel time per meter of straight line distance between the
+ * ends of any two connected edges, not by the highest speed limit: costs leave out the internal junction
+ * edges and lane lengths differ from the shapes, so only this factor keeps the estimate a lower bound.
+ * Found routes are kept in an LRU cache.
+ *
+ * @author 8wf92323f
+ */
+public class RoadGraph {
+    /**
+     * The vehicle class routes are searched for.
+     */
+    public static final String VEHICLE_CLASS = "passenger";
+    private static final int CACHE_CAPACITY = 4096;
+    private static final int[] NO_ROUTE = new int[0];
+    private final int[] offsets;
+    private final int[] successors;
+    private final float[] lengths;
+    private final float[] travelTimes;
+    private final boolean[] drivable;
+    private final float[] endX;
+    private final float[] endY;
+    private final double secondsPerMeter; // the scale of the estimate
+    private final ThreadLocal<SearchState> searchStates;
+    private final Map<Long, int[]> routeCache = new LinkedHashMap<>(CACHE_CAPACITY, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, int[]> eldest) {
+            return this.size() > CACHE_CAPACITY;
+        }
+    };
+
+    private RoadGraph(int[] offsets, int[] successors, float[] lengths, float[] travelTimes, boolean[] drivable,
+                      float[] endX, float[] endY, double secondsPerMeter) {
+        this.offsets = offsets;
+        this.successors = successors;
+        this.lengths = lengths;
+        this.travelTimes = travelTimes;
+        this.drivable = drivable;
+        this.endX = endX;
+        this.endY = endY;
+        this.secondsPerMeter = secondsPerMeter;
+        this.searchStates = ThreadLocal.withInitial(() -> new SearchState(lengths.length));
+    }
+
+    /**
+     * Builds the graph from the lanes of all edges.
+     * Internal junction edges and edges without a lane for {@link #VEHICLE_CLASS} are not drivable.
+     *
+     * @param edges all edges of the network, ordered by edge index
+     * @param lanesById all lanes of the network
+     * @return the road graph
+     */
+    static RoadGraph build(List<SumoEdge> edges, Map<String, SumoLane> lanesById) {
+        int edgeCount = edges.size();
+        float[] lengths = new float[edgeCount];
+        float[] travelTimes = new float[edgeCount];
+        boolean[] drivable = new boolean[edgeCount];
+        float[] endX = new float[edgeCount];
+        float[] endY = new float[edgeCount];
+
+        for (SumoEdge edge : edges) {
+            int i = edge.getIndex();
+            double length = 0.0;
+            double speed = 0.0;
+
+            for (SumoLane lane : edge.getLanes()) {
+                length = Math.max(length, lane.getLength());
+
+                if (lane.allows(VEHICLE_CLASS)) {
+                    drivable[i] = true;
+                    speed = Math.max(speed, lane.getMaxSpeed());
+                }
+            }
+
+            drivable[i] &= !edge.getEdgeId().startsWith(":") && speed > 0.0;
+            lengths[i] = (float)length;
+            travelTimes[i] = drivable[i] ? (float)(length / speed) : Float.POSITIVE_INFINITY;
+
+            if (!edge.getLanes().isEmpty()) {
+                SumoLane lane = edge.getLanes().getFirst();
+                int last = lane.getPointCount() - 1;
+
+                if (last >= 0) {
+                    endX[i] = (float)lane.getX(last);
+                    endY[i] = (float)lane.getY(last);
+                }
+            }
+        }
+
+        // count, then fill the successors of every edge, duplicates from several lanes are skipped
+        int[] offsets = new int[edgeCount + 1];
+        int[] lastSource = new int[edgeCount];
+        Arrays.fill(lastSource, -1);
+        int[] buffer = new int[Math.max(16, edgeCount)];
+        int size = 0;
+        double secondsPerMeter = Double.POSITIVE_INFINITY;
+
+        for (SumoEdge edge : edges) {
+            int i = edge.getIndex();
+            offsets[i] = size;
+
+            if (!drivable[i]) {
+                continue;
+            }
+
+            for (SumoLane lane : edge.getLanes()) {
+                if (!lane.allows(VEHICLE_CLASS)) {
+                    continue;
+                }
+
+                for (String successorLaneId : lane.getSuccessorLaneIds()) {
+                    SumoLane successor = lanesById.get(successorLaneId);
+
+                    if (successor == null || !successor.allows(VEHICLE_CLASS)) {
+                        continue;
+                    }
+
+                    int target = successor.getEdge().getIndex();
+
+                    if (!drivable[target] || lastSource[target] == i) {
+                        continue;
+                    }
+
+                    lastSource[target] = i;
+
+                    // the costs of a route add up to at least this factor times the distance between its ends
+                    double distance = Math.hypot(endX[target] - endX[i], endY[target] - endY[i]);
+
+                    if (distance > 0.0) {
+                        secondsPerMeter = Math.min(secondsPerMeter, travelTimes[target] / distance);
+                    }
+
+                    if (size == buffer.length) {
+                        buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+                    }
+
+                    buffer[size++] = target;
+                }
+            }
+        }
+
+        offsets[edgeCount] = size;
+
+        if (secondsPerMeter == Double.POSITIVE_INFINITY) {
+            secondsPerMeter = 0.0; // no connection changes the position, the search falls back to Dijkstra
+        }
+
+        return new RoadGraph(offsets, Arrays.copyOf(buffer, size), lengths, travelTimes, drivable, endX, endY,
+                secondsPerMeter);
+    }
+
+    /**
+     * Finds the fastest route between two edges under free flow conditions.
+     *
+     * @param from the edge index of the first edge
+     * @param to the edge index of the last edge
+     * @return the edge indices of the route including both ends or null if there is no route
+     */
+    public IntBuffer findRoute(int from, int to) {
+        long key = ((long)from << 32) | (to & 0xFFFFFFFFL);
+        int[] route;
+
+        synchronized (this.routeCache) {
+            route = this.routeCache.get(key);
+        }
+
+        if (route == null) {
+            route = this.search(from, to);
+
+            synchronized (this.routeCache) {
+                this.routeCache.put(key, route);
+            }
+        }
+
+        return route != NO_ROUTE ? IntBuffer.wrap(route).asReadOnlyBuffer() : null;
+    }
+
+    /**
+     * Finds the fastest route between two edges under the given travel times.
+     * These routes change with the traffic and are not cached.
+     *
+     * @param from the edge index of the first edge
+     * @param to the edge index of the last edge
+     * @param travelTimes the travel times of all edges by edge index, never below the free flow travel times
+     * @return the edge indices of the route including both ends or null if there is no route
+     */
+    public IntBuffer findRoute(int from, int to, float[] travelTimes) {
+        int[] route = this.search(from, to, travelTimes);
+        return route != NO_ROUTE ? IntBuffer.wrap(route).asReadOnlyBuffer() : null;
+    }
+
+    private int[] search(int from, int to) {
+        return this.search(from, to, this.travelTimes);
+    }
+
+    /**
+     * Runs an A* search, costs are the travel times of all edges after the first one.
+     */
+    private int[] search(int from, int to, float[] travelTimes) {
+        if (!this.drivable[from] || !this.drivable[to]) {
+            return NO_ROUTE;
+        }
+
+        if (from == to) {
+            return new int[] { from };
+        }
+
+        SearchState state = this.searchStates.get();
+        state.begin();
+        state.relax(from, -1, 0.0, this.estimate(from, to));
+
+        while (state.heapSize > 0) {
+            double key = state.heapKeys[0];
+            int edge = state.pop();
+
+            // entries are not removed when a shorter way is found, outdated ones are skipped here
+            if (key > state.costs[edge] + this.estimate(edge, to) + 1.0e-9) {
+                continue;
+            }
+
+            if (edge == to) {
+                return state.path(to);
+            }
+
+            for (int i = this.offsets[edge]; i < this.offsets[edge + 1]; ++i) {
+                int successor = this.successors[i];
+                double cost = state.costs[edge] + travelTimes[successor];
+
+                if (!state.isReached(successor) || cost < state.costs[successor]) {
+                    state.relax(successor, edge, cost, cost + this.estimate(successor, to));
+                }
+            }
+        }
+
+        return NO_ROUTE;
+    }
+
+    /**
+     * @return a lower bound of the travel time from the end of an edge to the end of the target
+     */
+    private double estimate(int edge, int target) {
+        return Math.hypot(this.endX[target] - this.endX[edge], this.endY[target] - this.endY[edge]) * this.secondsPerMeter;
+    }
+
+    /**
+     * @return the number of edges in the graph, including the ones that are not drivable
+     */
+    public int getEdgeCount() {
+        return this.lengths.length;
+    }
+
+    /**
+     * @param edgeIndex the index of the edge
+     * @return whether routes can use the edge
+     */
+    public boolean isDrivable(int edgeIndex) {
+        return this.drivable[edgeIndex];
+    }
+
+    /**
+     * @param edgeIndex the index of the edge
+     * @return the length of the edge in meters
+     */
+    public double getLength(int edgeIndex) {
+        return this.lengths[edgeIndex];
+    }
+
+    /**
+     * @param edgeIndex the index of the edge
+     * @return the x coordinate of the end of the edge in network coordinates
+     */
+    public double getEndX(int edgeIndex) {
+        return this.endX[edgeIndex];
+    }
+
+    /**
+     * @param edgeIndex the index of the edge
+     * @return the y coordinate of the end of the edge in network coordinates
+     */
+    public double getEndY(int edgeIndex) {
+        return this.endY[edgeIndex];
+    }
+
+    /**
+     * @param edgeIndex the index of the edge
+     * @return the time it takes to pass the edge at its speed limit in seconds
+     */
+    public double getFreeFlowTravelTime(int edgeIndex) {
+        return this.travelTimes[edgeIndex];
+    }
+
+    /**
+     * @param edgeIndex the index of the edge
+     * @return the edge indices of the edges a vehicle can continue on
+     */
+    public IntBuffer getSuccessors(int edgeIndex) {
+        return IntBuffer.wrap(this.successors, this.offsets[edgeIndex],
+                this.offsets[edgeIndex + 1] - this.offsets[edgeIndex]).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * The per thread working memory of the search.
+     * Costs are only valid for edges stamped with the current search, so nothing has to be cleared.
+     */
+    private static class SearchState {
+        private final double[] costs;
+        private final int[] parents;
+        private final int[] stamps;
+        private int stamp = 0;
+        private int[] heapEdges = new int[64];
+        private double[] heapKeys = new double[64];
+        private int heapSize = 0;
+
+        private SearchState(int edgeCount) {
+            this.costs = new double[edgeCount];
+            this.parents = new int[edgeCount];
+            this.stamps = new int[edgeCount];
+        }
+
+        private void begin() {
+            if (++this.stamp == 0) {
+                // the stamp wrapped around, old stamps could be mistaken for current ones
+                Arrays.fill(this.stamps, 0);
+                this.stamp = 1;
+            }
+
+            this.heapSize = 0;
+        }
+
+        private boolean isReached(int edge) {
+            return this.stamps[edge] == this.stamp;
+        }
+
+        private void relax(int edge, int parent, double cost, double key) {
+            this.stamps[edge] = this.stamp;
+            this.costs[edge] = cost;
+            this.parents[edge] = parent;
+            this.push(edge, key);
+        }
+
+        private int[] path(int to) {
+            int length = 0;
+
+            for (int edge = to; edge != -1; edge = this.parents[edge]) {
+                ++length;
+            }
+
+            int[] path = new int[length];
+
+            for (int edge = to; edge != -1; edge = this.parents[edge]) {
+                path[--length] = edge;
+            }
+
+            return path;
+        }
+
+        private void push(int edge, double key) {
+            if (this.heapSize == this.heapEdges.length) {
+                this.heapEdges = Arrays.copyOf(this.heapEdges, 2 * this.heapSize);
+                this.heapKeys = Arrays.copyOf(this.heapKeys, 2 * this.heapSize);
+            }
+
+            int i = this.heapSize++;
+
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+
+                if (this.heapKeys[parent] <= key) {
+                    break;
+                }
+
+                this.heapEdges[i] = this.heapEdges[parent];
+                this.heapKeys[i] = this.heapKeys[parent];
+                i = parent;
+            }
+
+            this.heapEdges[i] = edge;
+            this.heapKeys[i] = key;
+        }
+
+        private int pop() {
+            int top = this.heapEdges[0];
+            int lastEdge = this.heapEdges[--this.heapSize];
+            double lastKey = this.heapKeys[this.heapSize];
+            int i = 0;
+
+            while (true) {
+                int child = 2 * i + 1;
+
+                if (child >= this.heapSize) {
+                    break;
+                }
+
+                if (child + 1 < this.heapSize && this.heapKeys[child + 1] < this.heapKeys[child]) {
+                    ++child;
+                }
+
+                if (lastKey <= this.heapKeys[child]) {
+                    break;
+                }
+
+                this.heapEdges[i] = this.heapEdges[child];
+                this.heapKeys[i] = this.heapKeys[child];
+                i = child;
+            }
+
+            this.heapEdges[i] = lastEdge;
+            this.heapKeys[i] = lastKey;
+            return top;
+        }
+    }
+}
@@ -14,7 +14,13 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * A helper class for parsing XML SUMO project files.
@@ -39,17 +45,34 @@ public class RouteParser {
 
     /**
      * Reads a sumo config file and fetches all referenced route files.
-     * Each route file is read and routes are extracted and stored as
-     * individual SumoRoute objects.
+     * Each route file is read and routes are extracted and stored
+     * in a compact route table.
      */
-    public static List<SumoRoute> parseRoutes(String configFilePath, Simulation simulation) throws RuntimeException {
-        List<SumoRoute> routes = new ArrayList<>();
+    public static RouteTable parseRoutes(String configFilePath, Simulation simulation) throws RuntimeException {
+        return simulation.createRouteTable(RouteParser.parseRouteDefinitions(configFilePath));
+    }
+
+    /**
+     * Reads a sumo config file and fetches all referenced route files
+     * without linking them to a simulation.
+     * This only touches the file system and can therefore run whilst the network is loaded.
+     * Route files are parsed in parallel on the common fork-join pool, the results are merged in the
+     * order the files are listed in, so the outcome does not depend on which file finishes first.
+     * Identical edge sequences share one array.
+     *
+     * @param configFilePath the file path of the .sumocfg file
+     * @return route ids mapped to their ordered edge ids, in the order they are defined
+     */
+    public static Map<String, String[]> parseRouteDefinitions(String configFilePath) throws RuntimeException {
+        EdgeSequencePool pool = new EdgeSequencePool();
+        List<File> files = new ArrayList<>();
+        Map<String, String[]> routes;
 
         try {
             File configFile = new File(configFilePath);
             List<String> routeFilePaths = RouteParser.parseRouteFilePaths(configFile);
 
-            Path directory = configFile.toPath().getParent();
+            Path directory = configFile.getAbsoluteFile().toPath().getParent();
 
             for (String routeFilePath : routeFilePaths) {
                 File file = directory.resolve(routeFilePath).toFile();
@@ -59,8 +82,15 @@ public class RouteParser {
                     continue;
                 }
 
-                routes.addAll(RouteParser.parseRouteFile(file, simulation));
+                files.add(file);
             }
+
+            long t0 = System.nanoTime();
+            routes = ForkJoinPool.commonPool().invoke(new RouteFilesTask(files, pool));
+            long t1 = System.nanoTime();
+
+            LOGGER.info("Parsed {} routes ({} distinct edge sequences) from {} files in {} ms",
+                    routes.size(), pool.sequences.size(), files.size(), (t1 - t0) / 1_000_000L);
         } catch (Exception exception) {
             throw new RuntimeException("Exception whilst loading route files", exception);
         }
@@ -68,6 +98,17 @@ public class RouteParser {
         return routes;
     }
 
+    /**
+     * Adds routes to a route map, later definitions of a route id replace earlier ones.
+     */
+    private static void putRoutes(Map<String, String[]> target, Map<String, String[]> routes) {
+        for (Map.Entry<String, String[]> route : routes.entrySet()) {
+            if (target.put(route.getKey(), route.getValue()) != null) {
+                LOGGER.warn("Route {} is defined more than once, the last definition wins", route.getKey());
+            }
+        }
+    }
+
     /**
      * @return a list of all referenced route files in the sumo config file.
      */
@@ -101,10 +142,13 @@ public class RouteParser {
     }
 
     /**
-     * @return a list of all routes referenced in the route file
+     * Parses a route file.
+     *
+     * @return the routes of the file in the order they are defined
      */
-    private static List<SumoRoute> parseRouteFile(File routeFile, Simulation simulation) throws Exception {
-        List<SumoRoute> routes = new ArrayList<>();
+    private static Map<String, String[]> parseRouteFile(File routeFile, EdgeSequencePool pool) throws Exception {
+        long t0 = System.nanoTime();
+        Map<String, String[]> routes = new LinkedHashMap<>();
         Document document = RouteParser.parseXML(routeFile);
 
         NodeList routesNodes = document.getElementsByTagName("routes");
@@ -117,14 +161,80 @@ public class RouteParser {
                 Element routeNode = (Element)routeNodes.item(j);
 
                 String routeIdAttribute = routeNode.getAttribute("id");
+
+                if (routeIdAttribute.isEmpty()) {
+                    // routes embedded in vehicle definitions cannot be referenced by an injection
+                    continue;
+                }
+
                 String edgesAttribute = routeNode.getAttribute("edges");
-                String[] edgeIds = edgesAttribute.split("\\s+");
+                String[] edgeIds = edgesAttribute.trim().split("\\s+");
 
-                SumoRoute sumoRoute = new SumoRoute(routeIdAttribute, edgeIds, simulation);
-                routes.add(sumoRoute);
+                if (routes.put(routeIdAttribute, pool.intern(edgeIds)) != null) {
+                    LOGGER.warn("Route {} is defined more than once, the last definition wins", routeIdAttribute);
+                }
             }
         }
 
+        long t1 = System.nanoTime();
+        LOGGER.info("Parsed route file {} ({} routes) in {} ms", routeFile.getName(), routes.size(), (t1 - t0) / 1_000_000L);
         return routes;
     }
+
+    /**
+     * Interns edge ids and complete edge sequences from several threads at once,
+     * so routes that take the same path share a single array.
+     */
+    private static class EdgeSequencePool {
+        private final Map<List<String>, String[]> sequences = new ConcurrentHashMap<>();
+        private final Map<String, String> edgeIdPool = new ConcurrentHashMap<>();
+
+        String[] intern(String[] edgeIds) {
+            for (int i = 0; i < edgeIds.length; ++i) {
+                edgeIds[i] = this.edgeIdPool.computeIfAbsent(edgeIds[i], id -> id);
+            }
+
+            return this.sequences.computeIfAbsent(Arrays.asList(edgeIds), key -> edgeIds);
+        }
+    }
+
+    /**
+     * A fork-join task that splits a list of route files until every task parses a single file.
+     * The routes of the first half of the files are merged before the routes of the second half.
+     */
+    @SuppressWarnings("serial") // fork-join tasks are never serialized
+    private static class RouteFilesTask extends RecursiveTask<Map<String, String[]>> {
+        private final List<File> files;
+        private final EdgeSequencePool pool;
+
+        RouteFilesTask(List<File> files, EdgeSequencePool pool) {
+            this.files = files;
+            this.pool = pool;
+        }
+
+        @Override
+        protected Map<String, String[]> compute() {
+            if (this.files.size() > 1) {
+                int middle = this.files.size() / 2;
+
+                RouteFilesTask second = new RouteFilesTask(this.files.subList(middle, this.files.size()), this.pool);
+                second.fork();
+                Map<String, String[]> routes = new RouteFilesTask(this.files.subList(0, middle), this.pool).compute();
+                RouteParser.putRoutes(routes, second.join());
+                return routes;
+            }
+
+            Map<String, String[]> routes = new LinkedHashMap<>();
+
+            for (File file : this.files) {
+                try {
+                    RouteParser.putRoutes(routes, RouteParser.parseRouteFile(file, this.pool));
+                } catch (Exception exception) {
+                    throw new RuntimeException("Exception whilst parsing route file " + file, exception);
+                }
+            }
+
+            return routes;
+        }
+    }
 }
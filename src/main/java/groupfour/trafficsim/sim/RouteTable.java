@@ -0,0 +1,267 @@
+package groupfour.trafficsim.sim;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A compact store for all routes of a simulation.
+ * Edge sequences are kept as edge indices in one contiguous int buffer,
+ * addressed by an offset table. Identical sequences are stored only once,
+ * routes merely reference the sequence they follow.
+ *
+ * @author 8wf92323f
+ */
+public class RouteTable {
+    private final List<SumoEdge> edges;
+    private final Map<String, Integer> routeIndices = new HashMap<>();
+    private String[] routeIds = new String[16];
+    private int[] routeSequences = new int[16];
+    private int routeCount = 0;
+    private int[] edgeBuffer = new int[256];
+    private int edgeBufferSize = 0;
+    private int[] sequenceOffsets = new int[17];
+    private int sequenceCount = 0;
+    private int[] sequenceSlots = new int[32]; // open addressing table, stores sequence index + 1
+
+    private RouteTable(List<SumoEdge> edges) {
+        this.edges = edges;
+    }
+
+    /**
+     * Builds a route table from parsed route definitions.
+     * Edge ids that do not exist in the network are skipped.
+     *
+     * @param definitions route ids mapped to their ordered edge ids
+     * @param edges all edges of the network, indexed by {@link SumoEdge#getIndex()}
+     * @param edgeIndices edge ids mapped to their edge index
+     * @return the route table
+     */
+    public static RouteTable build(Map<String, String[]> definitions, List<SumoEdge> edges, Map<String, Integer> edgeIndices) {
+        RouteTable table = new RouteTable(edges);
+        int[] sequence = new int[16];
+
+        for (Map.Entry<String, String[]> definition : definitions.entrySet()) {
+            String[] edgeIds = definition.getValue();
+
+            if (sequence.length < edgeIds.length) {
+                sequence = new int[edgeIds.length];
+            }
+
+            int length = 0;
+
+            for (String edgeId : edgeIds) {
+                Integer edgeIndex = edgeIndices.get(edgeId);
+
+                if (edgeIndex != null) {
+                    sequence[length++] = edgeIndex;
+                }
+            }
+
+            table.add(definition.getKey(), sequence, length);
+        }
+
+        table.trim();
+        return table;
+    }
+
+    /**
+     * Adds a route and deduplicates its edge sequence.
+     */
+    private void add(String routeId, int[] sequence, int length) {
+        int sequenceIndex = this.findOrInsertSequence(sequence, length);
+        Integer existing = this.routeIndices.get(routeId);
+
+        if (existing != null) {
+            this.routeSequences[existing] = sequenceIndex;
+            return;
+        }
+
+        if (this.routeCount == this.routeIds.length) {
+            this.routeIds = Arrays.copyOf(this.routeIds, this.routeCount * 2);
+            this.routeSequences = Arrays.copyOf(this.routeSequences, this.routeCount * 2);
+        }
+
+        this.routeIds[this.routeCount] = routeId;
+        this.routeSequences[this.routeCount] = sequenceIndex;
+        this.routeIndices.put(routeId, this.routeCount);
+        ++this.routeCount;
+    }
+
+    /**
+     * @return the index of an identical stored sequence, or the index of the newly appended sequence
+     */
+    private int findOrInsertSequence(int[] sequence, int length) {
+        int hash = RouteTable.hash(sequence, 0, length);
+        int mask = this.sequenceSlots.length - 1;
+
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int entry = this.sequenceSlots[slot];
+
+            if (entry == 0) {
+                int sequenceIndex = this.appendSequence(sequence, length);
+                this.sequenceSlots[slot] = sequenceIndex + 1;
+
+                if (2 * this.sequenceCount > this.sequenceSlots.length) {
+                    this.rehash();
+                }
+
+                return sequenceIndex;
+            }
+
+            int candidate = entry - 1;
+            int offset = this.sequenceOffsets[candidate];
+
+            if (this.sequenceOffsets[candidate + 1] - offset == length
+                    && Arrays.equals(this.edgeBuffer, offset, offset + length, sequence, 0, length)) {
+                return candidate;
+            }
+        }
+    }
+
+    private int appendSequence(int[] sequence, int length) {
+        if (this.edgeBufferSize + length > this.edgeBuffer.length) {
+            this.edgeBuffer = Arrays.copyOf(this.edgeBuffer, Math.max(this.edgeBuffer.length * 2, this.edgeBufferSize + length));
+        }
+
+        if (this.sequenceCount + 2 > this.sequenceOffsets.length) {
+            this.sequenceOffsets = Arrays.copyOf(this.sequenceOffsets, this.sequenceOffsets.length * 2);
+        }
+
+        System.arraycopy(sequence, 0, this.edgeBuffer, this.edgeBufferSize, length);
+        this.edgeBufferSize += length;
+
+        int sequenceIndex = this.sequenceCount++;
+        this.sequenceOffsets[this.sequenceCount] = this.edgeBufferSize;
+        return sequenceIndex;
+    }
+
+    private void rehash() {
+        int[] slots = new int[this.sequenceSlots.length * 2];
+        int mask = slots.length - 1;
+
+        for (int sequenceIndex = 0; sequenceIndex < this.sequenceCount; ++sequenceIndex) {
+            int from = this.sequenceOffsets[sequenceIndex];
+            int to = this.sequenceOffsets[sequenceIndex + 1];
+            int slot = RouteTable.hash(this.edgeBuffer, from, to - from) & mask;
+
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+
+            slots[slot] = sequenceIndex + 1;
+        }
+
+        this.sequenceSlots = slots;
+    }
+
+    private static int hash(int[] values, int from, int length) {
+        int hash = length;
+
+        for (int i = from; i < from + length; ++i) {
+            hash = 31 * hash + values[i];
+        }
+
+        // spread the bits, the table uses the lowest bits only
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Releases the spare capacity that was reserved whilst building.
+     */
+    private void trim() {
+        this.routeIds = Arrays.copyOf(this.routeIds, this.routeCount);
+        this.routeSequences = Arrays.copyOf(this.routeSequences, this.routeCount);
+        this.edgeBuffer = Arrays.copyOf(this.edgeBuffer, this.edgeBufferSize);
+        this.sequenceOffsets = Arrays.copyOf(this.sequenceOffsets, this.sequenceCount + 1);
+        this.sequenceSlots = null; // only needed for deduplication whilst building
+    }
+
+    /**
+     * @return the number of routes
+     */
+    public int size() {
+        return this.routeCount;
+    }
+
+    /**
+     * @return the number of distinct edge sequences
+     */
+    public int getSequenceCount() {
+        return this.sequenceCount;
+    }
+
+    /**
+     * @param routeIndex the index of the route
+     * @return the id of the route
+     */
+    public String getRouteId(int routeIndex) {
+        return this.routeIds[routeIndex];
+    }
+
+    /**
+     * @param routeId the id of the route
+     * @return the index of the route or -1 if there is no such route
+     */
+    public int indexOf(String routeId) {
+        Integer index = this.routeIndices.get(routeId);
+        return index != null ? index : -1;
+    }
+
+    /**
+     * @param random the source of randomness
+     * @return the index of a uniformly chosen route
+     */
+    public int randomRouteIndex(Random random) {
+        return random.nextInt(this.routeCount);
+    }
+
+    /**
+     * @param routeIndex the index of the route
+     * @return a view on the route, no edge data is copied
+     */
+    public SumoRoute getRoute(int routeIndex) {
+        return new SumoRoute(this, routeIndex);
+    }
+
+    /**
+     * @param routeIndex the index of the route
+     * @return the number of edges on the route
+     */
+    public int getEdgeCount(int routeIndex) {
+        int sequence = this.routeSequences[routeIndex];
+        return this.sequenceOffsets[sequence + 1] - this.sequenceOffsets[sequence];
+    }
+
+    /**
+     * @param routeIndex the index of the route
+     * @param position the position of the edge within the route
+     * @return the index of the edge, see {@link SumoEdge#getIndex()}
+     */
+    public int getEdgeIndex(int routeIndex, int position) {
+        return this.edgeBuffer[this.sequenceOffsets[this.routeSequences[routeIndex]] + position];
+    }
+
+    /**
+     * @param routeIndex the index of the route
+     * @param position the position of the edge within the route
+     * @return the edge object
+     */
+    public SumoEdge getEdge(int routeIndex, int position) {
+        return this.edges.get(this.getEdgeIndex(routeIndex, position));
+    }
+
+    /**
+     * @param routeIndex the index of the route
+     * @return a read-only buffer over the edge indices of the route, sharing the underlying storage
+     */
+    public IntBuffer getEdgeIndices(int routeIndex) {
+        int sequence = this.routeSequences[routeIndex];
+        int offset = this.sequenceOffsets[sequence];
+        int length = this.sequenceOffsets[sequence + 1] - offset;
+        return IntBuffer.wrap(this.edgeBuffer, offset, length).slice().asReadOnlyBuffer();
+    }
+}
@@ -1,13 +1,31 @@
 package groupfour.trafficsim.sim;
 
 import de.tudresden.sumo.cmd.Edge;
+import de.tudresden.sumo.cmd.Route;
 import de.tudresden.sumo.cmd.Vehicle;
+import de.tudresden.sumo.config.Constants;
+import de.tudresden.sumo.objects.SumoStringList;
+import de.tudresden.sumo.util.SumoCommand;
 import it.polito.appeal.traci.SumoTraciConnection;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.util.Unbox;
 
 import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A wrapper for the connection to a SUMO instance.
@@ -15,20 +33,69 @@ import java.util.*;
  *
  * @author 8wf92323f, mikey7303
  */
-public class Simulation {
+public class Simulation implements SimulationEngine {
     private static final Logger LOGGER = LogManager.getLogger(Simulation.class.getName());
-    private static final Random RANDOM = new Random();
+    private static final Logger STEP_LOGGER = LogManager.getLogger("groupfour.trafficsim.steps");
+    private static final double TRAVEL_TIME_HALF_LIFE = 80.0; // steps
+    private static final int REROUTING_INTERVAL = 40; // steps
+    private static final int FULL_ID_SYNC_INTERVAL = 512; // steps
+    private static final int LANE_REFRESH_INTERVAL = 8; // steps between two lane id checks of a vehicle
+    private static final byte REQUEST_LANE = 1;
+    private static final byte REQUEST_LATERAL = 2;
+    private static final byte REQUEST_POSITION = 4;
     private final SumoTraciConnection connection;
-    private Thread thread;
+    private final SimulationWorker worker = new SimulationWorker("simulation-worker");
+    private final ExecutorService ioExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    private final AtomicBoolean running = new AtomicBoolean(false);
     private volatile boolean shouldStopSimulation = true;
-    private Runnable updateListener;
+    private volatile boolean fastForwarding = false;
+    private volatile boolean laneSync = false;
+    private final double stepLength;
+    private volatile Executor callbackExecutor = Runnable::run;
+    private volatile Runnable updateListener;
     private final List<SumoEdge> edges = new ArrayList<>();
     private final List<SumoLane> lanes = new ArrayList<>();
-    private final List<SumoRoute> routes;
+    private final Map<String, SumoLane> lanesById = new HashMap<>();
+    private final SubscriptionDispatcher subscriptionDispatcher = new SubscriptionDispatcher();
+    private final TrafficLightSystem trafficLights;
+    private final EdgeStatistics edgeStatistics;
+    private final TravelTimeEstimator travelTimes;
+    private ReroutingService reroutingService;
+    private final ViewportSync viewportSync = new ViewportSync(this.subscriptionDispatcher);
+    private final CommandQueue commandQueue;
+    private final TraciCodec codec; // null if the TraCI socket is not accessible
+    private final ControllerPipeline controllers = new ControllerPipeline();
+    private final Map<StateRecorder, RecorderController> recorders = new ConcurrentHashMap<>();
+    private final SimulationMetrics metrics = new SimulationMetrics();
+    private long stepCount = 0L;
+    private final Map<String, Integer> edgeIndices = new HashMap<>();
+    private final RouteTable routes;
+    private final RoadGraph roadGraph;
+    private final NetworkGeometry networkGeometry;
+    private final Set<String> addedGraphRoutes = ConcurrentHashMap.newKeySet();
+    private final Set<String> queuedGraphRoutes = ConcurrentHashMap.newKeySet(); // only sent with the command queue
+    private volatile Random random = new Random();
+    private final AtomicLong injectedVehicleCount = new AtomicLong();
+    private final AtomicInteger vehicleIdPrefixCount = new AtomicInteger();
+    private volatile int graphRouteEpoch = 0; // changes when a state is loaded, SUMO may have dropped the routes
     private final Map<String, SumoVehicle> vehicles = new HashMap<>();
+    private volatile List<SumoVehicle> publishedVehicles = List.of();
+    private final ConcurrentSkipListMap<String, SumoVehicle> vehicleIndex = new ConcurrentSkipListMap<>();
+    private final VehicleSelection vehicleSelection = new VehicleSelection(this.subscriptionDispatcher);
     private double time = 0.0;
     private long simulationStepDuration = 0L;
     private long updateStepDuration = 0L;
+    private long controllerStepDuration = 0L;
+    private int departedVehicleCount = 0;
+    private int arrivedVehicleCount = 0;
+    private final Set<String> departedVehicleIds = new HashSet<>();
+    private final Set<String> arrivedVehicleIds = new HashSet<>();
+    private final List<SumoVehicle> pendingSync = new ArrayList<>();
+    private double[] syncStates = new double[0];
+    private SumoLane[] syncLanes = new SumoLane[0];
+    private byte[] syncRequests = new byte[0]; // REQUEST_* masks of the lane sync
+    private final double[] locateScratch = new double[3];
+    private boolean fullIdSyncRequired = true;
 
     /**
      * Creates a simulation instance by launching SUMO.
@@ -37,39 +104,115 @@ public class Simulation {
      * @param configFile the file path of the .sumocfg file
      */
     public Simulation(String binary, String configFile) {
+        this(binary, configFile, 0);
+    }
+
+    /**
+     * Creates a simulation instance by launching SUMO on a specific port.
+     * Used when several SUMO instances run side by side.
+     *
+     * @param binary a string representing the SUMO executable name
+     * @param configFile the file path of the .sumocfg file
+     * @param port the TraCI port SUMO should listen on, or 0 to pick any free port
+     */
+    public Simulation(String binary, String configFile, int port) {
+        this(binary, configFile, port, LoadListener.NONE);
+    }
+
+    /**
+     * Creates a simulation instance by launching SUMO and reports the loading progress.
+     * Route files are parsed in the background whilst the network is fetched from SUMO.
+     * Interrupting the calling thread cancels the setup and shuts SUMO down again.
+     *
+     * @param binary a string representing the SUMO executable name
+     * @param configFile the file path of the .sumocfg file
+     * @param port the TraCI port SUMO should listen on, or 0 to pick any free port
+     * @param listener the listener receiving progress updates
+     */
+    public Simulation(String binary, String configFile, int port, LoadListener listener) {
         this.connection = new SumoTraciConnection(binary, configFile);
 
         double stepFrequency = 8.0; // steps/sec
         double simulationSpeed = 1.0;
         double stepLength = simulationSpeed / stepFrequency;
+        this.stepLength = stepLength;
         double delay = 1000.0 / simulationSpeed;
 
         this.connection.addOption("start", "true");
         this.connection.addOption("step-length", Double.toString(stepLength));
         this.connection.addOption("delay", Double.toString(delay));
 
+        listener.onProgress("Launching SUMO", 0.0);
+
         try {
-            this.connection.runServer();
+            if (port > 0) {
+                this.connection.runServer(port);
+            } else {
+                this.connection.runServer();
+            }
         } catch (IOException exception) {
+            this.worker.shutdown();
+            this.ioExecutor.shutdown();
             throw new RuntimeException("Could not start server", exception);
         }
 
+        TraciChannel channel = TraciChannel.open(this.connection);
+        this.commandQueue = new CommandQueue(this.connection, channel);
+        this.codec = channel != null ? new TraciCodec(channel) : null;
+
         try {
             // load constant data
 
-            this.routes = RouteParser.parseRoutes(configFile, this);
+            // route files only touch the disk, so they are parsed whilst SUMO delivers the network
+            CompletableFuture<Map<String, String[]>> routeDefinitions = CompletableFuture.supplyAsync(
+                    () -> RouteParser.parseRouteDefinitions(configFile),
+                    this.ioExecutor
+            );
 
             List<String> edgeIds = (List<String>)this.connection.do_job_get(Edge.getIDList());
 
-            for (String edgeId : edgeIds) {
-                SumoEdge edge = new SumoEdge(edgeId, this.connection);
+            for (int i = 0; i < edgeIds.size(); ++i) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedException("Loading was cancelled");
+                }
+
+                SumoEdge edge = new SumoEdge(edgeIds.get(i), i, this.connection);
                 this.edges.add(edge);
+                this.edgeIndices.put(edge.getEdgeId(), i);
                 this.lanes.addAll(edge.getLanes());
+
+                for (SumoLane lane : edge.getLanes()) {
+                    this.lanesById.put(lane.getLaneId(), lane);
+                }
+
+                if (i % 64 == 0) {
+                    listener.onProgress("Loading network (" + i + "/" + edgeIds.size() + " edges)", 0.1 + 0.7 * i / edgeIds.size());
+                }
             }
 
+            this.networkGeometry = NetworkGeometry.build(this.lanes);
+            listener.onGeometryLoaded(this.networkGeometry);
+            this.roadGraph = RoadGraph.build(this.edges, this.lanesById);
+
+            listener.onProgress("Loading traffic lights", 0.8);
+            this.connection.addObserver(this.subscriptionDispatcher);
+            this.trafficLights = TrafficLightSystem.load(this.connection, this.lanesById, this.subscriptionDispatcher);
+
+            this.edgeStatistics = EdgeStatistics.create(this.edges, this.edgeIndices, this.subscriptionDispatcher);
+            this.travelTimes = new TravelTimeEstimator(this.roadGraph, this.edgeStatistics, TRAVEL_TIME_HALF_LIFE);
+
+            listener.onProgress("Loading initial state", 0.85);
+
             // run once to ensure the default state is loaded
             this.update();
+
+            listener.onProgress("Loading routes", 0.9);
+            this.routes = this.createRouteTable(routeDefinitions.get());
+            LOGGER.info("Stored {} routes as {} distinct edge sequences", this.routes.size(), this.routes.getSequenceCount());
+
+            listener.onProgress("Done", 1.0);
         } catch (Exception exception) {
+            this.close();
             throw new RuntimeException("An error occurred whilst trying to initialize", exception);
         }
     }
@@ -79,29 +222,21 @@ public class Simulation {
      *
      * @param callback a callback that is called once the simulation has finished
      */
+    @Override
     public void step(Runnable callback) {
-        if (this.isClosed()) {
-            throw new IllegalStateException("Connection is closed");
-        }
-
-        if (this.thread != null && this.thread.isAlive()) {
-            throw new IllegalStateException("Simulation is already running");
-        }
+        this.acquireWorker();
 
-        this.thread = new Thread(() -> {
+        this.worker.submit(() -> {
             try {
-                this.connection.do_timestep();
-                this.update();
+                this.performStep();
             } catch (InterruptedException interruptedException) {
                 LOGGER.error("Simulation thread was interrupted", interruptedException);
             } catch (Exception exception) {
                 LOGGER.error("Exception during Simulation", exception);
             }
 
-            callback.run();
+            this.releaseWorker(callback);
         });
-
-        this.thread.start();
     }
 
     /**
@@ -110,24 +245,43 @@ public class Simulation {
      *
      * @param callback a callback that is called once the simulation has finished
      */
+    @Override
     public void startContinuous(Runnable callback) {
+        this.acquireWorker();
+
+        this.shouldStopSimulation = false;
+
+        this.worker.submit(() -> this.runContinuous(callback));
+    }
+
+    /**
+     * Marks the worker as busy.
+     *
+     * @throws IllegalStateException if the connection is closed or a command is already running
+     */
+    private void acquireWorker() {
         if (this.isClosed()) {
             throw new IllegalStateException("Connection is closed");
         }
 
-        if (this.thread != null && this.thread.isAlive()) {
+        if (!this.running.compareAndSet(false, true)) {
             throw new IllegalStateException("Simulation is already running");
         }
+    }
 
-        this.shouldStopSimulation = false;
-
-        this.thread = new Thread(() -> this.runContinuous(callback));
-        this.thread.start();
+    /**
+     * Marks the worker as idle and hands the callback to the callback executor.
+     *
+     * @param callback the callback of the finished command
+     */
+    private void releaseWorker(Runnable callback) {
+        this.running.set(false);
+        this.callbackExecutor.execute(callback);
     }
 
     /**
      * The actual continuous simulation run by startContinuous.
-     * This function should never be called from the calling thread.
+     * This function should only be called from the worker thread.
      *
      * @param callback a callback that is called once the simulation has finished
      */
@@ -138,23 +292,17 @@ public class Simulation {
             double deltaT = (double)this.connection.do_job_get(de.tudresden.sumo.cmd.Simulation.getDeltaT());
             expectedStepNanoDuration = (long)(deltaT * 1_000_000_000L);
         } catch (Exception exception) {
-            throw new RuntimeException(exception);
+            LOGGER.error("Could not fetch the simulation step length", exception);
+            this.shouldStopSimulation = true;
+            this.releaseWorker(callback);
+            return;
         }
 
         while (!this.shouldStopSimulation && !this.isClosed()) {
             try {
-                long t0 = System.nanoTime();
-                this.connection.do_timestep();
-                long t1 = System.nanoTime();
-                this.update();
-                long t2 = System.nanoTime();
-
-                long stepNanoDuration = t2 - t1;
-                long sleepNanoTime = expectedStepNanoDuration - stepNanoDuration;
+                this.performStep();
 
-                // store statistics
-                this.simulationStepDuration = t1 - t0;
-                this.updateStepDuration = t2 - t1;
+                long sleepNanoTime = expectedStepNanoDuration - this.updateStepDuration;
 
                 if (sleepNanoTime > 0) {
                     long millis = sleepNanoTime / 1_000_000L;
@@ -172,169 +320,1453 @@ public class Simulation {
             }
         }
 
-        callback.run();
+        this.releaseWorker(callback);
     }
 
     /**
      * Notifies the continuous simulation that it should stop.
      */
+    @Override
     public void stopContinuous() {
         this.shouldStopSimulation = true;
     }
 
     /**
-     * Called after each simulation step to ensure simulation objects are up to date.
+     * Runs the simulation as fast as possible up to a target time, e.g. to let traffic build up.
+     * Vehicle states are not synced during the warm-up, which saves most of the TraCI round trips,
+     * step controllers still run with every step. The update listener is only notified once the warm-up
+     * has finished. The warm-up can be stopped using stopContinuous.
      *
-     * @throws Exception any error that may occur whilst receiving or updating data
+     * @param targetTime the simulation time to stop at in seconds
+     * @param callback a callback that is called once the warm-up has finished
      */
-    private void update() throws Exception {
-        this.time = (double)this.connection.do_job_get(de.tudresden.sumo.cmd.Simulation.getTime());
+    @Override
+    public void warmUp(double targetTime, Runnable callback) {
+        this.acquireWorker();
 
-        // VEHICLE UPDATES
+        this.shouldStopSimulation = false;
 
-        Set<String> vehicleIds = new HashSet<>((List<String>)this.connection.do_job_get(Vehicle.getIDList()));
-        Set<String> storedIds = new HashSet<>(this.vehicles.keySet()); // copy a set of all tracked vehicles
+        this.worker.submit(() -> this.runWarmUp(targetTime, callback));
+    }
 
-        for (String vehicleId : vehicleIds) {
-            if (!storedIds.contains(vehicleId)) {
-                // if the vehicle is not present,
-                // it was just added to the simulation
-                this.vehicles.put(vehicleId, new SumoVehicle(vehicleId));
-            }
+    /**
+     * The actual warm-up run by warmUp.
+     * This function should only be called from the worker thread.
+     */
+    private void runWarmUp(double targetTime, Runnable callback) {
+        long t0 = System.nanoTime();
+        double startTime = this.time;
+        this.fastForwarding = true;
 
-            // we remove all processed ids from storedIds
-            storedIds.remove(vehicleId);
+        try {
+            while (!this.shouldStopSimulation && !this.isClosed() && this.time < targetTime) {
+                this.performStep();
+            }
+        } catch (InterruptedException interruptedException) {
+            LOGGER.error("Simulation thread was interrupted", interruptedException);
+        } catch (Exception exception) {
+            LOGGER.error("Exception during warm-up", exception);
+        } finally {
+            this.fastForwarding = false;
         }
 
-        // storedIds now only contains ids from vehicles
-        // that are no longer present in the simulation
-        for (String removedVehicleId : storedIds) {
-            this.vehicles.remove(removedVehicleId);
+        try {
+            if (!this.isClosed()) {
+                this.syncAllVehicles();
+                LOGGER.info("Warmed up from {} s to {} s in {} ms", startTime, this.time, (System.nanoTime() - t0) / 1_000_000L);
+            }
+        } catch (Exception exception) {
+            LOGGER.error("Could not sync vehicles after warm-up", exception);
         }
 
-        // update all vehicles in simulation
+        this.shouldStopSimulation = true;
+        this.releaseWorker(callback);
+    }
+
+    /**
+     * Fetches the state of every vehicle and publishes the vehicle set.
+     *
+     * @throws Exception if an api error occurs
+     */
+    private void syncAllVehicles() throws Exception {
         for (SumoVehicle vehicle : this.vehicles.values()) {
             vehicle.update(this.connection);
         }
 
+        this.metrics.recordRoundTrips(SumoVehicle.SYNC_ROUND_TRIPS * this.vehicles.size());
+        this.publishVehicles();
+        this.notifyUpdateListener();
+    }
 
+    /**
+     * Saves the current state of SUMO and the Java side to a checkpoint file,
+     * which can also be loaded by a later session of the same scenario.
+     *
+     * @param name a human readable name of the checkpoint
+     * @param file the checkpoint file, replaced if it exists
+     * @return a future that completes with the checkpoint once it is written
+     * @throws IllegalStateException if the connection is closed or a command is already running
+     */
+    @Override
+    public CompletableFuture<SimulationCheckpoint> saveCheckpoint(String name, Path file) {
+        return this.submitTask(() -> {
+            long t0 = System.nanoTime();
+            // SUMO writes its state to a file of its own, which is copied into the checkpoint file
+            Path stateFile = Files.createTempFile("trafficsim-state", ".xml.gz").toAbsolutePath();
 
+            try {
+                this.connection.do_job_set(de.tudresden.sumo.cmd.Simulation.saveState(stateFile.toString()));
+                this.metrics.recordRoundTrips(1);
 
+                List<SumoVehicle> vehicles = new ArrayList<>(this.vehicles.size());
 
+                for (SumoVehicle vehicle : this.vehicles.values()) {
+                    vehicles.add(new SumoVehicle(vehicle));
+                }
 
+                SimulationCheckpoint checkpoint = new SimulationCheckpoint(name, file.toAbsolutePath(), Files.size(stateFile),
+                        this.time, this.injectedVehicleCount.get(), this.vehicleIdPrefixCount.get(), this.graphRouteEpoch,
+                        List.copyOf(vehicles));
+                checkpoint.write(stateFile);
 
-        if (this.updateListener != null) {
-            // ping listener to notify that the
-            // simulation state has changed
-            this.updateListener.run();
-        }
+                LOGGER.info("Saved checkpoint {} with {} vehicles to {} in {} ms", name, vehicles.size(), file,
+                        (System.nanoTime() - t0) / 1_000_000L);
+                return checkpoint;
+            } finally {
+                Files.deleteIfExists(stateFile);
+            }
+        });
     }
 
     /**
-     * Closes and thereby ends the connection to the SUMO instance.
+     * Reads a checkpoint file written by {@link #saveCheckpoint}, e.g. by an earlier session.
+     *
+     * The file is read on a virtual thread, a running simulation is not held up.
+     *
+     * @param file the checkpoint file
+     * @return a future that completes with the checkpoint, ready to be loaded, or fails
+     *         if the file could not be read or is no checkpoint file
      */
-    public void close() {
-        if (this.thread != null && this.thread.isAlive()) {
-            this.thread.interrupt();
-        }
+    @Override
+    public CompletableFuture<SimulationCheckpoint> openCheckpoint(Path file) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return SimulationCheckpoint.read(file.toAbsolutePath(), this::getLane);
+            } catch (IOException exception) {
+                throw new RuntimeException(exception);
+            }
+        }, this.ioExecutor);
+    }
 
-        if (!this.isClosed()) {
-            this.connection.close();
+    /**
+     * Returns to a saved state. SUMO loads its state file, the vehicle store is restored from
+     * the checkpoint instead of being fetched again.
+     *
+     * @param checkpoint the checkpoint to load
+     * @return a future that completes once the state is loaded
+     * @throws IllegalStateException if the connection is closed or a command is already running
+     * @throws IllegalArgumentException if the checkpoint only describes a file of an engine process
+     */
+    @Override
+    public CompletableFuture<Void> loadCheckpoint(SimulationCheckpoint checkpoint) {
+        if (checkpoint.getVehicles() == null) {
+            throw new IllegalArgumentException("Checkpoint " + checkpoint.getName() + " belongs to an engine process");
         }
+
+        return this.submitTask(() -> {
+            long t0 = System.nanoTime();
+            Path stateFile = Files.createTempFile("trafficsim-state", ".xml.gz").toAbsolutePath();
+
+            try {
+                checkpoint.extractStateFile(stateFile);
+                this.connection.do_job_set(Simulation.loadState(stateFile.toString()));
+                this.metrics.recordRoundTrips(1);
+            } finally {
+                Files.deleteIfExists(stateFile);
+            }
+
+            this.vehicles.clear();
+            this.vehicleIndex.clear();
+
+            for (SumoVehicle vehicle : checkpoint.getVehicles()) {
+                SumoVehicle copy = new SumoVehicle(vehicle);
+                this.vehicles.put(copy.get_vehId(), copy);
+                this.vehicleIndex.put(copy.get_vehId(), copy);
+            }
+
+            this.time = checkpoint.getTime();
+            this.departedVehicleCount = 0;
+            this.arrivedVehicleCount = 0;
+            this.departedVehicleIds.clear();
+            this.arrivedVehicleIds.clear();
+            this.fullIdSyncRequired = true;
+
+            // ids given out before the checkpoint are part of its state, also when it was saved by another session
+            this.injectedVehicleCount.accumulateAndGet(checkpoint.getInjectedVehicleCount(), Math::max);
+            this.vehicleIdPrefixCount.accumulateAndGet(checkpoint.getVehicleIdPrefixCount(), Math::max);
+
+            // routes added since the checkpoint are gone, new ones get fresh ids
+            this.graphRouteEpoch = Math.max(this.graphRouteEpoch, checkpoint.getGraphRouteEpoch()) + 1;
+            this.addedGraphRoutes.clear();
+            this.queuedGraphRoutes.clear();
+
+            // the loaded vehicles are new to SUMO and carry no subscriptions
+            this.vehicleSelection.reapply();
+
+            synchronized (this) {
+                if (this.reroutingService != null) {
+                    // the indexed routes belong to the previous state
+                    this.controllers.remove(this.reroutingService);
+                    this.reroutingService = new ReroutingService(this, this.connection, this.codec, this.travelTimes, REROUTING_INTERVAL);
+                    this.controllers.add(this.reroutingService, 0L, 0);
+                }
+            }
+
+            this.publishVehicles();
+            LOGGER.info("Loaded checkpoint {} in {} ms", checkpoint.getName(), (System.nanoTime() - t0) / 1_000_000L);
+            this.notifyUpdateListener();
+            return null;
+        });
     }
 
     /**
-     * @return whether the connection is closed
+     * TraaS has no command for loading states, it is built like {@link de.tudresden.sumo.cmd.Simulation#saveState}.
      */
-    public boolean isClosed() {
-        return this.connection.isClosed();
+    private static SumoCommand loadState(String fileName) {
+        return new SumoCommand(Constants.CMD_SET_SIM_VARIABLE, Constants.CMD_LOAD_SIMSTATE, "", fileName);
     }
 
     /**
-     * Sets the update listener.
-     * Whenever the simulation gets updated,
-     * a listener object receives a ping to indicate
-     * that new simulation data is available.
+     * Runs a task on the worker thread whilst no other command is running.
      *
-     * @param updateListener the update listener
+     * @param task the task
+     * @return a future that completes with the result of the task
      */
-    public void setUpdateListener(Runnable updateListener) {
-        this.updateListener = updateListener;
+    private <T> CompletableFuture<T> submitTask(Callable<T> task) {
+        this.acquireWorker();
+
+        CompletableFuture<T> future = new CompletableFuture<>();
+
+        this.worker.submit(() -> {
+            T result = null;
+            Exception failure = null;
+
+            try {
+                result = task.call();
+            } catch (Exception exception) {
+                failure = exception;
+            }
+
+            // the worker is idle again before anybody is notified
+            this.running.set(false);
+
+            if (failure == null) {
+                future.complete(result);
+            } else {
+                future.completeExceptionally(failure);
+            }
+        });
+
+        return future;
     }
 
     /**
-     * @return the current simulation timestamp in seconds
+     * Performs a singular simulation step on the calling thread and blocks until
+     * the Java side is synchronized again.
+     * Intended for headless drivers that manage their own threads.
+     *
+     * @throws Exception any error that may occur whilst stepping or updating
      */
-    public double getTime() {
-        return this.time;
+    public void stepBlocking() throws Exception {
+        if (this.isClosed()) {
+            throw new IllegalStateException("Connection is closed");
+        }
+
+        if (!this.running.compareAndSet(false, true)) {
+            throw new IllegalStateException("Simulation is already running");
+        }
+
+        try {
+            this.performStep();
+        } finally {
+            this.running.set(false);
+        }
     }
 
     /**
-     * @return the duration it took to perform one sumo simulation step
+     * Advances SUMO by one step, syncs the Java side and stores the step timings.
+     *
+     * @throws Exception any error that may occur whilst stepping or updating
      */
-    public long getSimulationStepDuration() {
-        return this.simulationStepDuration;
+    private void performStep() throws Exception {
+        long t0 = System.nanoTime();
+        int roundTrips = this.viewportSync.apply(this.connection);
+        roundTrips += this.edgeStatistics.apply(this.connection);
+        roundTrips += this.vehicleSelection.apply(this.connection, this.vehicles::containsKey);
+        roundTrips += this.commandQueue.flush();
+        this.viewportSync.beginStep();
+        this.connection.do_timestep();
+        this.metrics.recordRoundTrips(roundTrips + 1);
+        long t1 = System.nanoTime();
+        this.update();
+        long t2 = System.nanoTime();
+
+        // store statistics, step and sync timings are already visible to the controllers
+        this.simulationStepDuration = t1 - t0;
+        this.updateStepDuration = t2 - t1;
+
+        this.controllers.run(new StepSnapshot(this, ++this.stepCount), this.commandQueue);
+        long t3 = System.nanoTime();
+
+        this.controllerStepDuration = t3 - t2;
+        this.metrics.recordStep(this.simulationStepDuration, this.updateStepDuration, this.controllerStepDuration);
+        long batchedBytes = this.codec != null ? this.codec.takeTransferredBytes() : 0L;
+        this.metrics.recordBatchedBytes(batchedBytes);
+
+        if (STEP_LOGGER.isDebugEnabled()) {
+            // boxed through thread-local buffers, so a step event does not allocate
+            STEP_LOGGER.debug("step={} time={} vehicles={} departed={} arrived={} stepNs={} syncNs={} controllerNs={} queued={} batchedBytes={}",
+                    Unbox.box(this.stepCount), Unbox.box(this.time), Unbox.box(this.publishedVehicles.size()),
+                    Unbox.box(this.departedVehicleCount), Unbox.box(this.arrivedVehicleCount),
+                    Unbox.box(this.simulationStepDuration), Unbox.box(this.updateStepDuration),
+                    Unbox.box(this.controllerStepDuration), Unbox.box(this.commandQueue.size()), Unbox.box(batchedBytes));
+        }
+
+        if (!this.fastForwarding) {
+            // a warm-up notifies once it has finished, not for each of its steps
+            this.notifyUpdateListener();
+        }
     }
 
-    /**
-     * @return the duration it took to sync the java application with sumo
-     */
-    public long getUpdateStepDuration() {
-        return this.updateStepDuration;
+    private void notifyUpdateListener() {
+        Runnable updateListener = this.updateListener;
+
+        if (updateListener != null) {
+            // ping listener to notify that the
+            // simulation state has changed
+            updateListener.run();
+        }
     }
 
     /**
-     * @return a list of all edges in the simulation
+     * Called after each simulation step to ensure simulation objects are up to date.
+     *
+     * @throws Exception any error that may occur whilst receiving or updating data
      */
-    public List<SumoEdge> getEdges() {
-        return this.edges;
+    private void update() throws Exception {
+        Set<String> addedIds = this.departedVehicleIds;
+        Set<String> removedIds = this.arrivedVehicleIds;
+        addedIds.clear();
+        removedIds.clear();
+
+        // VEHICLE UPDATES
+
+        int roundTrips = this.codec != null
+                ? this.fetchMembershipDirect(addedIds, removedIds)
+                : this.fetchMembership(addedIds, removedIds);
+
+        this.edgeStatistics.aggregate();
+        this.travelTimes.update();
+
+        for (String vehicleId : addedIds) {
+            SumoVehicle vehicle = new SumoVehicle(vehicleId);
+            this.vehicles.put(vehicleId, vehicle);
+            this.vehicleIndex.put(vehicleId, vehicle);
+        }
+
+        for (String vehicleId : removedIds) {
+            this.vehicles.remove(vehicleId);
+            this.vehicleIndex.remove(vehicleId);
+        }
+
+        this.departedVehicleCount = addedIds.size();
+        this.arrivedVehicleCount = removedIds.size();
+
+        if (this.fastForwarding) {
+            // vehicle states are synced and published once the warm-up is finished
+            this.metrics.recordRoundTrips(roundTrips);
+            return;
+        }
+
+        List<SumoVehicle> pending = this.pendingSync;
+        pending.clear();
+
+        if (!this.viewportSync.isActive()) {
+            // update all vehicles in simulation
+            pending.addAll(this.vehicles.values());
+        } else {
+            // visible vehicles are taken from the viewport subscription,
+            // the others are synced in turns every few steps
+            int interval = this.viewportSync.getOutsideSyncInterval();
+
+            for (SumoVehicle vehicle : this.vehicles.values()) {
+                ViewportSync.VehicleState state = this.viewportSync.getVisibleState(vehicle.get_vehId());
+
+                if (addedIds.contains(vehicle.get_vehId())) {
+                    pending.add(vehicle); // fetches the constant max speed as well
+                } else if (state != null && state.position != null) {
+                    vehicle.setState(state.position, state.speed);
+                } else if (Math.floorMod(vehicle.get_vehId().hashCode() + this.stepCount, interval) == 0) {
+                    pending.add(vehicle);
+                }
+            }
+        }
+
+        roundTrips += this.codec != null
+                ? this.fetchVehicleStatesDirect(pending, addedIds)
+                : this.fetchVehicleStates(pending);
+        this.metrics.recordRoundTrips(roundTrips);
+        this.publishVehicles();
     }
 
     /**
-     * @return a list of all lanes in the simulation
+     * Replaces the published vehicles with copies of the synced state.
+     * Other threads only ever see the vehicles of a completed step and the copies are never changed,
+     * only vehicles whose state changed are copied again.
+     * <p>
+     * This trades the allocation free sync for safe sharing: every step allocates a copy and a position
+     * for each vehicle that moved, plus the array and list of all vehicles. Recycled primitive buffers
+     * like those of the snapshot stream would avoid that, but the map, the recorders, the metrics endpoint
+     * and the engine clients keep the vehicles of a step for as long as they like, so a buffer could never
+     * be known to be free again.
      */
-    public List<SumoLane> getLanes() {
-        return this.lanes;
+    private void publishVehicles() {
+        SumoVehicle[] published = new SumoVehicle[this.vehicles.size()];
+        int i = 0;
+
+        for (SumoVehicle vehicle : this.vehicles.values()) {
+            published[i++] = vehicle.publish();
+        }
+
+        this.publishedVehicles = Collections.unmodifiableList(Arrays.asList(published));
     }
 
     /**
-     * @return a collection of all vehicles in the simulation
+     * Fetches the time and the vehicles that entered or left the simulation through TraaS.
+     *
+     * @return the number of TraCI round trips that were needed
      */
-    public Collection<SumoVehicle> getVehicles() {
-        return this.vehicles.values();
+    private int fetchMembership(Set<String> addedIds, Set<String> removedIds) throws Exception {
+        this.time = (double)this.connection.do_job_get(de.tudresden.sumo.cmd.Simulation.getTime());
+        List<String> vehicleIds = (List<String>)this.connection.do_job_get(Vehicle.getIDList());
+        this.diffVehicleIds(vehicleIds, addedIds, removedIds);
+        return 2;
     }
 
     /**
-     * Performs a vehicle injection on a random route.
+     * Fetches the time and the vehicles that entered or left the simulation in one round trip.
+     * SUMO reports departures and arrivals of the last step, so only changes are transferred.
+     * The complete id list is compared every few steps in case both went out of sync.
+     *
+     * @return the number of TraCI round trips that were needed
      */
-    public void injectVehicle() throws RuntimeException {
-        int count = this.routes.size();
-        int index = RANDOM.nextInt(0, count);
-        SumoRoute randomRoute = this.routes.get(index);
+    private int fetchMembershipDirect(Set<String> addedIds, Set<String> removedIds) throws Exception {
+        boolean fullSync = this.fullIdSyncRequired || this.stepCount % FULL_ID_SYNC_INTERVAL == 0;
+        TraciCodec codec = this.codec;
+        codec.begin();
+        codec.get(Constants.CMD_GET_SIM_VARIABLE, Constants.VAR_TIME, "");
 
-        try {
-            this.connection.do_job_set(Vehicle.add(
-                    "injectedVeh_" + System.nanoTime() + "_" + RANDOM.nextInt(),
-                    "DEFAULT_VEHTYPE",
-                    randomRoute.getRouteId(),
-                    (int)Math.ceil(this.time),
-                    0.0,
-                    10.0,
-                    (byte)0)
-            );
-        } catch (Exception exception) {
-            throw new RuntimeException("Failed to inject vehicle", exception);
+        if (fullSync) {
+            codec.get(Constants.CMD_GET_VEHICLE_VARIABLE, Constants.TRACI_ID_LIST, "");
+        } else {
+            codec.get(Constants.CMD_GET_SIM_VARIABLE, Constants.VAR_DEPARTED_VEHICLES_IDS, "");
+            codec.get(Constants.CMD_GET_SIM_VARIABLE, Constants.VAR_ARRIVED_VEHICLES_IDS, "");
+        }
+
+        codec.send();
+        this.time = this.nextDirectResult(codec).readDouble();
+
+        if (fullSync) {
+            List<String> vehicleIds = new ArrayList<>(this.vehicles.size() + 16);
+            this.nextDirectResult(codec).readStringList(vehicleIds);
+            this.diffVehicleIds(vehicleIds, addedIds, removedIds);
+            this.fullIdSyncRequired = false;
+        } else {
+            this.nextDirectResult(codec).readStringList(addedIds);
+            this.nextDirectResult(codec).readStringList(removedIds);
+
+            // a vehicle may depart and arrive within one step, only known vehicles can be removed
+            for (String vehicleId : removedIds) {
+                addedIds.remove(vehicleId);
+            }
+
+            removedIds.removeIf(vehicleId -> !this.vehicles.containsKey(vehicleId));
+        }
+
+        return 1;
+    }
+
+    private TraciCodec nextDirectResult(TraciCodec codec) throws IOException {
+        if (!codec.nextResult()) {
+            throw new IOException("SUMO rejected a sync command: " + codec.getLastError());
         }
+
+        return codec;
     }
 
     /**
-     * Performs a batch vehicle injection
+     * Fetches lane positions instead of coordinates and computes the coordinates from the lane shapes.
+     * The lane id is only requested when a vehicle may have left its lane: when it is new, close to
+     * the end of its lane, the last check missed a change, or in turns every few steps on edges with
+     * parallel lanes. The lateral offset is only requested on edges with parallel lanes, a jump of it
+     * or a lane position outside the lane shows a missed lane change, whose lane is fetched by a second
+     * message in the same step. Coordinates are only fetched for lanes without known geometry.
      *
-     * @param batchSize the vehicle count to be inserted
+     * @return the number of TraCI round trips that were needed
      */
-    public void batchInjection(int batchSize) throws RuntimeException {
-        for (int i = 0; i < batchSize; ++i){
-            this.injectVehicle();
+    private int fetchLaneStatesDirect(List<SumoVehicle> vehicles, Set<String> addedIds) throws Exception {
+        if (this.syncStates.length < 6 * vehicles.size() || this.syncLanes.length < vehicles.size()) {
+            this.syncStates = new double[12 * vehicles.size()];
+            this.syncLanes = new SumoLane[2 * vehicles.size()];
+            this.syncRequests = new byte[2 * vehicles.size()];
+        }
+
+        double[] states = this.syncStates; // lane position, lateral offset, speed, max speed, x, y per vehicle
+        SumoLane[] lanes = this.syncLanes;
+        byte[] requests = this.syncRequests;
+        TraciCodec codec = this.codec;
+        codec.begin();
+
+        for (int i = 0; i < vehicles.size(); ++i) {
+            SumoVehicle vehicle = vehicles.get(i);
+            SumoLane lane = vehicle.getLane();
+            boolean parallelLanes = lane != null && lane.getEdge().getLanes().size() > 1;
+            byte request = parallelLanes ? REQUEST_LATERAL : 0;
+
+            if (lane == null
+                    || vehicle.laneRefreshRequired
+                    || vehicle.getLanePosition() + 2.0 * vehicle.get_speed() * this.stepLength >= lane.getLength()
+                    || (parallelLanes && Math.floorMod(vehicle.get_vehId().hashCode() + this.stepCount, LANE_REFRESH_INTERVAL) == 0)) {
+                request = REQUEST_LANE | REQUEST_LATERAL;
+            }
+
+            requests[i] = request;
+            this.requestLaneState(codec, vehicle.get_vehId(), request);
+            codec.get(Constants.CMD_GET_VEHICLE_VARIABLE, Constants.VAR_LANEPOSITION, vehicle.get_vehId());
+            codec.get(Constants.CMD_GET_VEHICLE_VARIABLE, Constants.VAR_SPEED, vehicle.get_vehId());
+
+            if (addedIds.contains(vehicle.get_vehId())) {
+                codec.get(Constants.CMD_GET_VEHICLE_VARIABLE, Constants.VAR_MAXSPEED, vehicle.get_vehId());
+            }
+        }
+
+        codec.send();
+        int followUps = 0;
+
+        for (int i = 0; i < vehicles.size(); ++i) {
+            SumoVehicle vehicle = vehicles.get(i);
+            int offset = 6 * i;
+            lanes[i] = vehicle.getLane();
+            states[offset + 1] = vehicle.getLateralOffset();
+            states[offset + 4] = Double.NaN;
+            this.readLaneState(codec, requests[i], lanes, states, i);
+
+            states[offset] = codec.nextResult() ? codec.readDouble() : Double.NaN;
+            states[offset + 2] = codec.nextResult() ? codec.readDouble() : Double.NaN;
+            states[offset + 3] = addedIds.contains(vehicle.get_vehId()) && codec.nextResult() ? codec.readDouble() : Double.NaN;
+
+            SumoLane lane = lanes[i];
+            double lanePosition = states[offset];
+            byte request = requests[i];
+            requests[i] = 0;
+
+            if (Double.isNaN(states[offset + 2])) {
+                continue; // the vehicle left between the id request and this one
+            }
+
+            if ((request & REQUEST_LANE) != 0) {
+                if (lane == null) {
+                    requests[i] = REQUEST_POSITION; // a lane without geometry, the coordinates are needed
+                    ++followUps;
+                }
+            } else if (lane != null
+                    && (lanePosition < vehicle.getLanePosition() - 0.01
+                    || lanePosition > lane.getLength() + 0.01
+                    || Math.abs(states[offset + 1] - vehicle.getLateralOffset()) > 0.5 * lane.getLaneWidth())) {
+                // a position that moved backwards or beyond the lane end, or a lateral offset that jumped to the
+                // other side of the lane center, means the vehicle changed lanes since the last check
+                requests[i] = REQUEST_LANE | REQUEST_LATERAL;
+                ++followUps;
+            }
+        }
+
+        if (followUps > 0) {
+            codec.begin();
+
+            for (int i = 0; i < vehicles.size(); ++i) {
+                this.requestLaneState(codec, vehicles.get(i).get_vehId(), requests[i]);
+            }
+
+            codec.send();
+
+            for (int i = 0; i < vehicles.size(); ++i) {
+                if ((requests[i] & REQUEST_LANE) != 0) {
+                    lanes[i] = null; // the lane known before the step is wrong
+                }
+
+                this.readLaneState(codec, requests[i], lanes, states, i);
+            }
+        }
+
+        for (int i = 0; i < vehicles.size(); ++i) {
+            SumoVehicle vehicle = vehicles.get(i);
+            int offset = 6 * i;
+            SumoLane lane = lanes[i];
+            double lanePosition = states[offset];
+            double speed = states[offset + 2];
+
+            if (!Double.isNaN(states[offset + 3])) {
+                vehicle.setMaxSpeed(states[offset + 3]);
+            }
+
+            if (Double.isNaN(speed)) {
+                continue; // the vehicle left between the id request and this one
+            }
+
+            if (lane != null && !Double.isNaN(lanePosition)) {
+                vehicle.setLaneState(lane, lanePosition, states[offset + 1], speed, this.locateScratch);
+                vehicle.laneRefreshRequired = false;
+            } else {
+                if (!Double.isNaN(states[offset + 4])) {
+                    vehicle.setState(states[offset + 4], states[offset + 5], speed);
+                }
+
+                vehicle.laneRefreshRequired = true;
+            }
+        }
+
+        return followUps > 0 ? 2 : 1;
+    }
+
+    /**
+     * Appends the get commands of the lane sync variables selected by a request mask.
+     */
+    private void requestLaneState(TraciCodec codec, String vehicleId, byte request) {
+        if ((request & REQUEST_LANE) != 0) {
+            codec.get(Constants.CMD_GET_VEHICLE_VARIABLE, Constants.VAR_LANE_ID, vehicleId);
+        }
+
+        if ((request & REQUEST_LATERAL) != 0) {
+            codec.get(Constants.CMD_GET_VEHICLE_VARIABLE, Constants.VAR_LANEPOSITION_LAT, vehicleId);
+        }
+
+        if ((request & REQUEST_POSITION) != 0) {
+            codec.get(Constants.CMD_GET_VEHICLE_VARIABLE, Constants.VAR_POSITION, vehicleId);
+        }
+    }
+
+    /**
+     * Reads the results of {@link #requestLaneState} into the sync arrays, values that could not be read are kept.
+     */
+    private void readLaneState(TraciCodec codec, byte request, SumoLane[] lanes, double[] states, int i) throws IOException {
+        if ((request & REQUEST_LANE) != 0) {
+            // lane ids only create a string when they are checked
+            lanes[i] = codec.nextResult() ? this.lanesById.get(codec.readString()) : null;
+        }
+
+        if ((request & REQUEST_LATERAL) != 0 && codec.nextResult()) {
+            states[6 * i + 1] = codec.readDouble();
+        }
+
+        if ((request & REQUEST_POSITION) != 0 && codec.nextResult()) {
+            codec.readPosition(states, 6 * i + 4);
+        }
+    }
+
+    /**
+     * Compares a complete id list with the tracked vehicles.
+     */
+    private void diffVehicleIds(List<String> vehicleIds, Set<String> addedIds, Set<String> removedIds) {
+        Set<String> storedIds = new HashSet<>(this.vehicles.keySet()); // copy a set of all tracked vehicles
+
+        for (String vehicleId : vehicleIds) {
+            if (!storedIds.remove(vehicleId)) {
+                // if the vehicle is not present,
+                // it was just added to the simulation
+                addedIds.add(vehicleId);
+            }
+        }
+
+        // storedIds now only contains ids from vehicles
+        // that are no longer present in the simulation
+        removedIds.addAll(storedIds);
+    }
+
+    /**
+     * Fetches the states of vehicles through TraaS, one round trip per variable.
+     *
+     * @return the number of TraCI round trips that were needed
+     */
+    private int fetchVehicleStates(List<SumoVehicle> vehicles) throws Exception {
+        for (SumoVehicle vehicle : vehicles) {
+            vehicle.update(this.connection);
+        }
+
+        return SumoVehicle.SYNC_ROUND_TRIPS * vehicles.size();
+    }
+
+    /**
+     * Fetches the states of vehicles in one round trip and decodes them into a reused array.
+     * The max speed is only fetched for new vehicles since it does not change.
+     *
+     * @return the number of TraCI round trips that were needed
+     */
+    private int fetchVehicleStatesDirect(List<SumoVehicle> vehicles, Set<String> addedIds) throws Exception {
+        if (vehicles.isEmpty()) {
+            return 0;
+        }
+
+        if (this.laneSync) {
+            return this.fetchLaneStatesDirect(vehicles, addedIds);
+        }
+
+        if (this.syncStates.length < 4 * vehicles.size()) {
+            this.syncStates = new double[8 * vehicles.size()];
+        }
+
+        double[] states = this.syncStates; // x, y, speed, max speed per vehicle
+        TraciCodec codec = this.codec;
+        codec.begin();
+
+        for (SumoVehicle vehicle : vehicles) {
+            codec.get(Constants.CMD_GET_VEHICLE_VARIABLE, Constants.VAR_POSITION, vehicle.get_vehId());
+            codec.get(Constants.CMD_GET_VEHICLE_VARIABLE, Constants.VAR_SPEED, vehicle.get_vehId());
+
+            if (addedIds.contains(vehicle.get_vehId())) {
+                codec.get(Constants.CMD_GET_VEHICLE_VARIABLE, Constants.VAR_MAXSPEED, vehicle.get_vehId());
+            }
+        }
+
+        codec.send();
+
+        for (int i = 0; i < vehicles.size(); ++i) {
+            int offset = 4 * i;
+            boolean valid = codec.nextResult();
+
+            if (valid) {
+                codec.readPosition(states, offset);
+            }
+
+            if (codec.nextResult()) {
+                states[offset + 2] = codec.readDouble();
+            } else {
+                valid = false;
+            }
+
+            states[offset + 3] = Double.NaN;
+
+            if (addedIds.contains(vehicles.get(i).get_vehId()) && codec.nextResult()) {
+                states[offset + 3] = codec.readDouble();
+            }
+
+            if (!valid) {
+                // the vehicle left between the id request and this one, it is removed with the next step
+                states[offset] = Double.NaN;
+            }
+        }
+
+        for (int i = 0; i < vehicles.size(); ++i) {
+            int offset = 4 * i;
+            SumoVehicle vehicle = vehicles.get(i);
+
+            if (!Double.isNaN(states[offset])) {
+                vehicle.setState(states[offset], states[offset + 1], states[offset + 2]);
+            }
+
+            if (!Double.isNaN(states[offset + 3])) {
+                vehicle.setMaxSpeed(states[offset + 3]);
+            }
+        }
+
+        return 1;
+    }
+
+    /**
+     * Closes and thereby ends the connection to the SUMO instance.
+     */
+    @Override
+    public void close() {
+        this.shouldStopSimulation = true;
+        this.worker.shutdown();
+        this.ioExecutor.shutdownNow();
+
+        if (!this.isClosed()) {
+            this.connection.close();
+        }
+    }
+
+    /**
+     * @return whether the connection is closed
+     */
+    @Override
+    public boolean isClosed() {
+        return this.connection.isClosed();
+    }
+
+    /**
+     * Sets the update listener.
+     * Whenever the simulation gets updated,
+     * a listener object receives a ping to indicate
+     * that new simulation data is available.
+     *
+     * @param updateListener the update listener
+     */
+    @Override
+    public void setUpdateListener(Runnable updateListener) {
+        this.updateListener = updateListener;
+    }
+
+    /**
+     * Sets the executor on which step and continuous run callbacks are executed.
+     * UI clients pass their UI thread executor here, by default callbacks run on the worker thread.
+     *
+     * @param callbackExecutor the callback executor
+     */
+    @Override
+    public void setCallbackExecutor(Executor callbackExecutor) {
+        this.callbackExecutor = callbackExecutor != null ? callbackExecutor : Runnable::run;
+    }
+
+    /**
+     * @return an executor backed by virtual threads for I/O bound side tasks
+     *         (recording, injection) that must not block the worker or the UI
+     */
+    public Executor getIoExecutor() {
+        return this.ioExecutor;
+    }
+
+    /**
+     * @return the current simulation timestamp in seconds
+     */
+    @Override
+    public double getTime() {
+        return this.time;
+    }
+
+    /**
+     * @return the number of vehicles that entered the simulation in the last step
+     */
+    public int getDepartedVehicleCount() {
+        return this.departedVehicleCount;
+    }
+
+    /**
+     * @return the number of vehicles that left the simulation in the last step
+     */
+    public int getArrivedVehicleCount() {
+        return this.arrivedVehicleCount;
+    }
+
+    /**
+     * @return the ids of the vehicles that entered the simulation in the last step, only valid on the simulation thread
+     */
+    Set<String> getDepartedVehicleIds() {
+        return this.departedVehicleIds;
+    }
+
+    /**
+     * @return the ids of the vehicles that left the simulation in the last step, only valid on the simulation thread
+     */
+    Set<String> getArrivedVehicleIds() {
+        return this.arrivedVehicleIds;
+    }
+
+    /**
+     * @return the counters and latency histograms of this simulation
+     */
+    public SimulationMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * @return the duration it took to perform one sumo simulation step
+     */
+    @Override
+    public long getSimulationStepDuration() {
+        return this.simulationStepDuration;
+    }
+
+    /**
+     * @return the duration it took to sync the java application with sumo
+     */
+    @Override
+    public long getUpdateStepDuration() {
+        return this.updateStepDuration;
+    }
+
+    /**
+     * @return the duration it took to run all step controllers
+     */
+    @Override
+    public long getControllerStepDuration() {
+        return this.controllerStepDuration;
+    }
+
+    /**
+     * Registers a step controller that is called on the simulation thread after every step.
+     * Controllers run in registration order.
+     *
+     * @param controller the controller
+     * @param budgetNanos the time a single call may take, 0 for no budget
+     * @param skipSteps the number of steps the controller is skipped after exceeding its budget, 0 to only report
+     */
+    public void addStepController(StepController controller, long budgetNanos, int skipSteps) {
+        this.controllers.add(controller, budgetNanos, skipSteps);
+    }
+
+    /**
+     * Removes a previously registered step controller.
+     *
+     * @param controller the controller
+     */
+    public void removeStepController(StepController controller) {
+        this.controllers.remove(controller);
+    }
+
+    /**
+     * Registers a recorder that is called on the simulation thread after every step but those of a warm-up,
+     * whose vehicle states are not synced.
+     *
+     * @param recorder the recorder
+     */
+    @Override
+    public void addStateRecorder(StateRecorder recorder) {
+        RecorderController controller = new RecorderController(recorder);
+
+        if (this.recorders.putIfAbsent(recorder, controller) == null) {
+            this.controllers.add(controller, 0L, 0);
+        }
+    }
+
+    /**
+     * Removes a previously registered recorder.
+     *
+     * @param recorder the recorder
+     */
+    @Override
+    public void removeStateRecorder(StateRecorder recorder) {
+        RecorderController controller = this.recorders.remove(recorder);
+
+        if (controller != null) {
+            this.controllers.remove(controller);
+        }
+    }
+
+    /**
+     * @return the number of registered step controllers, recorders included
+     */
+    @Override
+    public int getStepControllerCount() {
+        return this.controllers.getStatistics().size();
+    }
+
+    /**
+     * @return the pipeline of all step controllers including their timing statistics
+     */
+    public ControllerPipeline getStepControllers() {
+        return this.controllers;
+    }
+
+    /**
+     * @return a list of all edges in the simulation
+     */
+    public List<SumoEdge> getEdges() {
+        return this.edges;
+    }
+
+    /**
+     * @return a list of all lanes in the simulation
+     */
+    public List<SumoLane> getLanes() {
+        return this.lanes;
+    }
+
+    /**
+     * @return the shapes of all lanes, indexed like the lane list
+     */
+    @Override
+    public NetworkGeometry getNetworkGeometry() {
+        return this.networkGeometry;
+    }
+
+    /**
+     * @param edgeId the id of the edge
+     * @return the index of the edge in the edge list or -1 if there is no such edge
+     */
+    public int getEdgeIndex(String edgeId) {
+        Integer index = this.edgeIndices.get(edgeId);
+        return index != null ? index : -1;
+    }
+
+    /**
+     * @return the table of all routes known from the route files
+     */
+    public RouteTable getRoutes() {
+        return this.routes;
+    }
+
+    /**
+     * @return the graph of the road network used for routing
+     */
+    public RoadGraph getRoadGraph() {
+        return this.roadGraph;
+    }
+
+    /**
+     * Stores route definitions in a route table linked to the edges of this simulation.
+     *
+     * @param definitions route ids mapped to their ordered edge ids
+     * @return the route table
+     */
+    RouteTable createRouteTable(Map<String, String[]> definitions) {
+        return RouteTable.build(definitions, this.edges, this.edgeIndices);
+    }
+
+    /**
+     * @param laneId the id of the lane
+     * @return the lane or null if there is no such lane
+     */
+    public SumoLane getLane(String laneId) {
+        return this.lanesById.get(laneId);
+    }
+
+    /**
+     * @return the per-edge measures of the last step and their network wide aggregates,
+     *         only measured while a consumer is registered
+     */
+    public EdgeStatistics getEdgeStatistics() {
+        return this.edgeStatistics;
+    }
+
+    /**
+     * @return the smoothed travel times of all edges
+     */
+    public TravelTimeEstimator getTravelTimes() {
+        return this.travelTimes;
+    }
+
+    /**
+     * Enables or disables dynamic rerouting.
+     * While enabled, vehicles whose remaining route crosses an edge with a changed travel time
+     * estimate are checked every few steps and sent on a faster route if there is one.
+     *
+     * @param enabled whether vehicles are rerouted
+     */
+    @Override
+    public synchronized void setRerouting(boolean enabled) {
+        if (enabled && this.reroutingService == null) {
+            // the travel time estimates follow the edge speeds
+            this.edgeStatistics.addConsumer(this.travelTimes);
+            this.reroutingService = new ReroutingService(this, this.connection, this.codec, this.travelTimes, REROUTING_INTERVAL);
+            this.controllers.add(this.reroutingService, 0L, 0);
+        } else if (!enabled && this.reroutingService != null) {
+            this.controllers.remove(this.reroutingService);
+            this.reroutingService = null;
+            this.edgeStatistics.removeConsumer(this.travelTimes);
+        }
+    }
+
+    /**
+     * Enables or disables the lane based vehicle sync.
+     * While enabled, vehicles are synced by lane and lane position and their coordinates and heading
+     * are computed from the lane shapes, which needs less data than coordinates and lets the renderer
+     * move vehicles along their lanes. Requires direct access to the TraCI socket.
+     *
+     * @param enabled whether vehicles are synced by lane position
+     */
+    @Override
+    public void setLaneSync(boolean enabled) {
+        this.laneSync = enabled && this.codec != null;
+    }
+
+    /**
+     * @return whether vehicles are synced by lane position
+     */
+    public boolean isLaneSync() {
+        return this.laneSync;
+    }
+
+    /**
+     * @return whether a warm-up is running, vehicle states are not synced during a warm-up
+     */
+    public boolean isWarmingUp() {
+        return this.fastForwarding;
+    }
+
+    /**
+     * @return whether dynamic rerouting is enabled
+     */
+    @Override
+    public synchronized boolean isRerouting() {
+        return this.reroutingService != null;
+    }
+
+    /**
+     * Sets the visible area of the network.
+     * Vehicles around it are synced with every step, all others only every few steps.
+     * The viewport is applied at the next step boundary.
+     *
+     * @param minX the left border in network coordinates
+     * @param minY the bottom border in network coordinates
+     * @param maxX the right border in network coordinates
+     * @param maxY the top border in network coordinates
+     */
+    @Override
+    public void setViewport(double minX, double minY, double maxX, double maxY) {
+        // aggregates cannot be taken from the vehicles whilst most of them are outdated
+        this.edgeStatistics.addConsumer(this.viewportSync);
+        this.viewportSync.setViewport(new double[] { minX, minY, maxX, maxY });
+    }
+
+    /**
+     * Disables the viewport based level of detail, all vehicles are synced with every step again.
+     */
+    @Override
+    public void clearViewport() {
+        this.viewportSync.setViewport(null);
+        this.edgeStatistics.removeConsumer(this.viewportSync);
+    }
+
+    /**
+     * @param steps the number of steps between two syncs of a vehicle outside the viewport
+     */
+    public void setOutsideViewportSyncInterval(int steps) {
+        this.viewportSync.setOutsideSyncInterval(steps);
+    }
+
+    /**
+     * @return the traffic light systems of the simulation
+     */
+    @Override
+    public TrafficLightSystem getTrafficLights() {
+        return this.trafficLights;
+    }
+
+    /**
+     * Queues a program switch, see {@link CommandQueue#setTrafficLightProgram}.
+     */
+    @Override
+    public void setTrafficLightProgram(String tlsId, String programId) {
+        this.commandQueue.setTrafficLightProgram(tlsId, programId);
+    }
+
+    /**
+     * Queues a phase switch, see {@link CommandQueue#setTrafficLightPhase}.
+     */
+    @Override
+    public void setTrafficLightPhase(String tlsId, int phase) {
+        this.commandQueue.setTrafficLightPhase(tlsId, phase);
+    }
+
+    /**
+     * Queues a new remaining phase duration, see {@link CommandQueue#setTrafficLightPhaseDuration}.
+     */
+    @Override
+    public void setTrafficLightPhaseDuration(String tlsId, double duration) {
+        this.commandQueue.setTrafficLightPhaseDuration(tlsId, duration);
+    }
+
+    /**
+     * Queues a batch of program and phase switches, see {@link CommandQueue#applyTrafficLightPlan}.
+     */
+    @Override
+    public void applyTrafficLightPlan(Map<String, String> programs, Map<String, Integer> phases) {
+        this.commandQueue.applyTrafficLightPlan(programs, phases);
+    }
+
+    /**
+     * @return the queue for commands that are sent in one batch at the next step boundary,
+     *         e.g. traffic light program and phase changes
+     */
+    public CommandQueue getCommandQueue() {
+        return this.commandQueue;
+    }
+
+    /**
+     * @return an immutable collection of all vehicles in the simulation after the last completed step
+     */
+    @Override
+    public Collection<SumoVehicle> getVehicles() {
+        return this.publishedVehicles;
+    }
+
+    /**
+     * @return the mean speed of all vehicles in m/s
+     */
+    @Override
+    public double getMeanSpeed() {
+        if (this.edgeStatistics.isActive()) {
+            // taken from the edge measures, vehicle speeds may be outdated when only the visible area is synced
+            return this.edgeStatistics.getMeanSpeed();
+        }
+
+        Collection<SumoVehicle> vehicles = this.publishedVehicles;
+
+        if (vehicles.isEmpty()) {
+            return 0.0;
+        }
+
+        double speedSum = 0.0;
+
+        for (SumoVehicle vehicle : vehicles) {
+            speedSum += vehicle.get_speed();
+        }
+
+        return speedSum / (double)vehicles.size();
+    }
+
+    /**
+     * @param vehicleId the id of the vehicle
+     * @return the last published state of the vehicle or null if there is no such vehicle
+     */
+    @Override
+    public SumoVehicle getVehicle(String vehicleId) {
+        SumoVehicle vehicle = this.vehicleIndex.get(vehicleId);
+        return vehicle != null ? vehicle.getPublished() : null;
+    }
+
+    /**
+     * Looks up vehicles by the beginning of their id.
+     * The index is sorted and kept up to date on arrivals and departures, so a lookup
+     * only costs a logarithmic search plus the returned entries.
+     *
+     * @param prefix the beginning of the id
+     * @param limit the maximum number of ids to return
+     * @return the matching ids in lexicographic order
+     */
+    @Override
+    public List<String> findVehicleIds(String prefix, int limit) {
+        List<String> ids = new ArrayList<>(Math.min(limit, 64));
+
+        for (String vehicleId : this.vehicleIndex.tailMap(prefix, true).keySet()) {
+            if (ids.size() >= limit || !vehicleId.startsWith(prefix)) {
+                break;
+            }
+
+            ids.add(vehicleId);
+        }
+
+        return ids;
+    }
+
+    /**
+     * Selects a vehicle whose extra variables are subscribed from the next step on.
+     *
+     * @param vehicleId the id of the vehicle or null to clear the selection
+     * @return the details of the vehicle, filled with the next step, or null
+     */
+    @Override
+    public VehicleDetails selectVehicle(String vehicleId) {
+        return this.vehicleSelection.select(vehicleId);
+    }
+
+    /**
+     * @return the details of the selected vehicle or null if no vehicle is selected
+     */
+    public VehicleDetails getSelectedVehicleDetails() {
+        return this.vehicleSelection.getDetails();
+    }
+
+    /**
+     * Replaces the random generator of all demand decisions of this simulation,
+     * a seeded generator makes the injected vehicles and their routes reproducible.
+     *
+     * @param random the random generator
+     */
+    public void setRandom(Random random) {
+        this.random = random;
+    }
+
+    /**
+     * @return the random generator of all demand decisions of this simulation
+     */
+    public Random getRandom() {
+        return this.random;
+    }
+
+    /**
+     * Creates a prefix for the vehicle ids of a demand source. Prefixes are numbered per simulation,
+     * so two runs creating their sources in the same order use the same vehicle ids.
+     *
+     * @param name the name of the demand source
+     * @return a prefix that was not handed out before by this simulation
+     */
+    public String createVehicleIdPrefix(String name) {
+        return name + this.vehicleIdPrefixCount.incrementAndGet() + "_";
+    }
+
+    /**
+     * Performs a vehicle injection on a random route.
+     */
+    public void injectVehicle() throws RuntimeException {
+        if (this.routes.size() == 0) {
+            throw new RuntimeException("Failed to inject vehicle, no routes are available");
+        }
+
+        String routeId = this.routes.getRouteId(this.routes.randomRouteIndex(this.random));
+
+        try {
+            this.addVehicle(routeId);
+        } catch (Exception exception) {
+            throw new RuntimeException("Failed to inject vehicle", exception);
+        }
+    }
+
+    /**
+     * Performs a vehicle injection on the fastest route between two edges.
+     * The route is searched in the road graph, SUMO only receives each distinct route once.
+     *
+     * @param fromEdgeId the id of the edge the vehicle departs on
+     * @param toEdgeId the id of the edge the vehicle arrives on
+     */
+    public void injectVehicle(String fromEdgeId, String toEdgeId) throws RuntimeException {
+        int from = this.getEdgeIndex(fromEdgeId);
+        int to = this.getEdgeIndex(toEdgeId);
+
+        if (from < 0 || to < 0) {
+            throw new RuntimeException("Failed to inject vehicle, unknown edge " + (from < 0 ? fromEdgeId : toEdgeId));
+        }
+
+        IntBuffer route = this.roadGraph.findRoute(from, to);
+
+        if (route == null) {
+            throw new RuntimeException("Failed to inject vehicle, there is no route from " + fromEdgeId + " to " + toEdgeId);
+        }
+
+        String routeId = "graphRoute_" + this.graphRouteEpoch + "_" + from + "_" + to;
+
+        try {
+            if (this.addedGraphRoutes.add(routeId)) {
+                try {
+                    this.connection.do_job_set(Route.add(routeId, this.toEdgeIds(route)));
+                    this.metrics.recordRoundTrips(1);
+                } catch (Exception exception) {
+                    this.addedGraphRoutes.remove(routeId);
+                    throw exception;
+                }
+            }
+
+            this.addVehicle(routeId);
+        } catch (Exception exception) {
+            throw new RuntimeException("Failed to inject vehicle", exception);
+        }
+    }
+
+    /**
+     * Queues a vehicle on the fastest route between two edges, it departs with the next step.
+     * Unlike {@link #injectVehicle(String, String)} this does not wait for SUMO, the route and the
+     * vehicle are sent with all other queued commands at the next step boundary.
+     *
+     * @param vehicleId the id of the new vehicle
+     * @param from the edge index of the edge the vehicle departs on
+     * @param to the edge index of the edge the vehicle arrives on
+     * @return whether there is a route between the edges
+     */
+    public boolean queueVehicle(String vehicleId, int from, int to) {
+        IntBuffer route = this.roadGraph.findRoute(from, to);
+
+        if (route == null) {
+            return false;
+        }
+
+        String routeId = "queuedRoute_" + this.graphRouteEpoch + "_" + from + "_" + to;
+
+        // commands are sent in order, so the route is known to SUMO before the vehicle, direct injections
+        // use their own route ids and never rely on a route that is still queued
+        if (this.queuedGraphRoutes.add(routeId)) {
+            this.commandQueue.add(Route.add(routeId, this.toEdgeIds(route)));
+        }
+
+        this.commandQueue.add(Vehicle.add(vehicleId, "DEFAULT_VEHTYPE", routeId, (int)Math.ceil(this.time), 0.0, 10.0, (byte)0));
+        this.metrics.recordInjection();
+        return true;
+    }
+
+    private SumoStringList toEdgeIds(IntBuffer route) {
+        SumoStringList edgeIds = new SumoStringList();
+
+        for (int i = 0; i < route.limit(); ++i) {
+            edgeIds.add(this.edges.get(route.get(i)).getEdgeId());
+        }
+
+        return edgeIds;
+    }
+
+    /**
+     * Adds a vehicle of the default type that departs as soon as possible.
+     *
+     * @param routeId the id of a route known to SUMO
+     * @throws Exception if an api error occurs
+     */
+    private void addVehicle(String routeId) throws Exception {
+        this.connection.do_job_set(Vehicle.add(
+                "injectedVeh_" + this.injectedVehicleCount.getAndIncrement(),
+                "DEFAULT_VEHTYPE",
+                routeId,
+                (int)Math.ceil(this.time),
+                0.0,
+                10.0,
+                (byte)0)
+        );
+        this.metrics.recordRoundTrips(1);
+        this.metrics.recordInjection();
+    }
+
+    /**
+     * Performs a batch vehicle injection
+     *
+     * @param batchSize the vehicle count to be inserted
+     */
+    public void batchInjection(int batchSize) throws RuntimeException {
+        for (int i = 0; i < batchSize; ++i){
+            this.injectVehicle();
+        }
+    }
+
+    /**
+     * Performs a batch vehicle injection on a virtual thread.
+     * The calling thread does not wait for the TraCI round trips.
+     *
+     * @param batchSize the vehicle count to be inserted
+     * @return a future that completes once all vehicles are injected
+     */
+    @Override
+    public CompletableFuture<Void> batchInjectionAsync(int batchSize) {
+        return CompletableFuture.runAsync(() -> this.batchInjection(batchSize), this.ioExecutor);
+    }
+
+    /**
+     * Injects a vehicle on the fastest route between two edges on a virtual thread.
+     *
+     * @param fromEdgeId the edge the vehicle departs from
+     * @param toEdgeId the edge the vehicle drives to
+     * @return a future that completes once the vehicle is injected
+     */
+    @Override
+    public CompletableFuture<Void> injectVehicleAsync(String fromEdgeId, String toEdgeId) {
+        return CompletableFuture.runAsync(() -> this.injectVehicle(fromEdgeId, toEdgeId), this.ioExecutor);
+    }
+
+    /**
+     * Feeds a state recorder from the step controllers.
+     */
+    private static class RecorderController implements StepController {
+        private final StateRecorder recorder;
+
+        private RecorderController(StateRecorder recorder) {
+            this.recorder = recorder;
+        }
+
+        @Override
+        public void onStep(StepSnapshot snapshot, CommandQueue commands) {
+            if (!snapshot.isWarmingUp()) {
+                this.recorder.record(snapshot.getTime(), snapshot.getVehicles());
+            }
+        }
+
+        @Override
+        public String getName() {
+            return this.recorder.getName();
         }
     }
 }
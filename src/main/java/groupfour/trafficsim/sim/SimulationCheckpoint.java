@@ -0,0 +1,248 @@
+package groupfour.trafficsim.sim;
+
+import de.tudresden.sumo.objects.SumoColor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * A saved simulation state that can be loaded again at any time, also by a later session.
+ * SUMO writes its state to a file, the Java side keeps a copy of its vehicle store,
+ * so loading a checkpoint does not have to fetch every vehicle again.
+ * <p>
+ * A checkpoint file starts with the length of the SUMO state file and its content, followed by the
+ * Java side: the time, the counters that new vehicle and route ids are made of and the vehicle store.
+ * <p>
+ * Clients of an engine process only get a description of a checkpoint, the file stays on the machine
+ * of the engine and only the engine can load it.
+ *
+ * @author 8wf92323f
+ */
+public class SimulationCheckpoint {
+    private static final int MAGIC = 0x54534350; // "TSCP"
+    private static final int VERSION = 1;
+    private static final long STATE_OFFSET = 4 + 4 + 8; // magic, version, state length
+    private final String name;
+    private final Path file;
+    private final long stateLength;
+    private final double time;
+    private final long injectedVehicleCount;
+    private final int vehicleIdPrefixCount;
+    private final int graphRouteEpoch;
+    private final List<SumoVehicle> vehicles; // null if the checkpoint only describes a file of an engine process
+    private final int vehicleCount;
+
+    SimulationCheckpoint(String name, Path file, long stateLength, double time, long injectedVehicleCount,
+                         int vehicleIdPrefixCount, int graphRouteEpoch, List<SumoVehicle> vehicles) {
+        this.name = name;
+        this.file = file;
+        this.stateLength = stateLength;
+        this.time = time;
+        this.injectedVehicleCount = injectedVehicleCount;
+        this.vehicleIdPrefixCount = vehicleIdPrefixCount;
+        this.graphRouteEpoch = graphRouteEpoch;
+        this.vehicles = vehicles;
+        this.vehicleCount = vehicles.size();
+    }
+
+    private SimulationCheckpoint(String name, Path file, double time, int vehicleCount) {
+        this.name = name;
+        this.file = file;
+        this.stateLength = 0L;
+        this.time = time;
+        this.injectedVehicleCount = 0L;
+        this.vehicleIdPrefixCount = 0;
+        this.graphRouteEpoch = 0;
+        this.vehicles = null;
+        this.vehicleCount = vehicleCount;
+    }
+
+    /**
+     * Describes a checkpoint file of an engine process, the description cannot be loaded by a
+     * simulation in this process.
+     *
+     * @param name a human readable name of the checkpoint
+     * @param file the checkpoint file on the machine of the engine
+     * @param time the simulation time the checkpoint was taken at in seconds
+     * @param vehicleCount the number of vehicles in the checkpoint
+     * @return the description
+     */
+    public static SimulationCheckpoint describe(String name, Path file, double time, int vehicleCount) {
+        return new SimulationCheckpoint(name, file, time, vehicleCount);
+    }
+
+    /**
+     * Writes the checkpoint file.
+     *
+     * @param stateFile the state file written by SUMO, its content is copied into the checkpoint file
+     * @throws IOException if a file could not be read or written
+     */
+    void write(Path stateFile) throws IOException {
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(this.file)))) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(this.stateLength);
+            Files.copy(stateFile, output);
+
+            output.writeUTF(this.name);
+            output.writeDouble(this.time);
+            output.writeLong(this.injectedVehicleCount);
+            output.writeInt(this.vehicleIdPrefixCount);
+            output.writeInt(this.graphRouteEpoch);
+            output.writeInt(this.vehicles.size());
+
+            for (SumoVehicle vehicle : this.vehicles) {
+                SumoColor color = vehicle.get_color();
+                output.writeUTF(vehicle.get_vehId());
+                output.writeDouble(vehicle.get_position().x);
+                output.writeDouble(vehicle.get_position().y);
+                output.writeInt((color.r & 0xFF) << 24 | (color.g & 0xFF) << 16 | (color.b & 0xFF) << 8 | color.a & 0xFF);
+                output.writeDouble(vehicle.get_speed());
+                output.writeDouble(vehicle.get_maxSpeed());
+                output.writeUTF(vehicle.getLane() != null ? vehicle.getLane().getLaneId() : "");
+                output.writeDouble(vehicle.getLanePosition());
+                output.writeDouble(vehicle.getLateralOffset());
+                output.writeDouble(vehicle.get_angle());
+            }
+        }
+    }
+
+    /**
+     * Reads the Java side of a checkpoint file, the SUMO state is only copied out once it is loaded.
+     *
+     * @param file the checkpoint file
+     * @param lanes looks up the lanes of the vehicles, unknown lanes are left empty
+     * @return the checkpoint
+     * @throws IOException if the file could not be read or is no checkpoint file
+     */
+    static SimulationCheckpoint read(Path file, Function<String, SumoLane> lanes) throws IOException {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                throw new IOException(file + " is no checkpoint file of this version");
+            }
+
+            long stateLength = input.readLong();
+            input.skipNBytes(stateLength);
+
+            String name = input.readUTF();
+            double time = input.readDouble();
+            long injectedVehicleCount = input.readLong();
+            int vehicleIdPrefixCount = input.readInt();
+            int graphRouteEpoch = input.readInt();
+            int vehicleCount = input.readInt();
+            List<SumoVehicle> vehicles = new ArrayList<>(vehicleCount);
+
+            for (int i = 0; i < vehicleCount; ++i) {
+                SumoVehicle vehicle = new SumoVehicle(input.readUTF());
+                double x = input.readDouble();
+                double y = input.readDouble();
+                int color = input.readInt();
+                double speed = input.readDouble();
+                double maxSpeed = input.readDouble();
+                SumoLane lane = lanes.apply(input.readUTF());
+                double lanePosition = input.readDouble();
+                double lateralOffset = input.readDouble();
+                double angle = input.readDouble();
+
+                vehicle.restore(x, y, new SumoColor(color >>> 24, color >>> 16 & 0xFF, color >>> 8 & 0xFF, color & 0xFF),
+                        speed, maxSpeed, lane, lanePosition, lateralOffset, angle);
+                vehicles.add(vehicle);
+            }
+
+            return new SimulationCheckpoint(name, file, stateLength, time, injectedVehicleCount,
+                    vehicleIdPrefixCount, graphRouteEpoch, List.copyOf(vehicles));
+        }
+    }
+
+    /**
+     * Copies the SUMO state out of the checkpoint file, SUMO can only load it from a file of its own.
+     *
+     * @param target the file to write the state to
+     * @throws IOException if a file could not be read or written
+     */
+    void extractStateFile(Path target) throws IOException {
+        try (FileChannel source = FileChannel.open(this.file);
+             FileChannel destination = FileChannel.open(target, StandardOpenOption.WRITE,
+                     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = STATE_OFFSET;
+            long end = STATE_OFFSET + this.stateLength;
+
+            while (position < end) {
+                position += source.transferTo(position, end - position, destination);
+            }
+        }
+    }
+
+    /**
+     * @return a human readable name of the checkpoint
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * @return the checkpoint file
+     */
+    public Path getFile() {
+        return this.file;
+    }
+
+    /**
+     * @return the simulation time the checkpoint was taken at in seconds
+     */
+    public double getTime() {
+        return this.time;
+    }
+
+    /**
+     * @return the number of vehicles injected by the simulation before the checkpoint, the next injected
+     *         vehicle continues from it so ids stay unique after loading
+     */
+    long getInjectedVehicleCount() {
+        return this.injectedVehicleCount;
+    }
+
+    /**
+     * @return the number of vehicle id prefixes given out before the checkpoint
+     */
+    int getVehicleIdPrefixCount() {
+        return this.vehicleIdPrefixCount;
+    }
+
+    /**
+     * @return the epoch of the routes added through the road graph when the checkpoint was taken
+     */
+    int getGraphRouteEpoch() {
+        return this.graphRouteEpoch;
+    }
+
+    /**
+     * @return copies of all vehicles at the time the checkpoint was taken, null for a description
+     *         of a checkpoint of an engine process
+     */
+    List<SumoVehicle> getVehicles() {
+        return this.vehicles;
+    }
+
+    /**
+     * @return the number of vehicles in the checkpoint
+     */
+    public int getVehicleCount() {
+        return this.vehicleCount;
+    }
+
+    @Override
+    public String toString() {
+        return this.name;
+    }
+}
@@ -0,0 +1,246 @@
+package groupfour.trafficsim.sim;
+
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * The part of a simulation the user interface needs to drive and display it.
+ * Implemented by {@link Simulation}, which runs SUMO in this process, and by clients of an engine process,
+ * so the step loop can run in a separate JVM or on another machine.
+ *
+ * @author 8wf92323f
+ */
+public interface SimulationEngine {
+    /**
+     * Performs a single simulation step.
+     *
+     * @param callback a callback that is called once the step has finished
+     */
+    void step(Runnable callback);
+
+    /**
+     * Starts a continuous simulation, it runs until stopContinuous is called.
+     *
+     * @param callback a callback that is called once the simulation has stopped
+     */
+    void startContinuous(Runnable callback);
+
+    /**
+     * Notifies the continuous simulation or a warm-up that it should stop.
+     */
+    void stopContinuous();
+
+    /**
+     * Runs the simulation as fast as possible up to a target time.
+     *
+     * @param targetTime the simulation time to stop at in seconds
+     * @param callback a callback that is called once the warm-up has finished
+     */
+    void warmUp(double targetTime, Runnable callback);
+
+    /**
+     * Ends the connection to the simulation.
+     */
+    void close();
+
+    /**
+     * @return whether the connection is closed
+     */
+    boolean isClosed();
+
+    /**
+     * @param updateListener pinged whenever a new simulation state is available, may be null
+     */
+    void setUpdateListener(Runnable updateListener);
+
+    /**
+     * @param callbackExecutor the executor step and continuous run callbacks are executed on
+     */
+    void setCallbackExecutor(Executor callbackExecutor);
+
+    /**
+     * @return the current simulation time in seconds
+     */
+    double getTime();
+
+    /**
+     * @return all vehicles in the simulation
+     */
+    Collection<SumoVehicle> getVehicles();
+
+    /**
+     * @return the shapes of all lanes of the road network
+     */
+    NetworkGeometry getNetworkGeometry();
+
+    /**
+     * @return the traffic light systems of the simulation
+     */
+    TrafficLightSystem getTrafficLights();
+
+    /**
+     * @return the duration of the last SUMO step in nanoseconds
+     */
+    long getSimulationStepDuration();
+
+    /**
+     * @return the duration of the last sync of the vehicle states in nanoseconds
+     */
+    long getUpdateStepDuration();
+
+    /**
+     * @return the duration of the step controllers of the last step in nanoseconds
+     */
+    long getControllerStepDuration();
+
+    /**
+     * @return the number of registered step controllers
+     */
+    int getStepControllerCount();
+
+    /**
+     * @return the mean speed of all vehicles in m/s
+     */
+    double getMeanSpeed();
+
+    /**
+     * @param vehicleId the id of the vehicle
+     * @return the last known state of the vehicle or null if there is no such vehicle
+     */
+    SumoVehicle getVehicle(String vehicleId);
+
+    /**
+     * @param prefix the beginning of the id
+     * @param limit the maximum number of ids to return
+     * @return the ids of the vehicles starting with the prefix in lexicographic order
+     */
+    List<String> findVehicleIds(String prefix, int limit);
+
+    /**
+     * Selects a vehicle whose extra variables are fetched from the next step on.
+     *
+     * @param vehicleId the id of the vehicle or null to clear the selection
+     * @return the details of the vehicle, filled with the next step, or null
+     */
+    VehicleDetails selectVehicle(String vehicleId);
+
+    /**
+     * Registers a recorder that is called with the vehicles after every step.
+     *
+     * @param recorder the recorder
+     */
+    void addStateRecorder(StateRecorder recorder);
+
+    /**
+     * @param recorder a previously registered recorder
+     */
+    void removeStateRecorder(StateRecorder recorder);
+
+    /**
+     * Restricts the vehicles synced with every step to the visible area.
+     *
+     * @param minX the left border in network coordinates
+     * @param minY the bottom border in network coordinates
+     * @param maxX the right border in network coordinates
+     * @param maxY the top border in network coordinates
+     */
+    void setViewport(double minX, double minY, double maxX, double maxY);
+
+    /**
+     * Syncs all vehicles with every step again.
+     */
+    void clearViewport();
+
+    /**
+     * @param enabled whether vehicles are synced by lane position
+     */
+    void setLaneSync(boolean enabled);
+
+    /**
+     * @param enabled whether vehicles are sent on faster routes when travel times change
+     */
+    void setRerouting(boolean enabled);
+
+    /**
+     * @return whether dynamic rerouting is enabled
+     */
+    boolean isRerouting();
+
+    /**
+     * Switches a traffic light to another program with the next step.
+     *
+     * @param tlsId the id of the traffic light system
+     * @param programId the id of the program
+     */
+    void setTrafficLightProgram(String tlsId, String programId);
+
+    /**
+     * Switches a traffic light to another phase with the next step.
+     *
+     * @param tlsId the id of the traffic light system
+     * @param phase the index of the phase
+     */
+    void setTrafficLightPhase(String tlsId, int phase);
+
+    /**
+     * Sets the remaining duration of the current phase of a traffic light with the next step.
+     *
+     * @param tlsId the id of the traffic light system
+     * @param duration the remaining duration in seconds
+     */
+    void setTrafficLightPhaseDuration(String tlsId, double duration);
+
+    /**
+     * Applies programs and phases to many traffic lights in one batch with the next step.
+     *
+     * @param programs the program ids keyed by traffic light id
+     * @param phases the phase indices keyed by traffic light id
+     */
+    void applyTrafficLightPlan(Map<String, String> programs, Map<String, Integer> phases);
+
+    /**
+     * Injects vehicles on random routes without blocking the calling thread.
+     *
+     * @param batchSize the number of vehicles
+     * @return a future that completes once all vehicles are injected
+     */
+    CompletableFuture<Void> batchInjectionAsync(int batchSize);
+
+    /**
+     * Injects a vehicle on the fastest route between two edges without blocking the calling thread.
+     *
+     * @param fromEdgeId the edge the vehicle departs from
+     * @param toEdgeId the edge the vehicle drives to
+     * @return a future that completes once the vehicle is injected
+     */
+    CompletableFuture<Void> injectVehicleAsync(String fromEdgeId, String toEdgeId);
+
+    /**
+     * Saves the current state to a checkpoint file.
+     *
+     * @param name a human readable name of the checkpoint
+     * @param file the checkpoint file on the machine the simulation runs on, replaced if it exists
+     * @return a future that completes with the checkpoint once it is written
+     */
+    CompletableFuture<SimulationCheckpoint> saveCheckpoint(String name, Path file);
+
+    /**
+     * Reads a checkpoint file, e.g. one written by an earlier session.
+     *
+     * @param file the checkpoint file on the machine the simulation runs on
+     * @return a future that completes with the checkpoint, ready to be loaded
+     */
+    CompletableFuture<SimulationCheckpoint> openCheckpoint(Path file);
+
+    /**
+     * Returns to a saved state.
+     *
+     * @param checkpoint a checkpoint saved or opened by this simulation
+     * @return a future that completes once the state is loaded
+     */
+    CompletableFuture<Void> loadCheckpoint(SimulationCheckpoint checkpoint);
+}
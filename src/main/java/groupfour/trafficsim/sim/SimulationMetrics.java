@@ -0,0 +1,94 @@
+package groupfour.trafficsim.sim;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of a simulation, meant to be scraped from other threads.
+ * All values are updated lock-free on the simulation thread.
+ *
+ * @author 8wf92323f
+ */
+public class SimulationMetrics {
+    private final LongAdder steps = new LongAdder();
+    private final LongAdder injectedVehicles = new LongAdder();
+    private final LongAdder traciRoundTrips = new LongAdder();
+    private final LongAdder batchedTraciBytes = new LongAdder();
+    private final LatencyHistogram stepDurations = new LatencyHistogram();
+    private final LatencyHistogram syncDurations = new LatencyHistogram();
+    private final LatencyHistogram controllerDurations = new LatencyHistogram();
+
+    /**
+     * Records a completed step.
+     *
+     * @param stepNanos the time SUMO took to perform the step
+     * @param syncNanos the time it took to sync the Java side
+     * @param controllerNanos the time all step controllers took
+     */
+    void recordStep(long stepNanos, long syncNanos, long controllerNanos) {
+        this.steps.increment();
+        this.stepDurations.record(stepNanos);
+        this.syncDurations.record(syncNanos);
+        this.controllerDurations.record(controllerNanos);
+    }
+
+    void recordInjection() {
+        this.injectedVehicles.increment();
+    }
+
+    void recordRoundTrips(int count) {
+        this.traciRoundTrips.add(count);
+    }
+
+    void recordBatchedBytes(long bytes) {
+        this.batchedTraciBytes.add(bytes);
+    }
+
+    /**
+     * @return the number of completed steps
+     */
+    public long getSteps() {
+        return this.steps.sum();
+    }
+
+    /**
+     * @return the number of vehicles injected through the application
+     */
+    public long getInjectedVehicles() {
+        return this.injectedVehicles.sum();
+    }
+
+    /**
+     * @return the number of TraCI messages sent by the step loop and injections
+     */
+    public long getTraciRoundTrips() {
+        return this.traciRoundTrips.sum();
+    }
+
+    /**
+     * @return the number of bytes sent and received in batched TraCI messages, i.e. by the per-step sync
+     */
+    public long getBatchedTraciBytes() {
+        return this.batchedTraciBytes.sum();
+    }
+
+    /**
+     * @return the durations SUMO took to perform a step
+     */
+    public LatencyHistogram getStepDurations() {
+        return this.stepDurations;
+    }
+
+    /**
+     * @return the durations it took to sync the Java side after a step
+     */
+    public LatencyHistogram getSyncDurations() {
+        return this.syncDurations;
+    }
+
+    /**
+     * @return the durations all step controllers took
+     */
+    public LatencyHistogram getControllerDurations() {
+        return this.controllerDurations;
+    }
+}
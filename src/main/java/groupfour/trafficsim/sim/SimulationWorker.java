@@ -0,0 +1,75 @@
+package groupfour.trafficsim.sim;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A long-lived thread that executes simulation commands one after another.
+ * Commands are queued and run in submission order, so stepping never
+ * has to create a new thread.
+ *
+ * @author 8wf92323f
+ */
+class SimulationWorker {
+    private static final Logger LOGGER = LogManager.getLogger(SimulationWorker.class.getName());
+    private final BlockingQueue<Runnable> commands = new LinkedBlockingQueue<>();
+    private final Thread thread;
+    private volatile boolean shutdown = false;
+
+    /**
+     * Creates and starts the worker thread.
+     *
+     * @param name the name of the worker thread
+     */
+    SimulationWorker(String name) {
+        this.thread = Thread.ofPlatform()
+                .name(name)
+                .daemon(true)
+                .start(this::run);
+    }
+
+    private void run() {
+        while (!this.shutdown) {
+            Runnable command;
+
+            try {
+                command = this.commands.take();
+            } catch (InterruptedException interruptedException) {
+                // interrupted by shutdown
+                break;
+            }
+
+            try {
+                command.run();
+            } catch (Exception exception) {
+                // a failing command must never take the worker down
+                LOGGER.error("Exception in simulation command", exception);
+            }
+        }
+    }
+
+    /**
+     * Queues a command for execution on the worker thread.
+     *
+     * @param command the command to run
+     */
+    void submit(Runnable command) {
+        if (this.shutdown) {
+            throw new IllegalStateException("Worker has been shut down");
+        }
+
+        this.commands.add(command);
+    }
+
+    /**
+     * Stops the worker. Queued commands are discarded and a running command is interrupted.
+     */
+    void shutdown() {
+        this.shutdown = true;
+        this.commands.clear();
+        this.thread.interrupt();
+    }
+}
@@ -0,0 +1,27 @@
+package groupfour.trafficsim.sim;
+
+import java.util.Collection;
+
+/**
+ * Records the vehicles of every step, e.g. for the rewind or the heatmap.
+ * Unlike a {@link StepController} a recorder only reads the vehicles, so it can be fed by a simulation
+ * in this process as well as by the states an engine process streams to its clients.
+ *
+ * @author 8wf92323f
+ */
+public interface StateRecorder {
+    /**
+     * Called after each step with synced vehicles, steps of a warm-up are left out.
+     *
+     * @param time the simulation time of the step in seconds
+     * @param vehicles the vehicles after the step, neither the collection nor the vehicles change afterwards
+     */
+    void record(double time, Collection<SumoVehicle> vehicles);
+
+    /**
+     * @return a name used in statistics and log messages
+     */
+    default String getName() {
+        return this.getClass().getSimpleName();
+    }
+}
@@ -0,0 +1,26 @@
+package groupfour.trafficsim.sim;
+
+/**
+ * A plugin that runs in-process logic after every simulation step,
+ * e.g. adaptive signal control or rerouting.
+ * Controllers are called on the simulation thread once the Java side is in sync with SUMO.
+ * Changes are requested through the command queue and sent together at the next step boundary.
+ *
+ * @author 8wf92323f
+ */
+public interface StepController {
+    /**
+     * Called after each simulation step.
+     *
+     * @param snapshot the state of the simulation after the step
+     * @param commands the queue for commands to be sent with the next step
+     */
+    void onStep(StepSnapshot snapshot, CommandQueue commands);
+
+    /**
+     * @return a name used in statistics and log messages
+     */
+    default String getName() {
+        return this.getClass().getSimpleName();
+    }
+}
@@ -0,0 +1,127 @@
+package groupfour.trafficsim.sim;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A read-only view on the state of a simulation right after a step.
+ * It is only valid during the {@link StepController#onStep} call it is passed to.
+ *
+ * @author 8wf92323f
+ */
+public class StepSnapshot {
+    private final Simulation simulation;
+    private final long step;
+
+    StepSnapshot(Simulation simulation, long step) {
+        this.simulation = simulation;
+        this.step = step;
+    }
+
+    /**
+     * @return the number of steps performed since the simulation was connected
+     */
+    public long getStep() {
+        return this.step;
+    }
+
+    /**
+     * @return the current simulation timestamp in seconds
+     */
+    public double getTime() {
+        return this.simulation.getTime();
+    }
+
+    /**
+     * @return the ids of the vehicles that entered the simulation in this step
+     */
+    public Set<String> getDepartedVehicleIds() {
+        return Collections.unmodifiableSet(this.simulation.getDepartedVehicleIds());
+    }
+
+    /**
+     * @return the ids of the vehicles that left the simulation in this step
+     */
+    public Set<String> getArrivedVehicleIds() {
+        return Collections.unmodifiableSet(this.simulation.getArrivedVehicleIds());
+    }
+
+    /**
+     * @return the number of vehicles that entered the simulation in this step
+     */
+    public int getDepartedVehicleCount() {
+        return this.simulation.getDepartedVehicleCount();
+    }
+
+    /**
+     * @return the number of vehicles that left the simulation in this step
+     */
+    public int getArrivedVehicleCount() {
+        return this.simulation.getArrivedVehicleCount();
+    }
+
+    /**
+     * @return the time SUMO took to perform this step in nanoseconds
+     */
+    public long getSimulationStepDuration() {
+        return this.simulation.getSimulationStepDuration();
+    }
+
+    /**
+     * @return the time it took to sync the Java side after this step in nanoseconds
+     */
+    public long getUpdateStepDuration() {
+        return this.simulation.getUpdateStepDuration();
+    }
+
+    /**
+     * @return the time all step controllers took in the previous step in nanoseconds
+     */
+    public long getPreviousControllerStepDuration() {
+        return this.simulation.getControllerStepDuration();
+    }
+
+    /**
+     * @return the per-edge measures of this step, only measured while a consumer is registered
+     */
+    public EdgeStatistics getEdgeStatistics() {
+        return this.simulation.getEdgeStatistics();
+    }
+
+    /**
+     * @return whether the step is part of a warm-up, the vehicle states are not updated in that case
+     */
+    public boolean isWarmingUp() {
+        return this.simulation.isWarmingUp();
+    }
+
+    /**
+     * @return a collection of all vehicles in the simulation
+     */
+    public Collection<SumoVehicle> getVehicles() {
+        return this.simulation.getVehicles();
+    }
+
+    /**
+     * @return a list of all edges in the simulation
+     */
+    public List<SumoEdge> getEdges() {
+        return this.simulation.getEdges();
+    }
+
+    /**
+     * @return the traffic light systems of the simulation
+     */
+    public TrafficLightSystem getTrafficLights() {
+        return this.simulation.getTrafficLights();
+    }
+
+    /**
+     * @return the table of all routes known from the route files
+     */
+    public RouteTable getRoutes() {
+        return this.simulation.getRoutes();
+    }
+}
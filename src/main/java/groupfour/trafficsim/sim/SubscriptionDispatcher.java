@@ -0,0 +1,52 @@
+package groupfour.trafficsim.sim;
+
+import de.tudresden.sumo.subscription.ResponseType;
+import de.tudresden.sumo.subscription.SubscriptionObject;
+import de.tudresden.sumo.util.Observable;
+import de.tudresden.sumo.util.Observer;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Routes subscription results to the subsystems that requested them.
+ * TraaS only supports plain observers on the connection, so a single dispatcher
+ * is registered and forwards each result by its response type.
+ * Results are delivered on the thread performing the simulation step.
+ *
+ * @author 8wf92323f
+ */
+class SubscriptionDispatcher implements Observer {
+    /**
+     * The end time used for subscriptions that should last for the whole simulation (in seconds).
+     */
+    static final double END_OF_SIMULATION = 1.0e9;
+
+    private final Map<ResponseType, List<Consumer<SubscriptionObject>>> handlers = new EnumMap<>(ResponseType.class);
+
+    /**
+     * Registers a handler for all results of the given response type.
+     *
+     * @param type the response type, e.g. {@link ResponseType#TL_VARIABLE}
+     * @param handler the handler receiving the results
+     */
+    synchronized void register(ResponseType type, Consumer<SubscriptionObject> handler) {
+        this.handlers.computeIfAbsent(type, key -> new ArrayList<>()).add(handler);
+    }
+
+    @Override
+    public synchronized void update(Observable observable, SubscriptionObject object) {
+        List<Consumer<SubscriptionObject>> typeHandlers = this.handlers.get(object.response);
+
+        if (typeHandlers == null) {
+            return;
+        }
+
+        for (Consumer<SubscriptionObject> handler : typeHandlers) {
+            handler.accept(object);
+        }
+    }
+}
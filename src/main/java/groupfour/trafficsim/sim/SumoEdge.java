@@ -13,10 +13,12 @@ import java.util.List;
  */
 public class SumoEdge {
     private final String edgeId;
+    private final int index;
     private final List<SumoLane> lanes = new ArrayList<>();
 
-    public SumoEdge(String edgeId, SumoTraciConnection connection) throws Exception {
+    public SumoEdge(String edgeId, int index, SumoTraciConnection connection) throws Exception {
         this.edgeId = edgeId;
+        this.index = index;
 
         int laneCount = (int)connection.do_job_get(Edge.getLaneNumber(this.edgeId));
 
@@ -33,6 +35,14 @@ public class SumoEdge {
         return this.edgeId;
     }
 
+    /**
+     * @return the position of the edge in the simulations edge list,
+     *         used as compact edge reference in route and graph storage
+     */
+    public int getIndex() {
+        return this.index;
+    }
+
     /**
      * @return a list of all lanes on the edge
      */
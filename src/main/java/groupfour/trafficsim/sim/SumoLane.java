@@ -2,9 +2,15 @@ package groupfour.trafficsim.sim;
 
 import de.tudresden.sumo.cmd.Lane;
 import de.tudresden.sumo.objects.SumoGeometry;
+import de.tudresden.sumo.objects.SumoLink;
+import de.tudresden.sumo.objects.SumoLinkList;
 import de.tudresden.sumo.objects.SumoPosition2D;
+import de.tudresden.sumo.objects.SumoStringList;
 import it.polito.appeal.traci.SumoTraciConnection;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Wrapper class for a sumo lane
  *
@@ -12,8 +18,14 @@ import it.polito.appeal.traci.SumoTraciConnection;
  */
 public class SumoLane {
     private final String laneId;
-    private final double[][] geometry;
+    private float[] pendingShape; // x0, y0, x1, y1, ... until the lane is moved into the network geometry
+    private NetworkGeometry geometry = null;
+    private int geometryIndex = -1;
     private final double laneWidth;
+    private final double length;
+    private final double maxSpeed;
+    private final List<String> allowedClasses;
+    private final List<String> successorLaneIds = new ArrayList<>();
     private final SumoEdge edge;
 
     public SumoLane(String laneId, SumoEdge edge, SumoTraciConnection connection) throws Exception {
@@ -21,17 +33,77 @@ public class SumoLane {
         this.edge = edge;
 
         this.laneWidth = (double)connection.do_job_get(Lane.getWidth(this.laneId));
+        this.length = (double)connection.do_job_get(Lane.getLength(this.laneId));
+        this.maxSpeed = (double)connection.do_job_get(Lane.getMaxSpeed(this.laneId));
+        this.allowedClasses = List.copyOf((SumoStringList)connection.do_job_get(Lane.getAllowed(this.laneId)));
+
+        for (SumoLink link : (SumoLinkList)connection.do_job_get(Lane.getLinks(this.laneId))) {
+            this.successorLaneIds.add(link.notInternalLane);
+        }
 
         SumoGeometry geometry = (SumoGeometry)connection.do_job_get(Lane.getShape(laneId));
-        this.geometry = new double[geometry.coords.size()][2];
+        this.pendingShape = new float[2 * geometry.coords.size()];
 
         for (int i = 0; i < geometry.coords.size(); ++i) {
             SumoPosition2D pos = geometry.coords.get(i);
-            this.geometry[i][0] = pos.x;
-            this.geometry[i][1] = pos.y;
+            this.pendingShape[2 * i] = (float)pos.x;
+            this.pendingShape[2 * i + 1] = (float)pos.y;
         }
     }
 
+    /**
+     * Creates a lane of a network received from an engine process, only its shape and width are known.
+     *
+     * @param laneId the id of the lane
+     * @param geometry the received network geometry
+     * @param index the index of the lane in the geometry
+     */
+    SumoLane(String laneId, NetworkGeometry geometry, int index) {
+        this.laneId = laneId;
+        this.edge = null;
+        this.pendingShape = null;
+        this.geometry = geometry;
+        this.geometryIndex = index;
+        this.laneWidth = geometry.getWidth(index);
+        this.length = geometry.getShapeLength(index);
+        this.maxSpeed = 0.0;
+        this.allowedClasses = List.of();
+    }
+
+    /**
+     * @return the shape read from SUMO as long as the lane is not part of the network geometry
+     */
+    float[] getPendingShape() {
+        return this.pendingShape;
+    }
+
+    /**
+     * Hands the shape of the lane over to the network geometry.
+     *
+     * @param geometry the store now holding the shape
+     * @param index the index of the lane in the store
+     */
+    void attach(NetworkGeometry geometry, int index) {
+        this.geometry = geometry;
+        this.geometryIndex = index;
+        this.pendingShape = null;
+    }
+
+    /**
+     * Converts a position along the lane into network coordinates.
+     * SUMO measures lane positions along the lane length, which may differ from the length of the drawn
+     * shape, so the position is scaled to the shape first.
+     *
+     * @param lanePosition the distance from the start of the lane as reported by SUMO
+     * @param lateralOffset the offset to the left of the lane center
+     * @param target receives x, y and the heading in degrees, clockwise from north like SUMO angles
+     */
+    public void locate(double lanePosition, double lateralOffset, double[] target) {
+        double shapeLength = this.geometry.getShapeLength(this.geometryIndex);
+        double distance = this.length > 0.0 ? lanePosition * shapeLength / this.length : lanePosition;
+        this.geometry.locate(this.geometryIndex, distance, lateralOffset, target);
+    }
+
     /**
      * @return the id of the lane
      */
@@ -40,14 +112,42 @@ public class SumoLane {
     }
 
     /**
-     * @return the lanes geometry given as an array
-     *         of 2d coordinates
-     *         [[x0, y0], [x1, y1], ...]
+     * @return the geometry of the network holding the shape of the lane
      */
-    public double[][] getGeometry() {
+    public NetworkGeometry getGeometry() {
         return this.geometry;
     }
 
+    /**
+     * @return the index of the lane in the network geometry
+     */
+    public int getGeometryIndex() {
+        return this.geometryIndex;
+    }
+
+    /**
+     * @return the number of points of the lane shape
+     */
+    public int getPointCount() {
+        return this.geometry.getPointCount(this.geometryIndex);
+    }
+
+    /**
+     * @param point the index of the point
+     * @return the x coordinate of the point of the lane shape
+     */
+    public double getX(int point) {
+        return this.geometry.getX(this.geometryIndex, point);
+    }
+
+    /**
+     * @param point the index of the point
+     * @return the y coordinate of the point of the lane shape
+     */
+    public double getY(int point) {
+        return this.geometry.getY(this.geometryIndex, point);
+    }
+
     /**
      * @return the width of the lane
      */
@@ -56,7 +156,37 @@ public class SumoLane {
     }
 
     /**
-     * @return the edge on which the lane is located
+     * @return the length of the lane in meters
+     */
+    public double getLength() {
+        return this.length;
+    }
+
+    /**
+     * @return the speed limit of the lane in m/s
+     */
+    public double getMaxSpeed() {
+        return this.maxSpeed;
+    }
+
+    /**
+     * @param vehicleClass a SUMO vehicle class, e.g. passenger
+     * @return whether vehicles of the class may use the lane
+     */
+    public boolean allows(String vehicleClass) {
+        // SUMO reports an empty list if all classes are allowed
+        return this.allowedClasses.isEmpty() || this.allowedClasses.contains(vehicleClass);
+    }
+
+    /**
+     * @return the ids of the lanes vehicles can continue on, internal junction lanes are skipped
+     */
+    public List<String> getSuccessorLaneIds() {
+        return this.successorLaneIds;
+    }
+
+    /**
+     * @return the edge on which the lane is located, null for lanes received from an engine process
      */
     public SumoEdge getEdge() {
         return this.edge;
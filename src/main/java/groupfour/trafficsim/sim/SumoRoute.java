@@ -1,40 +1,61 @@
 package groupfour.trafficsim.sim;
 
-import java.util.ArrayList;
+import java.nio.IntBuffer;
+import java.util.AbstractList;
 import java.util.List;
+import java.util.Objects;
 
 /**
- * A wrapper class for sumo vehicle routes
+ * A wrapper class for sumo vehicle routes.
+ * The route is a light view on a {@link RouteTable}, its edges are not copied.
  *
  * @author 8wf92323f
  */
 public class SumoRoute {
-    private final String routeId;
-    private final List<SumoEdge> edges = new ArrayList<>();
+    private final RouteTable table;
+    private final int routeIndex;
 
-    public SumoRoute(String routeId, String[] edgeIds, Simulation simulation) {
-        this.routeId = routeId;
-
-        for (String edgeId : edgeIds) {
-            for (SumoEdge edge : simulation.getEdges()) {
-                if (edge.getEdgeId().equals(edgeId)) {
-                    this.edges.add(edge);
-                }
-            }
-        }
+    SumoRoute(RouteTable table, int routeIndex) {
+        this.table = table;
+        this.routeIndex = routeIndex;
     }
 
     /**
      * @return the routes id
      */
     public String getRouteId() {
-        return routeId;
+        return this.table.getRouteId(this.routeIndex);
+    }
+
+    /**
+     * @return the index of the route in its route table
+     */
+    public int getRouteIndex() {
+        return this.routeIndex;
     }
 
     /**
      * @return a list of ordered edges contained on the route
      */
     public List<SumoEdge> getEdges() {
-        return this.edges;
+        return new AbstractList<>() {
+            @Override
+            public SumoEdge get(int index) {
+                Objects.checkIndex(index, this.size());
+                return SumoRoute.this.table.getEdge(SumoRoute.this.routeIndex, index);
+            }
+
+            @Override
+            public int size() {
+                return SumoRoute.this.table.getEdgeCount(SumoRoute.this.routeIndex);
+            }
+        };
+    }
+
+    /**
+     * @return the ordered edge indices of the route as a read-only view
+     */
+    public IntBuffer getEdgeIndices() {
+        return this.table.getEdgeIndices(this.routeIndex);
     }
 }
@@ -0,0 +1,148 @@
+package groupfour.trafficsim.sim;
+
+import de.tudresden.sumo.objects.SumoTLSController;
+import de.tudresden.sumo.objects.SumoTLSProgram;
+
+import java.util.List;
+
+/**
+ * A wrapper class for a sumo traffic light system.
+ * Static data (controlled lanes and programs) is loaded once,
+ * the signal state is kept up to date through subscriptions.
+ *
+ * @author 8wf92323f
+ */
+public class SumoTrafficLight {
+    private final String tlsId;
+    private final int index;
+    private final List<SumoLane> controlledLanes;
+    private final SumoTLSController programs;
+    private volatile String state;
+    private volatile int phase;
+    private volatile String programId;
+    private volatile int version = 0;
+
+    SumoTrafficLight(String tlsId, int index, List<SumoLane> controlledLanes, SumoTLSController programs,
+                     String state, int phase, String programId) {
+        this.tlsId = tlsId;
+        this.index = index;
+        this.controlledLanes = controlledLanes;
+        this.programs = programs;
+        this.state = state;
+        this.phase = phase;
+        this.programId = programId;
+    }
+
+    /**
+     * @return the id of the traffic light system
+     */
+    public String getTlsId() {
+        return this.tlsId;
+    }
+
+    /**
+     * @return the position of the traffic light in the simulations traffic light list
+     */
+    public int getIndex() {
+        return this.index;
+    }
+
+    /**
+     * @return the incoming lane of each controlled link, indexed like the signal state string.
+     *         An entry is null if the lane is not part of the loaded network.
+     */
+    public List<SumoLane> getControlledLanes() {
+        return this.controlledLanes;
+    }
+
+    /**
+     * @return all programs of the traffic light, keyed by program id
+     */
+    public SumoTLSController getPrograms() {
+        return this.programs;
+    }
+
+    /**
+     * @return the currently running program or null if it is unknown
+     */
+    public SumoTLSProgram getCurrentProgram() {
+        return this.programs != null ? this.programs.get(this.programId) : null;
+    }
+
+    /**
+     * @return the signal state string, one character per controlled link (e.g. "GGrrYY")
+     */
+    public String getState() {
+        return this.state;
+    }
+
+    /**
+     * @param linkIndex the index of the controlled link
+     * @return the signal character of the link, see the SUMO documentation for its meaning
+     */
+    public char getSignal(int linkIndex) {
+        String state = this.state;
+        return linkIndex < state.length() ? state.charAt(linkIndex) : 'O';
+    }
+
+    /**
+     * @return the index of the current phase
+     */
+    public int getPhase() {
+        return this.phase;
+    }
+
+    /**
+     * @return the id of the current program
+     */
+    public String getProgramId() {
+        return this.programId;
+    }
+
+    /**
+     * @return a counter that increases whenever state, phase or program change,
+     *         allowing observers to skip unchanged lights
+     */
+    public int getVersion() {
+        return this.version;
+    }
+
+    /**
+     * @return whether the value changed
+     */
+    boolean setState(String state) {
+        if (state.equals(this.state)) {
+            return false;
+        }
+
+        this.state = state;
+        ++this.version;
+        return true;
+    }
+
+    /**
+     * @return whether the value changed
+     */
+    boolean setPhase(int phase) {
+        if (phase == this.phase) {
+            return false;
+        }
+
+        this.phase = phase;
+        ++this.version;
+        return true;
+    }
+
+    /**
+     * @return whether the value changed
+     */
+    boolean setProgramId(String programId) {
+        if (programId.equals(this.programId)) {
+            return false;
+        }
+
+        this.programId = programId;
+        ++this.version;
+        return true;
+    }
+}
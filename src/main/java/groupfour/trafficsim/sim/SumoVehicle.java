@@ -7,15 +7,27 @@ import it.polito.appeal.traci.SumoTraciConnection;
 
 /**
  * A wrapper class for SUMO vehicles
+ * <p>
+ * The simulation thread updates its own instances and hands out copies through {@link #publish()}.
+ * A published copy is never changed, so other threads always read the state of one completed step.
+ * The price is one new copy per step for every vehicle whose state changed.
  *
  * @author mikey7303, 8wf92323f
  */
 public class SumoVehicle {
+    static final int SYNC_ROUND_TRIPS = 3; // TraCI calls made by update
     private final String vehId;
     private SumoPosition2D position;
     private SumoColor color;
     private double speed;
     private double maxSpeed;
+    private SumoLane lane;
+    private double lanePosition;
+    private double lateralOffset;
+    private double angle;
+    boolean laneRefreshRequired = false; // set by the lane sync when a lane change was missed
+    private boolean modified = true; // the state changed since the last published copy
+    private volatile SumoVehicle published = null;
 
     public SumoVehicle(String vehId) {
         this.vehId = vehId;
@@ -25,6 +37,39 @@ public class SumoVehicle {
         this.maxSpeed = 0.0;
     }
 
+    /**
+     * Creates a vehicle with a known state, e.g. one received from an engine process.
+     * The vehicle is not changed afterwards, a new state needs a new vehicle.
+     *
+     * @param vehId the id of the vehicle
+     * @param x the x coordinate of the vehicle
+     * @param y the y coordinate of the vehicle
+     * @param speed the speed of the vehicle
+     */
+    public SumoVehicle(String vehId, double x, double y, double speed) {
+        this(vehId);
+        this.position.x = x;
+        this.position.y = y;
+        this.speed = speed;
+    }
+
+    /**
+     * Creates a copy of a vehicle, e.g. for a checkpoint.
+     *
+     * @param vehicle the vehicle to copy
+     */
+    SumoVehicle(SumoVehicle vehicle) {
+        this.vehId = vehicle.vehId;
+        this.position = new SumoPosition2D(vehicle.position.x, vehicle.position.y);
+        this.color = vehicle.color;
+        this.speed = vehicle.speed;
+        this.maxSpeed = vehicle.maxSpeed;
+        this.lane = vehicle.lane;
+        this.lanePosition = vehicle.lanePosition;
+        this.lateralOffset = vehicle.lateralOffset;
+        this.angle = vehicle.angle;
+    }
+
     public String get_vehId() {
         return this.vehId;
     }
@@ -45,6 +90,131 @@ public class SumoVehicle {
         return this.maxSpeed;
     }
 
+    /**
+     * @return the lane the vehicle is on or null if it is unknown, only set while lane sync is enabled
+     */
+    public SumoLane getLane() {
+        return this.lane;
+    }
+
+    /**
+     * @return the distance from the start of the lane, only valid if the lane is known
+     */
+    public double getLanePosition() {
+        return this.lanePosition;
+    }
+
+    /**
+     * @return the offset to the left of the lane center, only valid if the lane is known
+     */
+    public double getLateralOffset() {
+        return this.lateralOffset;
+    }
+
+    /**
+     * @return the heading in degrees clockwise from north, only computed by the lane sync
+     */
+    public double get_angle() {
+        return this.angle;
+    }
+
+    /**
+     * Sets the parameters that were delivered by a subscription.
+     *
+     * @param position the position of the vehicle
+     * @param speed the speed of the vehicle
+     */
+    void setState(SumoPosition2D position, double speed) {
+        // the subscription result belongs to TraaS, only its values are taken
+        this.setState(position.x, position.y, speed);
+    }
+
+    /**
+     * Sets the parameters that were decoded by the direct sync, the position is updated in place.
+     *
+     * @param x the x coordinate of the vehicle
+     * @param y the y coordinate of the vehicle
+     * @param speed the speed of the vehicle
+     */
+    void setState(double x, double y, double speed) {
+        this.position.x = x;
+        this.position.y = y;
+        this.speed = speed;
+        this.lane = null;
+        this.modified = true;
+    }
+
+    /**
+     * Sets the parameters that were delivered by the lane sync and computes the position from the lane shape.
+     *
+     * @param lane the lane the vehicle is on
+     * @param lanePosition the distance from the start of the lane
+     * @param lateralOffset the offset to the left of the lane center
+     * @param speed the speed of the vehicle
+     * @param scratch an array of at least three elements used for the conversion
+     */
+    void setLaneState(SumoLane lane, double lanePosition, double lateralOffset, double speed, double[] scratch) {
+        lane.locate(lanePosition, lateralOffset, scratch);
+        this.lane = lane;
+        this.lanePosition = lanePosition;
+        this.lateralOffset = lateralOffset;
+        this.position.x = scratch[0];
+        this.position.y = scratch[1];
+        this.angle = scratch[2];
+        this.speed = speed;
+        this.modified = true;
+    }
+
+    /**
+     * Sets every parameter, used when a vehicle is read from a checkpoint file.
+     */
+    void restore(double x, double y, SumoColor color, double speed, double maxSpeed, SumoLane lane,
+                 double lanePosition, double lateralOffset, double angle) {
+        this.position.x = x;
+        this.position.y = y;
+        this.color = color;
+        this.speed = speed;
+        this.maxSpeed = maxSpeed;
+        this.lane = lane;
+        this.lanePosition = lanePosition;
+        this.lateralOffset = lateralOffset;
+        this.angle = angle;
+        this.modified = true;
+    }
+
+    /**
+     * @param maxSpeed the maximum speed of the vehicle, it does not change after departure
+     */
+    void setMaxSpeed(double maxSpeed) {
+        this.maxSpeed = maxSpeed;
+        this.modified = true;
+    }
+
+    /**
+     * Returns an unchangeable copy of the current state, called on the simulation thread once a step is synced.
+     * The previous copy is reused while the state did not change, e.g. for vehicles outside the viewport.
+     *
+     * @return the published copy
+     */
+    SumoVehicle publish() {
+        SumoVehicle published = this.published;
+
+        if (this.modified || published == null) {
+            published = new SumoVehicle(this);
+            this.published = published;
+            this.modified = false;
+        }
+
+        return published;
+    }
+
+    /**
+     * @return the last copy handed out by {@link #publish()} or null if there is none yet
+     */
+    SumoVehicle getPublished() {
+        return this.published;
+    }
+
     /**
      * Updates the vehicles parameters by fetching them from the SUMO connection
      * @param connection the SUMO connection
@@ -54,5 +224,6 @@ public class SumoVehicle {
         this.position = (SumoPosition2D)connection.do_job_get(Vehicle.getPosition(this.vehId));
         this.speed = (double)connection.do_job_get(Vehicle.getSpeed(this.vehId));
         this.maxSpeed = (double)connection.do_job_get(Vehicle.getMaxSpeed(this.vehId));
+        this.modified = true;
     }
 }
@@ -0,0 +1,114 @@
+package groupfour.trafficsim.sim;
+
+import de.tudresden.sumo.util.CommandProcessor;
+import de.tudresden.sumo.util.Query;
+import de.tudresden.sumo.util.SumoCommand;
+import it.polito.appeal.traci.SumoTraciConnection;
+import it.polito.appeal.traci.protocol.RequestMessage;
+import it.polito.appeal.traci.protocol.ResponseContainer;
+import it.polito.appeal.traci.protocol.ResponseMessage;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.List;
+
+/**
+ * Direct access to the TraCI socket of a TraaS connection.
+ * TraaS sends one message per command, this channel allows several commands
+ * to be written as one message and answered in a single round trip.
+ * All access holds the monitor of the connection, so it never interleaves with TraaS calls.
+ *
+ * @author 8wf92323f
+ */
+class TraciChannel {
+    private static final Logger LOGGER = LogManager.getLogger(TraciChannel.class.getName());
+    private final SumoTraciConnection connection;
+    private final DataOutputStream outStream;
+    private final DataInputStream inStream;
+
+    private TraciChannel(SumoTraciConnection connection, DataOutputStream outStream, DataInputStream inStream) {
+        this.connection = connection;
+        this.outStream = outStream;
+        this.inStream = inStream;
+    }
+
+    /**
+     * Opens a channel on the socket of a running connection.
+     *
+     * @param connection a connection whose server is already running
+     * @return the channel or null if the TraaS internals are not accessible
+     */
+    static TraciChannel open(SumoTraciConnection connection) {
+        try {
+            Field commandProcessorField = SumoTraciConnection.class.getDeclaredField("cp");
+            commandProcessorField.setAccessible(true);
+            CommandProcessor commandProcessor = (CommandProcessor)commandProcessorField.get(connection);
+
+            Field inStreamField = Query.class.getDeclaredField("inStream");
+            inStreamField.setAccessible(true);
+            DataInputStream inStream = (DataInputStream)inStreamField.get(commandProcessor);
+
+            return new TraciChannel(connection, commandProcessor.getOutStream(), inStream);
+        } catch (ReflectiveOperationException | RuntimeException exception) {
+            LOGGER.warn("TraCI socket is not accessible, commands will be sent one by one", exception);
+            return null;
+        }
+    }
+
+    /**
+     * Sends all commands in one message and waits for the combined response.
+     *
+     * @param commands the commands to send
+     * @return the responses, one per command and in command order
+     * @throws Exception if the transmission fails
+     */
+    List<ResponseContainer> send(List<SumoCommand> commands) throws Exception {
+        RequestMessage request = new RequestMessage();
+
+        for (SumoCommand command : commands) {
+            request.append(command.get_command());
+        }
+
+        synchronized (this.connection) {
+            request.writeTo(this.outStream);
+            return new ResponseMessage(this.inStream).responses();
+        }
+    }
+
+    /**
+     * Sends an encoded message and reads the complete response message.
+     *
+     * @param request the encoded message starting with its length
+     * @param length the number of bytes to send
+     * @param response a buffer for the response message
+     * @return the response buffer holding the message including its length, a larger one if the given one was too small
+     * @throws IOException if the transmission fails
+     */
+    byte[] exchange(byte[] request, int length, byte[] response) throws IOException {
+        synchronized (this.connection) {
+            this.outStream.write(request, 0, length);
+            this.outStream.flush();
+
+            int responseLength = this.inStream.readInt();
+
+            if (responseLength < 4) {
+                throw new IOException("Invalid TraCI message length " + responseLength);
+            }
+
+            if (responseLength > response.length) {
+                response = new byte[Math.max(responseLength, 2 * response.length)];
+            }
+
+            response[0] = (byte)(responseLength >>> 24);
+            response[1] = (byte)(responseLength >>> 16);
+            response[2] = (byte)(responseLength >>> 8);
+            response[3] = (byte)responseLength;
+            this.inStream.readFully(response, 4, responseLength - 4);
+            return response;
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package groupfour.trafficsim.sim;
+
+import de.tudresden.sumo.config.Constants;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+/**
+ * A lean TraCI client for the per-step sync.
+ * Get commands are encoded into a reused buffer, sent as one message and the responses are
+ * decoded straight from a reused buffer into primitives, so reading a value does not allocate.
+ * Only string results like id lists create objects. TraaS is still used for everything else.
+ * <p>
+ * Usage: {@link #begin()}, any number of {@link #get}, {@link #send()}, then one {@link #nextResult()}
+ * per get command in the same order, each followed by the matching read call if it succeeded.
+ *
+ * @author 8wf92323f
+ */
+class TraciCodec {
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+    private final TraciChannel channel;
+    private byte[] requestBytes = new byte[INITIAL_CAPACITY];
+    private ByteBuffer request = ByteBuffer.wrap(this.requestBytes);
+    private byte[] responseBytes = new byte[INITIAL_CAPACITY];
+    private ByteBuffer response = ByteBuffer.wrap(this.responseBytes);
+    private String lastError = null;
+    private long transferredBytes = 0L;
+
+    /**
+     * @param channel the channel on the TraCI socket
+     */
+    TraciCodec(TraciChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Starts a new message.
+     */
+    void begin() {
+        this.request.clear();
+        this.request.putInt(0); // message length, set by send
+    }
+
+    /**
+     * Appends a get command.
+     *
+     * @param commandId the get command of the domain, e.g. {@link Constants#CMD_GET_VEHICLE_VARIABLE}
+     * @param variable the variable to get
+     * @param objectId the id of the object, empty for simulation variables
+     */
+    void get(int commandId, int variable, String objectId) {
+        int idLength = TraciCodec.encodedLength(objectId);
+        int length = 1 + 1 + 1 + 4 + idLength;
+
+        if (length > 255) {
+            length += 4; // long form: a zero byte followed by the length as int
+        }
+
+        this.ensureRequestCapacity(length);
+
+        if (length > 255) {
+            this.request.put((byte)0);
+            this.request.putInt(length);
+        } else {
+            this.request.put((byte)length);
+        }
+
+        this.request.put((byte)commandId);
+        this.request.put((byte)variable);
+        this.putString(objectId, idLength);
+    }
+
+    /**
+     * Sends the message and reads the complete response.
+     *
+     * @throws IOException if the transmission fails
+     */
+    void send() throws IOException {
+        int length = this.request.position();
+        this.request.putInt(0, length);
+
+        byte[] received = this.channel.exchange(this.requestBytes, length, this.responseBytes);
+
+        if (received != this.responseBytes) {
+            this.responseBytes = received;
+            this.response = ByteBuffer.wrap(received);
+        }
+
+        this.response.clear();
+        this.response.limit(this.response.getInt());
+        this.transferredBytes += length + this.response.limit();
+    }
+
+    /**
+     * Moves to the result of the next command of the message.
+     *
+     * @return whether SUMO answered the command with a value, otherwise see {@link #getLastError()}
+     * @throws IOException if the response is malformed
+     */
+    boolean nextResult() throws IOException {
+        // status response: length, command id, result, description
+        int statusEnd = this.readCommandEnd();
+        this.response.get(); // command id
+        int result = this.response.get() & 0xFF;
+
+        if (result != Constants.RTYPE_OK) {
+            int descriptionLength = this.response.getInt();
+            this.lastError = new String(this.responseBytes, this.response.position(), descriptionLength, StandardCharsets.UTF_8);
+            this.response.position(statusEnd);
+            return false;
+        }
+
+        this.response.position(statusEnd);
+
+        // value response: length, response id, variable, object id, then the typed value
+        this.readCommandEnd();
+        this.response.get(); // response id
+        this.response.get(); // variable
+        this.response.position(this.response.position() + 4 + this.response.getInt(this.response.position()));
+        return true;
+    }
+
+    /**
+     * Reads the length prefix of a command.
+     *
+     * @return the position right after the command
+     */
+    private int readCommandEnd() throws IOException {
+        int start = this.response.position();
+
+        if (!this.response.hasRemaining()) {
+            throw new IOException("TraCI response ended early");
+        }
+
+        int length = this.response.get() & 0xFF;
+
+        if (length == 0) {
+            length = this.response.getInt();
+        }
+
+        return start + length;
+    }
+
+    /**
+     * @return a double value of the current result
+     * @throws IOException if the result has another type
+     */
+    double readDouble() throws IOException {
+        this.expectType(Constants.TYPE_DOUBLE);
+        return this.response.getDouble();
+    }
+
+    /**
+     * @return an int value of the current result
+     * @throws IOException if the result has another type
+     */
+    int readInt() throws IOException {
+        this.expectType(Constants.TYPE_INTEGER);
+        return this.response.getInt();
+    }
+
+    /**
+     * @return a string value of the current result
+     * @throws IOException if the result has another type
+     */
+    String readString() throws IOException {
+        this.expectType(Constants.TYPE_STRING);
+        int length = this.response.getInt();
+        String value = new String(this.responseBytes, this.response.position(), length, StandardCharsets.UTF_8);
+        this.response.position(this.response.position() + length);
+        return value;
+    }
+
+    /**
+     * Reads a 2D position of the current result into an array.
+     *
+     * @param target the array receiving x and y
+     * @param offset the index of x in the array
+     * @throws IOException if the result has another type
+     */
+    void readPosition(double[] target, int offset) throws IOException {
+        this.expectType(Constants.POSITION_2D);
+        target[offset] = this.response.getDouble();
+        target[offset + 1] = this.response.getDouble();
+    }
+
+    /**
+     * Adds all strings of a string list result to a collection.
+     *
+     * @param target the collection receiving the strings
+     * @return the number of strings in the list
+     * @throws IOException if the result has another type
+     */
+    int readStringList(Collection<String> target) throws IOException {
+        this.expectType(Constants.TYPE_STRINGLIST);
+        int count = this.response.getInt();
+
+        for (int i = 0; i < count; ++i) {
+            int length = this.response.getInt();
+            target.add(new String(this.responseBytes, this.response.position(), length, StandardCharsets.UTF_8));
+            this.response.position(this.response.position() + length);
+        }
+
+        return count;
+    }
+
+    private void expectType(int type) throws IOException {
+        int actual = this.response.get() & 0xFF;
+
+        if (actual != type) {
+            throw new IOException("Expected TraCI type " + type + " but got " + actual);
+        }
+    }
+
+    /**
+     * Returns the number of bytes sent and received since the last call and starts counting again.
+     *
+     * @return the number of bytes of all messages including their length prefixes
+     */
+    long takeTransferredBytes() {
+        long bytes = this.transferredBytes;
+        this.transferredBytes = 0L;
+        return bytes;
+    }
+
+    /**
+     * @return the error description of the last command SUMO did not answer with a value
+     */
+    String getLastError() {
+        return this.lastError;
+    }
+
+    private void ensureRequestCapacity(int additional) {
+        if (this.request.remaining() >= additional) {
+            return;
+        }
+
+        byte[] grown = new byte[Math.max(this.requestBytes.length * 2, this.request.position() + additional)];
+        System.arraycopy(this.requestBytes, 0, grown, 0, this.request.position());
+        ByteBuffer buffer = ByteBuffer.wrap(grown);
+        buffer.position(this.request.position());
+        this.requestBytes = grown;
+        this.request = buffer;
+    }
+
+    /**
+     * Writes a string without allocating as long as it is ASCII, which vehicle and edge ids usually are.
+     */
+    private void putString(String value, int encodedLength) {
+        this.request.putInt(encodedLength);
+
+        if (encodedLength == value.length()) {
+            for (int i = 0; i < encodedLength; ++i) {
+                this.request.put((byte)value.charAt(i));
+            }
+        } else {
+            this.request.put(value.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static int encodedLength(String value) {
+        for (int i = 0; i < value.length(); ++i) {
+            if (value.charAt(i) >= 0x80) {
+                return value.getBytes(StandardCharsets.UTF_8).length;
+            }
+        }
+
+        return value.length();
+    }
+}
@@ -0,0 +1,307 @@
+package groupfour.trafficsim.sim;
+
+import de.tudresden.sumo.cmd.Trafficlight;
+import de.tudresden.sumo.config.Constants;
+import de.tudresden.sumo.objects.SumoPrimitive;
+import de.tudresden.sumo.objects.SumoStringList;
+import de.tudresden.sumo.objects.SumoTLSController;
+import de.tudresden.sumo.objects.SumoTLSPhase;
+import de.tudresden.sumo.objects.SumoTLSProgram;
+import de.tudresden.sumo.subscription.ResponseType;
+import de.tudresden.sumo.subscription.SubscribtionVariable;
+import de.tudresden.sumo.subscription.SubscriptionObject;
+import de.tudresden.sumo.subscription.VariableSubscription;
+import it.polito.appeal.traci.SumoTraciConnection;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Holds all traffic light systems of a simulation.
+ * Programs and controlled lanes are fetched once on load. Afterwards every light is
+ * subscribed to its state, phase and program, so SUMO delivers all changes in the
+ * response of the simulation step instead of one request per light and step.
+ * <p>
+ * An engine process sends the lights to its clients once and afterwards only the lights that changed,
+ * see {@link #writeDefinition} and {@link #writeChanges}.
+ *
+ * @author 8wf92323f
+ */
+public class TrafficLightSystem {
+    private static final Logger LOGGER = LogManager.getLogger(TrafficLightSystem.class.getName());
+    private final List<SumoTrafficLight> trafficLights;
+    private final Map<String, SumoTrafficLight> trafficLightsById = new HashMap<>();
+    private volatile int changeCount = 0;
+
+    private TrafficLightSystem(List<SumoTrafficLight> trafficLights) {
+        this.trafficLights = Collections.unmodifiableList(trafficLights);
+
+        for (SumoTrafficLight trafficLight : trafficLights) {
+            this.trafficLightsById.put(trafficLight.getTlsId(), trafficLight);
+        }
+    }
+
+    /**
+     * Loads all traffic lights and subscribes to their signal states.
+     *
+     * @param connection the SUMO connection
+     * @param lanesById all lanes of the network keyed by lane id
+     * @param dispatcher the dispatcher that delivers subscription results
+     * @return the loaded traffic light system
+     * @throws Exception if an api error occurs
+     */
+    static TrafficLightSystem load(SumoTraciConnection connection, Map<String, SumoLane> lanesById,
+                                   SubscriptionDispatcher dispatcher) throws Exception {
+        List<String> tlsIds = (SumoStringList)connection.do_job_get(Trafficlight.getIDList());
+        List<SumoTrafficLight> trafficLights = new ArrayList<>(tlsIds.size());
+
+        for (int i = 0; i < tlsIds.size(); ++i) {
+            String tlsId = tlsIds.get(i);
+
+            List<String> laneIds = (SumoStringList)connection.do_job_get(Trafficlight.getControlledLanes(tlsId));
+            List<SumoLane> controlledLanes = new ArrayList<>(laneIds.size());
+
+            for (String laneId : laneIds) {
+                controlledLanes.add(lanesById.get(laneId));
+            }
+
+            SumoTLSController programs = (SumoTLSController)connection.do_job_get(Trafficlight.getCompleteRedYellowGreenDefinition(tlsId));
+            String state = (String)connection.do_job_get(Trafficlight.getRedYellowGreenState(tlsId));
+            int phase = (int)connection.do_job_get(Trafficlight.getPhase(tlsId));
+            String programId = (String)connection.do_job_get(Trafficlight.getProgram(tlsId));
+
+            trafficLights.add(new SumoTrafficLight(tlsId, i, Collections.unmodifiableList(controlledLanes),
+                    programs, state, phase, programId));
+        }
+
+        TrafficLightSystem system = new TrafficLightSystem(trafficLights);
+        dispatcher.register(ResponseType.TL_VARIABLE, system::onSubscriptionResult);
+
+        for (String tlsId : tlsIds) {
+            VariableSubscription subscription = new VariableSubscription(
+                    SubscribtionVariable.trafficlight, 0.0, SubscriptionDispatcher.END_OF_SIMULATION, tlsId);
+            subscription.addCommand(Constants.TL_RED_YELLOW_GREEN_STATE);
+            subscription.addCommand(Constants.TL_CURRENT_PHASE);
+            subscription.addCommand(Constants.TL_CURRENT_PROGRAM);
+            connection.do_subscription(subscription);
+        }
+
+        LOGGER.info("Loaded {} traffic light systems", trafficLights.size());
+        return system;
+    }
+
+    /**
+     * Writes all lights including their programs and current states.
+     *
+     * @param output the output to write to
+     * @throws IOException if the output could not be written
+     */
+    public void writeDefinition(DataOutput output) throws IOException {
+        output.writeInt(this.trafficLights.size());
+
+        for (SumoTrafficLight trafficLight : this.trafficLights) {
+            output.writeUTF(trafficLight.getTlsId());
+            output.writeInt(trafficLight.getControlledLanes().size());
+
+            for (SumoLane lane : trafficLight.getControlledLanes()) {
+                // lanes are referred to by their index in the network geometry the client already received
+                output.writeUTF(lane != null ? lane.getLaneId() : "");
+                output.writeInt(lane != null ? lane.getGeometryIndex() : -1);
+            }
+
+            SumoTLSController programs = trafficLight.getPrograms();
+            output.writeInt(programs != null ? programs.programs.size() : -1);
+
+            if (programs != null) {
+                for (SumoTLSProgram program : programs.programs.values()) {
+                    output.writeUTF(program.subID);
+                    output.writeInt(program.type);
+                    output.writeInt(program.currentPhaseIndex);
+                    output.writeInt(program.phases.size());
+
+                    for (SumoTLSPhase phase : program.phases) {
+                        output.writeDouble(phase.duration);
+                        output.writeDouble(phase.minDur);
+                        output.writeDouble(phase.maxDur);
+                        output.writeUTF(Objects.requireNonNullElse(phase.phasedef, ""));
+                        output.writeUTF(Objects.requireNonNullElse(phase.name, ""));
+                        output.writeInt(phase.next != null ? phase.next.size() : 0);
+
+                        if (phase.next != null) {
+                            for (int next : phase.next) {
+                                output.writeInt(next);
+                            }
+                        }
+                    }
+                }
+            }
+
+            output.writeUTF(trafficLight.getState());
+            output.writeInt(trafficLight.getPhase());
+            output.writeUTF(trafficLight.getProgramId());
+        }
+    }
+
+    /**
+     * Reads the lights written by {@link #writeDefinition}.
+     *
+     * @param input the input to read from
+     * @param geometry the network geometry received from the same engine
+     * @return the traffic light system, kept up to date by {@link #readChanges}
+     * @throws IOException if the input could not be read
+     */
+    public static TrafficLightSystem readDefinition(DataInput input, NetworkGeometry geometry) throws IOException {
+        int count = input.readInt();
+        List<SumoTrafficLight> trafficLights = new ArrayList<>(count);
+        Map<Integer, SumoLane> lanes = new HashMap<>(); // links of the same lane share a lane instance
+
+        for (int i = 0; i < count; ++i) {
+            String tlsId = input.readUTF();
+            int laneCount = input.readInt();
+            List<SumoLane> controlledLanes = new ArrayList<>(laneCount);
+
+            for (int j = 0; j < laneCount; ++j) {
+                String laneId = input.readUTF();
+                int index = input.readInt();
+                controlledLanes.add(index >= 0 && index < geometry.getLaneCount()
+                        ? lanes.computeIfAbsent(index, key -> new SumoLane(laneId, geometry, key)) : null);
+            }
+
+            int programCount = input.readInt();
+            SumoTLSController programs = programCount >= 0 ? new SumoTLSController() : null;
+
+            for (int j = 0; j < programCount; ++j) {
+                SumoTLSProgram program = new SumoTLSProgram(input.readUTF(), input.readInt(), input.readInt());
+                int phaseCount = input.readInt();
+
+                for (int k = 0; k < phaseCount; ++k) {
+                    double duration = input.readDouble();
+                    double minDuration = input.readDouble();
+                    double maxDuration = input.readDouble();
+                    String definition = input.readUTF();
+                    String name = input.readUTF();
+                    int nextCount = input.readInt();
+                    ArrayList<Integer> next = new ArrayList<>(nextCount);
+
+                    for (int l = 0; l < nextCount; ++l) {
+                        next.add(input.readInt());
+                    }
+
+                    program.add(new SumoTLSPhase(duration, minDuration, maxDuration, definition, next, name));
+                }
+
+                programs.addProgram(program);
+            }
+
+            trafficLights.add(new SumoTrafficLight(tlsId, i, Collections.unmodifiableList(controlledLanes),
+                    programs, input.readUTF(), input.readInt(), input.readUTF()));
+        }
+
+        return new TrafficLightSystem(trafficLights);
+    }
+
+    /**
+     * Writes the lights that changed since the last call for the same client.
+     *
+     * @param output the output to write to
+     * @param versions the version of each light the client knows, updated to the written versions
+     * @throws IOException if the output could not be written
+     */
+    public void writeChanges(DataOutput output, int[] versions) throws IOException {
+        List<SumoTrafficLight> changed = new ArrayList<>();
+
+        for (SumoTrafficLight trafficLight : this.trafficLights) {
+            // taken before the values, a change in between is written again next time
+            int version = trafficLight.getVersion();
+
+            if (version != versions[trafficLight.getIndex()]) {
+                versions[trafficLight.getIndex()] = version;
+                changed.add(trafficLight);
+            }
+        }
+
+        output.writeInt(changed.size());
+
+        for (SumoTrafficLight trafficLight : changed) {
+            output.writeInt(trafficLight.getIndex());
+            output.writeUTF(trafficLight.getState());
+            output.writeInt(trafficLight.getPhase());
+            output.writeUTF(trafficLight.getProgramId());
+        }
+    }
+
+    /**
+     * Applies the changes written by {@link #writeChanges}, called by a single reading thread.
+     *
+     * @param input the input to read from
+     * @throws IOException if the input could not be read
+     */
+    public void readChanges(DataInput input) throws IOException {
+        int count = input.readInt();
+
+        for (int i = 0; i < count; ++i) {
+            SumoTrafficLight trafficLight = this.trafficLights.get(input.readInt());
+            boolean changed = trafficLight.setState(input.readUTF());
+            changed |= trafficLight.setPhase(input.readInt());
+            changed |= trafficLight.setProgramId(input.readUTF());
+
+            if (changed) {
+                ++this.changeCount;
+            }
+        }
+    }
+
+    /**
+     * Applies a subscription result, called on the simulation thread during a step.
+     */
+    private void onSubscriptionResult(SubscriptionObject result) {
+        SumoTrafficLight trafficLight = this.trafficLightsById.get(result.id);
+
+        if (trafficLight == null || !(result.object instanceof SumoPrimitive primitive)) {
+            return;
+        }
+
+        boolean changed = switch (result.variable) {
+            case Constants.TL_RED_YELLOW_GREEN_STATE -> trafficLight.setState((String)primitive.val);
+            case Constants.TL_CURRENT_PHASE -> trafficLight.setPhase((int)primitive.val);
+            case Constants.TL_CURRENT_PROGRAM -> trafficLight.setProgramId((String)primitive.val);
+            default -> false;
+        };
+
+        if (changed) {
+            ++this.changeCount;
+        }
+    }
+
+    /**
+     * @return a list of all traffic lights
+     */
+    public List<SumoTrafficLight> getTrafficLights() {
+        return this.trafficLights;
+    }
+
+    /**
+     * @param tlsId the id of the traffic light system
+     * @return the traffic light or null if there is no such traffic light
+     */
+    public SumoTrafficLight get(String tlsId) {
+        return this.trafficLightsById.get(tlsId);
+    }
+
+    /**
+     * @return a counter that increases whenever any traffic light changes,
+     *         allowing observers to skip steps without changes
+     */
+    public int getChangeCount() {
+        return this.changeCount;
+    }
+}
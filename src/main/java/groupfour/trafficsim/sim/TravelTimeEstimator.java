@@ -0,0 +1,108 @@
+package groupfour.trafficsim.sim;
+
+import java.util.BitSet;
+
+/**
+ * Smoothed travel times of all edges, derived from the mean speeds SUMO reports with every step.
+ * Each estimate is an exponentially weighted moving average of the current travel time and never
+ * drops below the free flow travel time. Edges whose estimate moved away from the last reported
+ * value by more than a relative threshold are collected as changed edges.
+ * The estimates are only updated while the edge statistics are subscribed.
+ *
+ * @author 8wf92323f
+ */
+public class TravelTimeEstimator {
+    private static final double MIN_SPEED = 0.1; // m/s, limits the travel time of jammed edges
+    private final RoadGraph graph;
+    private final EdgeStatistics statistics;
+    private final float[] estimates;
+    private final float[] reported;
+    private final BitSet changedEdges = new BitSet();
+    private volatile double smoothing;
+    private volatile double changeThreshold = 0.25;
+
+    /**
+     * @param graph the road graph providing lengths and free flow travel times
+     * @param statistics the per-edge measures of the simulation
+     * @param halfLife the number of steps after which a measured travel time counts half
+     */
+    TravelTimeEstimator(RoadGraph graph, EdgeStatistics statistics, double halfLife) {
+        this.graph = graph;
+        this.statistics = statistics;
+        this.estimates = new float[graph.getEdgeCount()];
+        this.reported = new float[graph.getEdgeCount()];
+        this.setHalfLife(halfLife);
+
+        for (int i = 0; i < this.estimates.length; ++i) {
+            this.estimates[i] = (float)graph.getFreeFlowTravelTime(i);
+            this.reported[i] = this.estimates[i];
+        }
+    }
+
+    /**
+     * Folds the speeds of the last step into the estimates, called on the simulation thread.
+     */
+    void update() {
+        if (!this.statistics.isActive()) {
+            return;
+        }
+
+        float alpha = (float)this.smoothing;
+        float threshold = (float)this.changeThreshold;
+
+        for (int i = 0; i < this.estimates.length; ++i) {
+            if (!this.graph.isDrivable(i)) {
+                continue;
+            }
+
+            float freeFlow = (float)this.graph.getFreeFlowTravelTime(i);
+            float current = Math.max(freeFlow, (float)(this.graph.getLength(i) / Math.max(MIN_SPEED, this.statistics.getMeanSpeed(i))));
+            float estimate = this.estimates[i] + alpha * (current - this.estimates[i]);
+            this.estimates[i] = estimate;
+
+            if (Math.abs(estimate - this.reported[i]) > threshold * this.reported[i]) {
+                this.reported[i] = estimate;
+                this.changedEdges.set(i);
+            }
+        }
+    }
+
+    /**
+     * Moves all edges that changed since the last call into the target set, called on the simulation thread.
+     *
+     * @param target the set receiving the edge indices
+     */
+    void drainChangedEdges(BitSet target) {
+        target.or(this.changedEdges);
+        this.changedEdges.clear();
+    }
+
+    /**
+     * @return the estimates of all edges by edge index, only to be read on the simulation thread
+     */
+    float[] getEstimates() {
+        return this.estimates;
+    }
+
+    /**
+     * @param edgeIndex the index of the edge
+     * @return the smoothed travel time of the edge in seconds
+     */
+    public double getTravelTime(int edgeIndex) {
+        return this.estimates[edgeIndex];
+    }
+
+    /**
+     * @param halfLife the number of steps after which a measured travel time counts half
+     */
+    public void setHalfLife(double halfLife) {
+        this.smoothing = halfLife > 0.0 ? 1.0 - Math.pow(0.5, 1.0 / halfLife) : 1.0;
+    }
+
+    /**
+     * @param changeThreshold the relative change of an estimate after which an edge counts as changed
+     */
+    public void setChangeThreshold(double changeThreshold) {
+        this.changeThreshold = changeThreshold;
+    }
+}
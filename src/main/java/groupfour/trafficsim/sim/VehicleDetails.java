@@ -0,0 +1,168 @@
+package groupfour.trafficsim.sim;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Extra variables of the selected vehicle.
+ * They are only subscribed for a single vehicle at a time and updated with every step.
+ * An engine process sends them to its clients, which fill their own instance with them.
+ *
+ * @author 8wf92323f
+ */
+public class VehicleDetails {
+    private final String vehicleId;
+    private volatile String typeId = "";
+    private volatile String routeId = "";
+    private volatile String roadId = "";
+    private volatile String laneId = "";
+    private volatile double angle = 0.0;
+    private volatile double acceleration = 0.0;
+    private volatile double distance = 0.0;
+    private volatile double waitingTime = 0.0;
+    private volatile double co2Emission = 0.0;
+    private volatile boolean available = false;
+
+    public VehicleDetails(String vehicleId) {
+        this.vehicleId = vehicleId;
+    }
+
+    /**
+     * Writes the values, the vehicle id is not part of them.
+     *
+     * @param output the output to write to
+     * @throws IOException if the output could not be written
+     */
+    public void writeTo(DataOutput output) throws IOException {
+        output.writeBoolean(this.available);
+        output.writeUTF(this.typeId);
+        output.writeUTF(this.routeId);
+        output.writeUTF(this.roadId);
+        output.writeUTF(this.laneId);
+        output.writeDouble(this.angle);
+        output.writeDouble(this.acceleration);
+        output.writeDouble(this.distance);
+        output.writeDouble(this.waitingTime);
+        output.writeDouble(this.co2Emission);
+    }
+
+    /**
+     * Takes over values written by {@link #writeTo}.
+     *
+     * @param input the input to read from
+     * @throws IOException if the input could not be read
+     */
+    public void readFrom(DataInput input) throws IOException {
+        boolean available = input.readBoolean();
+        this.typeId = input.readUTF();
+        this.routeId = input.readUTF();
+        this.roadId = input.readUTF();
+        this.laneId = input.readUTF();
+        this.angle = input.readDouble();
+        this.acceleration = input.readDouble();
+        this.distance = input.readDouble();
+        this.waitingTime = input.readDouble();
+        this.co2Emission = input.readDouble();
+        this.available = available; // the values are complete before they are shown
+    }
+
+    void setTypeId(String typeId) {
+        this.typeId = typeId;
+    }
+
+    void setRouteId(String routeId) {
+        this.routeId = routeId;
+    }
+
+    void setRoadId(String roadId) {
+        this.roadId = roadId;
+    }
+
+    void setLaneId(String laneId) {
+        this.laneId = laneId;
+    }
+
+    void setAngle(double angle) {
+        this.angle = angle;
+    }
+
+    void setAcceleration(double acceleration) {
+        this.acceleration = acceleration;
+    }
+
+    void setDistance(double distance) {
+        this.distance = distance;
+    }
+
+    void setWaitingTime(double waitingTime) {
+        this.waitingTime = waitingTime;
+    }
+
+    void setCo2Emission(double co2Emission) {
+        this.co2Emission = co2Emission;
+    }
+
+    void setAvailable(boolean available) {
+        this.available = available;
+    }
+
+    public String getVehicleId() {
+        return this.vehicleId;
+    }
+
+    public String getTypeId() {
+        return this.typeId;
+    }
+
+    public String getRouteId() {
+        return this.routeId;
+    }
+
+    public String getRoadId() {
+        return this.roadId;
+    }
+
+    public String getLaneId() {
+        return this.laneId;
+    }
+
+    /**
+     * @return the heading in degrees, clockwise from north
+     */
+    public double getAngle() {
+        return this.angle;
+    }
+
+    public double getAcceleration() {
+        return this.acceleration;
+    }
+
+    /**
+     * @return the distance driven since departure in meters
+     */
+    public double getDistance() {
+        return this.distance;
+    }
+
+    /**
+     * @return the time the vehicle has been standing in seconds
+     */
+    public double getWaitingTime() {
+        return this.waitingTime;
+    }
+
+    /**
+     * @return the CO2 emission of the last step in mg/s
+     */
+    public double getCo2Emission() {
+        return this.co2Emission;
+    }
+
+    /**
+     * @return whether values were received, false until the first step after the selection
+     */
+    public boolean isAvailable() {
+        return this.available;
+    }
+}
@@ -0,0 +1,136 @@
+package groupfour.trafficsim.sim;
+
+import de.tudresden.sumo.config.Constants;
+import de.tudresden.sumo.objects.SumoPrimitive;
+import de.tudresden.sumo.subscription.ResponseType;
+import de.tudresden.sumo.subscription.SubscribtionVariable;
+import de.tudresden.sumo.subscription.SubscriptionObject;
+import de.tudresden.sumo.subscription.VariableSubscription;
+import it.polito.appeal.traci.SumoTraciConnection;
+
+import java.util.function.Predicate;
+
+/**
+ * Keeps a variable subscription for the selected vehicle.
+ * Selections are requested from any thread and applied at the next step boundary.
+ *
+ * @author 8wf92323f
+ */
+class VehicleSelection {
+    private static final int[] VARIABLES = {
+            Constants.VAR_TYPE,
+            Constants.VAR_ROUTE_ID,
+            Constants.VAR_ROAD_ID,
+            Constants.VAR_LANE_ID,
+            Constants.VAR_ANGLE,
+            Constants.VAR_ACCELERATION,
+            Constants.VAR_DISTANCE,
+            Constants.VAR_WAITING_TIME,
+            Constants.VAR_CO2EMISSION
+    };
+    private volatile VehicleDetails requested = null;
+    private VehicleDetails applied = null;
+
+    /**
+     * @param dispatcher the dispatcher that delivers subscription results
+     */
+    VehicleSelection(SubscriptionDispatcher dispatcher) {
+        dispatcher.register(ResponseType.VEHICLE_VARIABLE, this::onSubscriptionResult);
+    }
+
+    /**
+     * @param vehicleId the id of the vehicle or null to clear the selection
+     * @return the details that will be filled once the selection is applied or null
+     */
+    VehicleDetails select(String vehicleId) {
+        VehicleDetails details = vehicleId != null ? new VehicleDetails(vehicleId) : null;
+        this.requested = details;
+        return details;
+    }
+
+    /**
+     * @return the details of the selected vehicle or null if no vehicle is selected
+     */
+    VehicleDetails getDetails() {
+        return this.requested;
+    }
+
+    /**
+     * Subscribes the selected vehicle again at the next step boundary,
+     * e.g. after a state was loaded and all vehicles were recreated.
+     */
+    void reapply() {
+        this.applied = null;
+    }
+
+    /**
+     * Moves the subscription to the requested vehicle, called on the simulation thread right before a step.
+     *
+     * @param connection the SUMO connection
+     * @param isPresent whether a vehicle is still in the simulation
+     * @return the number of TraCI round trips that were needed
+     * @throws Exception if an api error occurs
+     */
+    int apply(SumoTraciConnection connection, Predicate<String> isPresent) throws Exception {
+        VehicleDetails details = this.requested;
+
+        if (details == this.applied) {
+            return 0;
+        }
+
+        int roundTrips = 0;
+
+        // vehicles that left the simulation lost their subscription already
+        if (this.applied != null && isPresent.test(this.applied.getVehicleId())) {
+            // a subscription without variables removes the subscription
+            connection.do_subscription(new VariableSubscription(SubscribtionVariable.vehicle, 0.0,
+                    SubscriptionDispatcher.END_OF_SIMULATION, this.applied.getVehicleId()));
+            ++roundTrips;
+        }
+
+        this.applied = details;
+
+        if (details != null && isPresent.test(details.getVehicleId())) {
+            VariableSubscription subscription = new VariableSubscription(SubscribtionVariable.vehicle, 0.0,
+                    SubscriptionDispatcher.END_OF_SIMULATION, details.getVehicleId());
+
+            for (int variable : VARIABLES) {
+                subscription.addCommand(variable);
+            }
+
+            connection.do_subscription(subscription);
+            ++roundTrips;
+        }
+
+        return roundTrips;
+    }
+
+    /**
+     * Applies a subscription result, called on the simulation thread during a step.
+     */
+    private void onSubscriptionResult(SubscriptionObject result) {
+        VehicleDetails details = this.applied;
+
+        if (details == null || !details.getVehicleId().equals(result.id)
+                || !(result.object instanceof SumoPrimitive primitive)) {
+            return;
+        }
+
+        switch (result.variable) {
+            case Constants.VAR_TYPE -> details.setTypeId((String)primitive.val);
+            case Constants.VAR_ROUTE_ID -> details.setRouteId((String)primitive.val);
+            case Constants.VAR_ROAD_ID -> details.setRoadId((String)primitive.val);
+            case Constants.VAR_LANE_ID -> details.setLaneId((String)primitive.val);
+            case Constants.VAR_ANGLE -> details.setAngle((double)primitive.val);
+            case Constants.VAR_ACCELERATION -> details.setAcceleration((double)primitive.val);
+            case Constants.VAR_DISTANCE -> details.setDistance((double)primitive.val);
+            case Constants.VAR_WAITING_TIME -> details.setWaitingTime((double)primitive.val);
+            case Constants.VAR_CO2EMISSION -> details.setCo2Emission((double)primitive.val);
+            default -> {
+                return;
+            }
+        }
+
+        details.setAvailable(true);
+    }
+}
@@ -0,0 +1,161 @@
+package groupfour.trafficsim.sim;
+
+import de.tudresden.sumo.cmd.Poi;
+import de.tudresden.sumo.config.Constants;
+import de.tudresden.sumo.objects.SumoColor;
+import de.tudresden.sumo.objects.SumoPosition2D;
+import de.tudresden.sumo.objects.SumoPrimitive;
+import de.tudresden.sumo.subscription.ContextSubscription;
+import de.tudresden.sumo.subscription.ResponseType;
+import de.tudresden.sumo.subscription.SubscriptionContext;
+import de.tudresden.sumo.subscription.SubscriptionObject;
+import de.tudresden.sumo.subscription.SumoDomain;
+import it.polito.appeal.traci.SumoTraciConnection;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Level of detail for the vehicle sync based on the visible map area.
+ * An invisible point of interest follows the center of the viewport and carries a context
+ * subscription, so SUMO reports position and speed of all vehicles around the viewport with
+ * every step. Vehicles outside of it are only synced every few steps.
+ *
+ * @author 8wf92323f
+ */
+class ViewportSync {
+    private static final String ANCHOR_ID = "trafficsim_viewport";
+    private final Map<String, VehicleState> visibleVehicles = new HashMap<>();
+    private volatile double[] requestedViewport = null; // minX, minY, maxX, maxY
+    private double[] appliedViewport = null;
+    private boolean anchorCreated = false;
+    private volatile double margin = 50.0;
+    private volatile int outsideSyncInterval = 8;
+
+    /**
+     * @param dispatcher the dispatcher that delivers subscription results
+     */
+    ViewportSync(SubscriptionDispatcher dispatcher) {
+        dispatcher.register(ResponseType.POI_CONTEXT, this::onSubscriptionResult);
+    }
+
+    /**
+     * Requests a new viewport, it is applied at the next step boundary.
+     *
+     * @param viewport minX, minY, maxX, maxY in network coordinates or null to disable the level of detail
+     */
+    void setViewport(double[] viewport) {
+        this.requestedViewport = viewport;
+    }
+
+    void setMargin(double margin) {
+        this.margin = margin;
+    }
+
+    void setOutsideSyncInterval(int outsideSyncInterval) {
+        this.outsideSyncInterval = Math.max(1, outsideSyncInterval);
+    }
+
+    int getOutsideSyncInterval() {
+        return this.outsideSyncInterval;
+    }
+
+    /**
+     * @return whether vehicles outside the viewport are synced at a reduced rate
+     */
+    boolean isActive() {
+        return this.appliedViewport != null;
+    }
+
+    /**
+     * Moves the anchor and resizes the context subscription if the viewport changed.
+     * Called on the simulation thread right before a step.
+     *
+     * @param connection the SUMO connection
+     * @return the number of TraCI round trips that were needed
+     * @throws Exception if an api error occurs
+     */
+    int apply(SumoTraciConnection connection) throws Exception {
+        double[] viewport = this.requestedViewport;
+
+        if (viewport == this.appliedViewport) {
+            return 0;
+        }
+
+        this.appliedViewport = viewport;
+        this.visibleVehicles.clear();
+
+        ContextSubscription subscription;
+
+        if (viewport == null) {
+            if (!this.anchorCreated) {
+                return 0;
+            }
+
+            // a context subscription without variables removes the subscription
+            subscription = new ContextSubscription(SubscriptionContext.poi, 0.0, SubscriptionDispatcher.END_OF_SIMULATION,
+                    ANCHOR_ID, SumoDomain.vehicles, 0.0);
+            connection.do_subscription(subscription);
+            return 1;
+        }
+
+        double centerX = 0.5 * (viewport[0] + viewport[2]);
+        double centerY = 0.5 * (viewport[1] + viewport[3]);
+        double radius = 0.5 * Math.hypot(viewport[2] - viewport[0], viewport[3] - viewport[1]) + this.margin;
+
+        if (this.anchorCreated) {
+            connection.do_job_set(Poi.setPosition(ANCHOR_ID, centerX, centerY));
+        } else {
+            connection.do_job_set(Poi.add(ANCHOR_ID, centerX, centerY, new SumoColor(0, 0, 0, 0), "", -1, "", 0.0, 0.0, 0.0));
+            this.anchorCreated = true;
+        }
+
+        // subscribing again to the same anchor replaces the previous subscription
+        subscription = new ContextSubscription(SubscriptionContext.poi, 0.0, SubscriptionDispatcher.END_OF_SIMULATION,
+                ANCHOR_ID, SumoDomain.vehicles, radius);
+        subscription.addCommand(Constants.VAR_POSITION);
+        subscription.addCommand(Constants.VAR_SPEED);
+        connection.do_subscription(subscription);
+        return 2;
+    }
+
+    /**
+     * Forgets the results of the previous step, called right before a step.
+     */
+    void beginStep() {
+        this.visibleVehicles.clear();
+    }
+
+    /**
+     * Applies a subscription result, called on the simulation thread during a step.
+     */
+    private void onSubscriptionResult(SubscriptionObject result) {
+        if (!ANCHOR_ID.equals(result.id)) {
+            return;
+        }
+
+        VehicleState state = this.visibleVehicles.computeIfAbsent(result.name, id -> new VehicleState());
+
+        if (result.variable == Constants.VAR_POSITION && result.object instanceof SumoPosition2D position) {
+            state.position = position;
+        } else if (result.variable == Constants.VAR_SPEED && result.object instanceof SumoPrimitive primitive) {
+            state.speed = (double)primitive.val;
+        }
+    }
+
+    /**
+     * @param vehicleId the id of the vehicle
+     * @return the state reported by the context subscription in this step or null if the vehicle is not visible
+     */
+    VehicleState getVisibleState(String vehicleId) {
+        return this.visibleVehicles.get(vehicleId);
+    }
+
+    /**
+     * The variables of a visible vehicle reported in the current step.
+     */
+    static class VehicleState {
+        SumoPosition2D position;
+        double speed;
+    }
+}
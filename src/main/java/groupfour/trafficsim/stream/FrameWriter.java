@@ -0,0 +1,102 @@
+package groupfour.trafficsim.stream;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Builds a single frame of the snapshot stream in a growing array.
+ * The writer is reused for all frames, only the finished frames are copied out.
+ *
+ * @author 8wf92323f
+ */
+class FrameWriter {
+    private byte[] bytes = new byte[64 * 1024];
+    private int position = 0;
+
+    /**
+     * Starts a new frame, the length is filled in by {@link #finish()}.
+     *
+     * @param type the frame type
+     */
+    void begin(byte type) {
+        this.position = 0;
+        this.putInt(0);
+        this.putByte(type);
+    }
+
+    /**
+     * @return a read-only buffer with the finished frame, it is shared by all clients receiving it
+     */
+    ByteBuffer finish() {
+        this.setInt(0, this.position - 4);
+        return ByteBuffer.wrap(Arrays.copyOf(this.bytes, this.position)).asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the current position, used to fill in counts later
+     */
+    int position() {
+        return this.position;
+    }
+
+    private void ensure(int length) {
+        if (this.position + length > this.bytes.length) {
+            this.bytes = Arrays.copyOf(this.bytes, Math.max(this.position + length, 2 * this.bytes.length));
+        }
+    }
+
+    void putByte(int value) {
+        this.ensure(1);
+        this.bytes[this.position++] = (byte)value;
+    }
+
+    void putInt(int value) {
+        this.ensure(4);
+        this.setInt(this.position, value);
+        this.position += 4;
+    }
+
+    void setInt(int at, int value) {
+        this.bytes[at] = (byte)(value >>> 24);
+        this.bytes[at + 1] = (byte)(value >>> 16);
+        this.bytes[at + 2] = (byte)(value >>> 8);
+        this.bytes[at + 3] = (byte)value;
+    }
+
+    void putLong(long value) {
+        this.putInt((int)(value >>> 32));
+        this.putInt((int)value);
+    }
+
+    void putDouble(double value) {
+        this.putLong(Double.doubleToLongBits(value));
+    }
+
+    void putFloat(float value) {
+        this.putInt(Float.floatToIntBits(value));
+    }
+
+    void putVarInt(int value) {
+        this.ensure(5);
+
+        while ((value & ~0x7F) != 0) {
+            this.bytes[this.position++] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        this.bytes[this.position++] = (byte)value;
+    }
+
+    void putZigZag(int value) {
+        this.putVarInt((value << 1) ^ (value >> 31));
+    }
+
+    void putString(String value) {
+        byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+        this.putVarInt(encoded.length);
+        this.ensure(encoded.length);
+        System.arraycopy(encoded, 0, this.bytes, this.position, encoded.length);
+        this.position += encoded.length;
+    }
+}
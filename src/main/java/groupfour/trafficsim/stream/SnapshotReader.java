@@ -0,0 +1,176 @@
+package groupfour.trafficsim.stream;
+
+import groupfour.trafficsim.sim.NetworkGeometry;
+import groupfour.trafficsim.sim.SumoVehicle;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decodes the snapshot stream of a {@link SnapshotServer} on the viewer side.
+ * The reader keeps the vehicles of the last state, frames are read one at a time by the caller.
+ * A vehicle that moved is replaced by a new one instead of being changed, so the vehicles of an
+ * earlier state stay as they were.
+ *
+ * @author 8wf92323f
+ */
+public class SnapshotReader {
+    private final DataInputStream input;
+    private final Map<Integer, SumoVehicle> vehicles = new HashMap<>(); // by code
+    private NetworkGeometry geometry = null;
+    private int session = 0;
+    private long step = 0L;
+    private double time = 0.0;
+
+    /**
+     * @param input the stream received from the server
+     */
+    public SnapshotReader(InputStream input) {
+        this.input = new DataInputStream(new BufferedInputStream(input, 64 * 1024));
+    }
+
+    /**
+     * Reads and applies the next frame, blocks until it has been received completely.
+     *
+     * @return the type of the frame, see {@link StreamProtocol}
+     * @throws IOException if the connection failed or was closed
+     */
+    public byte readFrame() throws IOException {
+        int length = this.input.readInt();
+        byte type = this.input.readByte();
+
+        switch (type) {
+            case StreamProtocol.NETWORK -> this.readNetwork();
+            case StreamProtocol.STATE -> this.readState();
+            case StreamProtocol.END -> this.vehicles.clear();
+            default -> this.input.skipNBytes(length - 1); // frames added later are skipped
+        }
+
+        return type;
+    }
+
+    private void readNetwork() throws IOException {
+        this.session = this.readVarInt();
+        int laneCount = this.readVarInt();
+        int[] offsets = new int[laneCount + 1];
+        float[] widths = new float[laneCount];
+
+        for (int lane = 0; lane < laneCount; ++lane) {
+            offsets[lane + 1] = offsets[lane] + this.readVarInt();
+            widths[lane] = this.input.readFloat();
+        }
+
+        float[] points = new float[2 * offsets[laneCount]];
+
+        for (int i = 0; i < points.length; ++i) {
+            points[i] = this.input.readFloat();
+        }
+
+        this.geometry = NetworkGeometry.of(points, offsets, widths);
+        this.vehicles.clear();
+    }
+
+    private void readState() throws IOException {
+        this.step = this.input.readLong();
+        this.time = this.input.readDouble();
+        byte flags = this.input.readByte();
+
+        if ((flags & StreamProtocol.KEYFRAME) != 0) {
+            this.vehicles.clear();
+        }
+
+        int leaves = this.input.readInt();
+
+        for (int i = 0; i < leaves; ++i) {
+            this.vehicles.remove(this.readVarInt());
+        }
+
+        int enters = this.input.readInt();
+
+        for (int i = 0; i < enters; ++i) {
+            int code = this.readVarInt();
+            byte[] id = new byte[this.readVarInt()];
+            this.input.readFully(id);
+
+            double x = this.readZigZag() / StreamProtocol.POSITION_SCALE;
+            double y = this.readZigZag() / StreamProtocol.POSITION_SCALE;
+            double speed = this.readVarInt() / StreamProtocol.SPEED_SCALE;
+            this.vehicles.put(code, new SumoVehicle(new String(id, StandardCharsets.UTF_8), x, y, speed));
+        }
+
+        int moves = this.input.readInt();
+
+        for (int i = 0; i < moves; ++i) {
+            int code = this.readVarInt();
+            SumoVehicle vehicle = this.vehicles.get(code);
+
+            if (vehicle == null) {
+                throw new IOException("Snapshot stream refers to an unknown vehicle");
+            }
+
+            double x = vehicle.get_position().x + this.readZigZag() / StreamProtocol.POSITION_SCALE;
+            double y = vehicle.get_position().y + this.readZigZag() / StreamProtocol.POSITION_SCALE;
+            double speed = this.readVarInt() / StreamProtocol.SPEED_SCALE;
+            this.vehicles.put(code, new SumoVehicle(vehicle.get_vehId(), x, y, speed));
+        }
+    }
+
+    private int readVarInt() throws IOException {
+        int value = 0;
+
+        for (int shift = 0; ; shift += 7) {
+            byte b = this.input.readByte();
+            value |= (b & 0x7F) << shift;
+
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private int readZigZag() throws IOException {
+        int value = this.readVarInt();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * @return the lane geometry of the current session or null if no network frame was received yet
+     */
+    public NetworkGeometry getNetworkGeometry() {
+        return this.geometry;
+    }
+
+    /**
+     * @return the number of the current session, 0 if none was started yet
+     */
+    public int getSession() {
+        return this.session;
+    }
+
+    /**
+     * @return the step of the last state
+     */
+    public long getStep() {
+        return this.step;
+    }
+
+    /**
+     * @return the simulation time of the last state in seconds
+     */
+    public double getTime() {
+        return this.time;
+    }
+
+    /**
+     * @return the vehicles of the last state, the collection itself is updated by the next frame
+     */
+    public Collection<SumoVehicle> getVehicles() {
+        return this.vehicles.values();
+    }
+}
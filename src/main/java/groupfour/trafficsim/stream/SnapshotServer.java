@@ -0,0 +1,338 @@
+package groupfour.trafficsim.stream;
+
+import groupfour.trafficsim.sim.Simulation;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A local TCP server that streams the vehicle states of the published simulation to any number of viewers,
+ * see {@link StreamProtocol} for the format.
+ * The server is started when the system property trafficsim.stream.port is set and by the engine process.
+ * <p>
+ * All sockets are served by a single thread with non-blocking channels. Every viewer has at most one frame
+ * in flight: a viewer that cannot keep up simply misses states and receives the newest one once its socket
+ * accepts data again, so slow viewers neither stall the simulation nor buffer an unbounded backlog.
+ *
+ * @author 8wf92323f
+ */
+public class SnapshotServer {
+    private static final Logger LOGGER = LogManager.getLogger(SnapshotServer.class.getName());
+    public static final String PORT_PROPERTY = "trafficsim.stream.port";
+    private static volatile SnapshotServer instance;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final List<Viewer> viewers = new ArrayList<>(); // only used by the server thread
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+    private final ByteBuffer end;
+    private volatile StreamSession session = null;
+    private int sessionCount = 0;
+
+    private SnapshotServer(InetAddress address, int port) throws IOException {
+        this.selector = Selector.open();
+
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress(address, port));
+        this.serverChannel.configureBlocking(false);
+        this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+
+        FrameWriter writer = new FrameWriter();
+        writer.begin(StreamProtocol.END);
+        this.end = writer.finish();
+
+        Thread thread = new Thread(this::run, "snapshot-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Starts the snapshot server if the port system property is set.
+     * Failing to start is logged and does not stop the application.
+     */
+    public static synchronized void startIfConfigured() {
+        String port = System.getProperty(PORT_PROPERTY);
+
+        if (port == null || instance != null) {
+            return;
+        }
+
+        try {
+            // only bound to the loopback interface like the metrics endpoint
+            SnapshotServer.start(InetAddress.getLoopbackAddress(), Integer.parseInt(port));
+        } catch (IOException | NumberFormatException exception) {
+            LOGGER.error("Could not start the snapshot server on port {}", port, exception);
+        }
+    }
+
+    /**
+     * Starts the snapshot server on a specific address, used by the engine process.
+     * Does nothing if the server is already running.
+     *
+     * @param address the address to bind to
+     * @param port the port to listen on
+     * @throws IOException if the port could not be bound
+     */
+    public static synchronized void start(InetAddress address, int port) throws IOException {
+        if (instance != null) {
+            return;
+        }
+
+        instance = new SnapshotServer(address, port);
+        LOGGER.info("Streaming snapshots on {}:{}", address.getHostAddress(), port);
+    }
+
+    /**
+     * Stops the snapshot server if it is running, all viewers are disconnected.
+     */
+    public static synchronized void stop() {
+        if (instance != null) {
+            instance.close();
+            instance = null;
+        }
+    }
+
+    /**
+     * Streams a simulation to all viewers, replacing the simulation streamed so far.
+     * Does nothing if no snapshot server is running.
+     *
+     * @param simulation the simulation
+     */
+    public static void publish(Simulation simulation) {
+        SnapshotServer server = instance;
+
+        if (server != null) {
+            server.startSession(simulation);
+        }
+    }
+
+    /**
+     * Stops streaming a simulation, the viewers are told that it ended.
+     *
+     * @param simulation the simulation
+     */
+    public static void withdraw(Simulation simulation) {
+        SnapshotServer server = instance;
+
+        if (server != null) {
+            server.endSession(simulation);
+        }
+    }
+
+    private synchronized void startSession(Simulation simulation) {
+        if (this.session != null) {
+            this.session.getSimulation().removeStepController(this.session);
+        }
+
+        StreamSession session = new StreamSession(++this.sessionCount, simulation, this.selector::wakeup);
+        this.session = session;
+
+        // capturing must not skip steps, the viewers would see vehicles jump
+        simulation.addStepController(session, 0L, 0);
+        this.selector.wakeup();
+    }
+
+    private synchronized void endSession(Simulation simulation) {
+        if (this.session != null && this.session.getSimulation() == simulation) {
+            simulation.removeStepController(this.session);
+            this.session = null;
+            this.selector.wakeup();
+        }
+    }
+
+    private void close() {
+        try {
+            this.serverChannel.close();
+            this.selector.close();
+        } catch (IOException exception) {
+            LOGGER.error("Could not close the snapshot server", exception);
+        }
+    }
+
+    /**
+     * The loop of the server thread.
+     */
+    private void run() {
+        try {
+            while (this.serverChannel.isOpen()) {
+                this.selector.select();
+
+                for (SelectionKey key : this.selector.selectedKeys()) {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.isAcceptable()) {
+                        this.accept();
+                    } else if (key.isReadable()) {
+                        this.read((Viewer)key.attachment());
+                    }
+                }
+
+                this.selector.selectedKeys().clear();
+                this.serve();
+            }
+        } catch (IOException | ClosedSelectorException exception) {
+            if (this.serverChannel.isOpen()) {
+                LOGGER.error("Snapshot server failed", exception);
+            }
+        }
+
+        for (Viewer viewer : this.viewers) {
+            viewer.close();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = this.serverChannel.accept();
+
+        if (channel == null) {
+            return;
+        }
+
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+        Viewer viewer = new Viewer(channel);
+        viewer.key = channel.register(this.selector, SelectionKey.OP_READ, viewer);
+        this.viewers.add(viewer);
+
+        LOGGER.info("Viewer {} connected, {} viewers", channel.getRemoteAddress(), this.viewers.size());
+    }
+
+    /**
+     * Discards everything a viewer sends, only used to notice closed connections.
+     */
+    private void read(Viewer viewer) {
+        try {
+            this.readBuffer.clear();
+
+            if (viewer.channel.read(this.readBuffer) >= 0) {
+                return;
+            }
+        } catch (IOException exception) {
+            LOGGER.debug("Could not read from viewer", exception);
+        }
+
+        viewer.close();
+    }
+
+    /**
+     * Sends the newest state to all viewers whose socket accepts data.
+     */
+    private void serve() {
+        StreamSession session = this.session;
+
+        if (session != null) {
+            session.update();
+        }
+
+        for (Iterator<Viewer> iterator = this.viewers.iterator(); iterator.hasNext(); ) {
+            Viewer viewer = iterator.next();
+
+            if (viewer.closed) {
+                iterator.remove();
+                LOGGER.info("Viewer disconnected, {} viewers", this.viewers.size());
+                continue;
+            }
+
+            try {
+                this.flush(viewer, session);
+            } catch (IOException exception) {
+                LOGGER.debug("Could not write to viewer", exception);
+                viewer.close();
+            }
+        }
+    }
+
+    /**
+     * Writes frames to a viewer until it is up to date or its socket is full.
+     */
+    private void flush(Viewer viewer, StreamSession session) throws IOException {
+        while (true) {
+            if (viewer.pending == null) {
+                viewer.pending = this.nextFrame(viewer, session);
+            }
+
+            if (viewer.pending == null) {
+                break;
+            }
+
+            viewer.channel.write(viewer.pending);
+
+            if (viewer.pending.hasRemaining()) {
+                break;
+            }
+
+            viewer.pending = null;
+        }
+
+        viewer.key.interestOps(viewer.pending != null ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    /**
+     * @return the next frame for a viewer or null if it is up to date
+     */
+    private ByteBuffer nextFrame(Viewer viewer, StreamSession session) {
+        if (session == null) {
+            if (viewer.session == 0) {
+                return null;
+            }
+
+            viewer.session = 0;
+            return this.end.duplicate();
+        }
+
+        if (viewer.session != session.getId()) {
+            viewer.session = session.getId();
+            viewer.lastSequence = 0L;
+            return session.getNetwork();
+        }
+
+        ByteBuffer frame = session.nextFrame(viewer.lastSequence);
+
+        if (frame != null) {
+            viewer.lastSequence = session.getSequence();
+        }
+
+        return frame;
+    }
+
+    /**
+     * A connected viewer and the frame currently being written to it.
+     */
+    private static class Viewer {
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private ByteBuffer pending = null;
+        private int session = 0; // the session the viewer received the network of, 0 if none
+        private long lastSequence = 0L;
+        private boolean closed = false;
+
+        private Viewer(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        private void close() {
+            this.closed = true;
+
+            try {
+                this.channel.close();
+            } catch (IOException exception) {
+                LOGGER.debug("Could not close viewer connection", exception);
+            }
+        }
+    }
+}
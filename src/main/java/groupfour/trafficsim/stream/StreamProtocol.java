@@ -0,0 +1,36 @@
+package groupfour.trafficsim.stream;
+
+/**
+ * Constants of the snapshot stream.
+ * <p>
+ * A viewer connects by TCP and only receives, anything it sends is ignored. The stream is a sequence of
+ * frames, each a big-endian int with the length of the body followed by the body. The body starts with
+ * the frame type:
+ * <ul>
+ *     <li>{@link #NETWORK}: varint session, varint lane count, per lane the varint point count and the
+ *     float lane width, then the float x and y of all points of all lanes. Starts a session, all
+ *     vehicles of earlier sessions are gone.</li>
+ *     <li>{@link #STATE}: long step, double time, byte flags, then three lists, each an int count
+ *     followed by the entries: the varint codes of the vehicles that left, the vehicles that entered
+ *     as varint code, varint length and UTF-8 bytes of the id, zigzag x, zigzag y and varint speed,
+ *     and the vehicles that moved as varint code, zigzag dx, zigzag dy and varint speed. A keyframe
+ *     (flag {@link #KEYFRAME}) replaces all vehicles, otherwise the frame applies to the last one.
+ *     Vehicles that did not move are left out.</li>
+ *     <li>{@link #END}: the simulation was disconnected.</li>
+ * </ul>
+ * Positions are given in centimeters, speeds in cm/s. Varints are unsigned LEB128, signed values are
+ * zigzag encoded first. A code may be given to another vehicle after the vehicle left.
+ *
+ * @author 8wf92323f
+ */
+public final class StreamProtocol {
+    public static final byte NETWORK = 1;
+    public static final byte STATE = 2;
+    public static final byte END = 3;
+    public static final byte KEYFRAME = 1;
+    public static final double POSITION_SCALE = 100.0; // cm
+    public static final double SPEED_SCALE = 100.0; // cm/s
+
+    private StreamProtocol() {
+    }
+}
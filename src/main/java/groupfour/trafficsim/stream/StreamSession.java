@@ -0,0 +1,352 @@
+package groupfour.trafficsim.stream;
+
+import groupfour.trafficsim.sim.CommandQueue;
+import groupfour.trafficsim.sim.NetworkGeometry;
+import groupfour.trafficsim.sim.Simulation;
+import groupfour.trafficsim.sim.StepController;
+import groupfour.trafficsim.sim.StepSnapshot;
+import groupfour.trafficsim.sim.SumoVehicle;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Streams one simulation.
+ * <p>
+ * On the simulation thread the session only copies the vehicle states of each step into a
+ * {@link StreamState} and hands it over through a triple buffer, so it never waits for the server.
+ * The server thread picks up the newest state and encodes it once as a delta to the state before,
+ * which is shared by all viewers that received that state. Viewers that fell behind get a keyframe of
+ * the newest state instead, which is also encoded once. The work per step therefore does not depend on
+ * the number of viewers.
+ *
+ * @author 8wf92323f
+ */
+class StreamSession implements StepController {
+    private final int id;
+    private final Simulation simulation;
+    private final ByteBuffer network;
+    private final Runnable wakeup;
+    private final AtomicReference<StreamState> middle = new AtomicReference<>(new StreamState());
+
+    // simulation thread
+    private StreamState back = new StreamState();
+    private long capturedSequence = 0L;
+    private final Map<String, Integer> codes = new HashMap<>();
+    private String[] codeIds = new String[256];
+    private long[] codeSequences = new long[256]; // the last capture containing the code
+    private int[] freeCodes = new int[256];
+    private int freeCodeCount = 0;
+    private int usedCodeCount = 0;
+
+    // server thread
+    private final FrameWriter writer = new FrameWriter();
+    private StreamState front = new StreamState();
+    private long deltaFrom = 0L; // the state the delta applies to
+    private ByteBuffer delta = null;
+    private ByteBuffer keyframe = null;
+    private long keyframeSequence = 0L;
+    private String[] baseIds = new String[256]; // the state the next delta is encoded against, by code
+    private int[] baseX = new int[256];
+    private int[] baseY = new int[256];
+    private int[] baseSpeeds = new int[256];
+    private int[] baseCodes = new int[256];
+    private int baseSize = 0;
+    private long baseSequence = 0L;
+    private long[] seen = new long[256];
+    private String[] currentIds = new String[256];
+
+    /**
+     * @param id the number of the session, increasing with every published simulation
+     * @param simulation the simulation to stream
+     * @param wakeup wakes the server thread once a new state is available
+     */
+    StreamSession(int id, Simulation simulation, Runnable wakeup) {
+        this.id = id;
+        this.simulation = simulation;
+        this.wakeup = wakeup;
+
+        NetworkGeometry geometry = simulation.getNetworkGeometry();
+        FrameWriter networkWriter = new FrameWriter();
+        networkWriter.begin(StreamProtocol.NETWORK);
+        networkWriter.putVarInt(id);
+        networkWriter.putVarInt(geometry.getLaneCount());
+
+        for (int lane = 0; lane < geometry.getLaneCount(); ++lane) {
+            networkWriter.putVarInt(geometry.getPointCount(lane));
+            networkWriter.putFloat((float)geometry.getWidth(lane));
+        }
+
+        float[] points = geometry.getPoints();
+
+        for (float coordinate : points) {
+            networkWriter.putFloat(coordinate);
+        }
+
+        this.network = networkWriter.finish();
+    }
+
+    int getId() {
+        return this.id;
+    }
+
+    Simulation getSimulation() {
+        return this.simulation;
+    }
+
+    /**
+     * @return the network frame starting the session
+     */
+    ByteBuffer getNetwork() {
+        return this.network.duplicate();
+    }
+
+    @Override
+    public void onStep(StepSnapshot snapshot, CommandQueue commands) {
+        if (snapshot.isWarmingUp()) {
+            return; // the vehicle states are only synced once the warm-up is finished
+        }
+
+        Collection<SumoVehicle> vehicles = snapshot.getVehicles();
+        StreamState state = this.back;
+        state.ensureCapacity(vehicles.size());
+        long sequence = ++this.capturedSequence;
+        int i = 0;
+
+        for (SumoVehicle vehicle : vehicles) {
+            int code = this.codeOf(vehicle.get_vehId());
+            this.codeSequences[code] = sequence;
+            state.codes[i] = code;
+            state.vehicleIds[i] = vehicle.get_vehId();
+            state.x[i] = (int)Math.round(vehicle.get_position().x * StreamProtocol.POSITION_SCALE);
+            state.y[i] = (int)Math.round(vehicle.get_position().y * StreamProtocol.POSITION_SCALE);
+            state.speeds[i] = (int)Math.max(0L, Math.round(vehicle.get_speed() * StreamProtocol.SPEED_SCALE));
+            ++i;
+        }
+
+        state.size = i;
+        state.step = snapshot.getStep();
+        state.time = snapshot.getTime();
+        state.codeLimit = this.usedCodeCount;
+        state.sequence = sequence;
+
+        // codes of vehicles that left may be reused right away, the server compares the ids
+        for (int code = 0; code < this.usedCodeCount; ++code) {
+            if (this.codeIds[code] != null && this.codeSequences[code] != sequence) {
+                this.codes.remove(this.codeIds[code]);
+                this.codeIds[code] = null;
+                this.freeCodes[this.freeCodeCount++] = code;
+            }
+        }
+
+        this.back = this.middle.getAndSet(state);
+        this.wakeup.run();
+    }
+
+    private int codeOf(String vehicleId) {
+        Integer code = this.codes.get(vehicleId);
+
+        if (code != null) {
+            return code;
+        }
+
+        int newCode;
+
+        if (this.freeCodeCount > 0) {
+            newCode = this.freeCodes[--this.freeCodeCount];
+        } else {
+            newCode = this.usedCodeCount++;
+
+            if (newCode == this.codeIds.length) {
+                int length = 2 * this.codeIds.length;
+                this.codeIds = Arrays.copyOf(this.codeIds, length);
+                this.codeSequences = Arrays.copyOf(this.codeSequences, length);
+                this.freeCodes = Arrays.copyOf(this.freeCodes, length);
+            }
+        }
+
+        this.codes.put(vehicleId, newCode);
+        this.codeIds[newCode] = vehicleId;
+        return newCode;
+    }
+
+    /**
+     * Picks up the newest captured state and encodes its delta, called on the server thread.
+     *
+     * @return whether there was a new state
+     */
+    boolean update() {
+        if (this.middle.get().sequence <= this.front.sequence) {
+            return false;
+        }
+
+        // the middle can only have become newer in the meantime
+        this.front = this.middle.getAndSet(this.front);
+        this.encodeDelta();
+        return true;
+    }
+
+    /**
+     * @return the sequence number of the newest state picked up by the server thread
+     */
+    long getSequence() {
+        return this.front.sequence;
+    }
+
+    /**
+     * @param lastSequence the last state a viewer received, 0 if none
+     * @return the frame bringing the viewer to the newest state or null if it is up to date
+     */
+    ByteBuffer nextFrame(long lastSequence) {
+        if (this.front.sequence == 0L || lastSequence == this.front.sequence) {
+            return null;
+        }
+
+        if (lastSequence == this.deltaFrom) {
+            return this.delta.duplicate();
+        }
+
+        if (this.keyframeSequence != this.front.sequence) {
+            this.encodeKeyframe();
+        }
+
+        return this.keyframe.duplicate();
+    }
+
+    /**
+     * Encodes the changes from the last state to the newest one and makes the newest state the new base.
+     */
+    private void encodeDelta() {
+        StreamState state = this.front;
+        this.ensureBaseCapacity(state.codeLimit, state.size);
+
+        for (int i = 0; i < state.size; ++i) {
+            this.seen[state.codes[i]] = state.sequence;
+            this.currentIds[state.codes[i]] = state.vehicleIds[i];
+        }
+
+        FrameWriter writer = this.writer;
+        writer.begin(StreamProtocol.STATE);
+        writer.putLong(state.step);
+        writer.putDouble(state.time);
+        writer.putByte(0);
+
+        // vehicles that left, a code that now belongs to another vehicle leaves and enters again
+        int countPosition = writer.position();
+        int count = 0;
+        writer.putInt(0);
+
+        for (int j = 0; j < this.baseSize; ++j) {
+            int code = this.baseCodes[j];
+
+            if (this.seen[code] != state.sequence || !Objects.equals(this.currentIds[code], this.baseIds[code])) {
+                writer.putVarInt(code);
+                this.baseIds[code] = null;
+                ++count;
+            }
+        }
+
+        writer.setInt(countPosition, count);
+
+        // vehicles that entered
+        countPosition = writer.position();
+        count = 0;
+        writer.putInt(0);
+
+        for (int i = 0; i < state.size; ++i) {
+            int code = state.codes[i];
+
+            if (this.baseIds[code] == null) {
+                this.writeEnter(state, i);
+                this.baseIds[code] = state.vehicleIds[i];
+                this.baseX[code] = state.x[i];
+                this.baseY[code] = state.y[i];
+                this.baseSpeeds[code] = state.speeds[i];
+                ++count;
+            }
+        }
+
+        writer.setInt(countPosition, count);
+
+        // vehicles that moved
+        countPosition = writer.position();
+        count = 0;
+        writer.putInt(0);
+
+        for (int i = 0; i < state.size; ++i) {
+            int code = state.codes[i];
+            int dx = state.x[i] - this.baseX[code];
+            int dy = state.y[i] - this.baseY[code];
+
+            if (dx != 0 || dy != 0 || state.speeds[i] != this.baseSpeeds[code]) {
+                writer.putVarInt(code);
+                writer.putZigZag(dx);
+                writer.putZigZag(dy);
+                writer.putVarInt(state.speeds[i]);
+                this.baseX[code] = state.x[i];
+                this.baseY[code] = state.y[i];
+                this.baseSpeeds[code] = state.speeds[i];
+                ++count;
+            }
+        }
+
+        writer.setInt(countPosition, count);
+
+        System.arraycopy(state.codes, 0, this.baseCodes, 0, state.size);
+        this.baseSize = state.size;
+        this.deltaFrom = this.baseSequence;
+        this.baseSequence = state.sequence;
+        this.delta = writer.finish();
+    }
+
+    /**
+     * Encodes all vehicles of the newest state.
+     */
+    private void encodeKeyframe() {
+        StreamState state = this.front;
+        FrameWriter writer = this.writer;
+        writer.begin(StreamProtocol.STATE);
+        writer.putLong(state.step);
+        writer.putDouble(state.time);
+        writer.putByte(StreamProtocol.KEYFRAME);
+        writer.putInt(0);
+        writer.putInt(state.size);
+
+        for (int i = 0; i < state.size; ++i) {
+            this.writeEnter(state, i);
+        }
+
+        writer.putInt(0);
+        this.keyframe = writer.finish();
+        this.keyframeSequence = state.sequence;
+    }
+
+    private void writeEnter(StreamState state, int i) {
+        this.writer.putVarInt(state.codes[i]);
+        this.writer.putString(state.vehicleIds[i]);
+        this.writer.putZigZag(state.x[i]);
+        this.writer.putZigZag(state.y[i]);
+        this.writer.putVarInt(state.speeds[i]);
+    }
+
+    private void ensureBaseCapacity(int codeLimit, int size) {
+        if (this.baseIds.length < codeLimit) {
+            int length = Math.max(codeLimit, 2 * this.baseIds.length);
+            this.baseIds = Arrays.copyOf(this.baseIds, length);
+            this.baseX = Arrays.copyOf(this.baseX, length);
+            this.baseY = Arrays.copyOf(this.baseY, length);
+            this.baseSpeeds = Arrays.copyOf(this.baseSpeeds, length);
+            this.seen = Arrays.copyOf(this.seen, length);
+            this.currentIds = Arrays.copyOf(this.currentIds, length);
+        }
+
+        if (this.baseCodes.length < size) {
+            this.baseCodes = Arrays.copyOf(this.baseCodes, Math.max(size, 2 * this.baseCodes.length));
+        }
+    }
+}
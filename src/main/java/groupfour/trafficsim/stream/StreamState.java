@@ -0,0 +1,34 @@
+package groupfour.trafficsim.stream;
+
+import java.util.Arrays;
+
+/**
+ * The vehicle states of one step as captured for the stream.
+ * Three instances per session are passed between the simulation thread and the server thread,
+ * so capturing a step neither allocates nor waits for the server.
+ *
+ * @author 8wf92323f
+ */
+class StreamState {
+    long sequence = 0L; // 0 until the first step is captured
+    long step;
+    double time;
+    int size = 0;
+    int codeLimit = 0; // all codes are smaller
+    int[] codes = new int[256];
+    String[] vehicleIds = new String[256];
+    int[] x = new int[256];
+    int[] y = new int[256];
+    int[] speeds = new int[256];
+
+    void ensureCapacity(int size) {
+        if (this.codes.length < size) {
+            int length = Math.max(size, 2 * this.codes.length);
+            this.codes = Arrays.copyOf(this.codes, length);
+            this.vehicleIds = Arrays.copyOf(this.vehicleIds, length);
+            this.x = Arrays.copyOf(this.x, length);
+            this.y = Arrays.copyOf(this.y, length);
+            this.speeds = Arrays.copyOf(this.speeds, length);
+        }
+    }
+}
@@ -1,6 +1,13 @@
 package groupfour.trafficsim.ui;
 
+import groupfour.trafficsim.engine.EngineProtocol;
+import groupfour.trafficsim.engine.RemoteSimulation;
+import groupfour.trafficsim.sim.LoadListener;
+import groupfour.trafficsim.sim.NetworkGeometry;
 import groupfour.trafficsim.sim.Simulation;
+import groupfour.trafficsim.sim.SimulationEngine;
+import javafx.application.Platform;
+import javafx.concurrent.Task;
 import javafx.event.ActionEvent;
 import javafx.geometry.Pos;
 import javafx.scene.Scene;
@@ -15,9 +22,11 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.File;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * A Window that allows the user to configure SUMO launch settings.
+ * A Window that allows the user to configure SUMO launch settings
+ * or to connect to a simulation running in an engine process.
  *
  * @author 8wf92323f
  */
@@ -26,8 +35,15 @@ public class ConnectWindow {
     private final MainWindow parent;
     private final ComboBox<String> comboBox;
     private final TextField textField;
+    private final Button searchFilesButton;
+    private final TextField engineField;
+    private final Button startButton;
+    private final Button closeButton;
+    private final ProgressBar progressBar;
+    private final Label statusLabel;
     private final VBox layout;
     private Stage stage;
+    private LoadTask loadTask;
 
     /**
      * Creates the window and its UI elements.
@@ -46,8 +62,8 @@ public class ConnectWindow {
         this.textField = new TextField();
         this.textField.setPromptText(".sumocfg path");
 
-        Button searchFilesButton = new Button("Search Files");
-        searchFilesButton.setOnAction(this::onPressSearchFilesButton);
+        this.searchFilesButton = new Button("Search Files");
+        this.searchFilesButton.setOnAction(this::onPressSearchFilesButton);
 
         GridPane configLayout = new GridPane();
         configLayout.setAlignment(Pos.CENTER);
@@ -57,19 +73,35 @@ public class ConnectWindow {
         configLayout.add(this.comboBox, 1, 0);
         configLayout.add(new Label("Config File"), 0, 1);
         configLayout.add(this.textField, 1, 1);
-        configLayout.add(searchFilesButton, 2, 1);
+        configLayout.add(this.searchFilesButton, 2, 1);
+
+        this.engineField = new TextField();
+        this.engineField.setPromptText("host:port, empty to launch locally");
+        configLayout.add(new Label("Engine"), 0, 2);
+        configLayout.add(this.engineField, 1, 2);
 
         // Window Buttons
 
-        Button startButton = new Button("Start");
-        startButton.setOnAction(this::onPressStartButton);
-        Button closeButton = new Button("Close");
-        closeButton.setOnAction(this::onPressCloseButton);
+        this.startButton = new Button("Start");
+        this.startButton.setOnAction(this::onPressStartButton);
+        this.closeButton = new Button("Close");
+        this.closeButton.setOnAction(this::onPressCloseButton);
 
-        HBox buttonLayout = new HBox(startButton, closeButton);
+        HBox buttonLayout = new HBox(this.startButton, this.closeButton);
         buttonLayout.setAlignment(Pos.CENTER);
         buttonLayout.setSpacing(10.0);
 
+        // Loading progress
+
+        this.progressBar = new ProgressBar(0.0);
+        this.progressBar.setPrefWidth(300.0);
+        this.progressBar.setVisible(false);
+        this.statusLabel = new Label();
+
+        VBox progressLayout = new VBox(this.progressBar, this.statusLabel);
+        progressLayout.setAlignment(Pos.CENTER);
+        progressLayout.setSpacing(6.0);
+
         // Window creation
 
         this.layout = new VBox();
@@ -78,7 +110,8 @@ public class ConnectWindow {
         this.layout.getChildren().addAll(
                 new Label("Launch SUMO"),
                 configLayout,
-                buttonLayout
+                buttonLayout,
+                progressLayout
         );
     }
 
@@ -95,6 +128,7 @@ public class ConnectWindow {
         this.stage.initOwner(parentStage);
         this.stage.setTitle("Connect SUMO");
         this.stage.setScene(new Scene(this.layout, 400, 300));
+        this.stage.setOnHidden(event -> this.cancelLoading());
         this.stage.showAndWait();
     }
 
@@ -113,34 +147,166 @@ public class ConnectWindow {
     private void onPressStartButton(ActionEvent event) {
         String binary = this.comboBox.getSelectionModel().getSelectedItem();
         String configFile = this.textField.getText();
+        String engineAddress = this.engineField.getText().isBlank() ? null : this.engineField.getText().trim();
 
-        Simulation simulation;
+        LoadTask task = new LoadTask(binary, configFile, engineAddress);
+        task.setOnSucceeded(e -> this.onLoadingSucceeded(task.getValue()));
+        task.setOnFailed(e -> this.onLoadingFailed(task.getException()));
 
-        try {
-            simulation = new Simulation(binary, configFile);
-        } catch (Exception exception) {
-            LOGGER.error("Exception whilst trying to connect to Sumo", exception);
+        this.loadTask = task;
+        this.setInputsEnabled(false);
+        this.progressBar.setVisible(true);
+        this.progressBar.progressProperty().bind(task.progressProperty());
+        this.statusLabel.textProperty().bind(task.messageProperty());
 
-            String message = String.join("\n",
-                    "An exception occurred whilst trying to connect to Sumo.",
-                    "Ensure the file path is valid.",
-                    "See the full log for more information.",
-                    "",
-                    exception.getMessage()
-            );
-
-            Alert alert = new Alert(Alert.AlertType.ERROR);
-            alert.setContentText(message);
-            alert.showAndWait();
+        Thread thread = new Thread(task, "simulation-loader");
+        thread.setDaemon(true);
+        thread.start();
+    }
 
-            return;
+    private void onGeometryLoaded(LoadTask task, NetworkGeometry geometry) {
+        // ignore previews of loads that have been cancelled in the meantime
+        if (this.loadTask == task) {
+            this.parent.previewNetwork(geometry);
         }
+    }
 
+    private void onLoadingSucceeded(SimulationEngine simulation) {
+        this.loadTask = null;
         this.parent.setSimulation(simulation);
         this.stage.close();
     }
 
+    private void onLoadingFailed(Throwable exception) {
+        LOGGER.error("Exception whilst trying to connect to Sumo", exception);
+
+        this.resetLoading();
+
+        String message = String.join("\n",
+                "An exception occurred whilst trying to connect to Sumo.",
+                "Ensure the file path or the engine address is valid.",
+                "See the full log for more information.",
+                "",
+                exception.getMessage()
+        );
+
+        Alert alert = new Alert(Alert.AlertType.ERROR);
+        alert.setContentText(message);
+        alert.showAndWait();
+    }
+
+    /**
+     * Cancels a running load, the loading thread shuts SUMO down again.
+     */
+    private void cancelLoading() {
+        if (this.loadTask != null) {
+            this.loadTask.cancel();
+            this.resetLoading();
+        }
+    }
+
+    private void resetLoading() {
+        this.loadTask = null;
+        this.parent.clearPreview();
+
+        this.progressBar.progressProperty().unbind();
+        this.progressBar.setProgress(0.0);
+        this.progressBar.setVisible(false);
+        this.statusLabel.textProperty().unbind();
+        this.statusLabel.setText("");
+        this.setInputsEnabled(true);
+    }
+
+    private void setInputsEnabled(boolean enabled) {
+        this.comboBox.setDisable(!enabled);
+        this.textField.setDisable(!enabled);
+        this.searchFilesButton.setDisable(!enabled);
+        this.engineField.setDisable(!enabled);
+        this.startButton.setDisable(!enabled);
+        this.closeButton.setText(enabled ? "Close" : "Cancel");
+    }
+
     private void onPressCloseButton(ActionEvent event) {
+        if (this.loadTask != null) {
+            this.cancelLoading();
+            return;
+        }
+
         this.stage.close();
     }
+
+    /**
+     * Background task that launches SUMO or connects to an engine process
+     * and streams the loading progress into the window.
+     */
+    private class LoadTask extends Task<SimulationEngine> implements LoadListener {
+        private final String binary;
+        private final String configFile;
+        private final String engineAddress;
+        private final AtomicReference<SimulationEngine> simulation = new AtomicReference<>();
+
+        /**
+         * @param engineAddress host and optional port of an engine process, null to launch SUMO locally
+         */
+        LoadTask(String binary, String configFile, String engineAddress) {
+            this.binary = binary;
+            this.configFile = configFile;
+            this.engineAddress = engineAddress;
+        }
+
+        @Override
+        protected SimulationEngine call() throws Exception {
+            SimulationEngine simulation;
+
+            if (this.engineAddress != null) {
+                this.onProgress("Connecting to the engine", -1.0);
+
+                int separator = this.engineAddress.lastIndexOf(':');
+                String host = separator >= 0 ? this.engineAddress.substring(0, separator) : this.engineAddress;
+                int port = separator >= 0 ? Integer.parseInt(this.engineAddress.substring(separator + 1)) : EngineProtocol.DEFAULT_PORT;
+                simulation = RemoteSimulation.connect(host, port);
+            } else {
+                simulation = new Simulation(this.binary, this.configFile, 0, this);
+            }
+
+            this.simulation.set(simulation);
+
+            if (this.isCancelled()) {
+                // cancelled after the simulation was already set up
+                this.closeSimulation();
+            }
+
+            return simulation;
+        }
+
+        @Override
+        protected void cancelled() {
+            // a cancel can still land after call returned, the simulation is then never handed out
+            Thread thread = new Thread(this::closeSimulation, "simulation-closer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Closes the loaded simulation, at most once no matter whether the loader or the cancel gets here first.
+         */
+        private void closeSimulation() {
+            SimulationEngine simulation = this.simulation.getAndSet(null);
+
+            if (simulation != null) {
+                simulation.close();
+            }
+        }
+
+        @Override
+        public void onProgress(String stage, double progress) {
+            this.updateMessage(stage);
+            this.updateProgress(progress, 1.0);
+        }
+
+        @Override
+        public void onGeometryLoaded(NetworkGeometry geometry) {
+            Platform.runLater(() -> ConnectWindow.this.onGeometryLoaded(this, geometry));
+        }
+    }
 }
@@ -1,7 +1,21 @@
 package groupfour.trafficsim.ui;
 
+import de.tudresden.sumo.objects.SumoTLSProgram;
+import groupfour.trafficsim.demand.DemandGenerator;
+import groupfour.trafficsim.demand.DemandModel;
+import groupfour.trafficsim.engine.RemoteSimulation;
+import groupfour.trafficsim.export.StatisticsFormat;
+import groupfour.trafficsim.export.StatisticsRecorder;
 import groupfour.trafficsim.sim.Simulation;
+import groupfour.trafficsim.sim.SimulationEngine;
 import groupfour.trafficsim.sim.SumoVehicle;
+import groupfour.trafficsim.sim.VehicleDetails;
+import groupfour.trafficsim.sim.SumoTrafficLight;
+import groupfour.trafficsim.sim.TrafficLightSystem;
+import javafx.application.Platform;
+import javafx.beans.property.ReadOnlyObjectWrapper;
+import javafx.beans.property.SimpleStringProperty;
+import javafx.beans.property.StringProperty;
 import javafx.event.ActionEvent;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
@@ -11,9 +25,20 @@ import javafx.scene.control.*;
 import javafx.scene.layout.*;
 import javafx.scene.paint.Color;
 import javafx.scene.text.Font;
+import javafx.stage.DirectoryChooser;
+import javafx.stage.FileChooser;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
 /**
  * A class used for displaying simulation data
  *
@@ -21,10 +46,17 @@ import org.apache.logging.log4j.Logger;
  */
 public class Dashboard {
     private static final Logger LOGGER = LogManager.getLogger(Dashboard.class.getName());
+    private static final int RECORDING_EDGE_INTERVAL = 8; // steps, one second at 8 steps/sec
+    private static final int VEHICLE_SEARCH_LIMIT = 100;
+    private static final String[] VEHICLE_DETAIL_NAMES = {
+            "ID", "Speed (m/s)", "Max speed (m/s)", "Position", "Type", "Route", "Road", "Lane",
+            "Angle (°)", "Acceleration (m/s²)", "Distance (m)", "Waiting time (s)", "CO2 (mg/s)"
+    };
     private final Label vehicleCountLabel = new Label("Vehicle count: -");
     private final Label stepDurationLabel = new Label("Step Duration (ms): -");
     private final Label updateDurationLabel = new Label("Update duration (ms): -");
     private final Label totalStepLengthLabel = new Label("Step length (ms): -");
+    private final Label controllerDurationLabel = new Label("Controller duration (ms): -");
     private final Label avgSpeedLabel = new Label("Average speed: -");      // displays average speed
     private final Label hotspotLabel = new Label("Congestion hotspots: -"); // displays congestion hotpots
     private final BarChart<String, Number> vehicleEdgeDensityChart;           // shows vehicle density per edge
@@ -32,7 +64,38 @@ public class Dashboard {
     private final Button vehicleInjectionButton;
     private final Button stressTestButton;
     private final Spinner<Integer> batchSizeSpinner;
-    private Simulation simulation;
+    private final TextField originEdgeField = new TextField();
+    private final TextField destinationEdgeField = new TextField();
+    private final Button routedInjectionButton = new Button("Inject on fastest route");
+    private final Label routedInjectionLabel = new Label();
+    private final CheckBox reroutingBox = new CheckBox("Dynamic rerouting");
+    private final Button demandButton = new Button("Load demand");
+    private final Label demandLabel = new Label("No demand loaded");
+    private DemandGenerator demandGenerator;
+    private boolean remoteDemand = false; // whether the engine of a remote simulation generates demand
+    private final Label trafficLightCountLabel = new Label("Traffic lights: -");
+    private final TableView<SumoTrafficLight> trafficLightTable;
+    private final Label selectedTrafficLightLabel = new Label("Selected: -");
+    private final ComboBox<String> programComboBox = new ComboBox<>();
+    private final Spinner<Integer> phaseSpinner = new Spinner<>(0, 0, 0);
+    private final Spinner<Double> phaseDurationSpinner = new Spinner<>(1.0, 3600.0, 30.0, 1.0);
+    private final Button setProgramButton = new Button("Set program");
+    private final Button setPhaseButton = new Button("Set phase");
+    private final Button setPhaseDurationButton = new Button("Set remaining duration");
+    private final Button applyProgramToAllButton = new Button("Apply program to all");
+    private final ChoiceBox<StatisticsFormat> recordingFormatChoiceBox = new ChoiceBox<>();
+    private final Button recordButton = new Button("Start recording");
+    private final Label recordingLabel = new Label("Not recording");
+    private StatisticsRecorder recorder; // null whilst the engine of a remote simulation records
+    private Path recordingDirectory = null; // null if not recording
+    private final TextField vehicleSearchField = new TextField();
+    private final ListView<String> vehicleSearchResults = new ListView<>();
+    private final Label vehicleSearchCountLabel = new Label("Matches: -");
+    private final Label[] vehicleDetailValues = new Label[VEHICLE_DETAIL_NAMES.length];
+    private final StringProperty selectedVehicle = new SimpleStringProperty(this, "selectedVehicle");
+    private VehicleDetails selectedVehicleDetails;
+    private int renderedTrafficLightChanges = 0;
+    private SimulationEngine simulation;
 
     public Dashboard(TabPane dashboardPane) {
         dashboardPane.setTabClosingPolicy(TabPane.TabClosingPolicy.UNAVAILABLE);
@@ -41,6 +104,7 @@ public class Dashboard {
         Tab statisticsTab = new Tab("Statistics");
         Tab trafficLightSystemsTab = new Tab("Traffic Lights");
         Tab vehicleInjectionTab = new Tab("Vehicle Injection");
+        Tab vehiclesTab = new Tab("Vehicles");
 
         // STATISTICS
 
@@ -74,6 +138,13 @@ public class Dashboard {
         this.vehicleCountChart.setCreateSymbols(false);
         VBox.setVgrow(this.vehicleCountChart, Priority.ALWAYS); // allow this chart to grow vertically
 
+        // setup recording controls
+        this.recordingFormatChoiceBox.getItems().addAll(StatisticsFormat.values());
+        this.recordingFormatChoiceBox.setValue(StatisticsFormat.CSV);
+        this.recordButton.setOnAction(this::onPressRecordButton);
+        HBox recordingControls = new HBox(10.0, new Label("Export"), this.recordingFormatChoiceBox, this.recordButton);
+        recordingControls.setAlignment(Pos.CENTER_LEFT);
+
         // setup layout - add all UI elements to the root layout
         ScrollPane statisticsScrollPane = Dashboard.createVerticalScrollPane(
                 this.avgSpeedLabel,
@@ -83,13 +154,55 @@ public class Dashboard {
                 this.vehicleCountChart,
                 this.stepDurationLabel,
                 this.updateDurationLabel,
-                this.totalStepLengthLabel
+                this.totalStepLengthLabel,
+                this.controllerDurationLabel,
+                recordingControls,
+                this.recordingLabel
         );
 
         // TRAFFIC LIGHT SYSTEMS
 
+        this.trafficLightTable = new TableView<>();
+        this.trafficLightTable.setColumnResizePolicy(TableView.CONSTRAINED_RESIZE_POLICY_FLEX_LAST_COLUMN);
+        this.trafficLightTable.setPlaceholder(new Label("No traffic lights"));
+        this.trafficLightTable.setMinHeight(400);
+        VBox.setVgrow(this.trafficLightTable, Priority.ALWAYS);
+        this.trafficLightTable.getColumns().addAll(List.of(
+                Dashboard.createColumn("ID", SumoTrafficLight::getTlsId),
+                Dashboard.createColumn("Program", SumoTrafficLight::getProgramId),
+                Dashboard.createColumn("Phase", SumoTrafficLight::getPhase),
+                Dashboard.createColumn("State", SumoTrafficLight::getState)
+        ));
+
+        this.trafficLightTable.getSelectionModel().selectedItemProperty().addListener(
+                (observable, oldValue, newValue) -> this.onSelectTrafficLight(newValue));
+
+        this.setProgramButton.setOnAction(this::onPressSetProgramButton);
+        this.setPhaseButton.setOnAction(this::onPressSetPhaseButton);
+        this.setPhaseDurationButton.setOnAction(this::onPressSetPhaseDurationButton);
+        this.applyProgramToAllButton.setOnAction(this::onPressApplyProgramToAllButton);
+        this.phaseDurationSpinner.setEditable(true);
+
+        GridPane trafficLightControls = new GridPane();
+        trafficLightControls.setHgap(10.0);
+        trafficLightControls.setVgap(6.0);
+        trafficLightControls.add(new Label("Program"), 0, 0);
+        trafficLightControls.add(this.programComboBox, 1, 0);
+        trafficLightControls.add(this.setProgramButton, 2, 0);
+        trafficLightControls.add(this.applyProgramToAllButton, 3, 0);
+        trafficLightControls.add(new Label("Phase"), 0, 1);
+        trafficLightControls.add(this.phaseSpinner, 1, 1);
+        trafficLightControls.add(this.setPhaseButton, 2, 1);
+        trafficLightControls.add(new Label("Duration (s)"), 0, 2);
+        trafficLightControls.add(this.phaseDurationSpinner, 1, 2);
+        trafficLightControls.add(this.setPhaseDurationButton, 2, 2);
+
         ScrollPane tlsScrollPane = Dashboard.createVerticalScrollPane(
-                new Label("TLS")
+                this.trafficLightCountLabel,
+                this.trafficLightTable,
+                this.selectedTrafficLightLabel,
+                trafficLightControls,
+                new Label("Changes are sent together with the next simulation step.")
         );
 
 
@@ -102,17 +215,65 @@ public class Dashboard {
         this.batchSizeSpinner = new Spinner<>();
         this.batchSizeSpinner.setValueFactory(new SpinnerValueFactory.IntegerSpinnerValueFactory(1, 50, 20, 1));
 
+        this.originEdgeField.setPromptText("Origin edge ID");
+        this.destinationEdgeField.setPromptText("Destination edge ID");
+        this.routedInjectionButton.setOnAction(this::onPressRoutedInjectionButton);
+        this.reroutingBox.setOnAction(event -> this.simulation.setRerouting(this.reroutingBox.isSelected()));
+        this.demandButton.setOnAction(this::onPressDemandButton);
+
         ScrollPane vehicleInjectionScrollPane = Dashboard.createVerticalScrollPane(
                 this.vehicleInjectionButton,
                 new Label("Batch size:"),
                 this.batchSizeSpinner,
-                this.stressTestButton
+                this.stressTestButton,
+                new Label("Origin and destination:"),
+                this.originEdgeField,
+                this.destinationEdgeField,
+                this.routedInjectionButton,
+                this.routedInjectionLabel,
+                this.reroutingBox,
+                new Label("Origin-destination demand:"),
+                this.demandButton,
+                this.demandLabel
         );
 
         statisticsTab.setContent(statisticsScrollPane);
         trafficLightSystemsTab.setContent(tlsScrollPane);
+        // VEHICLES
+
+        this.vehicleSearchField.setPromptText("Vehicle ID prefix");
+        this.vehicleSearchField.textProperty().addListener((observable, oldValue, newValue) -> this.searchVehicles());
+        this.vehicleSearchField.setOnAction(event -> this.searchVehicles());
+        this.vehicleSearchResults.setPrefHeight(200.0);
+        this.vehicleSearchResults.setPlaceholder(new Label("No matching vehicles"));
+        this.vehicleSearchResults.getSelectionModel().selectedItemProperty().addListener((observable, oldValue, newValue) -> {
+            if (newValue != null) {
+                this.selectedVehicle.set(newValue);
+            }
+        });
+        this.selectedVehicle.addListener((observable, oldValue, newValue) -> this.onSelectVehicle(newValue));
+
+        GridPane vehicleDetails = new GridPane();
+        vehicleDetails.setHgap(10.0);
+        vehicleDetails.setVgap(4.0);
+
+        for (int i = 0; i < VEHICLE_DETAIL_NAMES.length; ++i) {
+            this.vehicleDetailValues[i] = new Label("-");
+            vehicleDetails.add(new Label(VEHICLE_DETAIL_NAMES[i]), 0, i);
+            vehicleDetails.add(this.vehicleDetailValues[i], 1, i);
+        }
+
+        ScrollPane vehiclesScrollPane = Dashboard.createVerticalScrollPane(
+                this.vehicleSearchField,
+                this.vehicleSearchCountLabel,
+                this.vehicleSearchResults,
+                vehicleDetails,
+                new Label("Click a vehicle on the map to select it.")
+        );
+
         vehicleInjectionTab.setContent(vehicleInjectionScrollPane);
-        dashboardPane.getTabs().addAll(statisticsTab, trafficLightSystemsTab, vehicleInjectionTab);
+        vehiclesTab.setContent(vehiclesScrollPane);
+        dashboardPane.getTabs().addAll(statisticsTab, trafficLightSystemsTab, vehicleInjectionTab, vehiclesTab);
 
         this.reset();
     }
@@ -136,25 +297,41 @@ public class Dashboard {
         return scrollPane;
     }
 
+    /**
+     * Helper method for creating a read-only table column
+     */
+    private static <S, T> TableColumn<S, T> createColumn(String title, Function<S, T> getter) {
+        TableColumn<S, T> column = new TableColumn<>(title);
+        column.setCellValueFactory(cell -> new ReadOnlyObjectWrapper<>(getter.apply(cell.getValue())));
+        return column;
+    }
+
     /**
      * Called when the user starts a simulation
      *
      * @param simulation the simulation started
      */
-    public void init(Simulation simulation) {
+    public void init(SimulationEngine simulation) {
         this.simulation = simulation;
         this.setButtonsEnabled(true);
 
+        TrafficLightSystem trafficLights = simulation.getTrafficLights();
+        this.trafficLightCountLabel.setText("Traffic lights: " + trafficLights.getTrafficLights().size());
+        this.trafficLightTable.getItems().setAll(trafficLights.getTrafficLights());
+        this.renderedTrafficLightChanges = trafficLights.getChangeCount();
+
         // reset them to disabled, they get enabled once simulation starts
         this.vehicleInjectionButton.setDisable(true);
         this.stressTestButton.setDisable(true);
+        this.routedInjectionButton.setDisable(true);
+        this.reroutingBox.setSelected(simulation.isRerouting());
     }
     /**
      * Called when a simulation step occurred and statistics have to be updated.
      *
      * @param simulation the simulation in question
      */
-    public void update(Simulation simulation) {
+    public void update(SimulationEngine simulation) {
         int vehicleCount = simulation.getVehicles().size();
         this.vehicleCountLabel.setText("Vehicle count: " + vehicleCount);
 
@@ -164,15 +341,24 @@ public class Dashboard {
         this.updateDurationLabel.setText("Update duration (ms): " + d2);
         this.totalStepLengthLabel.setText("Total length (ms): " + (d1 + d2));
 
-        double averageSpeed = 0.0;
-
-        for (SumoVehicle vehicle : simulation.getVehicles()) {
-            averageSpeed += vehicle.get_speed();
-        }
+        double d3 = (double)simulation.getControllerStepDuration() / 1_000_000.0;
+        int controllerCount = simulation.getStepControllerCount();
+        this.controllerDurationLabel.setText("Controller duration (ms): " + d3 + " (" + controllerCount + " controllers)");
 
-        averageSpeed /= (double)vehicleCount;
+        double averageSpeed = simulation.getMeanSpeed();
         this.avgSpeedLabel.setText("Average speed: " + Math.round(100.0 * averageSpeed) / 100.0);
 
+        // other clients of an engine may switch it as well
+        this.reroutingBox.setSelected(simulation.isRerouting());
+
+
+        // the table only has to be redrawn if any light changed since the last frame
+        int trafficLightChanges = simulation.getTrafficLights().getChangeCount();
+
+        if (trafficLightChanges != this.renderedTrafficLightChanges) {
+            this.renderedTrafficLightChanges = trafficLightChanges;
+            this.trafficLightTable.refresh();
+        }
 
         var seriesData = this.vehicleCountChart.getData().getFirst().getData();
 
@@ -187,6 +373,84 @@ public class Dashboard {
         if (seriesData.isEmpty() || seriesData.getLast().getXValue().doubleValue() <= simulation.getTime() - 1.0) {
             seriesData.add(new XYChart.Data<>(simulation.getTime(), simulation.getVehicles().size()));
         }
+
+        this.updateVehicleDetails(simulation);
+    }
+
+    /**
+     * @return the id of the vehicle shown in the vehicles tab or null
+     */
+    public StringProperty selectedVehicleProperty() {
+        return this.selectedVehicle;
+    }
+
+    /**
+     * Lists the vehicles whose id starts with the entered text.
+     */
+    private void searchVehicles() {
+        if (this.simulation == null) {
+            return;
+        }
+
+        List<String> ids = this.simulation.findVehicleIds(this.vehicleSearchField.getText(), VEHICLE_SEARCH_LIMIT);
+        this.vehicleSearchResults.getItems().setAll(ids);
+        this.vehicleSearchCountLabel.setText("Matches: " + ids.size() + (ids.size() == VEHICLE_SEARCH_LIMIT ? "+" : ""));
+    }
+
+    /**
+     * Moves the variable subscription to the newly selected vehicle.
+     *
+     * @param vehicleId the id of the selected vehicle or null
+     */
+    private void onSelectVehicle(String vehicleId) {
+        for (Label value : this.vehicleDetailValues) {
+            value.setText("-");
+        }
+
+        if (this.simulation == null) {
+            this.selectedVehicleDetails = null;
+            return;
+        }
+
+        this.selectedVehicleDetails = this.simulation.selectVehicle(vehicleId);
+        this.updateVehicleDetails(this.simulation);
+    }
+
+    /**
+     * Shows the current values of the selected vehicle.
+     */
+    private void updateVehicleDetails(SimulationEngine simulation) {
+        String vehicleId = this.selectedVehicle.get();
+
+        if (vehicleId == null) {
+            return;
+        }
+
+        SumoVehicle vehicle = simulation.getVehicle(vehicleId);
+        VehicleDetails details = this.selectedVehicleDetails;
+        this.vehicleDetailValues[0].setText(vehicle != null ? vehicleId : vehicleId + " (left the simulation)");
+
+        if (vehicle == null) {
+            return;
+        }
+
+        this.vehicleDetailValues[1].setText(String.format("%.2f", vehicle.get_speed()));
+        this.vehicleDetailValues[2].setText(String.format("%.2f", vehicle.get_maxSpeed()));
+        this.vehicleDetailValues[3].setText(String.format("%.1f, %.1f", vehicle.get_position().x, vehicle.get_position().y));
+
+        if (details == null || !details.isAvailable()) {
+            return; // the subscription delivers values with the next step
+        }
+
+        this.vehicleDetailValues[4].setText(details.getTypeId());
+        this.vehicleDetailValues[5].setText(details.getRouteId());
+        this.vehicleDetailValues[6].setText(details.getRoadId());
+        this.vehicleDetailValues[7].setText(details.getLaneId());
+        this.vehicleDetailValues[8].setText(String.format("%.1f", details.getAngle()));
+        this.vehicleDetailValues[9].setText(String.format("%.2f", details.getAcceleration()));
+        this.vehicleDetailValues[10].setText(String.format("%.1f", details.getDistance()));
+        this.vehicleDetailValues[11].setText(String.format("%.1f", details.getWaitingTime()));
+        this.vehicleDetailValues[12].setText(String.format("%.1f", details.getCo2Emission()));
     }
 
     /**
@@ -197,42 +461,326 @@ public class Dashboard {
         this.stepDurationLabel.setText("Step Duration (ms): -");
         this.updateDurationLabel.setText("Update duration (ms): -");
         this.totalStepLengthLabel.setText("Step length (ms): -");
+        this.controllerDurationLabel.setText("Controller duration (ms): -");
         this.avgSpeedLabel.setText("Average speed: -");
         this.hotspotLabel.setText("Congestion hotspots: -");
 
         this.vehicleCountChart.getData().getFirst().getData().clear();
 
+        this.trafficLightCountLabel.setText("Traffic lights: -");
+        this.trafficLightTable.getItems().clear();
+        this.onSelectTrafficLight(null);
+
+        this.stopRecording();
+        this.stopDemand();
         this.setButtonsEnabled(false);
         this.simulation = null;
+        this.selectedVehicle.set(null);
+        this.vehicleSearchField.clear();
+        this.vehicleSearchResults.getItems().clear();
+        this.vehicleSearchCountLabel.setText("Matches: -");
     }
 
     private void setButtonsEnabled(boolean enabled) {
         this.vehicleInjectionButton.setDisable(!enabled);
         this.stressTestButton.setDisable(!enabled);
+        this.routedInjectionButton.setDisable(!enabled);
+        this.reroutingBox.setDisable(!enabled);
+        this.demandButton.setDisable(!enabled);
         this.batchSizeSpinner.setEditable(!enabled);
+        this.recordButton.setDisable(!enabled);
+        this.recordingFormatChoiceBox.setDisable(!enabled);
+    }
+
+    private void onPressRecordButton(ActionEvent event) {
+        if (this.recordingDirectory != null) {
+            this.stopRecording();
+            return;
+        }
+
+        DirectoryChooser chooser = new DirectoryChooser();
+        chooser.setTitle("Choose an export directory");
+        File directory = chooser.showDialog(this.recordButton.getScene().getWindow());
+
+        if (directory == null) {
+            return;
+        }
+
+        Path path = directory.toPath();
+        StatisticsFormat format = this.recordingFormatChoiceBox.getValue();
+
+        if (this.simulation instanceof Simulation local) {
+            try {
+                this.recorder = StatisticsRecorder.start(local, path, format, RECORDING_EDGE_INTERVAL);
+            } catch (IOException exception) {
+                LOGGER.error("Could not start recording to {}", directory, exception);
+                this.recordingLabel.setText("Could not create files in " + directory);
+                return;
+            }
+        } else if (this.simulation instanceof RemoteSimulation remote) {
+            // the engine writes the files, so the directory is one on its machine
+            remote.startRecording(path, format, RECORDING_EDGE_INTERVAL).whenCompleteAsync((ignored, exception) -> {
+                if (exception == null || !path.equals(this.recordingDirectory) || this.recorder != null) {
+                    return;
+                }
+
+                LOGGER.error("Could not start recording to {}", directory, exception);
+                this.recordingDirectory = null;
+                this.recordButton.setText("Start recording");
+                this.recordingFormatChoiceBox.setDisable(this.simulation == null);
+                this.recordingLabel.setText(Dashboard.getMessage(exception));
+            }, Platform::runLater);
+        }
+
+        this.recordingDirectory = path;
+        this.recordButton.setText("Stop recording");
+        this.recordingFormatChoiceBox.setDisable(true);
+        this.recordingLabel.setText("Recording to " + directory);
+    }
+
+    /**
+     * Stops a running recording, the remaining records are written in the background.
+     */
+    private void stopRecording() {
+        if (this.recordingDirectory == null) {
+            return;
+        }
+
+        Path directory = this.recordingDirectory;
+        StatisticsRecorder recorder = this.recorder;
+        CompletableFuture<Long> droppedRecords;
+
+        if (recorder != null) {
+            droppedRecords = recorder.stop().thenApply(path -> recorder.getDroppedRecords());
+        } else if (this.simulation instanceof RemoteSimulation remote && !remote.isClosed()) {
+            droppedRecords = remote.stopRecording();
+        } else {
+            droppedRecords = CompletableFuture.failedFuture(new IllegalStateException("Lost the connection to the engine"));
+        }
+
+        droppedRecords.whenComplete((dropped, exception) -> Platform.runLater(() -> {
+            if (this.recordingDirectory != null) {
+                return; // a new recording was started in the meantime
+            }
+
+            if (exception != null) {
+                LOGGER.error("Could not finish recording to {}", directory, exception);
+                this.recordingLabel.setText("Recording failed, see log");
+            } else if (dropped > 0L) {
+                this.recordingLabel.setText("Saved to " + directory + ", " + dropped + " steps dropped");
+            } else {
+                this.recordingLabel.setText("Saved to " + directory);
+            }
+        }));
+
+        this.recorder = null;
+        this.recordingDirectory = null;
+        this.recordButton.setText("Start recording");
+        this.recordingFormatChoiceBox.setDisable(this.simulation == null);
+        this.recordingLabel.setText("Writing remaining records...");
+    }
+
+    private void onPressDemandButton(ActionEvent event) {
+        if (this.demandGenerator != null || this.remoteDemand) {
+            this.stopDemand();
+            return;
+        }
+
+        FileChooser chooser = new FileChooser();
+        chooser.setTitle("Choose a demand file");
+        File file = chooser.showOpenDialog(this.demandButton.getScene().getWindow());
+
+        if (file == null) {
+            return;
+        }
+
+        if (this.simulation instanceof Simulation local) {
+            try {
+                DemandModel model = DemandModel.load(file.toPath(), local);
+                this.demandGenerator = DemandGenerator.start(local, model, local.getRandom().nextLong());
+                this.demandLabel.setText(String.format("Generating %.0f trips/h from %s", model.getTripsPerHour(), file.getName()));
+            } catch (RuntimeException exception) {
+                LOGGER.error("Could not load demand file {}", file, exception);
+                this.demandLabel.setText(exception.getMessage());
+                return;
+            }
+        } else if (this.simulation instanceof RemoteSimulation remote) {
+            // the engine reads the file, so it is looked up on its machine
+            this.remoteDemand = true;
+            this.demandLabel.setText("Loading " + file.getName());
+
+            remote.startDemand(file.toPath()).whenCompleteAsync((tripsPerHour, exception) -> {
+                if (!this.remoteDemand) {
+                    return; // stopped in the meantime
+                }
+
+                if (exception != null) {
+                    LOGGER.error("Could not load demand file {}", file, exception);
+                    this.remoteDemand = false;
+                    this.demandButton.setText("Load demand");
+                    this.demandLabel.setText(Dashboard.getMessage(exception));
+                } else {
+                    this.demandLabel.setText(String.format("Generating %.0f trips/h from %s", tripsPerHour, file.getName()));
+                }
+            }, Platform::runLater);
+        }
+
+        this.demandButton.setText("Stop demand");
+    }
+
+    private void stopDemand() {
+        if (this.remoteDemand) {
+            this.remoteDemand = false;
+            this.demandButton.setText("Load demand");
+
+            if (this.simulation instanceof RemoteSimulation remote && !remote.isClosed()) {
+                remote.stopDemand().whenCompleteAsync((generatedTrips, exception) -> {
+                    if (!this.remoteDemand && this.demandGenerator == null) {
+                        this.demandLabel.setText(exception != null
+                                ? Dashboard.getMessage(exception) : "Generated " + generatedTrips + " trips");
+                    }
+                }, Platform::runLater);
+            }
+
+            return;
+        }
+
+        if (this.demandGenerator == null) {
+            return;
+        }
+
+        this.demandGenerator.stop();
+        this.demandLabel.setText("Generated " + this.demandGenerator.getGeneratedTrips() + " trips");
+        this.demandGenerator = null;
+        this.demandButton.setText("Load demand");
     }
 
     private void onPressVehicleInjectionButton(ActionEvent event) {
-        try {
-            this.simulation.injectVehicle();
-        } catch (Exception exception) {
+        // injection waits for the TraCI connection, so it must not block the JavaFX thread
+        this.simulation.batchInjectionAsync(1).exceptionally(exception -> {
             LOGGER.error("An exception occurred whilst trying to inject a vehicle", exception);
-        }
+            return null;
+        });
+    }
+
+    private void onPressRoutedInjectionButton(ActionEvent event) {
+        String from = this.originEdgeField.getText().trim();
+        String to = this.destinationEdgeField.getText().trim();
+
+        this.simulation.injectVehicleAsync(from, to).whenComplete((result, exception) -> Platform.runLater(() -> {
+            if (exception == null) {
+                this.routedInjectionLabel.setText("Injected a vehicle from " + from + " to " + to);
+            } else {
+                LOGGER.error("An exception occurred whilst trying to inject a routed vehicle", exception);
+                this.routedInjectionLabel.setText(Dashboard.getMessage(exception));
+            }
+        }));
+    }
+
+    /**
+     * @return the message of the exception a future failed with
+     */
+    private static String getMessage(Throwable exception) {
+        return exception.getCause() != null ? exception.getCause().getMessage() : exception.getMessage();
     }
 
     private void onPressStressTestButton(ActionEvent event) {
-        try {
-            this.simulation.batchInjection(this.batchSizeSpinner.getValue());
-        } catch (Exception exception) {
+        this.simulation.batchInjectionAsync(this.batchSizeSpinner.getValue()).exceptionally(exception -> {
             LOGGER.error("An exception occurred whilst trying to perform a batch injection", exception);
+            return null;
+        });
+    }
+
+    /**
+     * Fills the traffic light controls with the programs and phases of the selected light.
+     *
+     * @param trafficLight the selected traffic light or null
+     */
+    private void onSelectTrafficLight(SumoTrafficLight trafficLight) {
+        boolean disabled = trafficLight == null;
+
+        this.programComboBox.setDisable(disabled);
+        this.phaseSpinner.setDisable(disabled);
+        this.phaseDurationSpinner.setDisable(disabled);
+        this.setProgramButton.setDisable(disabled);
+        this.setPhaseButton.setDisable(disabled);
+        this.setPhaseDurationButton.setDisable(disabled);
+        this.applyProgramToAllButton.setDisable(disabled);
+
+        if (disabled) {
+            this.selectedTrafficLightLabel.setText("Selected: -");
+            this.programComboBox.getItems().clear();
+            return;
+        }
+
+        this.selectedTrafficLightLabel.setText("Selected: " + trafficLight.getTlsId());
+
+        List<String> programIds = trafficLight.getPrograms() != null
+                ? trafficLight.getPrograms().programs.keySet().stream().sorted().toList()
+                : List.of(trafficLight.getProgramId());
+        this.programComboBox.getItems().setAll(programIds);
+        this.programComboBox.getSelectionModel().select(trafficLight.getProgramId());
+
+        SumoTLSProgram program = trafficLight.getCurrentProgram();
+        int phaseCount = program != null ? program.phases.size() : 1;
+        this.phaseSpinner.setValueFactory(new SpinnerValueFactory.IntegerSpinnerValueFactory(
+                0, Math.max(0, phaseCount - 1), Math.min(trafficLight.getPhase(), Math.max(0, phaseCount - 1))));
+    }
+
+    private void onPressSetProgramButton(ActionEvent event) {
+        SumoTrafficLight trafficLight = this.trafficLightTable.getSelectionModel().getSelectedItem();
+        String programId = this.programComboBox.getValue();
+
+        if (trafficLight != null && programId != null) {
+            this.simulation.setTrafficLightProgram(trafficLight.getTlsId(), programId);
+        }
+    }
+
+    private void onPressSetPhaseButton(ActionEvent event) {
+        SumoTrafficLight trafficLight = this.trafficLightTable.getSelectionModel().getSelectedItem();
+
+        if (trafficLight != null) {
+            this.simulation.setTrafficLightPhase(trafficLight.getTlsId(), this.phaseSpinner.getValue());
+        }
+    }
+
+    private void onPressSetPhaseDurationButton(ActionEvent event) {
+        SumoTrafficLight trafficLight = this.trafficLightTable.getSelectionModel().getSelectedItem();
+
+        if (trafficLight != null) {
+            this.simulation.setTrafficLightPhaseDuration(trafficLight.getTlsId(), this.phaseDurationSpinner.getValue());
         }
     }
 
+    /**
+     * Switches every traffic light that has a program with the selected id to that program.
+     * All switches are sent in one batch.
+     */
+    private void onPressApplyProgramToAllButton(ActionEvent event) {
+        String programId = this.programComboBox.getValue();
+
+        if (programId == null) {
+            return;
+        }
+
+        Map<String, String> plan = new HashMap<>();
+
+        for (SumoTrafficLight trafficLight : this.simulation.getTrafficLights().getTrafficLights()) {
+            if (trafficLight.getPrograms() != null && trafficLight.getPrograms().programs.containsKey(programId)) {
+                plan.put(trafficLight.getTlsId(), programId);
+            }
+        }
+
+        this.simulation.applyTrafficLightPlan(plan, Map.of());
+        LOGGER.info("Queued program {} for {} traffic lights", programId, plan.size());
+    }
+
     /**
      * Enables vehicle injection
      */
     public void allowInjection() {
         this.vehicleInjectionButton.setDisable(false);
         this.stressTestButton.setDisable(false);
+        this.routedInjectionButton.setDisable(false);
     }
 }
\ No newline at end of file
@@ -1,6 +1,7 @@
 package groupfour.trafficsim.ui;
 
-import groupfour.trafficsim.sim.Simulation;
+import groupfour.trafficsim.sim.NetworkGeometry;
+import groupfour.trafficsim.sim.SimulationEngine;
 import javafx.application.Application;
 import javafx.event.ActionEvent;
 import javafx.geometry.Orientation;
@@ -26,7 +27,7 @@ public class MainWindow extends Application {
     private final MenuItem disconnectMenuItem;
     private final SimulationControls simulationControls;
     private Stage stage;
-    private Simulation simulation;
+    private SimulationEngine simulation;
 
     /**
      * Creates the window and its UI elements.
@@ -111,7 +112,7 @@ public class MainWindow extends Application {
      *
      * @param simulation the simulation to initialize for
      */
-    public void setSimulation(Simulation simulation) {
+    public void setSimulation(SimulationEngine simulation) {
         assert this.simulation == null; // UI error or function was called wrong
 
         this.setSumoMenuButtonsEnabled(false, true);
@@ -119,6 +120,22 @@ public class MainWindow extends Application {
         this.simulationControls.setSimulation(simulation);
     }
 
+    /**
+     * Shows the road network of a simulation that is still loading.
+     *
+     * @param geometry the shapes of all lanes of the road network
+     */
+    public void previewNetwork(NetworkGeometry geometry) {
+        this.simulationControls.previewNetwork(geometry);
+    }
+
+    /**
+     * Removes the network preview of a simulation that failed to load.
+     */
+    public void clearPreview() {
+        this.simulationControls.clearPreview();
+    }
+
     /**
      * Resets simulation controls.
      */
@@ -1,30 +1,69 @@
 package groupfour.trafficsim.ui;
 
+import groupfour.trafficsim.metrics.MetricsServer;
+import groupfour.trafficsim.sim.NetworkGeometry;
+import groupfour.trafficsim.sim.RewindBuffer;
 import groupfour.trafficsim.sim.Simulation;
+import groupfour.trafficsim.sim.SimulationCheckpoint;
+import groupfour.trafficsim.sim.SimulationEngine;
+import groupfour.trafficsim.stream.SnapshotServer;
 import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
 import javafx.event.ActionEvent;
 import javafx.scene.control.Button;
+import javafx.scene.control.CheckBox;
+import javafx.scene.control.ChoiceBox;
 import javafx.scene.control.Label;
+import javafx.scene.control.Slider;
+import javafx.scene.control.Spinner;
 import javafx.scene.control.TabPane;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.StackPane;
+import javafx.stage.FileChooser;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
 
 /**
  * A class that holds all simulation control specific UI elements
  * that allow the user to interact with the simulation.
+ * Simulations in an engine process can be stepped and watched on the map, the statistics, checkpoints,
+ * the rewind and the other features that hook into the step loop are only available for local simulations.
  *
  * @author 8wf92323f, dila-ylz
  */
 public class SimulationControls {
+    private static final Logger LOGGER = LogManager.getLogger(SimulationControls.class.getName());
+    private static final int DEFAULT_REWIND_MEGABYTES = 64;
     private final Label timeLabel;
     private final Button stepButton;
     private final Button startButton;
     private final Button stopButton;
+    private final CheckBox viewportSyncBox;
+    private final CheckBox heatmapBox;
+    private final CheckBox followBox;
+    private final CheckBox laneSyncBox;
+    private final Spinner<Integer> warmUpSpinner;
+    private final Button warmUpButton;
+    private final Button saveStateButton;
+    private final Button openStateButton;
+    private final ChoiceBox<SimulationCheckpoint> checkpointChoiceBox;
+    private final Button loadStateButton;
+    private final Spinner<Integer> rewindSizeSpinner;
+    private final Slider rewindSlider;
+    private final Label rewindStatusLabel;
+    private final Button liveButton;
+    private RewindBuffer rewindBuffer = null;
+    private final RewindBuffer.Frame rewindFrame = new RewindBuffer.Frame();
+    private long rewindFrameNumber = -1L; // the recorded frame shown, -1 whilst the live state is shown
+    private boolean updatingRewindSlider = false;
     private final SimulationMap simulationMap;
     private final Dashboard dashboard;
     private final AnimationTimer animationTimer;
-    private Simulation simulation;
-    private boolean simulationUpdatesAvailable = false;
+    private SimulationEngine simulation;
+    private Simulation localSimulation; // the simulation if it runs in this process and can be published, otherwise null
+    private volatile boolean simulationUpdatesAvailable = false;
 
     public SimulationControls(HBox controlBar, StackPane mapPane, TabPane dashboardPane) {
         this.timeLabel = new Label("00:00.000");
@@ -34,16 +73,60 @@ public class SimulationControls {
         this.startButton.setOnAction(this::onPressStartButton);
         this.stopButton = new Button("Stop");
         this.stopButton.setOnAction(this::onPressStopButton);
-        controlBar.getChildren().addAll(this.timeLabel, this.stepButton, this.startButton, this.stopButton);
+        this.viewportSyncBox = new CheckBox("Sync visible area only");
+        this.viewportSyncBox.setOnAction(this::onToggleViewportSync);
+        this.heatmapBox = new CheckBox("Heatmap");
+        this.heatmapBox.setOnAction(this::onToggleHeatmap);
+        this.followBox = new CheckBox("Follow selected");
+        this.laneSyncBox = new CheckBox("Sync lane positions");
+        this.laneSyncBox.setOnAction(this::onToggleLaneSync);
+        this.warmUpSpinner = new Spinner<>(1, 24 * 60, 15, 5);
+        this.warmUpSpinner.setEditable(true);
+        this.warmUpSpinner.setPrefWidth(80.0);
+        this.warmUpButton = new Button("Warm up");
+        this.warmUpButton.setOnAction(this::onPressWarmUpButton);
+        this.saveStateButton = new Button("Save state");
+        this.saveStateButton.setOnAction(this::onPressSaveStateButton);
+        this.openStateButton = new Button("Open state");
+        this.openStateButton.setOnAction(this::onPressOpenStateButton);
+        this.checkpointChoiceBox = new ChoiceBox<>();
+        this.loadStateButton = new Button("Load state");
+        this.loadStateButton.setOnAction(this::onPressLoadStateButton);
+        this.rewindSizeSpinner = new Spinner<>(0, RewindBuffer.MAX_MEGABYTES, DEFAULT_REWIND_MEGABYTES, 16);
+        this.rewindSizeSpinner.setEditable(true);
+        this.rewindSizeSpinner.setPrefWidth(80.0);
+        // a new buffer is only allocated once the size is committed, not for every value passed on the way
+        this.rewindSizeSpinner.getEditor().addEventHandler(ActionEvent.ACTION, event -> Platform.runLater(this::setRewindBuffer));
+        this.rewindSizeSpinner.focusedProperty().addListener((observable, oldValue, newValue) -> {
+            if (!newValue) {
+                Platform.runLater(this::setRewindBuffer);
+            }
+        });
+        this.rewindSlider = new Slider(0.0, 1.0, 1.0);
+        this.rewindSlider.setPrefWidth(160.0);
+        this.rewindSlider.valueProperty().addListener((observable, oldValue, newValue) -> this.onMoveRewindSlider());
+        this.liveButton = new Button("Live");
+        this.liveButton.setOnAction(this::onPressLiveButton);
+        this.rewindStatusLabel = new Label();
+        controlBar.getChildren().addAll(this.timeLabel, this.stepButton, this.startButton, this.stopButton,
+                this.viewportSyncBox, this.laneSyncBox, this.heatmapBox, this.followBox,
+                new Label("Warm-up (min)"), this.warmUpSpinner, this.warmUpButton,
+                this.saveStateButton, this.openStateButton, this.checkpointChoiceBox, this.loadStateButton,
+                new Label("Rewind (MB)"), this.rewindSizeSpinner, this.rewindSlider, this.liveButton,
+                this.rewindStatusLabel);
 
         this.simulationMap = new SimulationMap(mapPane);
 
         this.dashboard = new Dashboard(dashboardPane); // create a new dashboard instance
 
+        // selecting a vehicle on the map shows it in the dashboard and the other way round
+        this.dashboard.selectedVehicleProperty().bindBidirectional(this.simulationMap.selectedVehicleProperty());
+        this.followBox.selectedProperty().bindBidirectional(this.simulationMap.followingProperty());
+
         this.animationTimer = new AnimationTimer() {
             @Override
             public void handle(long l) {
-                SimulationControls.this.update();
+                SimulationControls.this.update(l);
             }
         };
 
@@ -55,16 +138,28 @@ public class SimulationControls {
      *
      * @param simulation the simulation to initialize for
      */
-    public void setSimulation(Simulation simulation) {
+    public void setSimulation(SimulationEngine simulation) {
         if (this.simulation != null) {
             throw new RuntimeException("Called startSimulation whilst another simulation is connected");
         }
 
         this.simulation = simulation;
+        this.localSimulation = simulation instanceof Simulation local ? local : null;
 
         this.simulationMap.init(simulation);
+        this.simulationMap.setViewportSync(this.viewportSyncBox.isSelected() ? simulation : null);
+        this.onToggleHeatmap(null);
+        this.onToggleLaneSync(null);
+        this.setRewindBuffer();
         this.dashboard.init(simulation);
 
+        if (this.localSimulation != null) {
+            MetricsServer.publish("ui", this.localSimulation);
+            SnapshotServer.publish(this.localSimulation);
+        }
+
+        // step callbacks touch controls, so they have to run on the JavaFX thread
+        this.simulation.setCallbackExecutor(Platform::runLater);
         this.simulation.setUpdateListener(() -> {
             this.simulationUpdatesAvailable = true;
         });
@@ -75,6 +170,26 @@ public class SimulationControls {
 
     }
 
+    /**
+     * Shows the road network whilst a simulation is still loading.
+     *
+     * @param geometry the shapes of all lanes of the road network
+     */
+    public void previewNetwork(NetworkGeometry geometry) {
+        if (this.simulation == null) {
+            this.simulationMap.showNetwork(geometry);
+        }
+    }
+
+    /**
+     * Removes a network preview after loading failed or was cancelled.
+     */
+    public void clearPreview() {
+        if (this.simulation == null) {
+            this.simulationMap.reset();
+        }
+    }
+
     /**
      * Resets UI components when simulation connection perishes.
      */
@@ -85,22 +200,41 @@ public class SimulationControls {
 
         this.setUIComponentsEnabled(false);
 
+        if (this.rewindBuffer != null) {
+            this.simulation.removeStateRecorder(this.rewindBuffer);
+            this.rewindBuffer = null;
+        }
+
+        this.returnToLive();
+
         this.animationTimer.stop();
         this.simulationUpdatesAvailable = false; // disable simulation state update
         this.simulation.setUpdateListener(null);
 
+        if (this.localSimulation != null) {
+            MetricsServer.withdraw(this.localSimulation);
+            SnapshotServer.withdraw(this.localSimulation);
+        }
 
         this.simulationMap.reset();
         this.dashboard.reset();
+        this.checkpointChoiceBox.getItems().clear();
 
         this.simulation = null;
+        this.localSimulation = null;
     }
 
     private void setUIComponentsEnabled(boolean enabled) {
         this.setStepControlsEnabled(enabled, false);
 
+        // looking back works whilst the simulation is running
+        this.rewindSizeSpinner.setDisable(!enabled);
+        this.rewindSlider.setDisable(!enabled);
+        this.liveButton.setDisable(!enabled);
+
         if (!enabled) {
             this.timeLabel.setText("00:00.000");
+            this.rewindStatusLabel.setText("");
         }
     }
 
@@ -108,6 +242,31 @@ public class SimulationControls {
         this.stepButton.setDisable(!stepButtonsEnabled);
         this.startButton.setDisable(!stepButtonsEnabled);
         this.stopButton.setDisable(!stopButtonEnabled);
+        this.warmUpButton.setDisable(!stepButtonsEnabled);
+
+        this.saveStateButton.setDisable(!stepButtonsEnabled);
+        this.openStateButton.setDisable(!stepButtonsEnabled);
+        this.checkpointChoiceBox.setDisable(!stepButtonsEnabled);
+        this.loadStateButton.setDisable(!stepButtonsEnabled);
+    }
+
+    private void onToggleHeatmap(ActionEvent event) {
+        if (this.simulation != null) {
+            this.simulationMap.setHeatmap(this.heatmapBox.isSelected() ? this.simulation : null,
+                    SimulationMap.DEFAULT_HEATMAP_CELL_SIZE, SimulationMap.DEFAULT_HEATMAP_HALF_LIFE);
+        }
+    }
+
+    private void onToggleLaneSync(ActionEvent event) {
+        if (this.simulation != null) {
+            this.simulation.setLaneSync(this.laneSyncBox.isSelected());
+        }
+    }
+
+    private void onToggleViewportSync(ActionEvent event) {
+        if (this.simulation != null) {
+            this.simulationMap.setViewportSync(this.viewportSyncBox.isSelected() ? this.simulation : null);
+        }
     }
 
     private void onPressStepButton(ActionEvent event) {
@@ -132,6 +291,256 @@ public class SimulationControls {
         });
     }
 
+    private void onPressWarmUpButton(ActionEvent event) {
+        assert this.simulation != null; // UI Error: button should be disabled
+
+        double targetTime = this.simulation.getTime() + this.warmUpSpinner.getValue() * 60.0;
+
+        this.setStepControlsEnabled(false, true);
+
+        this.simulation.warmUp(targetTime, () -> {
+            // switch to real time once the target is reached, a stopped warm-up stays stopped
+            if (this.simulation != null && this.simulation.getTime() >= targetTime) {
+                this.onPressStartButton(null);
+            } else {
+                this.setStepControlsEnabled(this.simulation != null, false);
+            }
+        });
+    }
+
+    private void onPressSaveStateButton(ActionEvent event) {
+        assert this.simulation != null; // UI Error: button should be disabled
+
+        FileChooser chooser = SimulationControls.createCheckpointChooser("Save the simulation state");
+        File file = chooser.showSaveDialog(this.saveStateButton.getScene().getWindow());
+
+        if (file == null) {
+            return;
+        }
+
+        SimulationEngine simulation = this.simulation;
+        String name = file.getName() + " at " + SimulationControls.formatTime(simulation.getTime())
+                + " (" + simulation.getVehicles().size() + " vehicles)";
+
+        this.setStepControlsEnabled(false, false);
+
+        simulation.saveCheckpoint(name, file.toPath()).whenCompleteAsync((checkpoint, exception) -> {
+            if (this.simulation != simulation) {
+                return; // disconnected in the meantime
+            }
+
+            if (exception != null) {
+                LOGGER.error("Could not save the simulation state", exception);
+            } else {
+                this.checkpointChoiceBox.getItems().add(checkpoint);
+                this.checkpointChoiceBox.setValue(checkpoint);
+            }
+
+            this.setStepControlsEnabled(true, false);
+        }, Platform::runLater);
+    }
+
+    /**
+     * Adds a checkpoint file of this or an earlier session to the checkpoints that can be loaded.
+     */
+    private void onPressOpenStateButton(ActionEvent event) {
+        assert this.simulation != null; // UI Error: button should be disabled
+
+        FileChooser chooser = SimulationControls.createCheckpointChooser("Open a simulation state");
+        File file = chooser.showOpenDialog(this.openStateButton.getScene().getWindow());
+
+        if (file == null) {
+            return;
+        }
+
+        SimulationEngine simulation = this.simulation;
+
+        simulation.openCheckpoint(file.toPath()).whenCompleteAsync((checkpoint, exception) -> {
+            if (this.simulation != simulation) {
+                return; // disconnected in the meantime
+            }
+
+            if (exception != null) {
+                LOGGER.error("Could not open checkpoint {}", file, exception);
+            } else {
+                this.checkpointChoiceBox.getItems().add(checkpoint);
+                this.checkpointChoiceBox.setValue(checkpoint);
+            }
+        }, Platform::runLater);
+    }
+
+    private static FileChooser createCheckpointChooser(String title) {
+        FileChooser chooser = new FileChooser();
+        chooser.setTitle(title);
+        chooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("Simulation state", "*.tscp"));
+        return chooser;
+    }
+
+    private void onPressLoadStateButton(ActionEvent event) {
+        assert this.simulation != null; // UI Error: button should be disabled
+
+        SimulationCheckpoint checkpoint = this.checkpointChoiceBox.getValue();
+
+        if (checkpoint == null) {
+            return;
+        }
+
+        SimulationEngine simulation = this.simulation;
+
+        this.setStepControlsEnabled(false, false);
+
+        simulation.loadCheckpoint(checkpoint).whenCompleteAsync((ignored, exception) -> {
+            if (this.simulation != simulation) {
+                return; // disconnected in the meantime
+            }
+
+            if (exception != null) {
+                LOGGER.error("Could not load checkpoint {}", checkpoint.getName(), exception);
+            }
+
+            this.setStepControlsEnabled(true, false);
+        }, Platform::runLater);
+    }
+
+    private void onPressLiveButton(ActionEvent event) {
+        this.returnToLive();
+    }
+
+    /**
+     * Replaces the rewind buffer of the simulation with one of the selected size, 0 MB disables recording.
+     * The recording of the old buffer is discarded. If there is not enough memory for the new buffer,
+     * the old one is kept.
+     */
+    private void setRewindBuffer() {
+        if (this.simulation == null) {
+            return;
+        }
+
+        int megabytes = this.rewindSizeSpinner.getValue();
+        int oldMegabytes = this.rewindBuffer != null ? this.rewindBuffer.getCapacity() / (1024 * 1024) : 0;
+
+        if (megabytes == oldMegabytes) {
+            return;
+        }
+
+        RewindBuffer buffer = null;
+
+        if (megabytes > 0) {
+            try {
+                buffer = new RewindBuffer(megabytes);
+            } catch (OutOfMemoryError error) {
+                LOGGER.error("Not enough memory for a rewind buffer of {} MB", megabytes, error);
+                this.rewindSizeSpinner.getValueFactory().setValue(oldMegabytes);
+                return;
+            }
+        }
+
+        if (this.rewindBuffer != null) {
+            this.simulation.removeStateRecorder(this.rewindBuffer);
+        }
+
+        this.returnToLive();
+        this.rewindBuffer = buffer;
+
+        if (buffer != null) {
+            this.simulation.addStateRecorder(buffer);
+        }
+
+        this.updateRewindStatus();
+    }
+
+    /**
+     * Shows how much of the rewind buffer is taken and whether steps could not be recorded.
+     */
+    private void updateRewindStatus() {
+        if (this.rewindBuffer == null) {
+            this.rewindStatusLabel.setText("");
+            return;
+        }
+
+        String status = String.format("%.1f MB used", this.rewindBuffer.getUsedBytes() / (1024.0 * 1024.0));
+        long droppedFrames = this.rewindBuffer.getDroppedFrames();
+
+        if (droppedFrames > 0L) {
+            status += ", " + droppedFrames + " steps too large";
+        }
+
+        this.rewindStatusLabel.setText(status);
+    }
+
+    /**
+     * Shows the recorded frame at the slider position, the right end of the slider is the live state.
+     */
+    private void onMoveRewindSlider() {
+        if (this.updatingRewindSlider || this.rewindBuffer == null) {
+            return;
+        }
+
+        long oldest = this.rewindBuffer.getOldestFrame();
+        long newest = this.rewindBuffer.getEndFrame() - 1L;
+
+        if (newest <= oldest || this.rewindSlider.getValue() >= 1.0) {
+            this.returnToLive();
+            return;
+        }
+
+        long frame = oldest + Math.round(this.rewindSlider.getValue() * (newest - oldest));
+
+        if (frame >= newest) {
+            this.returnToLive();
+        } else {
+            this.showRecordedFrame(frame);
+        }
+    }
+
+    /**
+     * Shows a frame of the recording on the map, the simulation keeps running.
+     *
+     * @param frame the number of the frame
+     */
+    private void showRecordedFrame(long frame) {
+        if (!this.rewindBuffer.read(frame, this.rewindFrame)) {
+            this.returnToLive();
+            return;
+        }
+
+        this.rewindFrameNumber = frame;
+        this.simulationMap.showFrame(this.rewindFrame);
+        this.timeLabel.setText(SimulationControls.formatTime(this.rewindFrame.getTime()) + " (rewind)");
+    }
+
+    /**
+     * Keeps the slider on the shown frame whilst the recording moves on.
+     * Once the frame is dropped from the buffer, the oldest recorded frame is shown instead.
+     */
+    private void updateRewindSlider() {
+        long oldest = this.rewindBuffer.getOldestFrame();
+        long newest = this.rewindBuffer.getEndFrame() - 1L;
+
+        if (this.rewindFrameNumber < oldest) {
+            this.showRecordedFrame(oldest);
+        }
+
+        if (this.rewindFrameNumber >= 0L && newest > oldest) {
+            this.setRewindSliderValue((double)(this.rewindFrameNumber - oldest) / (newest - oldest));
+        }
+    }
+
+    /**
+     * Shows the live state of the simulation again.
+     */
+    private void returnToLive() {
+        this.rewindFrameNumber = -1L;
+        this.setRewindSliderValue(1.0);
+        this.simulationUpdatesAvailable = this.simulation != null;
+    }
+
+    private void setRewindSliderValue(double value) {
+        this.updatingRewindSlider = true;
+        this.rewindSlider.setValue(value);
+        this.updatingRewindSlider = false;
+    }
+
     private void onPressStopButton(ActionEvent event) {
         assert this.simulation != null; // UI Error: button should be disabled
 
@@ -142,18 +551,49 @@ public class SimulationControls {
      * UI update function that runs on the JavaFX thread.
      * Called each time JavaFX rerenders.
      * Checks whether a new simulation state is available and updates UI components.
+     * Vehicles are redrawn with every frame so they move smoothly between two states.
+     *
+     * @param now the timestamp of the current frame in nanoseconds
      */
-    private void update() {
-        if (!this.simulationUpdatesAvailable) return;
+    private void update(long now) {
+        if (this.rewindFrameNumber >= 0L) {
+            // the map shows a recorded frame, only the dashboard follows the live state
+            this.updateRewindSlider();
+            this.simulationMap.render(now);
+
+            if (this.simulationUpdatesAvailable) {
+                this.simulationUpdatesAvailable = false;
+                this.dashboard.update(this.simulation);
+                this.updateRewindStatus();
+            }
+
+            return;
+        }
+
+        if (!this.simulationUpdatesAvailable) {
+            this.simulationMap.render(now);
+            return;
+        }
+
         this.simulationUpdatesAvailable = false;
 
         this.simulationMap.update(this.simulation);
+        this.simulationMap.render(now);
+
         this.dashboard.update(this.simulation);
 
-        double time = this.simulation.getTime();
+        this.timeLabel.setText(SimulationControls.formatTime(this.simulation.getTime()));
+        this.updateRewindStatus();
+    }
+
+    /**
+     * @param time a simulation time in seconds
+     * @return the time as minutes, seconds and milliseconds
+     */
+    private static String formatTime(double time) {
         int millis = ((int)(time * 1000.0)) % 1000;
         int seconds = ((int)time) % 60;
         int minutes = ((int)time) / 60;
-        this.timeLabel.setText(String.format("%02d:%02d:%03d", minutes, seconds, millis));
+        return String.format("%02d:%02d:%03d", minutes, seconds, millis);
     }
 }
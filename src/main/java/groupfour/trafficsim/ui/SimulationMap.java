@@ -1,17 +1,32 @@
 package groupfour.trafficsim.ui;
 
-import groupfour.trafficsim.sim.Simulation;
+import groupfour.trafficsim.sim.DensityGrid;
+import groupfour.trafficsim.sim.NetworkGeometry;
+import groupfour.trafficsim.sim.RewindBuffer;
+import groupfour.trafficsim.sim.SimulationEngine;
+import groupfour.trafficsim.sim.TrafficLightSystem;
 import groupfour.trafficsim.sim.SumoLane;
+import groupfour.trafficsim.sim.SumoTrafficLight;
 import groupfour.trafficsim.sim.SumoVehicle;
+import javafx.application.Platform;
+import javafx.beans.property.BooleanProperty;
+import javafx.beans.property.SimpleBooleanProperty;
+import javafx.beans.property.SimpleStringProperty;
+import javafx.beans.property.StringProperty;
+import javafx.geometry.Point2D;
 import javafx.geometry.Pos;
 import javafx.scene.Group;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.input.ScrollEvent;
 import javafx.scene.layout.StackPane;
 import javafx.scene.paint.Color;
 import javafx.scene.shape.Circle;
-import javafx.scene.shape.Polyline;
-import javafx.scene.shape.Rectangle;
+import javafx.scene.shape.Line;
 import javafx.scene.transform.Scale;
 import javafx.scene.transform.Translate;
 
@@ -23,9 +38,26 @@ import java.util.*;
  * @author 8wf92323f
  */
 public class SimulationMap {
-    private final Group backgroundGroup = new Group();
+    private static final long DEFAULT_STATE_INTERVAL = 125_000_000L; // ns, one step at 8 steps/sec
+    private static final long MAX_STATE_INTERVAL = 500_000_000L; // ns
+    private static final double TELEPORT_DISTANCE = 50.0; // m, larger jumps are not interpolated
+    private static final double[] LOCATE_SCRATCH = new double[3]; // only used on the JavaFX thread
+    public static final double DEFAULT_HEATMAP_CELL_SIZE = 5.0; // m
+    public static final double DEFAULT_HEATMAP_HALF_LIFE = 480.0; // steps, one minute at 8 steps/sec
+    private static final int[] HEATMAP_COLORS = SimulationMap.createHeatmapColors(1024);
+    private static final double PICK_GRID_CELL_SIZE = 25.0; // m, also the largest pick radius
+    private static final double PICK_RADIUS = 8.0; // px
+    private final Canvas networkCanvas = new Canvas();
+    private NetworkGeometry networkGeometry = null;
+    private final Group heatmapGroup = new Group();
+    private final Group trafficLightGroup = new Group();
     private final Group vehicleGroup = new Group();
-    private final List<Circle> vehicleIcons = new ArrayList<>();
+    private Line[][] signalMarkers = new Line[0][];
+    private int[] renderedSignalVersions = new int[0];
+    private final Map<String, VehicleSlot> vehicleSlots = new HashMap<>();
+    private long stateGeneration = 0L;
+    private long stateNanoTime = 0L;
+    private long stateNanoInterval = DEFAULT_STATE_INTERVAL;
     private SimulationMap.Camera camera;
     private boolean active = false;
     private double x1;
@@ -33,17 +65,46 @@ public class SimulationMap {
 
     private final Translate cameraTranslateTransform = new Translate();
     private final Scale cameraScaleTransform = new Scale();
+    private final StackPane mapPane;
+    private SimulationEngine viewportSimulation = null;
+    private double[] publishedViewport = null;
+    private double[] networkBounds = null; // minX, minY, maxX, maxY
+    private SimulationEngine heatmapSimulation = null;
+    private DensityGrid heatmap = null;
+    private WritableImage heatmapImage = null;
+    private float[] heatmapDensities = null;
+    private int[] heatmapPixels = null;
+    private boolean heatmapRendering = false; // a conversion is running, only used on the JavaFX thread
+    private final StringProperty selectedVehicle = new SimpleStringProperty(this, "selectedVehicle");
+    private final BooleanProperty following = new SimpleBooleanProperty(this, "following");
+    private final Circle selectionMarker = new Circle(4.0, Color.TRANSPARENT);
+    private int pickGridColumns = 0;
+    private int pickGridRows = 0;
+    private int[] pickGridStarts = new int[0];
+    private VehicleSlot[] pickGridEntries = new VehicleSlot[0];
 
     public SimulationMap(StackPane mapPane) {
+        this.mapPane = mapPane;
         mapPane.setAlignment(Pos.TOP_LEFT); // set (x=0, y=0) to top left
         mapPane.setMinSize(0.0, 0.0);
 
+        // the network is drawn in screen coordinates below all other elements, so it is never scaled as a whole
+        this.networkCanvas.setManaged(false);
+        this.networkCanvas.setMouseTransparent(true);
+        this.networkCanvas.widthProperty().bind(mapPane.widthProperty());
+        this.networkCanvas.heightProperty().bind(mapPane.heightProperty());
+        this.networkCanvas.widthProperty().addListener((observable, oldValue, newValue) -> this.drawNetwork());
+        this.networkCanvas.heightProperty().addListener((observable, oldValue, newValue) -> this.drawNetwork());
+
         Group root = new Group();
-        mapPane.getChildren().add(root);
+        mapPane.getChildren().addAll(this.networkCanvas, root);
 
         mapPane.setOnMouseMoved(this::onMouseMove);
         mapPane.setOnMouseDragged(this::onMouseDrag);
         mapPane.setOnScroll(this::onScroll);
+        mapPane.setOnMouseClicked(this::onMouseClick);
+        mapPane.widthProperty().addListener((observable, oldValue, newValue) -> this.publishViewport());
+        mapPane.heightProperty().addListener((observable, oldValue, newValue) -> this.publishViewport());
 
         // dynamic transforms
         // (convert java fx's x-right, y-down system to SUMO's x-right, y-up system)
@@ -65,7 +126,13 @@ public class SimulationMap {
                 this.cameraScaleTransform
         );
 
-        root.getChildren().addAll(this.backgroundGroup, this.vehicleGroup);
+        root.getChildren().addAll(this.heatmapGroup, this.trafficLightGroup, this.vehicleGroup,
+                this.selectionMarker);
+
+        this.selectionMarker.setStroke(Color.YELLOW);
+        this.selectionMarker.setStrokeWidth(1.0);
+        this.selectionMarker.setMouseTransparent(true);
+        this.selectionMarker.setVisible(false);
     }
 
     /**
@@ -87,6 +154,9 @@ public class SimulationMap {
             double dx = x0 - this.x1;
             double dy = y0 - this.y1;
 
+            // moving the camera by hand ends following the selected vehicle
+            this.following.set(false);
+
             this.camera.processDrag(dx, dy);
             this.updateTransforms();
         }
@@ -95,6 +165,19 @@ public class SimulationMap {
         this.y1 = y0;
     }
 
+    /**
+     * Invoked when the mouse is clicked, selects the vehicle under the cursor.
+     */
+    private void onMouseClick(MouseEvent event) {
+        if (!this.active || !event.isStillSincePress()) {
+            return; // the end of a drag
+        }
+
+        Point2D position = this.vehicleGroup.sceneToLocal(event.getSceneX(), event.getSceneY());
+        VehicleSlot slot = this.pickVehicle(position.getX(), position.getY(), PICK_RADIUS / this.camera.zoom);
+        this.selectedVehicle.set(slot != null ? slot.vehicleId : null);
+    }
+
     /**
      * Invoked when the mouse wheel is scrolled.
      */
@@ -117,107 +200,615 @@ public class SimulationMap {
      *
      * @param simulation the simulation started
      */
-    public void init(Simulation simulation) {
-        this.active = true;
-        this.camera = new Camera();
+    public void init(SimulationEngine simulation) {
+        if (!this.active) {
+            // the network was not already shown whilst the simulation was loading
+            this.showNetwork(simulation.getNetworkGeometry());
+        }
 
-        Rectangle x_axis = new Rectangle(0.0, 0.0, 1.0, 0.05);
-        x_axis.setFill(Color.RED);
-        Rectangle y_axis = new Rectangle(0.0, 0.0, 0.05, 1.0);
-        y_axis.setFill(Color.GREEN);
-        this.backgroundGroup.getChildren().addAll(x_axis, y_axis);
+        this.initTrafficLights(simulation.getTrafficLights());
+    }
 
-        // load road network
+    /**
+     * Creates the stop line markers of all traffic lights.
+     * Each controlled link gets its own section of the stop line of its incoming lane.
+     *
+     * @param trafficLightSystem the traffic lights of the simulation
+     */
+    private void initTrafficLights(TrafficLightSystem trafficLightSystem) {
+        List<SumoTrafficLight> trafficLights = trafficLightSystem.getTrafficLights();
+        this.signalMarkers = new Line[trafficLights.size()][];
+        this.renderedSignalVersions = new int[trafficLights.size()];
 
-        double minX = Double.POSITIVE_INFINITY;
-        double maxX = Double.NEGATIVE_INFINITY;
-        double minY = Double.POSITIVE_INFINITY;
-        double maxY = Double.NEGATIVE_INFINITY;
+        for (SumoTrafficLight trafficLight : trafficLights) {
+            List<SumoLane> controlledLanes = trafficLight.getControlledLanes();
+            Line[] markers = new Line[controlledLanes.size()];
 
-        List<SumoLane> lanes = simulation.getLanes();
+            // group the links by their incoming lane
+            Map<SumoLane, List<Integer>> linksByLane = new LinkedHashMap<>();
 
-        if (lanes.isEmpty()) {
-            this.camera.x = 0;
-            this.camera.y = 0;
-        } else {
-            Polyline[] polylines = new Polyline[lanes.size()];
+            for (int link = 0; link < controlledLanes.size(); ++link) {
+                SumoLane lane = controlledLanes.get(link);
+
+                if (lane != null && lane.getPointCount() >= 2) {
+                    linksByLane.computeIfAbsent(lane, key -> new ArrayList<>()).add(link);
+                }
+            }
+
+            for (Map.Entry<SumoLane, List<Integer>> entry : linksByLane.entrySet()) {
+                SumoLane lane = entry.getKey();
+                List<Integer> links = entry.getValue();
+                int last = lane.getPointCount() - 1;
+
+                double x0 = lane.getX(last - 1);
+                double y0 = lane.getY(last - 1);
+                double x1 = lane.getX(last);
+                double y1 = lane.getY(last);
+                double length = Math.hypot(x1 - x0, y1 - y0);
+
+                if (length == 0.0) {
+                    continue;
+                }
+
+                // lane direction and its normal at the end of the lane
+                double dx = (x1 - x0) / length;
+                double dy = (y1 - y0) / length;
+                double nx = -dy;
+                double ny = dx;
+
+                double width = lane.getLaneWidth();
+                double section = width / links.size();
+                double cx = x1 - 0.5 * dx;
+                double cy = y1 - 0.5 * dy;
+
+                for (int i = 0; i < links.size(); ++i) {
+                    double from = -0.5 * width + i * section;
+                    double to = from + section;
+
+                    Line marker = new Line(cx + from * nx, cy + from * ny, cx + to * nx, cy + to * ny);
+                    marker.setStrokeWidth(0.8);
+                    marker.setStroke(SimulationMap.signalColor(trafficLight.getSignal(links.get(i))));
+                    markers[links.get(i)] = marker;
+                    this.trafficLightGroup.getChildren().add(marker);
+                }
+            }
 
-            for (int i = 0; i < lanes.size(); i++) {
-                SumoLane lane = lanes.get(i);
-                polylines[i] = new Polyline();
-                polylines[i].setStrokeWidth(0.9 * lane.getLaneWidth());
+            this.signalMarkers[trafficLight.getIndex()] = markers;
+            this.renderedSignalVersions[trafficLight.getIndex()] = trafficLight.getVersion();
+        }
+    }
 
-                double[][] geometry = lane.getGeometry();
+    /**
+     * Recolors the stop line markers of all traffic lights that changed since the last frame.
+     */
+    private void updateTrafficLights(TrafficLightSystem trafficLightSystem) {
+        for (SumoTrafficLight trafficLight : trafficLightSystem.getTrafficLights()) {
+            int index = trafficLight.getIndex();
+            int version = trafficLight.getVersion();
 
-                for (double[] point : geometry) {
-                    double x = point[0];
-                    double y = point[1];
+            if (version == this.renderedSignalVersions[index]) {
+                continue;
+            }
 
-                    minX = Math.min(minX, x);
-                    maxX = Math.max(maxX, x);
-                    minY = Math.min(minY, y);
-                    maxY = Math.max(maxY, y);
+            this.renderedSignalVersions[index] = version;
+            Line[] markers = this.signalMarkers[index];
 
-                    polylines[i].getPoints().addAll(x, y);
+            for (int link = 0; link < markers.length; ++link) {
+                if (markers[link] != null) {
+                    markers[link].setStroke(SimulationMap.signalColor(trafficLight.getSignal(link)));
                 }
             }
+        }
+    }
 
-            Rectangle background = new Rectangle(minX, minY, maxX - minX, maxY - minY);
-            background.setFill(Color.DARKGREEN);
-            this.backgroundGroup.getChildren().add(background);
+    /**
+     * @param signal a SUMO signal state character
+     * @return the color used to draw the signal
+     */
+    private static Color signalColor(char signal) {
+        return switch (signal) {
+            case 'G', 'g' -> Color.LIME;
+            case 'y', 'Y' -> Color.YELLOW;
+            case 'u' -> Color.ORANGE;
+            case 'r', 'R', 's' -> Color.RED;
+            case 'o', 'O' -> Color.GRAY;
+            default -> Color.WHITE;
+        };
+    }
 
-            this.backgroundGroup.getChildren().addAll(polylines);
+    /**
+     * Shows the road network without a running simulation.
+     * Used to show the geometry as soon as it is loaded.
+     *
+     * @param geometry the shapes of all lanes of the road network
+     */
+    public void showNetwork(NetworkGeometry geometry) {
+        this.reset();
+        this.active = true;
+        this.camera = new Camera();
+        this.networkGeometry = geometry;
 
-            this.camera.x = (maxX - minX) / 2.0;
-            this.camera.y = (maxY - minY) / 2.0;
+        if (geometry.isEmpty()) {
+            this.camera.x = 0;
+            this.camera.y = 0;
+        } else {
+            this.networkBounds = new double[] { geometry.getMinX(), geometry.getMinY(), geometry.getMaxX(), geometry.getMaxY() };
+
+            this.camera.x = (geometry.getMaxX() - geometry.getMinX()) / 2.0;
+            this.camera.y = (geometry.getMaxY() - geometry.getMinY()) / 2.0;
         }
 
         this.updateTransforms();
     }
 
+    /**
+     * Draws the background, the axes and all lanes that overlap the visible area onto the network canvas.
+     * The points are read straight from the network geometry, lanes outside the view are skipped
+     * using their bounding boxes.
+     */
+    private void drawNetwork() {
+        GraphicsContext context = this.networkCanvas.getGraphicsContext2D();
+        double width = this.networkCanvas.getWidth();
+        double height = this.networkCanvas.getHeight();
+
+        context.setTransform(1.0, 0.0, 0.0, 1.0, 0.0, 0.0);
+        context.clearRect(0.0, 0.0, width, height);
+
+        NetworkGeometry geometry = this.networkGeometry;
+
+        if (geometry == null || this.camera == null) {
+            return;
+        }
+
+        // the same mapping as the transforms of the other elements: x-right, y-up around the camera
+        double zoom = this.camera.zoom;
+        context.setTransform(zoom, 0.0, 0.0, -zoom, 0.5 * width - zoom * this.camera.x, 0.5 * height + zoom * this.camera.y);
+
+        if (this.networkBounds != null) {
+            context.setFill(Color.DARKGREEN);
+            context.fillRect(this.networkBounds[0], this.networkBounds[1],
+                    this.networkBounds[2] - this.networkBounds[0], this.networkBounds[3] - this.networkBounds[1]);
+        }
+
+        context.setFill(Color.RED);
+        context.fillRect(0.0, 0.0, 1.0, 0.05);
+        context.setFill(Color.GREEN);
+        context.fillRect(0.0, 0.0, 0.05, 1.0);
+
+        double halfWidth = 0.5 * width / zoom;
+        double halfHeight = 0.5 * height / zoom;
+        double minX = this.camera.x - halfWidth;
+        double minY = this.camera.y - halfHeight;
+        double maxX = this.camera.x + halfWidth;
+        double maxY = this.camera.y + halfHeight;
+
+        float[] points = geometry.getPoints();
+        context.setStroke(Color.BLACK);
+
+        for (int lane = 0; lane < geometry.getLaneCount(); ++lane) {
+            int count = geometry.getPointCount(lane);
+            double laneWidth = 0.9 * geometry.getWidth(lane);
+
+            if (count == 0 || !geometry.intersects(lane, minX - laneWidth, minY - laneWidth, maxX + laneWidth, maxY + laneWidth)) {
+                continue;
+            }
+
+            int offset = 2 * geometry.getFirstPoint(lane);
+            context.setLineWidth(laneWidth);
+            context.beginPath();
+            context.moveTo(points[offset], points[offset + 1]);
+
+            for (int i = 1; i < count; ++i) {
+                context.lineTo(points[offset + 2 * i], points[offset + 2 * i + 1]);
+            }
+
+            context.stroke();
+        }
+    }
 
     /**
      * Called when a simulation step occurred and visuals have to be updated.
+     * Vehicles start moving from where they are currently drawn towards their new position,
+     * the movement itself happens in render.
      *
      * @param simulation the simulation in question
      */
-    public void update(Simulation simulation) {
-        int iconsExisting = this.vehicleIcons.size();
-        int iconsNeeded = simulation.getVehicles().size();
+    public void update(SimulationEngine simulation) {
+        this.updateTrafficLights(simulation.getTrafficLights());
 
-        // ensure enough icons are available (only runs if iconsExisting < iconsNeeded)
-        for (int i = iconsExisting; i <= iconsNeeded; ++i) {
-            Circle circle = new Circle(1.5, Color.RED);
-            this.vehicleIcons.add(circle);
-            this.vehicleGroup.getChildren().add(circle);
+        this.updateHeatmap();
+
+        long generation = this.beginState();
+
+        for (SumoVehicle vehicle : simulation.getVehicles()) {
+            this.moveVehicle(generation, vehicle.get_vehId(), vehicle.get_position().x, vehicle.get_position().y,
+                    vehicle.getLane(), vehicle.getLanePosition(), vehicle.getLateralOffset());
         }
 
-        // remove unnecessary icons if any exist (only runs if iconsNeeded < iconsExisting)
-        for (int i = iconsNeeded; i <= iconsNeeded; ++i) {
-            Circle circle = this.vehicleIcons.removeLast();
-            this.vehicleGroup.getChildren().remove(circle);
+        this.endState(generation);
+    }
+
+    /**
+     * Shows the vehicles of a recorded frame instead of the live state.
+     * Traffic lights and the heatmap keep showing the live state.
+     *
+     * @param frame the recorded frame
+     */
+    public void showFrame(RewindBuffer.Frame frame) {
+        long generation = this.beginState();
+
+        for (int i = 0; i < frame.size(); ++i) {
+            this.moveVehicle(generation, frame.getVehicleId(i), frame.getX(i), frame.getY(i), null, 0.0, 0.0);
         }
 
-        // update icons for all vehicles
+        this.endState(generation);
+    }
+
+    /**
+     * Starts a new vehicle state, vehicles are interpolated over the time that passed between the last two states.
+     *
+     * @return the generation of the new state
+     */
+    private long beginState() {
+        long now = System.nanoTime();
 
-        int i = 0;
+        if (this.stateNanoTime != 0L) {
+            this.stateNanoInterval = Math.clamp(now - this.stateNanoTime, 1_000_000L, MAX_STATE_INTERVAL);
+        }
 
-        for (SumoVehicle vehicle : simulation.getVehicles()) {
-            Circle icon = this.vehicleIcons.get(i);
-            icon.setCenterX(vehicle.get_position().x);
-            icon.setCenterY(vehicle.get_position().y);
-            ++i;
+        this.stateNanoTime = now;
+        return ++this.stateGeneration;
+    }
+
+    /**
+     * Moves the icon of a vehicle towards its position in the new state, new vehicles appear at their first position.
+     */
+    private void moveVehicle(long generation, String vehicleId, double x, double y, SumoLane lane, double lanePosition,
+                             double lateralOffset) {
+        VehicleSlot slot = this.vehicleSlots.get(vehicleId);
+
+        if (slot == null) {
+            slot = new VehicleSlot(vehicleId, new Circle(1.5, Color.RED), x, y);
+            this.vehicleSlots.put(vehicleId, slot);
+            this.vehicleGroup.getChildren().add(slot.icon);
         }
+
+        slot.moveTo(x, y, lane, lanePosition, lateralOffset);
+        slot.generation = generation;
+    }
+
+    /**
+     * Removes the vehicles that are not part of the new state and rebuilds the pick grid.
+     *
+     * @param generation the generation of the new state
+     */
+    private void endState(long generation) {
+        // remove icons of vehicles that left the simulation
+        this.vehicleSlots.values().removeIf(slot -> {
+            if (slot.generation == generation) {
+                return false;
+            }
+
+            this.vehicleGroup.getChildren().remove(slot.icon);
+            return true;
+        });
+
+        this.buildPickGrid();
+    }
+
+    /**
+     * Sorts all vehicles into a grid, so a click only has to look at the vehicles nearby.
+     * The grid is rebuilt with every state in linear time using a counting sort.
+     */
+    private void buildPickGrid() {
+        if (this.networkBounds == null) {
+            return;
+        }
+
+        int columns = Math.max(1, (int)Math.ceil((this.networkBounds[2] - this.networkBounds[0]) / PICK_GRID_CELL_SIZE));
+        int rows = Math.max(1, (int)Math.ceil((this.networkBounds[3] - this.networkBounds[1]) / PICK_GRID_CELL_SIZE));
+
+        if (this.pickGridStarts.length != columns * rows + 1) {
+            this.pickGridStarts = new int[columns * rows + 1];
+        } else {
+            Arrays.fill(this.pickGridStarts, 0);
+        }
+
+        this.pickGridColumns = columns;
+        this.pickGridRows = rows;
+
+        VehicleSlot[] slots = this.vehicleSlots.values().toArray(new VehicleSlot[0]);
+        int[] cells = new int[slots.length];
+
+        for (int i = 0; i < slots.length; ++i) {
+            cells[i] = this.pickGridCell(slots[i].currentX, slots[i].currentY);
+            ++this.pickGridStarts[cells[i] + 1];
+        }
+
+        for (int cell = 0; cell < columns * rows; ++cell) {
+            this.pickGridStarts[cell + 1] += this.pickGridStarts[cell];
+        }
+
+        VehicleSlot[] entries = new VehicleSlot[slots.length];
+        int[] next = Arrays.copyOf(this.pickGridStarts, columns * rows);
+
+        for (int i = 0; i < slots.length; ++i) {
+            entries[next[cells[i]]++] = slots[i];
+        }
+
+        this.pickGridEntries = entries;
+    }
+
+    /**
+     * @return the pick grid cell of a position, positions outside the network are clamped to the border
+     */
+    private int pickGridCell(double x, double y) {
+        int column = Math.clamp((long)Math.floor((x - this.networkBounds[0]) / PICK_GRID_CELL_SIZE), 0, this.pickGridColumns - 1);
+        int row = Math.clamp((long)Math.floor((y - this.networkBounds[1]) / PICK_GRID_CELL_SIZE), 0, this.pickGridRows - 1);
+        return row * this.pickGridColumns + column;
+    }
+
+    /**
+     * Finds the vehicle drawn closest to a position.
+     *
+     * @param x the x coordinate in network coordinates
+     * @param y the y coordinate in network coordinates
+     * @param radius the largest distance in meters, at most the grid cell size
+     * @return the closest vehicle or null if there is none within the radius
+     */
+    private VehicleSlot pickVehicle(double x, double y, double radius) {
+        if (this.networkBounds == null || this.pickGridColumns == 0) {
+            return null;
+        }
+
+        radius = Math.min(radius, PICK_GRID_CELL_SIZE);
+        int center = this.pickGridCell(x, y);
+        int centerColumn = center % this.pickGridColumns;
+        int centerRow = center / this.pickGridColumns;
+        VehicleSlot closest = null;
+        double closestDistance = radius;
+
+        // icons may have moved into a neighbouring cell since the grid was built
+        for (int row = Math.max(0, centerRow - 1); row <= Math.min(this.pickGridRows - 1, centerRow + 1); ++row) {
+            for (int column = Math.max(0, centerColumn - 1); column <= Math.min(this.pickGridColumns - 1, centerColumn + 1); ++column) {
+                int cell = row * this.pickGridColumns + column;
+
+                for (int i = this.pickGridStarts[cell]; i < this.pickGridStarts[cell + 1]; ++i) {
+                    VehicleSlot slot = this.pickGridEntries[i];
+                    double distance = Math.hypot(slot.icon.getCenterX() - x, slot.icon.getCenterY() - y);
+
+                    if (distance <= closestDistance) {
+                        closest = slot;
+                        closestDistance = distance;
+                    }
+                }
+            }
+        }
+
+        return closest;
+    }
+
+    /**
+     * @return the id of the selected vehicle or null, set by clicking on a vehicle
+     */
+    public StringProperty selectedVehicleProperty() {
+        return this.selectedVehicle;
+    }
+
+    /**
+     * @return whether the camera follows the selected vehicle, reset when the map is dragged
+     */
+    public BooleanProperty followingProperty() {
+        return this.following;
+    }
+
+    /**
+     * Shows or hides the vehicle density overlay of a simulation.
+     * The densities are accumulated by the thread delivering the steps, the map only converts them into an image.
+     *
+     * @param simulation the simulation or null to hide the overlay
+     * @param cellSize the smallest edge length of a heatmap cell in meters, large networks get larger cells
+     * @param halfLife the number of steps after which a recorded position counts half
+     */
+    public void setHeatmap(SimulationEngine simulation, double cellSize, double halfLife) {
+        if (this.heatmapSimulation != null) {
+            this.heatmapSimulation.removeStateRecorder(this.heatmap);
+        }
+
+        this.heatmapGroup.getChildren().clear();
+        this.heatmapSimulation = null;
+        this.heatmap = null;
+        this.heatmapImage = null;
+        this.heatmapDensities = null;
+        this.heatmapPixels = null;
+        this.heatmapRendering = false;
+
+        if (simulation == null || this.networkBounds == null) {
+            return;
+        }
+
+        DensityGrid grid = new DensityGrid(this.networkBounds[0], this.networkBounds[1],
+                this.networkBounds[2], this.networkBounds[3], cellSize, halfLife);
+
+        int columns = grid.getColumns();
+        int rows = grid.getRows();
+        this.heatmapImage = new WritableImage(columns, rows);
+        this.heatmapDensities = new float[columns * rows];
+        this.heatmapPixels = new int[columns * rows];
+
+        // the map is flipped vertically, so the first image row ends up at the bottom of the network
+        ImageView view = new ImageView(this.heatmapImage);
+        view.setX(grid.getMinX());
+        view.setY(grid.getMinY());
+        view.setFitWidth(columns * grid.getCellSize());
+        view.setFitHeight(rows * grid.getCellSize());
+        view.setSmooth(true);
+        view.setMouseTransparent(true);
+        this.heatmapGroup.getChildren().add(view);
+
+        this.heatmap = grid;
+        this.heatmapSimulation = simulation;
+        simulation.addStateRecorder(grid);
+    }
+
+    /**
+     * Converts the current densities into the overlay image on a background thread.
+     * The cost only depends on the grid size, not on the recorded history. Steps that arrive while
+     * a conversion is running are skipped, the next conversion includes them.
+     */
+    private void updateHeatmap() {
+        if (this.heatmap == null || this.heatmapRendering) {
+            return;
+        }
+
+        DensityGrid grid = this.heatmap;
+        WritableImage image = this.heatmapImage;
+        float[] densities = this.heatmapDensities;
+        int[] pixels = this.heatmapPixels;
+        this.heatmapRendering = true;
+
+        Thread.ofVirtual().name("heatmap").start(() -> {
+            float max = grid.copyDensities(densities);
+            int last = HEATMAP_COLORS.length - 1;
+
+            for (int i = 0; i < pixels.length; ++i) {
+                pixels[i] = max > 0.0f ? HEATMAP_COLORS[(int)(densities[i] / max * last)] : 0;
+            }
+
+            Platform.runLater(() -> {
+                // the overlay may have been replaced in the meantime
+                if (this.heatmap != grid) {
+                    return;
+                }
+
+                image.getPixelWriter().setPixels(0, 0, grid.getColumns(), grid.getRows(),
+                        PixelFormat.getIntArgbInstance(), pixels, 0, grid.getColumns());
+                this.heatmapRendering = false;
+            });
+        });
+    }
+
+    /**
+     * @param size the number of colors
+     * @return the overlay colors for densities from 0 to the largest density
+     */
+    private static int[] createHeatmapColors(int size) {
+        int[] colors = new int[size];
+
+        for (int i = 0; i < size; ++i) {
+            // square root scale, so less frequented roads remain visible next to congested ones
+            double t = Math.sqrt((double)i / (size - 1));
+            int alpha = (int)(220.0 * t);
+            int green = (int)(255.0 * (1.0 - t));
+            colors[i] = (alpha << 24) | (255 << 16) | (green << 8);
+        }
+
+        return colors;
+    }
+
+    /**
+     * Draws all vehicles at their interpolated position, called with every frame.
+     *
+     * @param now the timestamp of the current frame in nanoseconds
+     */
+    public void render(long now) {
+        double alpha = Math.clamp((double)(now - this.stateNanoTime) / this.stateNanoInterval, 0.0, 1.0);
+
+        for (VehicleSlot slot : this.vehicleSlots.values()) {
+            slot.render(alpha);
+        }
+
+        VehicleSlot selected = this.selectedVehicle.get() != null ? this.vehicleSlots.get(this.selectedVehicle.get()) : null;
+        this.selectionMarker.setVisible(selected != null);
+
+        if (selected == null) {
+            return;
+        }
+
+        this.selectionMarker.setCenterX(selected.icon.getCenterX());
+        this.selectionMarker.setCenterY(selected.icon.getCenterY());
+
+        if (this.following.get()) {
+            this.camera.x = selected.icon.getCenterX();
+            this.camera.y = selected.icon.getCenterY();
+            this.updateTransforms();
+        }
+    }
+
+    /**
+     * Enables or disables the viewport based level of detail of a simulation.
+     * While enabled, the visible area is reported to the simulation whenever the camera changes.
+     *
+     * @param simulation the simulation or null to disable it
+     */
+    public void setViewportSync(SimulationEngine simulation) {
+        if (this.viewportSimulation != null && this.viewportSimulation != simulation) {
+            this.viewportSimulation.clearViewport();
+        }
+
+        this.viewportSimulation = simulation;
+        this.publishedViewport = null;
+        this.publishViewport();
+    }
+
+    /**
+     * Reports the network area that is currently visible to the simulation.
+     */
+    private void publishViewport() {
+        if (this.viewportSimulation == null || this.camera == null) {
+            return;
+        }
+
+        double halfWidth = 0.5 * this.mapPane.getWidth() / this.camera.zoom;
+        double halfHeight = 0.5 * this.mapPane.getHeight() / this.camera.zoom;
+        double[] viewport = {
+                this.camera.x - halfWidth,
+                this.camera.y - halfHeight,
+                this.camera.x + halfWidth,
+                this.camera.y + halfHeight
+        };
+
+        // a following camera moves every frame, small movements are covered by the subscription margin
+        if (this.publishedViewport != null) {
+            double tolerance = 0.02 * Math.max(halfWidth, halfHeight);
+            boolean changed = false;
+
+            for (int i = 0; i < viewport.length; ++i) {
+                changed |= Math.abs(viewport[i] - this.publishedViewport[i]) > tolerance;
+            }
+
+            if (!changed) {
+                return;
+            }
+        }
+
+        this.publishedViewport = viewport;
+        this.viewportSimulation.setViewport(viewport[0], viewport[1], viewport[2], viewport[3]);
     }
 
     /**
      * Resets the visualization map.
      */
     public void reset() {
+        this.setViewportSync(null);
+        this.setHeatmap(null, DEFAULT_HEATMAP_CELL_SIZE, DEFAULT_HEATMAP_HALF_LIFE);
+        this.networkBounds = null;
+        this.networkGeometry = null;
         this.active = false;
-        this.backgroundGroup.getChildren().clear();
+        this.drawNetwork();
+        this.trafficLightGroup.getChildren().clear();
         this.vehicleGroup.getChildren().clear();
-        this.vehicleIcons.clear();
+        this.signalMarkers = new Line[0][];
+        this.renderedSignalVersions = new int[0];
+        this.vehicleSlots.clear();
+        this.selectionMarker.setVisible(false);
+        this.selectedVehicle.set(null);
+        this.following.set(false);
+        this.pickGridColumns = 0;
+        this.pickGridRows = 0;
+        this.pickGridEntries = new VehicleSlot[0];
+        this.stateNanoTime = 0L;
+        this.stateNanoInterval = DEFAULT_STATE_INTERVAL;
     }
 
     /**
@@ -231,6 +822,88 @@ public class SimulationMap {
         this.cameraScaleTransform.setY(this.camera.zoom);
         this.cameraScaleTransform.setPivotX(this.camera.x);
         this.cameraScaleTransform.setPivotY(this.camera.y);
+
+        this.drawNetwork();
+        this.publishViewport();
+    }
+
+    /**
+     * The icon of a vehicle together with the two positions it is interpolated between.
+     */
+    private static class VehicleSlot {
+        private final String vehicleId;
+        private final Circle icon;
+        private double previousX;
+        private double previousY;
+        private double currentX;
+        private double currentY;
+        private SumoLane lane; // the lane of the target position or null if it is unknown
+        private boolean alongLane = false;
+        private double previousLanePosition;
+        private double currentLanePosition;
+        private double drawnLanePosition;
+        private double lateralOffset;
+        private long generation;
+
+        private VehicleSlot(String vehicleId, Circle icon, double x, double y) {
+            this.vehicleId = vehicleId;
+            this.icon = icon;
+            this.previousX = this.currentX = x;
+            this.previousY = this.currentY = y;
+            this.render(1.0);
+        }
+
+        /**
+         * Starts a movement from the drawn position to a new target.
+         * Vehicles that stay on a known lane follow its shape, all others move in a straight line.
+         *
+         * @param x the x coordinate of the new position
+         * @param y the y coordinate of the new position
+         * @param lane the lane of the new position or null if it is unknown
+         * @param lanePosition the distance from the start of the lane
+         * @param lateralOffset the offset to the left of the lane center
+         */
+        private void moveTo(double x, double y, SumoLane lane, double lanePosition, double lateralOffset) {
+            this.alongLane = lane != null && lane == this.lane && lanePosition >= this.drawnLanePosition;
+            this.lane = lane;
+            this.lateralOffset = lateralOffset;
+
+            if (this.alongLane) {
+                this.previousLanePosition = this.drawnLanePosition;
+            } else {
+                this.drawnLanePosition = lanePosition;
+            }
+
+            this.currentLanePosition = lanePosition;
+
+            if (Math.hypot(x - this.currentX, y - this.currentY) > TELEPORT_DISTANCE) {
+                // teleported vehicles would otherwise slide across the map
+                this.previousX = x;
+                this.previousY = y;
+            } else {
+                this.previousX = this.icon.getCenterX();
+                this.previousY = this.icon.getCenterY();
+            }
+
+            this.currentX = x;
+            this.currentY = y;
+        }
+
+        /**
+         * @param alpha the progress of the movement between 0 and 1
+         */
+        private void render(double alpha) {
+            if (this.alongLane) {
+                this.drawnLanePosition = this.previousLanePosition + alpha * (this.currentLanePosition - this.previousLanePosition);
+                this.lane.locate(this.drawnLanePosition, this.lateralOffset, LOCATE_SCRATCH);
+                this.icon.setCenterX(LOCATE_SCRATCH[0]);
+                this.icon.setCenterY(LOCATE_SCRATCH[1]);
+                return;
+            }
+
+            this.icon.setCenterX(this.previousX + alpha * (this.currentX - this.previousX));
+            this.icon.setCenterY(this.previousY + alpha * (this.currentY - this.previousY));
+        }
     }
 
     /**
@@ -3,9 +3,18 @@ module groupfour.trafficsim {
     requires javafx.fxml;
     requires traas;
     requires org.apache.logging.log4j;
+    requires com.lmax.disruptor; // only loaded by log4j for async logging
     requires java.xml;
+    requires java.management;
+    requires jdk.httpserver;
 
     exports groupfour.trafficsim;
+    exports groupfour.trafficsim.batch;
+    exports groupfour.trafficsim.demand;
+    exports groupfour.trafficsim.engine;
+    exports groupfour.trafficsim.export;
+    exports groupfour.trafficsim.metrics;
     exports groupfour.trafficsim.sim;
+    exports groupfour.trafficsim.stream;
     exports groupfour.trafficsim.ui;
 }
\ No newline at end of file